@@ -0,0 +1,69 @@
+package com.fitbit.hibernate.connection.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the {@link ConnectionProviderBenchmark} and the {@link CheckoutBookkeepingBenchmark} once per thread count,
+ * doubling from a single thread up to the maximum, with the GC profiler attached so that allocation rates are reported
+ * along with throughput and latency. <br/>
+ * Arguments:
+ * <ol>
+ *     <li>name of the module being benchmarked, used to name the result files</li>
+ *     <li>directory to write the JSON results to</li>
+ *     <li>optionally, the maximum number of threads, which defaults to the number of available processors</li>
+ * </ol>
+ *
+ * @author dgarson
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+        // static only
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkRunner <module> <report directory> [max threads]");
+            System.exit(1);
+        }
+        String module = args[0];
+        File reportDirectory = new File(args[1]);
+        int maxThreads = (args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+        if (!reportDirectory.isDirectory() && !reportDirectory.mkdirs()) {
+            throw new IllegalStateException("Unable to create report directory " + reportDirectory);
+        }
+
+        for (int threads : threadCounts(maxThreads)) {
+            Options options = new OptionsBuilder()
+                .include(ConnectionProviderBenchmark.class.getName())
+                .include(CheckoutBookkeepingBenchmark.class.getName())
+                .threads(threads)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(reportDirectory, module + "-" + threads + "-threads.json").getPath())
+                .build();
+            new Runner(options).run();
+        }
+    }
+
+    /**
+     * Returns 1, 2, 4, ... up to and always including <strong>maxThreads</strong>.
+     */
+    static List<Integer> threadCounts(int maxThreads) {
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(Math.max(1, maxThreads));
+        return threadCounts;
+    }
+}
@@ -0,0 +1,112 @@
+package com.fitbit.hibernate.connection.benchmark;
+
+import com.fitbit.hibernate.connection.CheckoutContext;
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderAware;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
+import com.fitbit.hibernate.connection.event.PreConnectionCloseListener;
+import com.fitbit.util.StripedLongCounter;
+
+import java.sql.Connection;
+
+/**
+ * Listeners that time how long connections are held with the two kinds of bookkeeping a listener can use: state kept
+ * in thread-locals, which is what listeners did before checkout contexts existed, and state kept in the
+ * {@link CheckoutContext} of each checkout.
+ *
+ * @author dgarson
+ */
+public final class HoldTimeListeners {
+
+    public static final String THREAD_LOCAL = "thread_local";
+    public static final String CHECKOUT_CONTEXT = "checkout_context";
+
+    private HoldTimeListeners() {
+        // static only
+    }
+
+    /**
+     * Returns the class name of the listener that uses the given bookkeeping, for use as the value of
+     * {@link InstrumentedConnectionProvider#CONNECTION_PROVIDER_LISTENERS}.
+     * @param bookkeeping either {@value #THREAD_LOCAL} or {@value #CHECKOUT_CONTEXT}
+     */
+    public static String listenerClassName(String bookkeeping) {
+        if (THREAD_LOCAL.equals(bookkeeping)) {
+            return ThreadLocalHoldTimeListener.class.getName();
+        } else if (CHECKOUT_CONTEXT.equals(bookkeeping)) {
+            return CheckoutContextHoldTimeListener.class.getName();
+        }
+        throw new IllegalArgumentException("Unknown bookkeeping: " + bookkeeping);
+    }
+
+    /**
+     * Keeps the nesting depth and the start of the outermost checkout of each thread in a thread-local.
+     */
+    public static class ThreadLocalHoldTimeListener implements PostConnectionAcquisitionListener,
+        PreConnectionCloseListener {
+
+        private final StripedLongCounter totalHoldNanos = new StripedLongCounter();
+
+        // the nesting depth and the start of the outermost checkout of each thread
+        private final ThreadLocal<long[]> checkoutState = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[2];
+            }
+        };
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) {
+        }
+
+        @Override
+        public void afterConnectionAcquired(InstrumentedConnectionProvider connectionProvider, Connection connection) {
+            long[] state = checkoutState.get();
+            if (state[0]++ == 0L) {
+                state[1] = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void afterConnectionAcquisitionFailed(InstrumentedConnectionProvider connectionProvider, Throwable exc) {
+        }
+
+        @Override
+        public void beforeClosingConnection(Connection connection) {
+            long[] state = checkoutState.get();
+            if (--state[0] == 0L) {
+                totalHoldNanos.add(System.nanoTime() - state[1]);
+            }
+        }
+    }
+
+    /**
+     * Reads the start of each checkout from its {@link CheckoutContext}, which the connection provider only creates
+     * when {@link InstrumentedConnectionProvider#CHECKOUT_CONTEXT_ENABLED} is set.
+     */
+    public static class CheckoutContextHoldTimeListener implements PreConnectionCloseListener,
+        ConnectionProviderAware {
+
+        private final StripedLongCounter totalHoldNanos = new StripedLongCounter();
+
+        private InstrumentedConnectionProvider connectionProvider;
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) {
+        }
+
+        @Override
+        public void setConnectionProvider(InstrumentedConnectionProvider connectionProvider) {
+            this.connectionProvider = connectionProvider;
+        }
+
+        @Override
+        public void beforeClosingConnection(Connection connection) {
+            CheckoutContext context = connectionProvider.getCheckoutContext(connection);
+            if (context != null && context.getNestingDepth() == 1) {
+                totalHoldNanos.add(System.nanoTime() - context.getAcquiredNanos());
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.fitbit.hibernate.connection.benchmark;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
+import com.fitbit.hibernate.connection.event.PostConnectionCloseListener;
+import com.fitbit.hibernate.connection.event.PreConnectionAcquisitionListener;
+import com.fitbit.hibernate.connection.event.PreConnectionCloseListener;
+
+import com.google.common.base.Preconditions;
+
+import java.sql.Connection;
+
+/**
+ * Listeners that implement every connection event but do nothing, so that benchmarks measure only the cost of
+ * dispatching events to them. Since the connection provider creates a single listener per class, each listener that is
+ * attached needs a class of its own.
+ *
+ * @author dgarson
+ */
+public final class NoOpListeners {
+
+    public static final int MAX_LISTENERS = 16;
+
+    private NoOpListeners() {
+        // static only
+    }
+
+    /**
+     * Returns the comma-separated class names of the given number of distinct listeners, for use as the value of
+     * {@link InstrumentedConnectionProvider#CONNECTION_PROVIDER_LISTENERS}.
+     */
+    public static String listenerClassNames(int numListeners) {
+        Preconditions.checkArgument(numListeners >= 0 && numListeners <= MAX_LISTENERS,
+            "numListeners must be between 0 and " + MAX_LISTENERS);
+        StringBuilder classNames = new StringBuilder();
+        for (int i = 1; i <= numListeners; i++) {
+            if (i > 1) {
+                classNames.append(',');
+            }
+            classNames.append(NoOpListeners.class.getName()).append("$Listener").append(i);
+        }
+        return classNames.toString();
+    }
+
+    public abstract static class NoOpListener implements PreConnectionAcquisitionListener,
+        PostConnectionAcquisitionListener, PreConnectionCloseListener, PostConnectionCloseListener {
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) {
+        }
+
+        @Override
+        public void beforeConnectionAcquisition(InstrumentedConnectionProvider connectionProvider) {
+        }
+
+        @Override
+        public void afterConnectionAcquired(InstrumentedConnectionProvider connectionProvider, Connection connection) {
+        }
+
+        @Override
+        public void afterConnectionAcquisitionFailed(InstrumentedConnectionProvider connectionProvider, Throwable exc) {
+        }
+
+        @Override
+        public void beforeClosingConnection(Connection connection) {
+        }
+
+        @Override
+        public void afterConnectionClosed() {
+        }
+
+        @Override
+        public void afterConnectionClosingFailed(Connection connection, Throwable exc) {
+        }
+    }
+
+    public static class Listener1 extends NoOpListener {
+    }
+
+    public static class Listener2 extends NoOpListener {
+    }
+
+    public static class Listener3 extends NoOpListener {
+    }
+
+    public static class Listener4 extends NoOpListener {
+    }
+
+    public static class Listener5 extends NoOpListener {
+    }
+
+    public static class Listener6 extends NoOpListener {
+    }
+
+    public static class Listener7 extends NoOpListener {
+    }
+
+    public static class Listener8 extends NoOpListener {
+    }
+
+    public static class Listener9 extends NoOpListener {
+    }
+
+    public static class Listener10 extends NoOpListener {
+    }
+
+    public static class Listener11 extends NoOpListener {
+    }
+
+    public static class Listener12 extends NoOpListener {
+    }
+
+    public static class Listener13 extends NoOpListener {
+    }
+
+    public static class Listener14 extends NoOpListener {
+    }
+
+    public static class Listener15 extends NoOpListener {
+    }
+
+    public static class Listener16 extends NoOpListener {
+    }
+}
@@ -0,0 +1,52 @@
+package com.fitbit.hibernate.connection.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+
+/**
+ * Creates connections that are not backed by any database, for delegate connection providers that should add as
+ * little as possible to the cost being measured.
+ *
+ * @author dgarson
+ */
+final class StubConnections {
+
+    private StubConnections() {
+        // static only
+    }
+
+    /**
+     * Returns a connection whose methods do nothing and return <code>false</code>, zero or <code>null</code>.
+     */
+    static Connection newConnection() {
+        return (Connection) Proxy.newProxyInstance(StubConnections.class.getClassLoader(),
+            new Class<?>[] { Connection.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "StubConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                }
+            });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
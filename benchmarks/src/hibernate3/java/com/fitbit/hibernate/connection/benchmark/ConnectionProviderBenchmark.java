@@ -0,0 +1,99 @@
+package com.fitbit.hibernate.connection.benchmark;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.hibernate.connection.DriverManagerConnectionProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput and latency of acquiring and releasing a connection through the raw delegate provider, and
+ * through the {@link InstrumentedConnectionProvider} with an increasing number of listeners attached to it. <br/>
+ * The stub delegate isolates the overhead added by this library, whereas the HSQLDB delegate, which pools connections
+ * to an in-memory database, shows that overhead relative to a real provider.
+ *
+ * @author dgarson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ConnectionProviderBenchmark {
+
+    private static final String RAW_DELEGATE = "delegate";
+    private static final String STUB_JDBC_URL = "jdbc:stub:benchmark";
+    private static final String HSQLDB_JDBC_URL = "jdbc:hsqldb:mem:benchmark";
+    private static final String HSQLDB_POOL_SIZE = "256";
+
+    /**
+     * Either {@value #RAW_DELEGATE} to benchmark the delegate on its own, or the number of listeners to attach to the
+     * instrumented provider wrapping it.
+     */
+    @Param({ RAW_DELEGATE, "0", "1", "4", "16" })
+    public String listeners;
+
+    @Param({ "stub", "hsqldb" })
+    public String backend;
+
+    private ConnectionProvider connectionProvider;
+
+    @Setup
+    public void createConnectionProvider() {
+        Properties props = new Properties();
+        Class<? extends ConnectionProvider> delegateClass;
+        if ("hsqldb".equals(backend)) {
+            delegateClass = DriverManagerConnectionProvider.class;
+            props.setProperty(Environment.DRIVER, "org.hsqldb.jdbc.JDBCDriver");
+            props.setProperty(Environment.URL, HSQLDB_JDBC_URL);
+            props.setProperty(Environment.USER, "sa");
+            props.setProperty(Environment.PASS, "");
+            props.setProperty(Environment.POOL_SIZE, HSQLDB_POOL_SIZE);
+        } else {
+            delegateClass = StubConnectionProvider.class;
+            props.setProperty(Environment.URL, STUB_JDBC_URL);
+        }
+
+        if (RAW_DELEGATE.equals(listeners)) {
+            props.setProperty(Environment.CONNECTION_PROVIDER, delegateClass.getName());
+        } else {
+            props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+            props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+                delegateClass.getName());
+            props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+                NoOpListeners.listenerClassNames(Integer.parseInt(listeners)));
+        }
+        connectionProvider = ConnectionProviderFactory.newConnectionProvider(props);
+    }
+
+    @TearDown
+    public void closeConnectionProvider() {
+        connectionProvider.close();
+    }
+
+    @Benchmark
+    public Connection acquireAndRelease() throws SQLException {
+        Connection connection = connectionProvider.getConnection();
+        connectionProvider.closeConnection(connection);
+        return connection;
+    }
+}
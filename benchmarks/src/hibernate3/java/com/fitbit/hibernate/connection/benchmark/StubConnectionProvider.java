@@ -0,0 +1,42 @@
+package com.fitbit.hibernate.connection.benchmark;
+
+import org.hibernate.connection.ConnectionProvider;
+
+import java.sql.Connection;
+import java.util.Properties;
+
+/**
+ * Delegate connection provider that hands out the same stub connection to every caller without doing any work, so
+ * that benchmarks using it isolate the overhead of the provider wrapping it.
+ *
+ * @author dgarson
+ */
+public class StubConnectionProvider implements ConnectionProvider {
+
+    private final Connection connection = StubConnections.newConnection();
+
+    @Override
+    public void configure(Properties props) {
+        // nothing to configure
+    }
+
+    @Override
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void closeConnection(Connection conn) {
+        // the connection is shared, so it is never closed
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return false;
+    }
+}
@@ -0,0 +1,101 @@
+package com.fitbit.hibernate.connection.benchmark;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Environment;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of timing connection checkouts with thread-local bookkeeping against the cost of doing so with
+ * checkout contexts. Connections are acquired either on the benchmark threads, which are few and long-lived, or on a
+ * new thread per acquisition, which stands in for running every task on its own virtual thread on JVMs that do not
+ * have them. The GC profiler attached by the runner shows the memory each kind of bookkeeping costs per thread. The
+ * provider is created by a service registry, as it would be by a Hibernate session factory.
+ *
+ * @author dgarson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CheckoutBookkeepingBenchmark {
+
+    private static final String HSQLDB_JDBC_URL = "jdbc:hsqldb:mem:bookkeepingBenchmark";
+    private static final String HSQLDB_POOL_SIZE = "256";
+
+    @Param({ HoldTimeListeners.THREAD_LOCAL, HoldTimeListeners.CHECKOUT_CONTEXT })
+    public String bookkeeping;
+
+    private StandardServiceRegistry serviceRegistry;
+    private ConnectionProvider connectionProvider;
+
+    @Setup
+    public void createConnectionProvider() {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(Environment.DRIVER, "org.hsqldb.jdbc.JDBCDriver");
+        settings.put(Environment.URL, HSQLDB_JDBC_URL);
+        settings.put(Environment.USER, "sa");
+        settings.put(Environment.PASS, "");
+        settings.put(Environment.POOL_SIZE, HSQLDB_POOL_SIZE);
+        settings.put(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        settings.put(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            PoolingConnectionProvider.class.getName());
+        settings.put(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            HoldTimeListeners.listenerClassName(bookkeeping));
+        settings.put(InstrumentedConnectionProvider.CHECKOUT_CONTEXT_ENABLED,
+            String.valueOf(HoldTimeListeners.CHECKOUT_CONTEXT.equals(bookkeeping)));
+        serviceRegistry = new StandardServiceRegistryBuilder().applySettings(settings).build();
+        connectionProvider = serviceRegistry.getService(ConnectionProvider.class);
+    }
+
+    @TearDown
+    public void closeConnectionProvider() {
+        StandardServiceRegistryBuilder.destroy(serviceRegistry);
+    }
+
+    @Benchmark
+    public Connection acquireAndRelease() throws SQLException {
+        Connection connection = connectionProvider.getConnection();
+        connectionProvider.closeConnection(connection);
+        return connection;
+    }
+
+    @Benchmark
+    public void acquireAndReleaseOnNewThread() throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquireAndRelease();
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+    }
+}
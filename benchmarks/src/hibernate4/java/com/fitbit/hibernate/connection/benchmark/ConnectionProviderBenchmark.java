@@ -0,0 +1,103 @@
+package com.fitbit.hibernate.connection.benchmark;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Environment;
+import org.hibernate.engine.jdbc.connections.internal.DriverManagerConnectionProviderImpl;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput and latency of acquiring and releasing a connection through the raw delegate provider, and
+ * through the {@link InstrumentedConnectionProvider} with an increasing number of listeners attached to it. <br/>
+ * The stub delegate isolates the overhead added by this library, whereas the HSQLDB delegate, which pools connections
+ * to an in-memory database, shows that overhead relative to a real provider. The providers are created by a service
+ * registry, as they would be by a Hibernate session factory.
+ *
+ * @author dgarson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ConnectionProviderBenchmark {
+
+    private static final String RAW_DELEGATE = "delegate";
+    private static final String STUB_JDBC_URL = "jdbc:stub:benchmark";
+    private static final String HSQLDB_JDBC_URL = "jdbc:hsqldb:mem:benchmark";
+    private static final String HSQLDB_POOL_SIZE = "256";
+
+    /**
+     * Either {@value #RAW_DELEGATE} to benchmark the delegate on its own, or the number of listeners to attach to the
+     * instrumented provider wrapping it.
+     */
+    @Param({ RAW_DELEGATE, "0", "1", "4", "16" })
+    public String listeners;
+
+    @Param({ "stub", "hsqldb" })
+    public String backend;
+
+    private StandardServiceRegistry serviceRegistry;
+    private ConnectionProvider connectionProvider;
+
+    @Setup
+    public void createConnectionProvider() {
+        Map<String, Object> settings = new HashMap<>();
+        Class<? extends ConnectionProvider> delegateClass;
+        if ("hsqldb".equals(backend)) {
+            delegateClass = DriverManagerConnectionProviderImpl.class;
+            settings.put(Environment.DRIVER, "org.hsqldb.jdbc.JDBCDriver");
+            settings.put(Environment.URL, HSQLDB_JDBC_URL);
+            settings.put(Environment.USER, "sa");
+            settings.put(Environment.PASS, "");
+            settings.put(Environment.POOL_SIZE, HSQLDB_POOL_SIZE);
+        } else {
+            delegateClass = StubConnectionProvider.class;
+            settings.put(Environment.URL, STUB_JDBC_URL);
+        }
+
+        if (RAW_DELEGATE.equals(listeners)) {
+            settings.put(Environment.CONNECTION_PROVIDER, delegateClass.getName());
+        } else {
+            settings.put(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+            settings.put(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS, delegateClass.getName());
+            settings.put(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+                NoOpListeners.listenerClassNames(Integer.parseInt(listeners)));
+        }
+        serviceRegistry = new StandardServiceRegistryBuilder().applySettings(settings).build();
+        connectionProvider = serviceRegistry.getService(ConnectionProvider.class);
+    }
+
+    @TearDown
+    public void closeConnectionProvider() {
+        StandardServiceRegistryBuilder.destroy(serviceRegistry);
+    }
+
+    @Benchmark
+    public Connection acquireAndRelease() throws SQLException {
+        Connection connection = connectionProvider.getConnection();
+        connectionProvider.closeConnection(connection);
+        return connection;
+    }
+}
@@ -0,0 +1,47 @@
+package com.fitbit.hibernate.connection.benchmark;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.UnknownUnwrapTypeException;
+
+import java.sql.Connection;
+
+/**
+ * Delegate connection provider that hands out the same stub connection to every caller without doing any work, so
+ * that benchmarks using it isolate the overhead of the provider wrapping it.
+ *
+ * @author dgarson
+ */
+public class StubConnectionProvider implements ConnectionProvider {
+
+    private final Connection connection = StubConnections.newConnection();
+
+    @Override
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void closeConnection(Connection conn) {
+        // the connection is shared, so it is never closed
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public boolean isUnwrappableAs(Class unwrapType) {
+        return unwrapType.isInstance(this);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> unwrapType) {
+        if (!isUnwrappableAs(unwrapType)) {
+            throw new UnknownUnwrapTypeException(unwrapType);
+        }
+        return (T) this;
+    }
+}
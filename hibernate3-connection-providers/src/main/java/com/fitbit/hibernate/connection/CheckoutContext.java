@@ -0,0 +1,116 @@
+package com.fitbit.hibernate.connection;
+
+import com.fitbit.hibernate.connection.bulkhead.Bulkhead;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * State that belongs to a single checkout of a connection from an {@link InstrumentedConnectionProvider}, from the
+ * acquisition that takes it from the delegate until the close that hands it back, including any nested acquisitions
+ * that are given the same connection in between. It is created by the connection provider when
+ * &quot;hibernate.connection.checkout_context.enabled&quot; is set, and looked up by listeners through
+ * {@link InstrumentedConnectionProvider#getCheckoutContext(java.sql.Connection)}. <br/>
+ * Listeners that keep their bookkeeping here instead of in thread-locals follow the connection rather than the thread,
+ * so they stay correct when a connection is closed on another thread than the one that acquired it, and do not leave
+ * an entry behind in every thread that ever acquired a connection, which matters once there are far more threads than
+ * connections. <br/>
+ * A checkout is used by one thread at a time, so this class is not synchronized, and relies on the connection being
+ * handed between threads safely by whoever hands it over.
+ *
+ * @author dgarson
+ */
+@NotThreadSafe
+public final class CheckoutContext {
+
+    private static final Object[] NO_ATTACHMENTS = new Object[0];
+
+    private final long acquiredNanos;
+    private final long permitGrantedNanos;
+    private final Bulkhead bulkhead;
+    private int nestingDepth = 1;
+
+    // listener keys and the values they attached, interleaved, since only a handful of listeners attach anything
+    private Object[] attachments = NO_ATTACHMENTS;
+
+    CheckoutContext(long acquiredNanos, long permitGrantedNanos, @Nullable Bulkhead bulkhead) {
+        this.acquiredNanos = acquiredNanos;
+        this.permitGrantedNanos = permitGrantedNanos;
+        this.bulkhead = bulkhead;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the connection was acquired from the delegate.
+     */
+    public long getAcquiredNanos() {
+        return acquiredNanos;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the concurrency limiter granted this checkout its permit, which
+     * is meaningless if concurrency limiting is not enabled.
+     */
+    long getPermitGrantedNanos() {
+        return permitGrantedNanos;
+    }
+
+    /**
+     * Returns the bulkhead that granted this checkout a permit, or <code>null</code> if it was not granted one.
+     */
+    @Nullable
+    Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /**
+     * Returns the number of acquisitions that were given this checkout's connection and have not closed it yet, which
+     * is only ever more than one if nested connection reuse is enabled. Listeners that are notified of a close see the
+     * depth from before that close.
+     */
+    public int getNestingDepth() {
+        return nestingDepth;
+    }
+
+    void nestedAcquisition() {
+        nestingDepth++;
+    }
+
+    void nestedRelease() {
+        nestingDepth--;
+    }
+
+    /**
+     * Returns the value attached under the given key, or <code>null</code> if there is none.
+     * @param key the key, compared by identity, which is typically the listener itself
+     */
+    @Nullable
+    public Object getAttachment(@Nonnull Object key) {
+        for (int i = 0; i < attachments.length; i += 2) {
+            if (attachments[i] == key) {
+                return attachments[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attaches a value to this checkout under the given key, replacing any value that was attached under it before.
+     * @param key the key, compared by identity, which is typically the listener itself
+     * @param value the value to attach
+     */
+    public void setAttachment(@Nonnull Object key, @Nullable Object value) {
+        for (int i = 0; i < attachments.length; i += 2) {
+            if (attachments[i] == key) {
+                attachments[i + 1] = value;
+                return;
+            }
+        }
+        int length = attachments.length;
+        attachments = Arrays.copyOf(attachments, length + 2);
+        attachments[length] = key;
+        attachments[length + 1] = value;
+    }
+}
@@ -0,0 +1,121 @@
+package com.fitbit.hibernate.connection;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Keeps the {@link CheckoutContext} of every connection that an {@link InstrumentedConnectionProvider} has handed out
+ * and not taken back yet, keyed by the identity of the connection that was handed out. <br/>
+ * Connections are only weakly referenced, so a connection that is leaked by its borrower can still be garbage
+ * collected. The context of a collected connection is kept until it is picked up through {@link #pollCollected()}, so
+ * that the connection provider can give back the permits that its checkout was still holding.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+final class CheckoutRegistry {
+
+    // every key is a CheckoutReference, and lookups use a LookupKey, which are equal to each other if they refer to the
+    //      same connection
+    private final ConcurrentMap<Object, CheckoutReference> checkouts = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Connection> collected = new ReferenceQueue<>();
+
+    /**
+     * Registers the context of a connection that was just handed out.
+     */
+    void put(@Nonnull Connection connection, @Nonnull CheckoutContext context) {
+        CheckoutReference reference = new CheckoutReference(connection, context, collected);
+        checkouts.put(reference, reference);
+    }
+
+    /**
+     * Returns the context of the given connection, or <code>null</code> if it is not checked out.
+     */
+    @Nullable
+    CheckoutContext get(@Nonnull Connection connection) {
+        CheckoutReference reference = checkouts.get(new LookupKey(connection));
+        return (reference != null ? reference.context : null);
+    }
+
+    /**
+     * Forgets the given connection, which is being taken back.
+     * @return the context of the connection, or <code>null</code> if it was not checked out
+     */
+    @Nullable
+    CheckoutContext remove(@Nonnull Connection connection) {
+        CheckoutReference reference = checkouts.remove(new LookupKey(connection));
+        if (reference == null) {
+            return null;
+        }
+        // a cleared reference is never queued, so the connection is not mistaken for a collected one later on
+        reference.clear();
+        return reference.context;
+    }
+
+    /**
+     * Forgets a connection that was garbage collected while it was still checked out, if there is one.
+     * @return the context of the collected connection, or <code>null</code> if no checked out connection was collected
+     *          since the last call
+     */
+    @Nullable
+    CheckoutContext pollCollected() {
+        for (Reference<? extends Connection> queued; (queued = collected.poll()) != null; ) {
+            CheckoutReference reference = (CheckoutReference) queued;
+            if (checkouts.remove(reference) != null) {
+                return reference.context;
+            }
+        }
+        return null;
+    }
+
+    private static final class CheckoutReference extends WeakReference<Connection> {
+        final CheckoutContext context;
+        private final int hash;
+
+        CheckoutReference(Connection connection, CheckoutContext context, ReferenceQueue<Connection> queue) {
+            super(connection, queue);
+            this.context = context;
+            this.hash = System.identityHashCode(connection);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+            Connection connection = get();
+            return (connection != null && other instanceof LookupKey && ((LookupKey) other).connection == connection);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class LookupKey {
+        final Connection connection;
+
+        LookupKey(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof CheckoutReference && ((CheckoutReference) other).get() == connection);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(connection);
+        }
+    }
+}
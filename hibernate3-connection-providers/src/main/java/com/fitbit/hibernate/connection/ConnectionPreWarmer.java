@@ -0,0 +1,169 @@
+package com.fitbit.hibernate.connection;
+
+import com.fitbit.hibernate.connection.event.ConnectionWarmUpListener;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hibernate.connection.ConnectionProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Opens a number of connections from the delegate of an {@link InstrumentedConnectionProvider} concurrently and then
+ * returns them all, so that a pooling delegate already holds open connections when the first requests arrive. <br/>
+ * All warmed up connections are held until every one of them has been acquired, since returning any of them early would
+ * let the delegate hand the same connection out again instead of opening another one. Connections are acquired on a
+ * bounded number of threads, and whatever has not been acquired when the timeout expires is abandoned; a connection
+ * that is acquired after that is returned by the thread that acquired it.
+ *
+ * @author dgarson
+ */
+final class ConnectionPreWarmer {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPreWarmer.class);
+
+    private final InstrumentedConnectionProvider connectionProvider;
+    private final ConnectionProvider delegateConnectionProvider;
+    private final ConnectionWarmUpListener[] listeners;
+    private final String validationQuery;
+
+    @GuardedBy("warmedUpConnections")
+    private final List<Connection> warmedUpConnections = new ArrayList<>();
+    @GuardedBy("warmedUpConnections")
+    private boolean finished;
+
+    /**
+     * @param listeners the listeners to notify, which must not be modified after being passed in
+     * @param validationQuery the query to execute on every warmed up connection, or <code>null</code> to not execute
+     *          any
+     */
+    ConnectionPreWarmer(@Nonnull InstrumentedConnectionProvider connectionProvider,
+                        @Nonnull ConnectionProvider delegateConnectionProvider,
+                        @Nonnull ConnectionWarmUpListener[] listeners, @Nullable String validationQuery) {
+        this.connectionProvider = connectionProvider;
+        this.delegateConnectionProvider = delegateConnectionProvider;
+        this.listeners = listeners;
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * Warms up the given number of connections, waiting no longer than the given timeout for them to be acquired.
+     * @return the number of connections that were warmed up successfully in time
+     */
+    int warmUp(int numConnections, int numThreads, long timeoutMillis) {
+        long startNanos = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, numConnections)),
+            new ThreadFactoryBuilder()
+                .setNameFormat("ConnectionPreWarmer-%d")
+                .setDaemon(true)
+                .build());
+        List<Callable<Void>> tasks = new ArrayList<>(numConnections);
+        for (int i = 0; i < numConnections; i++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    warmUpConnection();
+                    return null;
+                }
+            });
+        }
+        try {
+            executor.invokeAll(tasks, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Connection> connections;
+        synchronized (warmedUpConnections) {
+            finished = true;
+            connections = new ArrayList<>(warmedUpConnections);
+            warmedUpConnections.clear();
+        }
+        for (Connection connection : connections) {
+            release(connection);
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        fireWarmUpCompleted(numConnections, connections.size(), elapsedNanos);
+        return connections.size();
+    }
+
+    private void warmUpConnection() {
+        long startNanos = System.nanoTime();
+        Connection connection = null;
+        try {
+            connection = delegateConnectionProvider.getConnection();
+            if (validationQuery != null) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(validationQuery);
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            log.warn("Unable to warm up a connection to {}", connectionProvider.getJdbcUrl(), e);
+            fireConnectionWarmedUp(System.nanoTime() - startNanos, e);
+            if (connection != null) {
+                release(connection);
+            }
+            return;
+        }
+        fireConnectionWarmedUp(System.nanoTime() - startNanos, null);
+
+        synchronized (warmedUpConnections) {
+            if (!finished) {
+                warmedUpConnections.add(connection);
+                return;
+            }
+        }
+        // the warm-up timed out while this connection was being acquired, so nobody else will return it
+        release(connection);
+    }
+
+    private void release(Connection connection) {
+        try {
+            delegateConnectionProvider.closeConnection(connection);
+        } catch (SQLException | RuntimeException e) {
+            log.warn("Unable to return a warmed up connection to {}", connectionProvider.getJdbcUrl(), e);
+        }
+    }
+
+    private void fireConnectionWarmedUp(long warmUpNanos, Throwable failure) {
+        for (ConnectionWarmUpListener listener : listeners) {
+            try {
+                listener.afterConnectionWarmedUp(connectionProvider, warmUpNanos, failure);
+            } catch (Throwable t) {
+                logListenerFailure("afterConnectionWarmedUp", listener, t);
+            }
+        }
+    }
+
+    private void fireWarmUpCompleted(int numRequested, int numWarmedUp, long elapsedNanos) {
+        for (ConnectionWarmUpListener listener : listeners) {
+            try {
+                listener.afterWarmUpCompleted(connectionProvider, numRequested, numWarmedUp, elapsedNanos);
+            } catch (Throwable t) {
+                logListenerFailure("afterWarmUpCompleted", listener, t);
+            }
+        }
+    }
+
+    private void logListenerFailure(String methodName, ConnectionWarmUpListener listener, Throwable t) {
+        if (log.isErrorEnabled()) {
+            log.error("Unable to invoke {} for listener of type '{}' connected to {}", methodName,
+                listener.getClass(), connectionProvider.getJdbcUrl(), t);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.fitbit.hibernate.connection.breaker;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.CircuitBreakerListener;
+import com.fitbit.util.StripedLongCounter;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Stops a connection provider from asking its delegate for connections while the database appears to be unreachable,
+ * so callers fail immediately instead of each waiting for the driver's connect timeout. <br/>
+ * While {@link CircuitState#CLOSED closed}, the outcome of every acquisition is recorded in a sliding window over the
+ * most recent acquisitions, and once at least the minimum number of acquisitions has been recorded and the percentage
+ * of them that failed reaches the threshold, the breaker opens. While {@link CircuitState#OPEN open}, every
+ * acquisition is rejected with a {@link CircuitBreakerOpenException}. Once the open duration has elapsed the breaker
+ * becomes {@link CircuitState#HALF_OPEN half-open} and lets a limited number of probe acquisitions through: if all of
+ * them succeed the breaker closes again with an empty window, and if any of them fails it opens again. <br/>
+ * Recording an outcome and checking the state do not take any locks, and every state transition is published to the
+ * registered {@link CircuitBreakerListener}s by the thread that caused it. Outcomes are attributed to the state the
+ * breaker is in when the acquisition completes, so an acquisition that was let through while closed and fails after
+ * the breaker opened is not counted again.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+public class ConnectionCircuitBreaker {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionCircuitBreaker.class);
+
+    private static final CircuitBreakerListener[] NO_LISTENERS = new CircuitBreakerListener[0];
+
+    // values of the slots in the sliding window
+    private static final int EMPTY = 0;
+    private static final int SUCCESS = 1;
+    private static final int FAILURE = 2;
+
+    private final InstrumentedConnectionProvider connectionProvider;
+    private final int failureRateThreshold;
+    private final int minimumCalls;
+    private final long openDurationNanos;
+    private final int numHalfOpenProbes;
+
+    private final AtomicReference<CircuitState> state = new AtomicReference<>(CircuitState.CLOSED);
+    private volatile long openedAtNanos;
+
+    // the outcomes of the most recent acquisitions, written round-robin. the counts below are only ever adjusted by
+    //      the thread that swapped a slot's value, so they always match the contents of the window
+    private final AtomicIntegerArray window;
+    private final AtomicInteger windowCursor = new AtomicInteger();
+    private final AtomicInteger numRecorded = new AtomicInteger();
+    private final AtomicInteger numFailed = new AtomicInteger();
+
+    // probe acquisitions that may still be let through, and probes that have succeeded, while half-open
+    private final AtomicInteger remainingProbes = new AtomicInteger();
+    private final AtomicInteger succeededProbes = new AtomicInteger();
+
+    private final StripedLongCounter numRejected = new StripedLongCounter();
+
+    private volatile CircuitBreakerListener[] listeners = NO_LISTENERS;
+
+    /**
+     * @param connectionProvider the connection provider this breaker guards, which is passed to listeners
+     * @param failureRateThreshold the percentage of failed acquisitions in the window at which the breaker opens
+     * @param windowSize the number of most recent acquisitions whose outcome is considered
+     * @param minimumCalls the number of acquisitions that must be recorded before the breaker may open
+     * @param openDurationMillis how long the breaker stays open before letting probes through
+     * @param numHalfOpenProbes the number of probe acquisitions that must succeed for the breaker to close again
+     */
+    public ConnectionCircuitBreaker(@Nonnull InstrumentedConnectionProvider connectionProvider,
+                                    int failureRateThreshold, int windowSize, int minimumCalls,
+                                    long openDurationMillis, int numHalfOpenProbes) {
+        Preconditions.checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 100,
+            "failureRateThreshold must be a percentage");
+        Preconditions.checkArgument(windowSize > 0, "windowSize must be positive");
+        Preconditions.checkArgument(numHalfOpenProbes > 0, "numHalfOpenProbes must be positive");
+        this.connectionProvider = connectionProvider;
+        this.failureRateThreshold = failureRateThreshold;
+        this.window = new AtomicIntegerArray(windowSize);
+        this.minimumCalls = Math.max(1, Math.min(windowSize, minimumCalls));
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, openDurationMillis));
+        this.numHalfOpenProbes = numHalfOpenProbes;
+    }
+
+    /**
+     * Sets the listeners that are notified of state transitions.
+     * @param listeners the listeners, which must not be modified after being passed in
+     */
+    public void setListeners(@Nonnull CircuitBreakerListener[] listeners) {
+        this.listeners = listeners;
+    }
+
+    /**
+     * Decides whether an acquisition may ask the delegate for a connection. Every acquisition that is let through must
+     * be followed by exactly one call to {@link #onSuccess()}, {@link #onFailure()} or {@link #releasePermission()}.
+     * @throws CircuitBreakerOpenException if the breaker is open, or half-open with all probes in progress
+     */
+    public void acquirePermission() throws CircuitBreakerOpenException {
+        CircuitState current = state.get();
+        if (current == CircuitState.CLOSED) {
+            return;
+        }
+        if (current == CircuitState.OPEN && System.nanoTime() - openedAtNanos >= openDurationNanos) {
+            transitionToHalfOpen();
+            current = state.get();
+        }
+        if (current == CircuitState.HALF_OPEN && tryAcquireProbe()) {
+            return;
+        }
+        numRejected.increment();
+        throw new CircuitBreakerOpenException(connectionProvider.getJdbcUrl(), current);
+    }
+
+    /**
+     * Records an acquisition that was let through and succeeded.
+     */
+    public void onSuccess() {
+        CircuitState current = state.get();
+        if (current == CircuitState.CLOSED) {
+            record(SUCCESS);
+        } else if (current == CircuitState.HALF_OPEN && succeededProbes.incrementAndGet() >= numHalfOpenProbes) {
+            transition(CircuitState.HALF_OPEN, CircuitState.CLOSED);
+        }
+    }
+
+    /**
+     * Records an acquisition that was let through and failed.
+     */
+    public void onFailure() {
+        CircuitState current = state.get();
+        if (current == CircuitState.CLOSED) {
+            record(FAILURE);
+            int recorded = numRecorded.get();
+            if (recorded >= minimumCalls && numFailed.get() * 100L >= (long) failureRateThreshold * recorded) {
+                transition(CircuitState.CLOSED, CircuitState.OPEN);
+            }
+        } else if (current == CircuitState.HALF_OPEN) {
+            transition(CircuitState.HALF_OPEN, CircuitState.OPEN);
+        }
+    }
+
+    /**
+     * Gives back the permission of an acquisition that was let through but never reached the delegate, such as one
+     * that was rejected by a concurrency limit, without recording an outcome for it.
+     */
+    public void releasePermission() {
+        if (state.get() == CircuitState.HALF_OPEN) {
+            remainingProbes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the current state of this breaker.
+     */
+    @Nonnull
+    public CircuitState getState() {
+        return state.get();
+    }
+
+    /**
+     * Returns the percentage of the acquisitions in the sliding window that failed, or zero if none are recorded.
+     */
+    public float getFailureRate() {
+        int recorded = numRecorded.get();
+        return (recorded > 0 ? numFailed.get() * 100.0f / recorded : 0.0f);
+    }
+
+    /**
+     * Returns the number of acquisitions that were rejected without asking the delegate.
+     */
+    public long getNumRejected() {
+        return numRejected.sum();
+    }
+
+    private void record(int outcome) {
+        int slot = (windowCursor.getAndIncrement() & Integer.MAX_VALUE) % window.length();
+        swap(slot, outcome);
+    }
+
+    private void clearWindow() {
+        for (int slot = 0; slot < window.length(); slot++) {
+            swap(slot, EMPTY);
+        }
+    }
+
+    private void swap(int slot, int outcome) {
+        int previous = window.getAndSet(slot, outcome);
+        if (previous == EMPTY && outcome != EMPTY) {
+            numRecorded.incrementAndGet();
+        } else if (previous != EMPTY && outcome == EMPTY) {
+            numRecorded.decrementAndGet();
+        }
+        if (previous == FAILURE) {
+            numFailed.decrementAndGet();
+        }
+        if (outcome == FAILURE) {
+            numFailed.incrementAndGet();
+        }
+    }
+
+    private boolean tryAcquireProbe() {
+        int remaining;
+        do {
+            remaining = remainingProbes.get();
+            if (remaining <= 0) {
+                return false;
+            }
+        } while (!remainingProbes.compareAndSet(remaining, remaining - 1));
+        return true;
+    }
+
+    private void transitionToHalfOpen() {
+        // the probe counters must be reset before other threads can see the new state
+        synchronized (this) {
+            if (state.get() != CircuitState.OPEN) {
+                return;
+            }
+            remainingProbes.set(numHalfOpenProbes);
+            succeededProbes.set(0);
+            state.set(CircuitState.HALF_OPEN);
+        }
+        fireStateChanged(CircuitState.OPEN, CircuitState.HALF_OPEN);
+    }
+
+    private void transition(CircuitState from, CircuitState to) {
+        synchronized (this) {
+            if (state.get() != from) {
+                return;
+            }
+            if (to == CircuitState.OPEN) {
+                openedAtNanos = System.nanoTime();
+            } else if (to == CircuitState.CLOSED) {
+                clearWindow();
+            }
+            state.set(to);
+        }
+        fireStateChanged(from, to);
+    }
+
+    private void fireStateChanged(CircuitState previousState, CircuitState newState) {
+        float failureRate = getFailureRate();
+        if (previousState == CircuitState.HALF_OPEN && newState == CircuitState.OPEN) {
+            log.warn("Circuit breaker for {} reopened after a probe acquisition failed, rejecting connections for {}ms",
+                connectionProvider.getJdbcUrl(), TimeUnit.NANOSECONDS.toMillis(openDurationNanos));
+        } else if (newState == CircuitState.OPEN) {
+            log.warn("Circuit breaker for {} opened after {}% of acquisitions failed, rejecting connections for {}ms",
+                connectionProvider.getJdbcUrl(), failureRate, TimeUnit.NANOSECONDS.toMillis(openDurationNanos));
+        } else {
+            log.info("Circuit breaker for {} is now {}", connectionProvider.getJdbcUrl(), newState);
+        }
+        for (CircuitBreakerListener listener : listeners) {
+            try {
+                listener.afterCircuitStateChanged(connectionProvider, previousState, newState, failureRate);
+            } catch (Throwable t) {
+                log.error("Unable to invoke afterCircuitStateChanged for listener of type '{}' connected to {}",
+                    listener.getClass(), connectionProvider.getJdbcUrl(), t);
+            }
+        }
+    }
+}
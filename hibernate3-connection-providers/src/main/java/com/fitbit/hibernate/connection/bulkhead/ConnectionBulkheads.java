@@ -0,0 +1,135 @@
+package com.fitbit.hibernate.connection.bulkhead;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Partitions the connections a connection provider hands out into named {@link Bulkhead}s, each of which may only have
+ * a fixed number of connections checked out at the same time, so that one kind of caller, such as a batch job, cannot
+ * take every connection away from another, such as latency-sensitive API traffic. <br/>
+ * The partition of each acquisition is determined by a {@link PartitionResolver} on the acquiring thread. Acquisitions
+ * for a partition that is not configured are counted against the default partition, if there is one, and are not
+ * limited at all otherwise. <br/>
+ * The bulkhead that granted a permit is handed to the caller, which keeps it with its checkout and gives the permit
+ * back to that same bulkhead, so the permit returns to the right partition even if the connection is closed on another
+ * thread or in another context.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+public class ConnectionBulkheads {
+
+    private final String jdbcUrl;
+    private final Map<String, Bulkhead> bulkheads;
+    private final Bulkhead defaultBulkhead;
+    private final long maxWaitNanos;
+    private final PartitionResolver partitionResolver;
+
+    /**
+     * @param jdbcUrl the JDBC url of the connection provider, used for error messages
+     * @param permitsPerPartition the number of connections each partition may have checked out, by partition name
+     * @param defaultPartition the partition that acquisitions for unknown partitions are counted against, or
+     *          <code>null</code> to not limit them
+     * @param maxWaitMillis how long an acquisition waits for a permit before being rejected
+     * @param partitionResolver determines the partition of each acquisition
+     */
+    public ConnectionBulkheads(String jdbcUrl, @Nonnull Map<String, Integer> permitsPerPartition,
+                               @Nullable String defaultPartition, long maxWaitMillis,
+                               @Nonnull PartitionResolver partitionResolver) {
+        Preconditions.checkArgument(defaultPartition == null || permitsPerPartition.containsKey(defaultPartition),
+            "default partition '%s' is not configured", defaultPartition);
+        Map<String, Bulkhead> bulkheads = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : permitsPerPartition.entrySet()) {
+            Preconditions.checkArgument(entry.getValue() > 0, "partition '%s' must have a positive number of permits",
+                entry.getKey());
+            bulkheads.put(entry.getKey(), new Bulkhead(entry.getKey(), entry.getValue()));
+        }
+        this.jdbcUrl = jdbcUrl;
+        this.bulkheads = Collections.unmodifiableMap(bulkheads);
+        this.defaultBulkhead = (defaultPartition != null ? bulkheads.get(defaultPartition) : null);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, maxWaitMillis));
+        this.partitionResolver = partitionResolver;
+    }
+
+    /**
+     * Parses a partition specification of the form <code>name:permits,name:permits</code>, such as
+     * <code>api:40,batch:10</code>.
+     * @return the number of permits by partition name, in the order they were declared
+     * @throws IllegalArgumentException if the specification is malformed
+     */
+    @Nonnull
+    public static Map<String, Integer> parsePartitions(@Nonnull String spec) {
+        Map<String, Integer> permitsPerPartition = new LinkedHashMap<>();
+        for (String partition : StringUtils.split(spec, ",")) {
+            String[] nameAndPermits = StringUtils.split(partition, ":");
+            Preconditions.checkArgument(nameAndPermits.length == 2, "malformed bulkhead partition '%s'", partition);
+            String name = StringUtils.trim(nameAndPermits[0]);
+            Preconditions.checkArgument(StringUtils.isNotEmpty(name) && !permitsPerPartition.containsKey(name),
+                "missing or duplicate bulkhead partition name in '%s'", partition);
+            try {
+                permitsPerPartition.put(name, Integer.parseInt(StringUtils.trim(nameAndPermits[1])));
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("malformed bulkhead partition '" + partition + "'", nfe);
+            }
+        }
+        return permitsPerPartition;
+    }
+
+    /**
+     * Grants a permit from the bulkhead of the calling thread's partition, if it has one. A granted permit must be
+     * given back through {@link #release(Bulkhead)}.
+     * @return the bulkhead that granted the permit, or <code>null</code> if the acquisition is not limited
+     * @throws BulkheadFullException if the partition has no permit available
+     */
+    @Nullable
+    public Bulkhead acquire() throws BulkheadFullException {
+        Bulkhead bulkhead = resolveBulkhead();
+        if (bulkhead != null && !bulkhead.acquire(maxWaitNanos)) {
+            throw new BulkheadFullException(jdbcUrl, bulkhead.getName(), bulkhead.getMaxPermits());
+        }
+        return bulkhead;
+    }
+
+    /**
+     * Gives back a permit, whether the acquisition it was granted for failed or its connection was returned to the
+     * delegate.
+     * @param bulkhead the bulkhead returned by {@link #acquire()}, or <code>null</code>
+     */
+    public void release(@Nullable Bulkhead bulkhead) {
+        if (bulkhead != null) {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Returns the bulkhead of the given partition, or <code>null</code> if it is not configured.
+     */
+    @Nullable
+    public Bulkhead getBulkhead(String partition) {
+        return bulkheads.get(partition);
+    }
+
+    /**
+     * Returns all bulkheads, in the order their partitions were declared.
+     */
+    @Nonnull
+    public Collection<Bulkhead> getBulkheads() {
+        return bulkheads.values();
+    }
+
+    private Bulkhead resolveBulkhead() {
+        String partition = partitionResolver.resolvePartition();
+        Bulkhead bulkhead = (partition != null ? bulkheads.get(partition) : null);
+        return (bulkhead != null ? bulkhead : defaultBulkhead);
+    }
+}
@@ -0,0 +1,35 @@
+package com.fitbit.hibernate.connection.bulkhead;
+
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+
+import org.slf4j.MDC;
+
+import javax.annotation.Nullable;
+
+/**
+ * {@link PartitionResolver} that resolves the partition from an SLF4J {@link MDC} entry of the calling thread, for
+ * applications that already tag their request or job threads that way. The MDC key is configured using the
+ * &quot;hibernate.connection.bulkhead.mdc_key&quot; Hibernate property, and defaults to
+ * &quot;connectionPartition&quot;.
+ *
+ * @author dgarson
+ */
+public class MdcPartitionResolver implements PartitionResolver {
+
+    public static final String MDC_KEY = "hibernate.connection.bulkhead.mdc_key";
+
+    private static final String DEFAULT_MDC_KEY = "connectionPartition";
+
+    private String mdcKey = DEFAULT_MDC_KEY;
+
+    @Override
+    public void initialize(ConnectionProviderListenerSettings settings) {
+        mdcKey = settings.getProperty(MDC_KEY, DEFAULT_MDC_KEY);
+    }
+
+    @Nullable
+    @Override
+    public String resolvePartition() {
+        return MDC.get(mdcKey);
+    }
+}
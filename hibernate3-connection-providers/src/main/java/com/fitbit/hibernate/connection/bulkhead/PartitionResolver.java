@@ -0,0 +1,29 @@
+package com.fitbit.hibernate.connection.bulkhead;
+
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+
+import javax.annotation.Nullable;
+
+/**
+ * Determines which bulkhead partition a connection acquisition belongs to, from whatever context the calling thread
+ * carries, such as a value set by a request filter or a batch job runner. Implementations are created through their
+ * zero-argument constructor and must be thread-safe, since {@link #resolvePartition()} is invoked on every acquisition.
+ *
+ * @author dgarson
+ */
+public interface PartitionResolver {
+
+    /**
+     * Initializes this resolver from the Hibernate properties of the connection provider it is attached to.
+     *
+     * @param settings the settings of the connection provider
+     */
+    void initialize(ConnectionProviderListenerSettings settings);
+
+    /**
+     * Returns the name of the partition the calling thread acquires connections for, or <code>null</code> if it does
+     * not belong to any.
+     */
+    @Nullable
+    String resolvePartition();
+}
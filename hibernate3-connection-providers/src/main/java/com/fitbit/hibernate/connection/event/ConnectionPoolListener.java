@@ -0,0 +1,53 @@
+package com.fitbit.hibernate.connection.event;
+
+import com.fitbit.hibernate.connection.pool.BorrowSource;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import java.sql.SQLException;
+
+/**
+ * Listener type that receives events from inside a {@link PoolingConnectionProvider} that is used as the delegate of
+ * an {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider}. These events describe how each connection
+ * was obtained by the pool, which is not visible from the connection provider events alone. <br/>
+ * Pool events are always invoked inline, on the thread borrowing or returning the connection, and a listener that is
+ * attached to a provider whose delegate is not a pool never receives any.
+ *
+ * @author dgarson
+ */
+public interface ConnectionPoolListener extends ConnectionProviderListener {
+
+    /**
+     * Callback invoked after a connection has been borrowed from the pool.
+     *
+     * @param pool the pool the connection was borrowed from
+     * @param source where the pool found the connection
+     * @param waitNanos the time spent borrowing the connection, including opening it if it is new
+     */
+    void afterConnectionBorrowed(PoolingConnectionProvider pool, BorrowSource source, long waitNanos);
+
+    /**
+     * Callback invoked when no connection could be borrowed from the pool, either because none became available in
+     * time or because a new connection could not be opened.
+     *
+     * @param pool the pool the connection was to be borrowed from
+     * @param waitNanos the time spent before giving up
+     * @param exc the exception that will be thrown to the caller
+     */
+    void afterConnectionBorrowFailed(PoolingConnectionProvider pool, long waitNanos, SQLException exc);
+
+    /**
+     * Callback invoked after the pool has opened a new physical connection.
+     *
+     * @param pool the pool that opened the connection
+     * @param openNanos the time spent opening the connection
+     */
+    void afterPhysicalConnectionOpened(PoolingConnectionProvider pool, long openNanos);
+
+    /**
+     * Callback invoked after the pool has closed a physical connection, either because it was broken or because the
+     * pool was shut down.
+     *
+     * @param pool the pool that closed the connection
+     */
+    void afterPhysicalConnectionClosed(PoolingConnectionProvider pool);
+}
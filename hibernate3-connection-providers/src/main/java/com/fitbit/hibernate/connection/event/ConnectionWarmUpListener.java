@@ -0,0 +1,41 @@
+package com.fitbit.hibernate.connection.event;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+
+import javax.annotation.Nullable;
+
+/**
+ * Listener type that is notified while an {@link InstrumentedConnectionProvider} pre-warms its delegate by opening
+ * connections at the end of its configuration, before any connection has been requested. Warm-up acquisitions do not
+ * go through {@link InstrumentedConnectionProvider#getConnection()}, so they are never reported to the acquisition
+ * listeners. <br/>
+ * These callbacks are invoked on the threads opening the connections, and a connection whose warm-up completes after
+ * the warm-up has timed out is still reported, after {@link #afterWarmUpCompleted}.
+ *
+ * @author dgarson
+ */
+public interface ConnectionWarmUpListener extends ConnectionProviderListener {
+
+    /**
+     * Callback invoked after a single warm-up connection has been acquired from the delegate and validated, or has
+     * failed to be.
+     *
+     * @param connectionProvider the connection provider being warmed up
+     * @param warmUpNanos the time spent acquiring and validating the connection
+     * @param failure the exception that was thrown, or <code>null</code> if the connection was warmed up successfully
+     */
+    void afterConnectionWarmedUp(InstrumentedConnectionProvider connectionProvider, long warmUpNanos,
+                                 @Nullable Throwable failure);
+
+    /**
+     * Callback invoked once the warm-up has finished or timed out and the warmed up connections have been returned to
+     * the delegate.
+     *
+     * @param connectionProvider the connection provider that was warmed up
+     * @param numRequested the number of connections that were to be warmed up
+     * @param numWarmedUp the number of connections that were warmed up successfully in time
+     * @param elapsedNanos the time spent warming up
+     */
+    void afterWarmUpCompleted(InstrumentedConnectionProvider connectionProvider, int numRequested, int numWarmedUp,
+                              long elapsedNanos);
+}
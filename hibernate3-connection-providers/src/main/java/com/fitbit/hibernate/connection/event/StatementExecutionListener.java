@@ -0,0 +1,50 @@
+package com.fitbit.hibernate.connection.event;
+
+import java.sql.Connection;
+
+import javax.annotation.Nullable;
+
+/**
+ * Listener type that listens to the statements executed on connections handed out by an
+ * {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider}. These events are only published when
+ * statement instrumentation is enabled using the &quot;hibernate.connection.instrument_statements&quot; Hibernate
+ * property. <br/>
+ * Callbacks are always invoked on the thread that is using the connection, even when asynchronous listener dispatch has
+ * been enabled, and are on the path of every statement so implementations should be cheap. The connection passed to
+ * each callback is the same instance that was handed to the caller and passed to the other listener callbacks.
+ *
+ * @author dgarson
+ */
+public interface StatementExecutionListener extends ConnectionProviderListener {
+
+    /**
+     * Callback invoked after a {@link java.sql.PreparedStatement} has been prepared.
+     *
+     * @param connection the connection the statement was prepared on
+     * @param sql the SQL of the prepared statement
+     * @param prepareNanos the time spent preparing the statement, in nanoseconds
+     */
+    void statementPrepared(Connection connection, String sql, long prepareNanos);
+
+    /**
+     * Callback invoked after a statement has been executed, either successfully or not.
+     *
+     * @param connection the connection the statement was executed on
+     * @param sql the executed SQL, or <code>null</code> when executing a batch of a plain {@link java.sql.Statement}
+     * @param executionNanos the time spent executing the statement, in nanoseconds
+     * @param failure the exception thrown by the execution, or <code>null</code> if it succeeded
+     */
+    void statementExecuted(Connection connection, @Nullable String sql, long executionNanos,
+                           @Nullable Throwable failure);
+
+    /**
+     * Callback invoked when a result set produced by a statement is closed, either directly or by closing its
+     * statement.
+     *
+     * @param connection the connection the result set was produced on
+     * @param sql the SQL that produced the result set, if known
+     * @param rowCount the number of rows that were iterated
+     * @param fetchNanos the time spent advancing the result set, in nanoseconds
+     */
+    void resultSetClosed(Connection connection, @Nullable String sql, int rowCount, long fetchNanos);
+}
@@ -0,0 +1,18 @@
+package com.fitbit.hibernate.connection.event;
+
+/**
+ * Optional interface for a {@link ConnectionProviderListener} that owns resources, such as background threads, which
+ * must be released when the connection provider it is attached to shuts down.
+ *
+ * @author dgarson
+ */
+public interface StoppableListener {
+
+    /**
+     * Callback invoked when the owning connection provider is shut down through
+     * {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider#close()}, or when its listeners are
+     * removed. Listener callbacks may still be invoked concurrently with or after this call, and must not fail because
+     * of it.
+     */
+    void stop();
+}
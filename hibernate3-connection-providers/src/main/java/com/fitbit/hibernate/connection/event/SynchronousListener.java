@@ -0,0 +1,13 @@
+package com.fitbit.hibernate.connection.event;
+
+/**
+ * Marker interface for a {@link ConnectionProviderListener} that must always be invoked on the thread that is
+ * acquiring or closing a connection, even when asynchronous listener dispatch has been enabled for the connection
+ * provider. This is required for listeners that modify the connection or that rely on thread-local state. <br/>
+ * Listeners that implement {@link PreConnectionAcquisitionListener} or {@link PreConnectionCloseListener} are always
+ * treated as synchronous, since they are very likely to correlate state between their pre- and post-event callbacks.
+ *
+ * @author dgarson
+ */
+public interface SynchronousListener {
+}
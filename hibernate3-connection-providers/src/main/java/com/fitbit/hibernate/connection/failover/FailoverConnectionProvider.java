@@ -0,0 +1,412 @@
+package com.fitbit.hibernate.connection.failover;
+
+import com.fitbit.hibernate.connection.MultiplexingConnectionProvider;
+import com.fitbit.hibernate.connection.event.FailoverListener;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Connection provider that acquires connections from a primary delegate connection provider while it is healthy, and
+ * from a standby delegate connection provider while it is not. It is meant to be used as the delegate of an
+ * {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider}, which then instruments both. <br/>
+ * Both delegates are configured from the same Hibernate properties as this provider, overridden by any properties
+ * prefixed with &quot;hibernate.connection.failover.primary.&quot; or
+ * &quot;hibernate.connection.failover.standby.&quot; respectively, with that prefix replaced by &quot;hibernate.&quot;,
+ * so that for instance &quot;hibernate.connection.failover.standby.connection.url&quot; sets the JDBC url of the
+ * standby. The following Hibernate properties are also supported:
+ * <ul>
+ *     <li>hibernate.connection.failover.delegate_provider_class - the connection provider class of both delegates</li>
+ *     <li>hibernate.connection.failover.failure_threshold - the number of consecutive failed acquisitions or probes of
+ *     the primary after which connections are acquired from the standby, defaults to 3</li>
+ *     <li>hibernate.connection.failover.recovery_threshold - the number of consecutive successful probes of the
+ *     primary after which connections are acquired from it again, defaults to 3</li>
+ *     <li>hibernate.connection.failover.probe_interval_millis - how often both delegates are probed, defaults to 1
+ *     second, or 0 to not probe at all, in which case connections are never acquired from the primary again</li>
+ *     <li>hibernate.connection.failover.probe_timeout_seconds - how long a probe of either delegate may take,
+ *     including acquiring the connection it validates, before that delegate counts as unhealthy, defaults to 2
+ *     seconds, or 0 to wait for probes indefinitely</li>
+ *     <li>hibernate.connection.failover.validation_query - a query that probes execute instead of asking the driver
+ *     whether the connection is valid</li>
+ * </ul>
+ * Probes run on background threads of their own, so an acquisition never waits for one: the active delegate is read
+ * from a single volatile field, and an acquisition only ever counts its own failure against the primary. The
+ * acquisition whose failure makes the provider fail over is retried on the standby. Failing over only happens while
+ * the most recent probe of the standby succeeded, and every switch is logged and reported to any attached
+ * {@link FailoverListener}s, along with how long connections were acquired from the standby. Both delegates are
+ * probed at the same time, so a delegate that hangs cannot delay the probe of the other one, and a probe that is still
+ * hanging by the next round is waited for again rather than started anew. Every connection is returned to the
+ * delegate it was acquired from, whichever delegate is active by then.
+ *
+ * @author dgarson
+ */
+public class FailoverConnectionProvider extends MultiplexingConnectionProvider<FailoverTarget> {
+
+    public static final String PRIMARY_PROPERTY_PREFIX = "hibernate.connection.failover.primary.";
+    public static final String STANDBY_PROPERTY_PREFIX = "hibernate.connection.failover.standby.";
+    public static final String DELEGATE_PROVIDER_CLASS = "hibernate.connection.failover.delegate_provider_class";
+    public static final String FAILURE_THRESHOLD = "hibernate.connection.failover.failure_threshold";
+    public static final String RECOVERY_THRESHOLD = "hibernate.connection.failover.recovery_threshold";
+    public static final String PROBE_INTERVAL_MILLIS = "hibernate.connection.failover.probe_interval_millis";
+    public static final String PROBE_TIMEOUT_SECONDS = "hibernate.connection.failover.probe_timeout_seconds";
+    public static final String VALIDATION_QUERY = "hibernate.connection.failover.validation_query";
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    private static final int DEFAULT_RECOVERY_THRESHOLD = 3;
+    private static final int DEFAULT_PROBE_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_PROBE_TIMEOUT_SECONDS = 2;
+
+    private static final FailoverListener[] NO_FAILOVER_LISTENERS = new FailoverListener[0];
+
+    private static final Logger log = LoggerFactory.getLogger(FailoverConnectionProvider.class);
+
+    private ConnectionProvider primary;
+    private String primaryUrl;
+    private ConnectionProvider standby;
+    private String standbyUrl;
+    private int failureThreshold;
+    private int recoveryThreshold;
+    private int probeTimeoutSeconds;
+    private String validationQuery;
+    private ScheduledExecutorService prober;
+    private ExecutorService probeExecutor;
+    // the latest probe of each delegate, only accessed by the thread probing both
+    private Future<Throwable> standbyProbe;
+    private Future<Throwable> primaryProbe;
+
+    private volatile FailoverTarget activeTarget = FailoverTarget.PRIMARY;
+    private volatile boolean standbyHealthy = true;
+    private final AtomicInteger consecutivePrimaryFailures = new AtomicInteger();
+    private final AtomicInteger consecutivePrimarySuccesses = new AtomicInteger();
+
+    @GuardedBy("this")
+    private long degradedSinceNanos;
+    @GuardedBy("this")
+    private long totalDegradedNanos;
+    @GuardedBy("this")
+    private long numFailovers;
+
+    private volatile FailoverListener[] failoverListeners = NO_FAILOVER_LISTENERS;
+
+    @Override
+    public void configure(Properties props) throws HibernateException {
+        Properties primaryProps = getDelegateProperties(props, PRIMARY_PROPERTY_PREFIX, DELEGATE_PROVIDER_CLASS);
+        primary = createDelegateConnectionProvider(primaryProps, "failover primary");
+        primaryUrl = primaryProps.getProperty(Environment.URL);
+        Properties standbyProps = getDelegateProperties(props, STANDBY_PROPERTY_PREFIX, DELEGATE_PROVIDER_CLASS);
+        standby = createDelegateConnectionProvider(standbyProps, "failover standby");
+        standbyUrl = standbyProps.getProperty(Environment.URL);
+        failureThreshold = Math.max(1, getIntProperty(props, FAILURE_THRESHOLD, DEFAULT_FAILURE_THRESHOLD));
+        recoveryThreshold = Math.max(1, getIntProperty(props, RECOVERY_THRESHOLD, DEFAULT_RECOVERY_THRESHOLD));
+        probeTimeoutSeconds = getIntProperty(props, PROBE_TIMEOUT_SECONDS, DEFAULT_PROBE_TIMEOUT_SECONDS);
+        validationQuery = StringUtils.trimToNull(props.getProperty(VALIDATION_QUERY));
+
+        int probeIntervalMillis = getIntProperty(props, PROBE_INTERVAL_MILLIS, DEFAULT_PROBE_INTERVAL_MILLIS);
+        probeExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("FailoverHealthProbe[" + primaryUrl + "]-%d")
+            .setDaemon(true)
+            .build());
+        if (probeIntervalMillis > 0) {
+            prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("FailoverHealthProber[" + primaryUrl + "]")
+                .setDaemon(true)
+                .build());
+            prober.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        probe();
+                    } catch (Throwable t) {
+                        log.error("Unexpected failure while probing {} and {}", primaryUrl, standbyUrl, t);
+                    }
+                }
+            }, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        log.info("Configured failover from {} to {}", primaryUrl, standbyUrl);
+    }
+
+    private static int getIntProperty(Properties props, String propertyName, int defaultValue) {
+        return NumberUtils.toInt(StringUtils.trim(props.getProperty(propertyName)), defaultValue);
+    }
+
+    /**
+     * Sets the listeners that are notified whenever this provider switches delegates, replacing any that were set
+     * before. This is invoked by the instrumented connection provider wrapping this provider once its listeners have
+     * been configured.
+     * @param listeners the listeners to notify, which must not be modified after being passed in
+     */
+    public void setFailoverListeners(@Nonnull FailoverListener[] listeners) {
+        failoverListeners = Preconditions.checkNotNull(listeners);
+    }
+
+    @Nonnull
+    @Override
+    protected Iterable<FailoverTarget> getAllDelegates() {
+        return Arrays.asList(FailoverTarget.values());
+    }
+
+    @Nonnull
+    @Override
+    protected ConnectionProvider getConnectionProvider(@Nonnull FailoverTarget target) {
+        return getDelegate(target);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (activeTarget == FailoverTarget.STANDBY) {
+            return acquireFrom(FailoverTarget.STANDBY);
+        }
+        Connection connection;
+        try {
+            connection = acquireFrom(FailoverTarget.PRIMARY);
+        } catch (SQLException | RuntimeException e) {
+            if (!primaryFailed(e)) {
+                throw e;
+            }
+            log.warn("Unable to acquire a connection from {}, retrying on standby {}", primaryUrl, standbyUrl, e);
+            return acquireFrom(FailoverTarget.STANDBY);
+        }
+        // avoid writing to the shared counter on every acquisition while the primary is healthy
+        if (consecutivePrimaryFailures.get() != 0) {
+            consecutivePrimaryFailures.set(0);
+        }
+        return connection;
+    }
+
+    /**
+     * Stops probing and closes both delegate connection providers.
+     */
+    @Override
+    public void close() throws HibernateException {
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+        if (probeExecutor != null) {
+            probeExecutor.shutdownNow();
+        }
+        super.close();
+    }
+
+    /**
+     * Probes both delegates once, failing over if the primary has now failed too often in a row, and failing back if
+     * the primary has now succeeded often enough in a row. This is invoked periodically on the prober's thread.
+     */
+    @VisibleForTesting
+    void probe() {
+        standbyProbe = startProbe(standbyProbe, standby, standbyUrl);
+        primaryProbe = startProbe(primaryProbe, primary, primaryUrl);
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(probeTimeoutSeconds);
+        standbyHealthy = (awaitProbe(standbyProbe, standbyUrl, deadlineNanos) == null);
+        Throwable primaryFailure = awaitProbe(primaryProbe, primaryUrl, deadlineNanos);
+        if (primaryFailure != null) {
+            consecutivePrimarySuccesses.set(0);
+            primaryFailed(primaryFailure);
+        } else {
+            consecutivePrimaryFailures.set(0);
+            if (activeTarget == FailoverTarget.STANDBY &&
+                consecutivePrimarySuccesses.incrementAndGet() >= recoveryThreshold) {
+                failBack();
+            }
+        }
+    }
+
+    /**
+     * Starts probing the given delegate, unless its previous probe is still running, in which case that one is returned
+     * instead so that a hanging delegate does not pile up probe threads.
+     */
+    private Future<Throwable> startProbe(@Nullable Future<Throwable> previousProbe, final ConnectionProvider delegate,
+                                         final String url) {
+        if (previousProbe != null && !previousProbe.isDone()) {
+            return previousProbe;
+        }
+        return probeExecutor.submit(new Callable<Throwable>() {
+            @Override
+            public Throwable call() {
+                return checkHealth(delegate, url);
+            }
+        });
+    }
+
+    /**
+     * Waits for the given probe until the given deadline, if probes are bounded at all.
+     * @return the reason the delegate is unhealthy, or <code>null</code> if it is healthy
+     */
+    @Nullable
+    private Throwable awaitProbe(Future<Throwable> probe, String url, long deadlineNanos) {
+        try {
+            if (probeTimeoutSeconds <= 0) {
+                return probe.get();
+            }
+            return probe.get(Math.max(0L, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            log.debug("Probe of {} did not complete within {} seconds", url, probeTimeoutSeconds);
+            return new SQLTimeoutException("Probe of " + url + " did not complete within " + probeTimeoutSeconds +
+                " seconds");
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return e;
+        }
+    }
+
+    /**
+     * Acquires a connection from the given delegate, validates it and returns it.
+     * @return the reason the delegate is unhealthy, or <code>null</code> if it is healthy
+     */
+    @Nullable
+    private Throwable checkHealth(ConnectionProvider delegate, String url) {
+        Connection connection = null;
+        try {
+            connection = delegate.getConnection();
+            if (validationQuery != null) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.setQueryTimeout(probeTimeoutSeconds);
+                    statement.execute(validationQuery);
+                }
+            } else if (!connection.isValid(probeTimeoutSeconds)) {
+                return new SQLException("Connection to " + url + " is no longer valid");
+            }
+            return null;
+        } catch (SQLException | RuntimeException e) {
+            log.debug("Probe of {} failed", url, e);
+            return e;
+        } finally {
+            if (connection != null) {
+                try {
+                    delegate.closeConnection(connection);
+                } catch (SQLException | RuntimeException e) {
+                    log.warn("Unable to return a probed connection to {}", url, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts a failure of the primary, failing over once there have been too many in a row.
+     * @return <code>true</code> if connections are now acquired from the standby
+     */
+    private boolean primaryFailed(Throwable cause) {
+        if (consecutivePrimaryFailures.incrementAndGet() >= failureThreshold && standbyHealthy) {
+            failOver(cause);
+        }
+        return (activeTarget == FailoverTarget.STANDBY);
+    }
+
+    private void failOver(Throwable cause) {
+        synchronized (this) {
+            if (activeTarget != FailoverTarget.PRIMARY) {
+                return;
+            }
+            degradedSinceNanos = System.nanoTime();
+            numFailovers++;
+            consecutivePrimarySuccesses.set(0);
+            activeTarget = FailoverTarget.STANDBY;
+        }
+        log.warn("Failed over from {} to standby {} after {} consecutive failures", primaryUrl, standbyUrl,
+            failureThreshold, cause);
+        for (FailoverListener listener : failoverListeners) {
+            try {
+                listener.afterFailover(this, cause);
+            } catch (Throwable t) {
+                logListenerFailure("afterFailover", listener, t);
+            }
+        }
+    }
+
+    private void failBack() {
+        long degradedNanos;
+        synchronized (this) {
+            if (activeTarget != FailoverTarget.STANDBY) {
+                return;
+            }
+            degradedNanos = System.nanoTime() - degradedSinceNanos;
+            totalDegradedNanos += degradedNanos;
+            consecutivePrimaryFailures.set(0);
+            activeTarget = FailoverTarget.PRIMARY;
+        }
+        log.info("Failed back from standby {} to {} after {}ms", standbyUrl, primaryUrl,
+            TimeUnit.NANOSECONDS.toMillis(degradedNanos));
+        for (FailoverListener listener : failoverListeners) {
+            try {
+                listener.afterFailback(this, degradedNanos);
+            } catch (Throwable t) {
+                logListenerFailure("afterFailback", listener, t);
+            }
+        }
+    }
+
+    private void logListenerFailure(String methodName, FailoverListener listener, Throwable t) {
+        if (log.isErrorEnabled()) {
+            log.error("Unable to invoke {} for listener of type '{}' connected to {}", methodName,
+                listener.getClass(), primaryUrl, t);
+        }
+    }
+
+    /**
+     * Returns the delegate connection provider of the given target.
+     */
+    @Nonnull
+    public ConnectionProvider getDelegate(@Nonnull FailoverTarget target) {
+        return (target == FailoverTarget.PRIMARY ? primary : standby);
+    }
+
+    /**
+     * Returns the delegate that connections are currently acquired from.
+     */
+    @Nonnull
+    public FailoverTarget getActiveTarget() {
+        return activeTarget;
+    }
+
+    /**
+     * Returns <code>true</code> if connections are currently acquired from the standby.
+     */
+    public boolean isDegraded() {
+        return (activeTarget == FailoverTarget.STANDBY);
+    }
+
+    /**
+     * Returns the number of times this provider failed over to the standby.
+     */
+    public synchronized long getNumFailovers() {
+        return numFailovers;
+    }
+
+    /**
+     * Returns how long connections have been acquired from the standby in total, in nanoseconds, including the time
+     * since the most recent failover if it is still in effect.
+     */
+    public synchronized long getDegradedNanos() {
+        return totalDegradedNanos +
+            (activeTarget == FailoverTarget.STANDBY ? System.nanoTime() - degradedSinceNanos : 0L);
+    }
+}
@@ -0,0 +1,17 @@
+package com.fitbit.hibernate.connection.failover;
+
+/**
+ * The delegates of a {@link FailoverConnectionProvider}.
+ *
+ * @author dgarson
+ */
+public enum FailoverTarget {
+    /**
+     * The delegate that connections are acquired from while it is healthy.
+     */
+    PRIMARY,
+    /**
+     * The delegate that connections are acquired from while the primary is considered unhealthy.
+     */
+    STANDBY
+}
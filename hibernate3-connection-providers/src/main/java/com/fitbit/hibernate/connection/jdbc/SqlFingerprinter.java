@@ -0,0 +1,196 @@
+package com.fitbit.hibernate.connection.jdbc;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Normalizes SQL text into a &quot;fingerprint&quot; that is identical for all executions of the same statement
+ * regardless of the values used in it, so that statistics can be aggregated per statement. <br/>
+ * Normalization is done by a single pass over the SQL, which:
+ * <ul>
+ *     <li>replaces string and numeric literals with a <code>?</code> placeholder</li>
+ *     <li>collapses comma-separated lists of placeholders and literals, such as IN-lists, into a single placeholder
+ *     </li>
+ *     <li>removes comments and collapses whitespace</li>
+ *     <li>lower-cases keywords and identifiers, except for quoted identifiers</li>
+ * </ul>
+ * Since Hibernate issues the same SQL strings over and over, fingerprints are memoized in a bounded cache keyed by the
+ * original SQL, so that normalizing a statement that was seen before only costs a hash lookup.
+ *
+ * @author dgarson
+ */
+public class SqlFingerprinter {
+
+    public static final int DEFAULT_MAX_CACHED_STATEMENTS = 10000;
+
+    private static final SqlFingerprinter INSTANCE = new SqlFingerprinter(DEFAULT_MAX_CACHED_STATEMENTS);
+
+    private final LoadingCache<String, String> fingerprints;
+
+    /**
+     * @param maxCachedStatements the maximum number of distinct SQL strings whose fingerprints are memoized
+     */
+    public SqlFingerprinter(int maxCachedStatements) {
+        Preconditions.checkArgument(maxCachedStatements > 0, "maxCachedStatements must be positive");
+        fingerprints = CacheBuilder.newBuilder()
+            .maximumSize(maxCachedStatements)
+            .build(new CacheLoader<String, String>() {
+                @Override
+                public String load(@Nonnull String sql) {
+                    return normalize(sql);
+                }
+            });
+    }
+
+    /**
+     * Returns the fingerprinter shared by all listeners, so that each SQL string only has to be normalized once.
+     */
+    public static @Nonnull SqlFingerprinter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the fingerprint of the given SQL, normalizing it only if it has not been seen recently.
+     */
+    public @Nonnull String fingerprint(@Nonnull String sql) {
+        return fingerprints.getUnchecked(sql);
+    }
+
+    /**
+     * Normalizes the given SQL into its fingerprint without consulting the cache.
+     */
+    @VisibleForTesting
+    static @Nonnull String normalize(@Nonnull String sql) {
+        int length = sql.length();
+        StringBuilder fingerprint = new StringBuilder(length);
+        boolean pendingSpace = false;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            char next = (i + 1 < length ? sql.charAt(i + 1) : '\0');
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                i++;
+            } else if (c == '-' && next == '-') {
+                // line comment
+                i = skipUntil(sql, i + 2, "\n");
+                pendingSpace = true;
+            } else if (c == '/' && next == '*') {
+                // block comment
+                i = skipUntil(sql, i + 2, "*/");
+                pendingSpace = true;
+            } else if (c == '\'') {
+                i = skipStringLiteral(sql, i + 1);
+                appendPlaceholder(fingerprint, pendingSpace);
+                pendingSpace = false;
+            } else if (c == '"' || c == '`') {
+                // quoted identifiers are case-sensitive, so they are copied verbatim
+                int end = sql.indexOf(c, i + 1);
+                end = (end < 0 ? length : end + 1);
+                appendSpaceIfPending(fingerprint, pendingSpace);
+                fingerprint.append(sql, i, end);
+                pendingSpace = false;
+                i = end;
+            } else if (isDigit(c) || (c == '.' && isDigit(next)) ||
+                (c == '-' && (isDigit(next) || next == '.') && !followsOperand(fingerprint))) {
+                // identifiers are consumed whole below, so a digit here always starts a numeric literal
+                i++;
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                appendPlaceholder(fingerprint, pendingSpace);
+                pendingSpace = false;
+            } else if (c == '?') {
+                appendPlaceholder(fingerprint, pendingSpace);
+                pendingSpace = false;
+                i++;
+            } else if (Character.isLetter(c) || c == '_') {
+                appendSpaceIfPending(fingerprint, pendingSpace);
+                while (i < length && isIdentifierPart(sql.charAt(i))) {
+                    fingerprint.append(Character.toLowerCase(sql.charAt(i)));
+                    i++;
+                }
+                pendingSpace = false;
+            } else {
+                appendSpaceIfPending(fingerprint, pendingSpace);
+                fingerprint.append(c);
+                pendingSpace = false;
+                i++;
+            }
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * Appends a placeholder, unless it continues a comma-separated list that already ends with a placeholder, in which
+     * case the list separator is removed instead so that lists of any length produce the same fingerprint.
+     */
+    private static void appendPlaceholder(StringBuilder fingerprint, boolean pendingSpace) {
+        int length = fingerprint.length();
+        if (length >= 2 && fingerprint.charAt(length - 1) == ',' && fingerprint.charAt(length - 2) == '?') {
+            fingerprint.setLength(length - 1);
+            return;
+        }
+        appendSpaceIfPending(fingerprint, pendingSpace);
+        fingerprint.append('?');
+    }
+
+    private static void appendSpaceIfPending(StringBuilder fingerprint, boolean pendingSpace) {
+        if (pendingSpace && fingerprint.length() > 0) {
+            fingerprint.append(' ');
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the fingerprint ends with an operand, in which case a following minus sign is a
+     * binary operator rather than the sign of a numeric literal.
+     */
+    private static boolean followsOperand(StringBuilder fingerprint) {
+        if (fingerprint.length() == 0) {
+            return false;
+        }
+        char last = fingerprint.charAt(fingerprint.length() - 1);
+        return isIdentifierPart(last) || last == '?' || last == ')' || last == '"' || last == '`';
+    }
+
+    private static int skipUntil(String sql, int from, String terminator) {
+        int end = sql.indexOf(terminator, from);
+        return (end < 0 ? sql.length() : end + terminator.length());
+    }
+
+    /**
+     * Returns the index following the end of the string literal whose contents start at <strong>from</strong>,
+     * honoring both doubled quotes and backslash escapes.
+     */
+    private static int skipStringLiteral(String sql, int from) {
+        int i = from;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '\'') {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return sql.length();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+    }
+}
@@ -0,0 +1,123 @@
+package com.fitbit.hibernate.connection.listener;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.ConnectionWarmUpListener;
+import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
+import com.fitbit.hibernate.connection.event.PreConnectionAcquisitionListener;
+import com.fitbit.util.LatencyHistogram;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import org.apache.commons.lang3.mutable.MutableLong;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * ConnectionProviderListener that measures how long threads wait for the delegate connection provider to hand out a
+ * connection, which is the first number to rise when a connection pool becomes saturated. <br/>
+ * Successful and failed acquisitions are recorded into separate {@link LatencyHistogram}s, in nanoseconds, so
+ * percentiles can be read at any time without allocating while recording. Connections acquired while pre-warming the
+ * connection provider are recorded into a third histogram, so that startup does not skew the others. The largest
+ * latency that can be tracked without being clamped is configured in milliseconds using the
+ * &quot;hibernate.connection.acquisition_latency.max_millis&quot; Hibernate property.
+ *
+ * @author dgarson
+ */
+public class AcquisitionLatencyListener implements PreConnectionAcquisitionListener,
+    PostConnectionAcquisitionListener, ConnectionWarmUpListener {
+
+    public static final String MAX_TRACKABLE_LATENCY_MILLIS = "hibernate.connection.acquisition_latency.max_millis";
+
+    private static final int DEFAULT_MAX_TRACKABLE_LATENCY_MILLIS = 60000;
+
+    private Ticker ticker = Ticker.systemTicker();
+
+    private LatencyHistogram successfulAcquisitions;
+    private LatencyHistogram failedAcquisitions;
+    private LatencyHistogram warmUpAcquisitions;
+
+    /**
+     * Thread-local start time of the acquisition currently in progress on each thread. Acquisitions on the same thread
+     * never overlap, since nested acquisitions can only begin after the outer one has completed.
+     */
+    private final ThreadLocal<MutableLong> acquisitionStartNanos = new ThreadLocal<MutableLong>() {
+        @Override
+        protected MutableLong initialValue() {
+            return new MutableLong();
+        }
+    };
+
+    @Override
+    public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
+        int maxLatencyMillis = settings.getIntProperty(MAX_TRACKABLE_LATENCY_MILLIS,
+            DEFAULT_MAX_TRACKABLE_LATENCY_MILLIS);
+        successfulAcquisitions = new LatencyHistogram(maxLatencyMillis, TimeUnit.MILLISECONDS);
+        failedAcquisitions = new LatencyHistogram(maxLatencyMillis, TimeUnit.MILLISECONDS);
+        warmUpAcquisitions = new LatencyHistogram(maxLatencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @VisibleForTesting
+    void setTicker(@Nonnull Ticker ticker) {
+        this.ticker = Preconditions.checkNotNull(ticker);
+    }
+
+    @Override
+    public void beforeConnectionAcquisition(InstrumentedConnectionProvider connectionProvider) {
+        acquisitionStartNanos.get().setValue(ticker.read());
+    }
+
+    @Override
+    public void afterConnectionAcquired(InstrumentedConnectionProvider connectionProvider, Connection connection) {
+        successfulAcquisitions.record(elapsedNanos());
+    }
+
+    @Override
+    public void afterConnectionAcquisitionFailed(InstrumentedConnectionProvider connectionProvider, Throwable exc) {
+        failedAcquisitions.record(elapsedNanos());
+    }
+
+    @Override
+    public void afterConnectionWarmedUp(InstrumentedConnectionProvider connectionProvider, long warmUpNanos,
+                                        Throwable failure) {
+        if (failure == null) {
+            warmUpAcquisitions.record(warmUpNanos);
+        }
+    }
+
+    @Override
+    public void afterWarmUpCompleted(InstrumentedConnectionProvider connectionProvider, int numRequested,
+                                     int numWarmedUp, long elapsedNanos) {
+        // every connection has already been recorded
+    }
+
+    /**
+     * Returns the histogram of time spent acquiring connections successfully, in nanoseconds.
+     */
+    public @Nonnull LatencyHistogram getSuccessfulAcquisitions() {
+        return successfulAcquisitions;
+    }
+
+    /**
+     * Returns the histogram of time spent in connection acquisitions that failed, in nanoseconds.
+     */
+    public @Nonnull LatencyHistogram getFailedAcquisitions() {
+        return failedAcquisitions;
+    }
+
+    /**
+     * Returns the histogram of time spent acquiring and validating connections successfully while pre-warming the
+     * connection provider, in nanoseconds.
+     */
+    public @Nonnull LatencyHistogram getWarmUpAcquisitions() {
+        return warmUpAcquisitions;
+    }
+
+    private long elapsedNanos() {
+        return ticker.read() - acquisitionStartNanos.get().longValue();
+    }
+}
@@ -0,0 +1,319 @@
+package com.fitbit.hibernate.connection.listener;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
+import com.fitbit.hibernate.connection.event.PreConnectionCloseListener;
+import com.fitbit.hibernate.connection.event.SynchronousListener;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.MapMaker;
+import org.apache.commons.lang3.StringUtils;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * ConnectionProviderListener that attributes connection hold time to the code that acquired the connection, so that the
+ * code paths holding connections the longest can be identified. <br/>
+ * Only a sample of checkouts is attributed, since resolving a call site requires capturing the stack of the acquiring
+ * thread. For a sampled checkout, the first few frames that belong neither to Hibernate, the JDK nor this library
+ * identify the call site. Each distinct call site is interned into a compact integer id the first time it is seen, so
+ * a repeated call site costs one hash lookup, and hold time statistics are aggregated per id in preallocated arrays.
+ * Once the maximum number of call sites have been interned, new call sites are aggregated under a single
+ * &quot;other&quot; entry. <br/>
+ * This listener is always invoked synchronously, since the call site can only be resolved on the acquiring thread.
+ * <br/>
+ * Supported Hibernate properties:
+ * <ul>
+ *     <li>hibernate.connection.call_site.sample_rate - attribute one in this many checkouts, defaults to 100</li>
+ *     <li>hibernate.connection.call_site.frames - number of frames identifying a call site, defaults to 3</li>
+ *     <li>hibernate.connection.call_site.max_call_sites - maximum number of distinct call sites, defaults to 1024</li>
+ *     <li>hibernate.connection.call_site.excluded_packages - comma-separated package prefixes to skip in addition to
+ *     the defaults, such as those of a data access framework</li>
+ * </ul>
+ *
+ * @author dgarson
+ */
+public class CallSiteHoldTimeListener implements PostConnectionAcquisitionListener, PreConnectionCloseListener,
+    SynchronousListener {
+
+    public static final String SAMPLE_RATE = "hibernate.connection.call_site.sample_rate";
+    public static final String NUM_FRAMES = "hibernate.connection.call_site.frames";
+    public static final String MAX_CALL_SITES = "hibernate.connection.call_site.max_call_sites";
+    public static final String EXCLUDED_PACKAGES = "hibernate.connection.call_site.excluded_packages";
+
+    private static final int DEFAULT_SAMPLE_RATE = 100;
+    private static final int DEFAULT_NUM_FRAMES = 3;
+    private static final int DEFAULT_MAX_CALL_SITES = 1024;
+
+    private static final String[] DEFAULT_EXCLUDED_PACKAGES = {
+        "java.", "javax.", "sun.", "com.sun.", "jdk.", "org.hibernate.", "com.fitbit.hibernate.connection."
+    };
+
+    /** id of the call site that aggregates all call sites seen after the maximum has been reached */
+    private static final int OTHER_CALL_SITE_ID = 0;
+    private static final String OTHER_CALL_SITE = "<other>";
+
+    private Ticker ticker = Ticker.systemTicker();
+
+    private int sampleRate;
+    private int numFrames;
+    private int maxCallSites;
+    private String[] excludedPackages;
+
+    private final ConcurrentMap<CallSiteKey, Integer> callSiteIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCallSiteId = new AtomicInteger(OTHER_CALL_SITE_ID + 1);
+
+    // per-call site statistics, indexed by call site id
+    private AtomicReferenceArray<String> callSiteDescriptions;
+    private AtomicLongArray holdCounts;
+    private AtomicLongArray totalHoldNanos;
+    private AtomicLongArray maxHoldNanos;
+
+    /**
+     * Sampled checkouts that have not been returned yet, compared by identity and weakly referenced.
+     */
+    private final ConcurrentMap<Connection, SampledCheckout> sampledCheckouts = new MapMaker().weakKeys().makeMap();
+
+    @Override
+    public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
+        sampleRate = Math.max(1, settings.getIntProperty(SAMPLE_RATE, DEFAULT_SAMPLE_RATE));
+        numFrames = settings.getIntProperty(NUM_FRAMES, DEFAULT_NUM_FRAMES);
+        maxCallSites = settings.getIntProperty(MAX_CALL_SITES, DEFAULT_MAX_CALL_SITES);
+        Preconditions.checkArgument(numFrames > 0, "%s must be positive", NUM_FRAMES);
+        Preconditions.checkArgument(maxCallSites > 0, "%s must be positive", MAX_CALL_SITES);
+
+        List<String> packages = new ArrayList<>(Arrays.asList(DEFAULT_EXCLUDED_PACKAGES));
+        for (String excludedPackage : StringUtils.split(settings.getProperty(EXCLUDED_PACKAGES, ""), ",")) {
+            if (StringUtils.isNotBlank(excludedPackage)) {
+                packages.add(excludedPackage.trim());
+            }
+        }
+        excludedPackages = packages.toArray(new String[packages.size()]);
+
+        callSiteDescriptions = new AtomicReferenceArray<>(maxCallSites + 1);
+        callSiteDescriptions.set(OTHER_CALL_SITE_ID, OTHER_CALL_SITE);
+        holdCounts = new AtomicLongArray(maxCallSites + 1);
+        totalHoldNanos = new AtomicLongArray(maxCallSites + 1);
+        maxHoldNanos = new AtomicLongArray(maxCallSites + 1);
+    }
+
+    @VisibleForTesting
+    void setTicker(@Nonnull Ticker ticker) {
+        this.ticker = Preconditions.checkNotNull(ticker);
+    }
+
+    @VisibleForTesting
+    void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public void afterConnectionAcquired(InstrumentedConnectionProvider connectionProvider, Connection connection) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        int callSiteId = internCallSite(new Throwable().getStackTrace());
+        sampledCheckouts.put(connection, new SampledCheckout(callSiteId, ticker.read()));
+    }
+
+    @Override
+    public void afterConnectionAcquisitionFailed(InstrumentedConnectionProvider connectionProvider, Throwable exc) {
+        // nothing was held
+    }
+
+    @Override
+    public void beforeClosingConnection(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        SampledCheckout checkout = sampledCheckouts.remove(connection);
+        if (checkout == null) {
+            return;
+        }
+        long heldNanos = ticker.read() - checkout.checkoutNanos;
+        int id = checkout.callSiteId;
+        holdCounts.incrementAndGet(id);
+        totalHoldNanos.addAndGet(id, heldNanos);
+        long max = maxHoldNanos.get(id);
+        while (heldNanos > max && !maxHoldNanos.compareAndSet(id, max, heldNanos)) {
+            max = maxHoldNanos.get(id);
+        }
+    }
+
+    /**
+     * Returns statistics for the call sites with the largest total (sampled) hold time, in descending order.
+     * @param maxResults the maximum number of call sites to return
+     */
+    public @Nonnull List<CallSiteStatistics> getTopCallSites(int maxResults) {
+        List<CallSiteStatistics> stats = new ArrayList<>();
+        int numIds = Math.min(nextCallSiteId.get(), maxCallSites + 1);
+        for (int id = 0; id < numIds; id++) {
+            long count = holdCounts.get(id);
+            String description = callSiteDescriptions.get(id);
+            if (count > 0 && description != null) {
+                stats.add(new CallSiteStatistics(description, count, totalHoldNanos.get(id), maxHoldNanos.get(id)));
+            }
+        }
+        Collections.sort(stats, new Comparator<CallSiteStatistics>() {
+            @Override
+            public int compare(CallSiteStatistics first, CallSiteStatistics second) {
+                return Long.compare(second.getTotalHoldNanos(), first.getTotalHoldNanos());
+            }
+        });
+        return (stats.size() > maxResults ? new ArrayList<>(stats.subList(0, maxResults)) : stats);
+    }
+
+    /**
+     * Resolves the call site identified by the first frames outside of the excluded packages and returns its id,
+     * assigning a new id if this call site has not been seen before.
+     */
+    @VisibleForTesting
+    int internCallSite(StackTraceElement[] stackTrace) {
+        StackTraceElement[] frames = new StackTraceElement[numFrames];
+        int numResolved = 0;
+        for (int i = 0; i < stackTrace.length && numResolved < numFrames; i++) {
+            if (!isExcluded(stackTrace[i].getClassName())) {
+                frames[numResolved++] = stackTrace[i];
+            }
+        }
+        if (numResolved < numFrames) {
+            frames = Arrays.copyOf(frames, numResolved);
+        }
+
+        CallSiteKey key = new CallSiteKey(frames);
+        Integer id = callSiteIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (nextCallSiteId.get() > maxCallSites) {
+            return OTHER_CALL_SITE_ID;
+        }
+        // claim the id before publishing it, so concurrent first sightings of the same call site agree on one id
+        synchronized (callSiteIds) {
+            id = callSiteIds.get(key);
+            if (id == null) {
+                int newId = nextCallSiteId.get();
+                if (newId > maxCallSites) {
+                    return OTHER_CALL_SITE_ID;
+                }
+                callSiteDescriptions.set(newId, (frames.length > 0 ? Joiner.on(" <- ").join(frames) : "<unknown>"));
+                callSiteIds.put(key, newId);
+                nextCallSiteId.set(newId + 1);
+                id = newId;
+            }
+        }
+        return id;
+    }
+
+    private boolean isExcluded(String className) {
+        for (String excludedPackage : excludedPackages) {
+            if (className.startsWith(excludedPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Aggregated hold time statistics for a single call site.
+     */
+    @Immutable
+    public static final class CallSiteStatistics {
+
+        private final String callSite;
+        private final long count;
+        private final long totalHoldNanos;
+        private final long maxHoldNanos;
+
+        CallSiteStatistics(String callSite, long count, long totalHoldNanos, long maxHoldNanos) {
+            this.callSite = callSite;
+            this.count = count;
+            this.totalHoldNanos = totalHoldNanos;
+            this.maxHoldNanos = maxHoldNanos;
+        }
+
+        /**
+         * Returns the frames identifying the call site, innermost first.
+         */
+        public @Nonnull String getCallSite() {
+            return callSite;
+        }
+
+        /**
+         * Returns the number of sampled checkouts from this call site.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalHoldNanos() {
+            return totalHoldNanos;
+        }
+
+        public long getMaxHoldNanos() {
+            return maxHoldNanos;
+        }
+
+        public long getMeanHoldNanos() {
+            return (count == 0 ? 0L : totalHoldNanos / count);
+        }
+
+        @Override
+        public String toString() {
+            return "CallSiteStatistics{callSite=" + callSite + ", count=" + count + ", totalHoldNanos=" +
+                totalHoldNanos + ", maxHoldNanos=" + maxHoldNanos + "}";
+        }
+    }
+
+    /**
+     * Hash key for the frames identifying a call site.
+     */
+    private static final class CallSiteKey {
+
+        private final StackTraceElement[] frames;
+        private final int hashCode;
+
+        CallSiteKey(StackTraceElement[] frames) {
+            this.frames = frames;
+            this.hashCode = Arrays.hashCode(frames);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CallSiteKey && Arrays.equals(frames, ((CallSiteKey) obj).frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class SampledCheckout {
+        final int callSiteId;
+        final long checkoutNanos;
+
+        SampledCheckout(int callSiteId, long checkoutNanos) {
+            this.callSiteId = callSiteId;
+            this.checkoutNanos = checkoutNanos;
+        }
+    }
+}
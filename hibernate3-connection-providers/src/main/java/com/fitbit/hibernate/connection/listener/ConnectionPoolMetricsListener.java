@@ -0,0 +1,111 @@
+package com.fitbit.hibernate.connection.listener;
+
+import com.fitbit.hibernate.connection.event.ConnectionPoolListener;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.pool.BorrowSource;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+import com.fitbit.util.LatencyHistogram;
+import com.fitbit.util.StripedLongCounter;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * ConnectionPoolListener that records the internal behavior of a {@link PoolingConnectionProvider}: how long borrowing
+ * connections and opening new ones takes, and how often each {@link BorrowSource} serves a borrow. A rising share of
+ * {@link BorrowSource#HANDOFF} borrows means threads are waiting on each other for connections, well before borrows
+ * start to time out. <br/>
+ * Times are recorded into {@link LatencyHistogram}s, in nanoseconds. The largest time that can be tracked without being
+ * clamped is configured in milliseconds using the &quot;hibernate.connection.pool_metrics.max_millis&quot; Hibernate
+ * property.
+ *
+ * @author dgarson
+ */
+public class ConnectionPoolMetricsListener implements ConnectionPoolListener {
+
+    public static final String MAX_TRACKABLE_LATENCY_MILLIS = "hibernate.connection.pool_metrics.max_millis";
+
+    private static final int DEFAULT_MAX_TRACKABLE_LATENCY_MILLIS = 60000;
+
+    private LatencyHistogram borrowTimes;
+    private LatencyHistogram failedBorrowTimes;
+    private LatencyHistogram connectionOpenTimes;
+
+    // indexed by BorrowSource ordinal
+    private final StripedLongCounter[] numBorrowsBySource = new StripedLongCounter[BorrowSource.values().length];
+    private final StripedLongCounter numConnectionsClosed = new StripedLongCounter();
+
+    public ConnectionPoolMetricsListener() {
+        for (int i = 0; i < numBorrowsBySource.length; i++) {
+            numBorrowsBySource[i] = new StripedLongCounter();
+        }
+    }
+
+    @Override
+    public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
+        int maxLatencyMillis = settings.getIntProperty(MAX_TRACKABLE_LATENCY_MILLIS,
+            DEFAULT_MAX_TRACKABLE_LATENCY_MILLIS);
+        borrowTimes = new LatencyHistogram(maxLatencyMillis, TimeUnit.MILLISECONDS);
+        failedBorrowTimes = new LatencyHistogram(maxLatencyMillis, TimeUnit.MILLISECONDS);
+        connectionOpenTimes = new LatencyHistogram(maxLatencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void afterConnectionBorrowed(PoolingConnectionProvider pool, BorrowSource source, long waitNanos) {
+        borrowTimes.record(waitNanos);
+        numBorrowsBySource[source.ordinal()].increment();
+    }
+
+    @Override
+    public void afterConnectionBorrowFailed(PoolingConnectionProvider pool, long waitNanos, SQLException exc) {
+        failedBorrowTimes.record(waitNanos);
+    }
+
+    @Override
+    public void afterPhysicalConnectionOpened(PoolingConnectionProvider pool, long openNanos) {
+        connectionOpenTimes.record(openNanos);
+    }
+
+    @Override
+    public void afterPhysicalConnectionClosed(PoolingConnectionProvider pool) {
+        numConnectionsClosed.increment();
+    }
+
+    /**
+     * Returns the histogram of time spent borrowing connections successfully, in nanoseconds.
+     */
+    public @Nonnull LatencyHistogram getBorrowTimes() {
+        return borrowTimes;
+    }
+
+    /**
+     * Returns the histogram of time spent in borrows that failed, in nanoseconds.
+     */
+    public @Nonnull LatencyHistogram getFailedBorrowTimes() {
+        return failedBorrowTimes;
+    }
+
+    /**
+     * Returns the histogram of time spent opening new physical connections, in nanoseconds. Its count is the number of
+     * physical connections opened.
+     */
+    public @Nonnull LatencyHistogram getConnectionOpenTimes() {
+        return connectionOpenTimes;
+    }
+
+    /**
+     * Returns the number of successful borrows that were served from the given source.
+     */
+    public long getNumBorrows(@Nonnull BorrowSource source) {
+        return numBorrowsBySource[source.ordinal()].sum();
+    }
+
+    /**
+     * Returns the number of physical connections closed by the pool.
+     */
+    public long getNumConnectionsClosed() {
+        return numConnectionsClosed.sum();
+    }
+}
@@ -0,0 +1,318 @@
+package com.fitbit.hibernate.connection.listener;
+
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.StatementExecutionListener;
+import com.fitbit.hibernate.connection.event.StoppableListener;
+import com.fitbit.hibernate.connection.jdbc.SqlFingerprinter;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * StatementExecutionListener that aggregates execution statistics per SQL fingerprint, so that the statements that
+ * consume the most database time can be found regardless of the values they were executed with. <br/>
+ * Statistics are kept for a bounded number of fingerprints, evicting the least recently executed fingerprint once the
+ * maximum has been reached, and a report of the top statements by total execution time is logged periodically.
+ * Requires statement instrumentation to be enabled on the connection provider. <br/>
+ * Supported Hibernate properties:
+ * <ul>
+ *     <li>hibernate.connection.sql_statistics.max_fingerprints - maximum number of fingerprints to keep statistics for,
+ *     defaults to 1,000</li>
+ *     <li>hibernate.connection.sql_statistics.slow_threshold_millis - executions taking at least this long are counted
+ *     as slow, defaults to 1 second</li>
+ *     <li>hibernate.connection.sql_statistics.report_interval_millis - how often to log the report, or zero to never
+ *     log it, defaults to 60 seconds</li>
+ *     <li>hibernate.connection.sql_statistics.report_size - number of statements in the report, defaults to 10</li>
+ * </ul>
+ *
+ * @author dgarson
+ * @see SqlFingerprinter
+ */
+public class SqlStatisticsListener implements StatementExecutionListener, StoppableListener {
+
+    public static final String MAX_FINGERPRINTS = "hibernate.connection.sql_statistics.max_fingerprints";
+    public static final String SLOW_THRESHOLD_MILLIS = "hibernate.connection.sql_statistics.slow_threshold_millis";
+    public static final String REPORT_INTERVAL_MILLIS = "hibernate.connection.sql_statistics.report_interval_millis";
+    public static final String REPORT_SIZE = "hibernate.connection.sql_statistics.report_size";
+
+    private static final int DEFAULT_MAX_FINGERPRINTS = 1000;
+    private static final int DEFAULT_SLOW_THRESHOLD_MILLIS = 1000;
+    private static final int DEFAULT_REPORT_INTERVAL_MILLIS = 60000;
+    private static final int DEFAULT_REPORT_SIZE = 10;
+
+    private static final Logger log = LoggerFactory.getLogger(SqlStatisticsListener.class);
+
+    private final SqlFingerprinter fingerprinter = SqlFingerprinter.getInstance();
+
+    private String jdbcUrl;
+    private long slowThresholdNanos;
+    private int reportSize;
+
+    private LoadingCache<String, StatementAccumulator> statistics;
+    private final AtomicLong numEvictedFingerprints = new AtomicLong();
+
+    private ScheduledExecutorService reporter;
+
+    @Override
+    public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
+        jdbcUrl = settings.getJdbcUrl();
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(settings.getIntProperty(SLOW_THRESHOLD_MILLIS,
+            DEFAULT_SLOW_THRESHOLD_MILLIS));
+        reportSize = settings.getIntProperty(REPORT_SIZE, DEFAULT_REPORT_SIZE);
+        int maxFingerprints = settings.getIntProperty(MAX_FINGERPRINTS, DEFAULT_MAX_FINGERPRINTS);
+        Preconditions.checkArgument(maxFingerprints > 0, "%s must be positive", MAX_FINGERPRINTS);
+
+        statistics = CacheBuilder.newBuilder()
+            .maximumSize(maxFingerprints)
+            .removalListener(new RemovalListener<String, StatementAccumulator>() {
+                @Override
+                public void onRemoval(@Nonnull RemovalNotification<String, StatementAccumulator> notification) {
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        numEvictedFingerprints.incrementAndGet();
+                    }
+                }
+            })
+            .build(new CacheLoader<String, StatementAccumulator>() {
+                @Override
+                public StatementAccumulator load(@Nonnull String fingerprint) {
+                    return new StatementAccumulator();
+                }
+            });
+
+        int reportIntervalMillis = settings.getIntProperty(REPORT_INTERVAL_MILLIS, DEFAULT_REPORT_INTERVAL_MILLIS);
+        if (reportIntervalMillis > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("SqlStatisticsReporter[" + jdbcUrl + "]")
+                .setDaemon(true)
+                .build());
+            reporter.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        report();
+                    } catch (Throwable t) {
+                        log.error("Unexpected failure while reporting SQL statistics for {}", jdbcUrl, t);
+                    }
+                }
+            }, reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+    }
+
+    @Override
+    public void statementPrepared(Connection connection, String sql, long prepareNanos) {
+        // only executions are aggregated
+    }
+
+    @Override
+    public void statementExecuted(Connection connection, String sql, long executionNanos, Throwable failure) {
+        if (sql == null) {
+            return;
+        }
+        StatementAccumulator accumulator = statistics.getUnchecked(fingerprinter.fingerprint(sql));
+        accumulator.count.incrementAndGet();
+        accumulator.totalNanos.addAndGet(executionNanos);
+        long max = accumulator.maxNanos.get();
+        while (executionNanos > max && !accumulator.maxNanos.compareAndSet(max, executionNanos)) {
+            max = accumulator.maxNanos.get();
+        }
+        if (failure != null) {
+            accumulator.failures.incrementAndGet();
+        }
+        if (executionNanos >= slowThresholdNanos) {
+            accumulator.slowCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void resultSetClosed(Connection connection, String sql, int rowCount, long fetchNanos) {
+        if (sql == null) {
+            return;
+        }
+        StatementAccumulator accumulator = statistics.getUnchecked(fingerprinter.fingerprint(sql));
+        accumulator.rows.addAndGet(rowCount);
+        accumulator.fetchNanos.addAndGet(fetchNanos);
+    }
+
+    /**
+     * Returns statistics for the statements with the largest total execution time, in descending order.
+     * @param maxResults the maximum number of statements to return
+     */
+    public @Nonnull List<StatementStatistics> getTopStatements(int maxResults) {
+        List<StatementStatistics> stats = new ArrayList<>();
+        for (Map.Entry<String, StatementAccumulator> entry : statistics.asMap().entrySet()) {
+            stats.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        Collections.sort(stats, new Comparator<StatementStatistics>() {
+            @Override
+            public int compare(StatementStatistics first, StatementStatistics second) {
+                return Long.compare(second.getTotalNanos(), first.getTotalNanos());
+            }
+        });
+        return (stats.size() > maxResults ? new ArrayList<>(stats.subList(0, maxResults)) : stats);
+    }
+
+    /**
+     * Returns the number of fingerprints whose statistics were discarded to make room for other fingerprints.
+     */
+    public long getNumEvictedFingerprints() {
+        return numEvictedFingerprints.get();
+    }
+
+    /**
+     * Discards all statistics gathered so far.
+     */
+    public void reset() {
+        statistics.invalidateAll();
+    }
+
+    /**
+     * Logs the top statements by total execution time.
+     */
+    @VisibleForTesting
+    void report() {
+        List<StatementStatistics> topStatements = getTopStatements(reportSize);
+        if (topStatements.isEmpty() || !log.isInfoEnabled()) {
+            return;
+        }
+        StringBuilder report = new StringBuilder();
+        for (StatementStatistics stats : topStatements) {
+            report.append(String.format("%n  total=%dms count=%d mean=%.3fms max=%dms slow=%d failed=%d rows=%d: %s",
+                TimeUnit.NANOSECONDS.toMillis(stats.getTotalNanos()), stats.getCount(),
+                stats.getMeanNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1),
+                TimeUnit.NANOSECONDS.toMillis(stats.getMaxNanos()), stats.getSlowCount(), stats.getFailureCount(),
+                stats.getRowCount(), stats.getFingerprint()));
+        }
+        log.info("Top {} statements by total execution time for {}:{}", topStatements.size(), jdbcUrl, report);
+    }
+
+    /**
+     * Aggregated execution statistics for a single SQL fingerprint.
+     */
+    @Immutable
+    public static final class StatementStatistics {
+
+        private final String fingerprint;
+        private final long count;
+        private final long failureCount;
+        private final long slowCount;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long rowCount;
+        private final long fetchNanos;
+
+        StatementStatistics(String fingerprint, long count, long failureCount, long slowCount, long totalNanos,
+                            long maxNanos, long rowCount, long fetchNanos) {
+            this.fingerprint = fingerprint;
+            this.count = count;
+            this.failureCount = failureCount;
+            this.slowCount = slowCount;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.rowCount = rowCount;
+            this.fetchNanos = fetchNanos;
+        }
+
+        public @Nonnull String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * Returns the number of executions, including failed ones.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * Returns the number of executions that took at least the slow statement threshold.
+         */
+        public long getSlowCount() {
+            return slowCount;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getMeanNanos() {
+            return (count == 0 ? 0L : totalNanos / count);
+        }
+
+        /**
+         * Returns the number of rows iterated from the result sets of this statement.
+         */
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * Returns the time spent iterating the result sets of this statement, in nanoseconds.
+         */
+        public long getFetchNanos() {
+            return fetchNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "StatementStatistics{fingerprint=" + fingerprint + ", count=" + count + ", failureCount=" +
+                failureCount + ", slowCount=" + slowCount + ", totalNanos=" + totalNanos + ", maxNanos=" + maxNanos +
+                ", rowCount=" + rowCount + ", fetchNanos=" + fetchNanos + "}";
+        }
+    }
+
+    /**
+     * Mutable, thread-safe statistics for a single fingerprint.
+     */
+    private static final class StatementAccumulator {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong slowCount = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong fetchNanos = new AtomicLong();
+
+        StatementStatistics snapshot(String fingerprint) {
+            return new StatementStatistics(fingerprint, count.get(), failures.get(), slowCount.get(), totalNanos.get(),
+                maxNanos.get(), rows.get(), fetchNanos.get());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.fitbit.hibernate.connection.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Book-keeping for a single physical connection owned by a {@link PoolingConnectionProvider}. Ownership of the
+ * connection is decided solely by compare-and-set on its state, so the same entry can safely be referenced from the
+ * shared list, any number of thread-local caches and the handoff queue at the same time.
+ *
+ * @author dgarson
+ */
+final class PooledConnection {
+
+    static final int STATE_REMOVED = -1;
+    static final int STATE_IDLE = 0;
+    static final int STATE_IN_USE = 1;
+
+    private static final AtomicIntegerFieldUpdater<PooledConnection> STATE_UPDATER =
+        AtomicIntegerFieldUpdater.newUpdater(PooledConnection.class, "state");
+
+    final Connection connection;
+
+    // the session state the connection was opened with, which it is reset to whenever it is returned
+    final int defaultIsolation;
+    final boolean defaultReadOnly;
+    final String defaultCatalog;
+
+    // new entries are created on behalf of the thread that is borrowing them
+    private volatile int state = STATE_IN_USE;
+
+    // when the connection was last returned to the pool, used to decide whether it needs to be validated
+    volatile long lastReturnedNanos;
+
+    // only read and written by the thread that currently owns the connection
+    BorrowSource borrowSource = BorrowSource.NEW;
+
+    PooledConnection(Connection connection, long createdNanos) throws SQLException {
+        this.connection = connection;
+        this.defaultIsolation = connection.getTransactionIsolation();
+        this.defaultReadOnly = connection.isReadOnly();
+        this.defaultCatalog = connection.getCatalog();
+        this.lastReturnedNanos = createdNanos;
+    }
+
+    int getState() {
+        return state;
+    }
+
+    void setState(int newState) {
+        state = newState;
+    }
+
+    boolean compareAndSetState(int expectedState, int newState) {
+        return STATE_UPDATER.compareAndSet(this, expectedState, newState);
+    }
+
+    @Override
+    public String toString() {
+        return "PooledConnection{connection=" + connection + ", state=" + state + "}";
+    }
+}
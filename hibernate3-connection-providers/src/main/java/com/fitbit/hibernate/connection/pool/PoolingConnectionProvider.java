@@ -0,0 +1,445 @@
+package com.fitbit.hibernate.connection.pool;
+
+import com.fitbit.hibernate.connection.event.ConnectionPoolListener;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Connection pool that can be used on its own or as the delegate of an
+ * {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider}, in place of Hibernate's lock-based
+ * DriverManagerConnectionProvider. <br/>
+ * Borrowing and returning connections takes no locks: a thread first reuses the connection it returned most recently,
+ * then claims any idle connection, then opens a new one if the pool is below its maximum size, and only then waits for
+ * another thread to hand a connection over to it. See {@link ConnectionBag}. Connections that have been idle for a
+ * while are validated before being handed out, and broken connections are closed and replaced on demand. <br/>
+ * When wrapped by an instrumented connection provider, any attached {@link ConnectionPoolListener}s are notified of
+ * the pool's internal events. <br/>
+ * Besides the standard Hibernate JDBC properties, including &quot;hibernate.connection.pool_size&quot; for the maximum
+ * number of connections which defaults to 20, the following Hibernate properties are supported:
+ * <ul>
+ *     <li>hibernate.connection.pool.borrow_timeout_millis - how long to wait for a connection when all of them are in
+ *     use, defaults to 30 seconds</li>
+ *     <li>hibernate.connection.pool.validation_idle_millis - how long a connection may be idle before it is validated
+ *     when it is borrowed again, defaults to 30 seconds, or a negative value to never validate</li>
+ *     <li>hibernate.connection.pool.validation_timeout_seconds - the timeout passed to
+ *     {@link Connection#isValid(int)}, defaults to 5 seconds</li>
+ * </ul>
+ *
+ * @author dgarson
+ */
+public class PoolingConnectionProvider implements ConnectionProvider {
+
+    public static final String BORROW_TIMEOUT_MILLIS = "hibernate.connection.pool.borrow_timeout_millis";
+    public static final String VALIDATION_IDLE_MILLIS = "hibernate.connection.pool.validation_idle_millis";
+    public static final String VALIDATION_TIMEOUT_SECONDS = "hibernate.connection.pool.validation_timeout_seconds";
+
+    private static final int DEFAULT_MAX_POOL_SIZE = 20;
+    private static final int DEFAULT_BORROW_TIMEOUT_MILLIS = 30000;
+    private static final int DEFAULT_VALIDATION_IDLE_MILLIS = 30000;
+    private static final int DEFAULT_VALIDATION_TIMEOUT_SECONDS = 5;
+
+    // waiting threads wake up at least this often to check whether they can open a connection in place of one that was
+    //      closed, or whether the pool has been shut down
+    private static final long MAX_WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final ConnectionPoolListener[] NO_POOL_LISTENERS = new ConnectionPoolListener[0];
+
+    private static final Logger log = LoggerFactory.getLogger(PoolingConnectionProvider.class);
+
+    private final ConnectionBag bag = new ConnectionBag();
+
+    // the number of physical connections that are open or being opened
+    private final AtomicInteger totalConnections = new AtomicInteger();
+
+    private String jdbcUrl;
+    private Properties connectionProps;
+    private Integer isolation;
+    private boolean autocommit;
+    private int maxPoolSize;
+    private long borrowTimeoutNanos;
+    private long validationIdleNanos;
+    private int validationTimeoutSeconds;
+
+    private volatile ConnectionPoolListener[] poolListeners = NO_POOL_LISTENERS;
+
+    private volatile boolean closed;
+
+    @Override
+    public void configure(Properties props) throws HibernateException {
+        jdbcUrl = props.getProperty(Environment.URL);
+        if (StringUtils.isBlank(jdbcUrl)) {
+            throw new HibernateException("JDBC URL was not specified by property " + Environment.URL);
+        }
+        String driverClass = props.getProperty(Environment.DRIVER);
+        if (StringUtils.isNotBlank(driverClass)) {
+            try {
+                Class.forName(driverClass);
+            } catch (ClassNotFoundException cnfe) {
+                throw new HibernateException("JDBC Driver class not found: " + driverClass, cnfe);
+            }
+        }
+        connectionProps = ConnectionProviderFactory.getConnectionProperties(props);
+        String isolationValue = StringUtils.trimToNull(props.getProperty(Environment.ISOLATION));
+        isolation = (isolationValue != null ? Integer.valueOf(isolationValue) : null);
+        autocommit = BooleanUtils.toBoolean(StringUtils.trim(props.getProperty(Environment.AUTOCOMMIT)));
+
+        maxPoolSize = getIntProperty(props, Environment.POOL_SIZE, DEFAULT_MAX_POOL_SIZE);
+        Preconditions.checkArgument(maxPoolSize > 0, "%s must be positive", Environment.POOL_SIZE);
+        borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(getIntProperty(props, BORROW_TIMEOUT_MILLIS,
+            DEFAULT_BORROW_TIMEOUT_MILLIS));
+        int validationIdleMillis = getIntProperty(props, VALIDATION_IDLE_MILLIS, DEFAULT_VALIDATION_IDLE_MILLIS);
+        validationIdleNanos = (validationIdleMillis >= 0 ? TimeUnit.MILLISECONDS.toNanos(validationIdleMillis) : -1L);
+        validationTimeoutSeconds = getIntProperty(props, VALIDATION_TIMEOUT_SECONDS,
+            DEFAULT_VALIDATION_TIMEOUT_SECONDS);
+        log.info("Configured connection pool of up to {} connections for {}", maxPoolSize, jdbcUrl);
+    }
+
+    private static int getIntProperty(Properties props, String propertyName, int defaultValue) {
+        return NumberUtils.toInt(StringUtils.trim(props.getProperty(propertyName)), defaultValue);
+    }
+
+    /**
+     * Sets the listeners that are notified of this pool's internal events, replacing any that were set before. This is
+     * invoked by the instrumented connection provider wrapping this pool once its listeners have been configured.
+     * @param listeners the listeners to notify, which must not be modified after being passed in
+     */
+    public void setPoolListeners(@Nonnull ConnectionPoolListener[] listeners) {
+        poolListeners = Preconditions.checkNotNull(listeners);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            PooledConnection entry;
+            do {
+                entry = borrow(startNanos + borrowTimeoutNanos);
+            } while (!isUsable(entry));
+            fireConnectionBorrowed(entry.borrowSource, System.nanoTime() - startNanos);
+            return entry.connection;
+        } catch (SQLException se) {
+            fireConnectionBorrowFailed(System.nanoTime() - startNanos, se);
+            throw se;
+        }
+    }
+
+    /**
+     * Claims an idle connection, opens a new one, or waits for one to be returned, in that order of preference.
+     */
+    private PooledConnection borrow(long deadlineNanos) throws SQLException {
+        checkOpen();
+        PooledConnection entry = bag.borrowFromThread();
+        if (entry != null) {
+            return entry;
+        }
+        entry = bag.borrowShared();
+        if (entry != null) {
+            return entry;
+        }
+        long remainingNanos;
+        do {
+            entry = openConnectionIfBelowMaxSize();
+            if (entry != null) {
+                return entry;
+            }
+            try {
+                entry = bag.awaitConnection(Math.min(deadlineNanos - System.nanoTime(), MAX_WAIT_SLICE_NANOS));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection to " + jdbcUrl, ie);
+            }
+            if (entry != null) {
+                return entry;
+            }
+            checkOpen();
+            remainingNanos = deadlineNanos - System.nanoTime();
+        } while (remainingNanos > 0);
+        throw new SQLException(String.format("Timed out waiting for a connection to %s, all %d connections are in " +
+            "use by other threads", jdbcUrl, maxPoolSize));
+    }
+
+    /**
+     * Returns <code>true</code> if the borrowed connection can be handed out. Connections that have been idle for
+     * longer than the validation threshold are validated first, and are removed from the pool if they are broken.
+     */
+    private boolean isUsable(PooledConnection entry) {
+        if (entry.borrowSource == BorrowSource.NEW || validationIdleNanos < 0 ||
+            System.nanoTime() - entry.lastReturnedNanos < validationIdleNanos) {
+            return true;
+        }
+        try {
+            if (entry.connection.isValid(validationTimeoutSeconds)) {
+                return true;
+            }
+            log.warn("Closing connection to {} that failed validation", jdbcUrl);
+        } catch (SQLException se) {
+            log.warn("Closing connection to {} that could not be validated", jdbcUrl, se);
+        }
+        removeConnection(entry);
+        return false;
+    }
+
+    /**
+     * Opens a new physical connection on behalf of the calling thread if the pool has not reached its maximum size.
+     * @return the new connection, already in use, or <code>null</code> if the pool is at its maximum size
+     */
+    private PooledConnection openConnectionIfBelowMaxSize() throws SQLException {
+        int total;
+        do {
+            total = totalConnections.get();
+            if (total >= maxPoolSize) {
+                return null;
+            }
+        } while (!totalConnections.compareAndSet(total, total + 1));
+
+        long startNanos = System.nanoTime();
+        Connection connection = null;
+        PooledConnection entry;
+        try {
+            connection = DriverManager.getConnection(jdbcUrl, connectionProps);
+            if (isolation != null) {
+                connection.setTransactionIsolation(isolation);
+            }
+            if (connection.getAutoCommit() != autocommit) {
+                connection.setAutoCommit(autocommit);
+            }
+            entry = new PooledConnection(connection, System.nanoTime());
+        } catch (SQLException | RuntimeException e) {
+            totalConnections.decrementAndGet();
+            if (connection != null) {
+                closeQuietly(connection);
+            }
+            throw e;
+        }
+        bag.add(entry);
+        firePhysicalConnectionOpened(entry.lastReturnedNanos - startNanos);
+        log.debug("Opened connection {} of at most {} to {}", total + 1, maxPoolSize, jdbcUrl);
+        return entry;
+    }
+
+    @Override
+    public void closeConnection(Connection conn) throws SQLException {
+        if (conn == null) {
+            return;
+        }
+        PooledConnection entry = bag.find(conn);
+        if (entry == null) {
+            log.warn("Closing connection to {} that was not borrowed from this pool", jdbcUrl);
+            conn.close();
+            return;
+        } else if (entry.getState() != PooledConnection.STATE_IN_USE) {
+            // whoever returned it first already reset it, and it may even have been borrowed again since
+            log.warn("Ignoring connection to {} that was returned to the pool more than once", jdbcUrl);
+            return;
+        }
+        if (closed) {
+            removeConnection(entry);
+            return;
+        }
+        try {
+            if (conn.isClosed()) {
+                removeConnection(entry);
+                return;
+            }
+            resetConnection(entry);
+        } catch (SQLException | RuntimeException e) {
+            // a connection whose state is unknown must not be handed to the next borrower
+            removeConnection(entry);
+            throw e;
+        }
+        entry.lastReturnedNanos = System.nanoTime();
+        if (!bag.requite(entry)) {
+            // another thread returned the same connection while this one was resetting it
+            log.warn("Ignoring connection to {} that was returned to the pool more than once", jdbcUrl);
+        }
+    }
+
+    /**
+     * Undoes whatever the borrower of a connection changed, so that the next borrower starts out with the connection
+     * in the same state it was opened with.
+     */
+    private void resetConnection(PooledConnection entry) throws SQLException {
+        Connection conn = entry.connection;
+        // a transaction the borrower left open must not be committed by whoever borrows the connection next
+        if (!conn.getAutoCommit()) {
+            conn.rollback();
+        }
+        if (conn.getAutoCommit() != autocommit) {
+            conn.setAutoCommit(autocommit);
+        }
+        if (conn.getTransactionIsolation() != entry.defaultIsolation) {
+            conn.setTransactionIsolation(entry.defaultIsolation);
+        }
+        if (conn.isReadOnly() != entry.defaultReadOnly) {
+            conn.setReadOnly(entry.defaultReadOnly);
+        }
+        if (entry.defaultCatalog != null && !entry.defaultCatalog.equals(conn.getCatalog())) {
+            conn.setCatalog(entry.defaultCatalog);
+        }
+    }
+
+    /**
+     * Removes a connection that is in use by the calling thread, or idle, from the pool and closes it, which makes
+     * room for a new connection to be opened.
+     */
+    private void removeConnection(PooledConnection entry) {
+        int state = entry.getState();
+        if (state == PooledConnection.STATE_REMOVED ||
+            !entry.compareAndSetState(state, PooledConnection.STATE_REMOVED)) {
+            return;
+        }
+        bag.remove(entry);
+        totalConnections.decrementAndGet();
+        closeQuietly(entry.connection);
+        firePhysicalConnectionClosed();
+    }
+
+    private void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException | RuntimeException e) {
+            log.debug("Unable to close connection to {}", jdbcUrl, e);
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops handing out connections. Connections that are in use are closed when they
+     * are returned.
+     */
+    @Override
+    public void close() throws HibernateException {
+        closed = true;
+        for (PooledConnection entry : bag.entries()) {
+            if (entry.getState() == PooledConnection.STATE_IDLE) {
+                removeConnection(entry);
+            }
+        }
+        log.info("Closed connection pool for {}", jdbcUrl);
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return false;
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool for " + jdbcUrl + " has been closed");
+        }
+    }
+
+    /**
+     * Returns the JDBC url that this pool opens connections to.
+     */
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    /**
+     * Returns the maximum number of connections this pool will open.
+     */
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * Returns the auto-commit mode that connections are opened with and reset to whenever they are returned. Any
+     * transaction a returned connection still has open is rolled back, and its isolation level, read-only flag and
+     * catalog are reset to the ones it was opened with.
+     */
+    public boolean isDefaultAutoCommit() {
+        return autocommit;
+    }
+
+    /**
+     * Returns the number of physical connections that are currently open or being opened.
+     */
+    public int getNumConnections() {
+        return totalConnections.get();
+    }
+
+    /**
+     * Returns the number of open connections that are not in use.
+     */
+    public int getNumIdleConnections() {
+        int numIdle = 0;
+        for (PooledConnection entry : bag.entries()) {
+            if (entry.getState() == PooledConnection.STATE_IDLE) {
+                numIdle++;
+            }
+        }
+        return numIdle;
+    }
+
+    /**
+     * Returns the number of threads that are currently waiting for a connection to be returned.
+     */
+    public int getNumWaitingThreads() {
+        return bag.getNumWaiters();
+    }
+
+    private void fireConnectionBorrowed(BorrowSource source, long waitNanos) {
+        for (ConnectionPoolListener listener : poolListeners) {
+            try {
+                listener.afterConnectionBorrowed(this, source, waitNanos);
+            } catch (Throwable t) {
+                logListenerFailure("afterConnectionBorrowed", listener, t);
+            }
+        }
+    }
+
+    private void fireConnectionBorrowFailed(long waitNanos, SQLException exc) {
+        for (ConnectionPoolListener listener : poolListeners) {
+            try {
+                listener.afterConnectionBorrowFailed(this, waitNanos, exc);
+            } catch (Throwable t) {
+                logListenerFailure("afterConnectionBorrowFailed", listener, t);
+            }
+        }
+    }
+
+    private void firePhysicalConnectionOpened(long openNanos) {
+        for (ConnectionPoolListener listener : poolListeners) {
+            try {
+                listener.afterPhysicalConnectionOpened(this, openNanos);
+            } catch (Throwable t) {
+                logListenerFailure("afterPhysicalConnectionOpened", listener, t);
+            }
+        }
+    }
+
+    private void firePhysicalConnectionClosed() {
+        for (ConnectionPoolListener listener : poolListeners) {
+            try {
+                listener.afterPhysicalConnectionClosed(this);
+            } catch (Throwable t) {
+                logListenerFailure("afterPhysicalConnectionClosed", listener, t);
+            }
+        }
+    }
+
+    private void logListenerFailure(String methodName, ConnectionPoolListener listener, Throwable t) {
+        if (log.isErrorEnabled()) {
+            log.error("Unable to invoke {} for listener of type '{}' connected to {}", methodName,
+                listener.getClass(), jdbcUrl, t);
+        }
+    }
+}
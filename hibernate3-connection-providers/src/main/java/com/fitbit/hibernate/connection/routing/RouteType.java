@@ -0,0 +1,18 @@
+package com.fitbit.hibernate.connection.routing;
+
+/**
+ * The kind of work a connection is acquired for, which determines the route a {@link RoutingConnectionProvider}
+ * acquires it from.
+ *
+ * @author dgarson
+ */
+public enum RouteType {
+    /**
+     * The connection may be used to write, so it must come from the write route.
+     */
+    READ_WRITE,
+    /**
+     * The connection is only used to read, so it may come from any of the read routes, such as a read replica.
+     */
+    READ_ONLY
+}
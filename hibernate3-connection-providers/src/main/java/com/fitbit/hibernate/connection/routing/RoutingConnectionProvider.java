@@ -0,0 +1,265 @@
+package com.fitbit.hibernate.connection.routing;
+
+import com.fitbit.hibernate.connection.MultiplexingConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionPoolListener;
+import com.fitbit.hibernate.connection.event.ConnectionRoutingListener;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Connection provider that acquires connections from one of several named delegate connection providers, called
+ * routes, depending on the {@link RouteType} of the calling thread's {@link RoutingContext}: read-write acquisitions
+ * always go to the write route, such as a primary database, while read-only acquisitions are balanced over the read
+ * routes, such as its read replicas. It is meant to be used as the delegate of an
+ * {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider}, which then instruments every route. <br/>
+ * The routes are listed in the &quot;hibernate.connection.routing.routes&quot; Hibernate property, such as
+ * <code>primary,replica1,replica2</code>. Every route is configured from the same Hibernate properties as this
+ * provider, overridden by any properties prefixed with &quot;hibernate.connection.routing.&lt;route&gt;.&quot;, with
+ * that prefix replaced by &quot;hibernate.&quot;, so that for instance
+ * &quot;hibernate.connection.routing.replica1.connection.url&quot; sets the JDBC url of the route named replica1. The
+ * connection provider class of each route defaults to the one in
+ * &quot;hibernate.connection.routing.delegate_provider_class&quot;. <br/>
+ * The following Hibernate properties are also supported:
+ * <ul>
+ *     <li>hibernate.connection.routing.write_route - the route read-write connections are acquired from, defaults to
+ *     the first route</li>
+ *     <li>hibernate.connection.routing.read_fallback_to_write - whether a read-only acquisition that fails on a read
+ *     route is retried on the write route, defaults to true</li>
+ *     <li>hibernate.connection.routing.latency_decay_millis - the time constant of the acquisition latency average of
+ *     every route, defaults to 5 seconds</li>
+ * </ul>
+ * Read routes are balanced using the power of two choices: every read-only acquisition picks two read routes at random
+ * and uses the one with the lower {@link Route#getLoad() load}, which combines the route's recent acquisition latency
+ * with the number of connections checked out from it. A replica that becomes slow or overloaded thereby sheds load
+ * within a few seconds, while picking a route takes constant time and no locks, whatever the number of routes. <br/>
+ * Every connection is returned to the route it was acquired from, whichever thread returns it. Any attached
+ * {@link ConnectionRoutingListener}s are told the route of every acquisition, and {@link ConnectionPoolListener}s are
+ * handed on to the routes that are {@link PoolingConnectionProvider}s.
+ *
+ * @author dgarson
+ */
+public class RoutingConnectionProvider extends MultiplexingConnectionProvider<Route> {
+
+    public static final String ROUTES = "hibernate.connection.routing.routes";
+    public static final String WRITE_ROUTE = "hibernate.connection.routing.write_route";
+    public static final String READ_FALLBACK_TO_WRITE = "hibernate.connection.routing.read_fallback_to_write";
+    public static final String DELEGATE_PROVIDER_CLASS = "hibernate.connection.routing.delegate_provider_class";
+    public static final String LATENCY_DECAY_MILLIS = "hibernate.connection.routing.latency_decay_millis";
+    public static final String ROUTE_PROPERTY_PREFIX = "hibernate.connection.routing.";
+
+    private static final int DEFAULT_LATENCY_DECAY_MILLIS = 5000;
+
+    private static final ConnectionRoutingListener[] NO_ROUTING_LISTENERS = new ConnectionRoutingListener[0];
+
+    private static final Logger log = LoggerFactory.getLogger(RoutingConnectionProvider.class);
+
+    // all routes by name, in the order they were declared
+    private Map<String, Route> routes;
+    private Route writeRoute;
+    // the routes that read-only connections are acquired from, which is only the write route if there are no others
+    private Route[] readRoutes;
+    private boolean readFallbackToWrite;
+
+    private volatile ConnectionRoutingListener[] routingListeners = NO_ROUTING_LISTENERS;
+
+    @Override
+    public void configure(Properties props) throws HibernateException {
+        String[] routeNames = StringUtils.stripAll(StringUtils.split(props.getProperty(ROUTES, ""), ","));
+        if (routeNames.length == 0) {
+            throw new HibernateException("No routes were declared by property " + ROUTES);
+        }
+        long latencyDecayMillis = NumberUtils.toLong(StringUtils.trim(props.getProperty(LATENCY_DECAY_MILLIS)),
+            DEFAULT_LATENCY_DECAY_MILLIS);
+        Map<String, Route> configuredRoutes = new LinkedHashMap<>();
+        for (String routeName : routeNames) {
+            if (configuredRoutes.containsKey(routeName)) {
+                throw new HibernateException("Route '" + routeName + "' is declared more than once by property " +
+                    ROUTES);
+            }
+            configuredRoutes.put(routeName, createRoute(routeName, props, latencyDecayMillis));
+        }
+        routes = Collections.unmodifiableMap(configuredRoutes);
+
+        String writeRouteName = StringUtils.defaultIfBlank(StringUtils.trim(props.getProperty(WRITE_ROUTE)),
+            routeNames[0]);
+        writeRoute = routes.get(writeRouteName);
+        if (writeRoute == null) {
+            throw new HibernateException("Write route '" + writeRouteName + "' is not declared by property " + ROUTES);
+        }
+        List<Route> configuredReadRoutes = new ArrayList<>();
+        for (Route route : routes.values()) {
+            if (route != writeRoute) {
+                configuredReadRoutes.add(route);
+            }
+        }
+        if (configuredReadRoutes.isEmpty()) {
+            configuredReadRoutes.add(writeRoute);
+        }
+        readRoutes = configuredReadRoutes.toArray(new Route[configuredReadRoutes.size()]);
+        String fallback = StringUtils.trimToNull(props.getProperty(READ_FALLBACK_TO_WRITE));
+        readFallbackToWrite = (fallback == null || BooleanUtils.toBoolean(fallback));
+        log.info("Configured routing to write route {} and read routes {}", writeRoute, configuredReadRoutes);
+    }
+
+    /**
+     * Creates the delegate connection provider of a single route from the shared Hibernate properties and the ones
+     * prefixed with the route's name.
+     */
+    private static Route createRoute(String routeName, Properties props, long latencyDecayMillis) {
+        Properties routeProps = getDelegateProperties(props, ROUTE_PROPERTY_PREFIX + routeName + ".",
+            DELEGATE_PROVIDER_CLASS);
+        ConnectionProvider connectionProvider = createDelegateConnectionProvider(routeProps, "route " + routeName);
+        return new Route(routeName, routeProps.getProperty(Environment.URL), connectionProvider, latencyDecayMillis);
+    }
+
+    /**
+     * Sets the listeners that are told the route of every acquisition, replacing any that were set before. This is
+     * invoked by the instrumented connection provider wrapping this provider once its listeners have been configured.
+     * @param listeners the listeners to notify, which must not be modified after being passed in
+     */
+    public void setRoutingListeners(@Nonnull ConnectionRoutingListener[] listeners) {
+        routingListeners = Preconditions.checkNotNull(listeners);
+    }
+
+    @Nonnull
+    @Override
+    protected Iterable<Route> getAllDelegates() {
+        return routes.values();
+    }
+
+    @Nonnull
+    @Override
+    protected ConnectionProvider getConnectionProvider(@Nonnull Route route) {
+        return route.getConnectionProvider();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        RouteType routeType = RoutingContext.getRouteType();
+        if (routeType == RouteType.READ_WRITE) {
+            return acquireFrom(writeRoute, routeType);
+        }
+        Route readRoute = selectReadRoute();
+        try {
+            return acquireFrom(readRoute, routeType);
+        } catch (SQLException | RuntimeException e) {
+            if (!readFallbackToWrite || readRoute == writeRoute) {
+                throw e;
+            }
+            log.warn("Unable to acquire a read-only connection from route {}, falling back to write route {}",
+                readRoute, writeRoute, e);
+            return acquireFrom(writeRoute, routeType);
+        }
+    }
+
+    /**
+     * Returns the less loaded of two distinct read routes picked at random, which the next read-only connection is
+     * acquired from.
+     */
+    private Route selectReadRoute() {
+        Route[] candidates = readRoutes;
+        if (candidates.length == 1) {
+            return candidates[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates.length);
+        // pick the second from the remaining routes, so the two are always distinct
+        int second = (first + 1 + random.nextInt(candidates.length - 1)) % candidates.length;
+        Route firstRoute = candidates[first];
+        Route secondRoute = candidates[second];
+        return (secondRoute.getLoad() < firstRoute.getLoad() ? secondRoute : firstRoute);
+    }
+
+    private Connection acquireFrom(Route route, RouteType routeType) throws SQLException {
+        long startNanos = System.nanoTime();
+        Connection connection;
+        try {
+            connection = acquireFrom(route);
+        } catch (SQLException | RuntimeException e) {
+            route.acquisitionFailed();
+            fireRoutingFailed(route, routeType, e);
+            throw e;
+        }
+        route.connectionAcquired(System.nanoTime() - startNanos);
+        fireConnectionRouted(route, routeType);
+        return connection;
+    }
+
+    @Override
+    protected void connectionReturned(@Nonnull Route route) {
+        route.connectionReleased();
+    }
+
+    /**
+     * Returns the route with the given name, or <code>null</code> if there is none.
+     */
+    @Nullable
+    public Route getRoute(String routeName) {
+        return routes.get(routeName);
+    }
+
+    /**
+     * Returns all routes, in the order they were declared.
+     */
+    @Nonnull
+    public List<Route> getRoutes() {
+        return new ArrayList<>(routes.values());
+    }
+
+    /**
+     * Returns the route that read-write connections are acquired from.
+     */
+    @Nonnull
+    public Route getWriteRoute() {
+        return writeRoute;
+    }
+
+    private void fireConnectionRouted(Route route, RouteType routeType) {
+        for (ConnectionRoutingListener listener : routingListeners) {
+            try {
+                listener.afterConnectionRouted(this, route, routeType);
+            } catch (Throwable t) {
+                logListenerFailure("afterConnectionRouted", listener, t);
+            }
+        }
+    }
+
+    private void fireRoutingFailed(Route route, RouteType routeType, Throwable exc) {
+        for (ConnectionRoutingListener listener : routingListeners) {
+            try {
+                listener.afterConnectionRoutingFailed(this, route, routeType, exc);
+            } catch (Throwable t) {
+                logListenerFailure("afterConnectionRoutingFailed", listener, t);
+            }
+        }
+    }
+
+    private void logListenerFailure(String methodName, ConnectionRoutingListener listener, Throwable t) {
+        if (log.isErrorEnabled()) {
+            log.error("Unable to invoke {} for listener of type '{}' connected to {}", methodName,
+                listener.getClass(), writeRoute.getJdbcUrl(), t);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.fitbit.hibernate.connection.routing;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Holds the {@link RouteType} that connections acquired by the calling thread are routed by, which is
+ * {@link RouteType#READ_WRITE} unless set otherwise. <br/>
+ * The route type is read when a connection is acquired, so to route a whole Hibernate transaction, set it before the
+ * transaction begins and restore it after the transaction has completed, typically from whatever opens transactions,
+ * such as a transaction interceptor:
+ * <pre>
+ * RouteType previous = RoutingContext.setRouteType(RouteType.READ_ONLY);
+ * try {
+ *     // run the read-only transaction
+ * } finally {
+ *     RoutingContext.setRouteType(previous);
+ * }
+ * </pre>
+ *
+ * @author dgarson
+ */
+public final class RoutingContext {
+
+    private static final ThreadLocal<RouteType> currentRouteType = new ThreadLocal<>();
+
+    private RoutingContext() {
+        // static access only
+    }
+
+    /**
+     * Sets the route type of the calling thread.
+     * @param routeType the route type, or <code>null</code> to restore the default
+     * @return the route type that was set before, or <code>null</code> if none was, which can be passed back to this
+     *          method to restore it
+     */
+    @Nullable
+    public static RouteType setRouteType(@Nullable RouteType routeType) {
+        RouteType previous = currentRouteType.get();
+        if (routeType != null) {
+            currentRouteType.set(routeType);
+        } else {
+            currentRouteType.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * Returns the route type of the calling thread.
+     */
+    @Nonnull
+    public static RouteType getRouteType() {
+        RouteType routeType = currentRouteType.get();
+        return (routeType != null ? routeType : RouteType.READ_WRITE);
+    }
+
+    /**
+     * Restores the default route type for the calling thread.
+     */
+    public static void clear() {
+        currentRouteType.remove();
+    }
+}
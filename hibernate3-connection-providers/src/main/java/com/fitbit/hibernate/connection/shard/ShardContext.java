@@ -0,0 +1,61 @@
+package com.fitbit.hibernate.connection.shard;
+
+import javax.annotation.Nullable;
+
+/**
+ * Holds the shard key that connections acquired by the calling thread are routed by, such as the id of the user whose
+ * data is being accessed. The {@link ShardStrategy} of a {@link ShardedConnectionProvider} maps the key to a shard.
+ * <br/>
+ * The shard key is read when a connection is acquired, so it must be set before a Hibernate session or transaction
+ * acquires its connection and restored afterwards:
+ * <pre>
+ * Object previous = ShardContext.setShardKey(userId);
+ * try {
+ *     // run the transaction
+ * } finally {
+ *     ShardContext.setShardKey(previous);
+ * }
+ * </pre>
+ *
+ * @author dgarson
+ */
+public final class ShardContext {
+
+    private static final ThreadLocal<Object> currentShardKey = new ThreadLocal<>();
+
+    private ShardContext() {
+        // static access only
+    }
+
+    /**
+     * Sets the shard key of the calling thread.
+     * @param shardKey the shard key, or <code>null</code> to clear it
+     * @return the shard key that was set before, or <code>null</code> if none was, which can be passed back to this
+     *          method to restore it
+     */
+    @Nullable
+    public static Object setShardKey(@Nullable Object shardKey) {
+        Object previous = currentShardKey.get();
+        if (shardKey != null) {
+            currentShardKey.set(shardKey);
+        } else {
+            currentShardKey.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * Returns the shard key of the calling thread, or <code>null</code> if none is set.
+     */
+    @Nullable
+    public static Object getShardKey() {
+        return currentShardKey.get();
+    }
+
+    /**
+     * Clears the shard key of the calling thread.
+     */
+    public static void clear() {
+        currentShardKey.remove();
+    }
+}
@@ -0,0 +1,184 @@
+package com.fitbit.hibernate.connection.shard;
+
+import com.fitbit.hibernate.connection.MultiplexingConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionPoolListener;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Connection provider that acquires connections from one of several named delegate connection providers, called
+ * shards, each connected to a database holding a part of the same tables. The shard of every acquisition is resolved
+ * from the calling thread's {@link ShardContext} shard key by a pluggable {@link ShardStrategy}. It is meant to be used
+ * as the delegate of an {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider}, so a single
+ * SessionFactory and a single set of listeners, metrics and warm-up cover all shards. <br/>
+ * The shards are listed in the &quot;hibernate.connection.sharding.shards&quot; Hibernate property, such as
+ * <code>shard0,shard1,shard2</code>, and every shard is configured from the same Hibernate properties as this
+ * provider, overridden by any properties prefixed with &quot;hibernate.connection.sharding.&lt;shard&gt;.&quot;, with
+ * that prefix replaced by &quot;hibernate.&quot;, so that for instance
+ * &quot;hibernate.connection.sharding.shard1.connection.url&quot; sets the JDBC url of the shard named shard1. The
+ * following Hibernate properties are also supported:
+ * <ul>
+ *     <li>hibernate.connection.sharding.delegate_provider_class - the connection provider class of every shard</li>
+ *     <li>hibernate.connection.sharding.strategy_class - the {@link ShardStrategy} implementation, defaults to
+ *     {@link ModuloShardStrategy}</li>
+ *     <li>hibernate.connection.sharding.default_shard - the shard that connections are acquired from while no shard key
+ *     is set, such as the ones Hibernate itself acquires to read database metadata, defaults to the first shard</li>
+ * </ul>
+ * Every connection is returned to the shard it was acquired from, whichever thread returns it, and any
+ * {@link ConnectionPoolListener}s are handed on to the shards that are {@link PoolingConnectionProvider}s.
+ *
+ * @author dgarson
+ */
+public class ShardedConnectionProvider extends MultiplexingConnectionProvider<Shard> {
+
+    public static final String SHARDS = "hibernate.connection.sharding.shards";
+    public static final String DELEGATE_PROVIDER_CLASS = "hibernate.connection.sharding.delegate_provider_class";
+    public static final String STRATEGY_CLASS = "hibernate.connection.sharding.strategy_class";
+    public static final String DEFAULT_SHARD = "hibernate.connection.sharding.default_shard";
+    public static final String SHARD_PROPERTY_PREFIX = "hibernate.connection.sharding.";
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedConnectionProvider.class);
+
+    // all shards in the order they were declared, which is the order that shard indexes refer to
+    private Shard[] shards;
+    private Map<String, Shard> shardsByName;
+    private Shard defaultShard;
+    private ShardStrategy strategy;
+
+    @Override
+    public void configure(Properties props) throws HibernateException {
+        String[] shardNames = StringUtils.stripAll(StringUtils.split(props.getProperty(SHARDS, ""), ","));
+        if (shardNames.length == 0) {
+            throw new HibernateException("No shards were declared by property " + SHARDS);
+        }
+        Map<String, Shard> configuredShards = new LinkedHashMap<>();
+        for (String shardName : shardNames) {
+            if (configuredShards.containsKey(shardName)) {
+                throw new HibernateException("Shard '" + shardName + "' is declared more than once by property " +
+                    SHARDS);
+            }
+            configuredShards.put(shardName, createShard(shardName, configuredShards.size(), props));
+        }
+        shardsByName = Collections.unmodifiableMap(configuredShards);
+        shards = configuredShards.values().toArray(new Shard[configuredShards.size()]);
+
+        String defaultShardName = StringUtils.defaultIfBlank(StringUtils.trim(props.getProperty(DEFAULT_SHARD)),
+            shardNames[0]);
+        defaultShard = shardsByName.get(defaultShardName);
+        if (defaultShard == null) {
+            throw new HibernateException("Default shard '" + defaultShardName + "' is not declared by property " +
+                SHARDS);
+        }
+        String strategyClassName = StringUtils.trim(props.getProperty(STRATEGY_CLASS,
+            ModuloShardStrategy.class.getName()));
+        try {
+            strategy = Class.forName(strategyClassName).asSubclass(ShardStrategy.class).newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new HibernateException("Unable to create shard strategy of type " + strategyClassName, e);
+        }
+        log.info("Configured sharding over {} using {}", configuredShards.values(), strategy.getClass().getName());
+    }
+
+    /**
+     * Creates the delegate connection provider of a single shard from the shared Hibernate properties and the ones
+     * prefixed with the shard's name.
+     */
+    private static Shard createShard(String shardName, int index, Properties props) {
+        Properties shardProps = getDelegateProperties(props, SHARD_PROPERTY_PREFIX + shardName + ".",
+            DELEGATE_PROVIDER_CLASS);
+        ConnectionProvider connectionProvider = createDelegateConnectionProvider(shardProps, "shard " + shardName);
+        return new Shard(shardName, index, shardProps.getProperty(Environment.URL), connectionProvider);
+    }
+
+    @Nonnull
+    @Override
+    protected Iterable<Shard> getAllDelegates() {
+        return Arrays.asList(shards);
+    }
+
+    @Nonnull
+    @Override
+    protected ConnectionProvider getConnectionProvider(@Nonnull Shard shard) {
+        return shard.getConnectionProvider();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Shard shard = resolveShard(ShardContext.getShardKey());
+        long startNanos = System.nanoTime();
+        Connection connection;
+        try {
+            connection = acquireFrom(shard);
+        } catch (SQLException | RuntimeException e) {
+            shard.acquisitionFailed();
+            throw e;
+        }
+        shard.connectionAcquired(System.nanoTime() - startNanos);
+        return connection;
+    }
+
+    /**
+     * Returns the shard that the given shard key belongs to, or the default shard if there is no shard key.
+     * @throws SQLException if the strategy resolves the shard key to a shard that does not exist
+     */
+    @Nonnull
+    public Shard resolveShard(@Nullable Object shardKey) throws SQLException {
+        if (shardKey == null) {
+            return defaultShard;
+        }
+        int index = strategy.resolveShard(shardKey, shards.length);
+        if (index < 0 || index >= shards.length) {
+            throw new SQLException("Shard key " + shardKey + " was resolved to shard " + index + " by " +
+                strategy.getClass().getName() + " but only " + shards.length + " shards are declared");
+        }
+        return shards[index];
+    }
+
+    @Override
+    protected void connectionReturned(@Nonnull Shard shard) {
+        shard.connectionReleased();
+    }
+
+    /**
+     * Returns the shard with the given name, or <code>null</code> if there is none.
+     */
+    @Nullable
+    public Shard getShard(String shardName) {
+        return shardsByName.get(shardName);
+    }
+
+    /**
+     * Returns all shards, in the order they were declared.
+     */
+    @Nonnull
+    public List<Shard> getShards() {
+        return new ArrayList<>(Arrays.asList(shards));
+    }
+
+    /**
+     * Returns the shard that connections are acquired from while no shard key is set.
+     */
+    @Nonnull
+    public Shard getDefaultShard() {
+        return defaultShard;
+    }
+}
@@ -0,0 +1,218 @@
+package com.fitbit.util;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The purpose of this class is to associate a primitive long with objects that are compared by identity, such as the
+ * time at which each connection was checked out, without boxing the values or allocating an entry per mapping the way
+ * an {@link java.util.IdentityHashMap} of Longs would. <br/>
+ * Keys are spread over a fixed number of segments, each of which is an open-addressing table with linear probing that
+ * is guarded by its own lock, so threads working with different keys rarely contend with each other. Removals shift
+ * the following entries back rather than leaving tombstones, so a table whose keys come and go does not degrade over
+ * time. <br/>
+ * Segments are guarded by plain monitors rather than updated with compare-and-swap because every critical section is a
+ * short probe over two arrays that never blocks, waits or performs I/O, so a lock is only ever held for a moment and a
+ * thread holding one, virtual or not, is never parked while it does. Growing a segment, the only step that allocates,
+ * is amortized over the insertions that filled it. <br/>
+ * Keys are held strongly until they are removed, and {@link #NO_VALUE} cannot be stored since it is what lookups of
+ * absent keys return.
+ */
+@ThreadSafe
+public class IdentityLongTable {
+
+    /**
+     * Returned by lookups and updates of keys that are not in the table.
+     */
+    public static final long NO_VALUE = Long.MIN_VALUE;
+
+    // must be a power of two, the top bits of a key's hash select its segment
+    private static final int NUM_SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = Integer.SIZE - Integer.numberOfTrailingZeros(NUM_SEGMENTS);
+
+    // must be a power of two, the bottom bits of a key's hash select its slot within a segment
+    private static final int INITIAL_SEGMENT_CAPACITY = 8;
+
+    private final Segment[] segments = new Segment[NUM_SEGMENTS];
+
+    public IdentityLongTable() {
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or {@link #NO_VALUE} if there is none.
+     */
+    public long get(@Nonnull Object key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * Associates the value with the given key, replacing any value it was associated with before.
+     * @return the previous value, or {@link #NO_VALUE} if the key was not in the table
+     */
+    public long put(@Nonnull Object key, long value) {
+        Preconditions.checkArgument(value != NO_VALUE, "NO_VALUE cannot be stored");
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, /*onlyIfAbsent=*/false);
+    }
+
+    /**
+     * Associates the value with the given key unless the key is already in the table.
+     * @return the value the key was already associated with, or {@link #NO_VALUE} if it was added by this call
+     */
+    public long putIfAbsent(@Nonnull Object key, long value) {
+        Preconditions.checkArgument(value != NO_VALUE, "NO_VALUE cannot be stored");
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, /*onlyIfAbsent=*/true);
+    }
+
+    /**
+     * Removes the given key from the table.
+     * @return the value the key was associated with, or {@link #NO_VALUE} if it was not in the table
+     */
+    public long remove(@Nonnull Object key) {
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    /**
+     * Returns the number of keys in the table. This is not an atomic snapshot if the table is being updated
+     * concurrently.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    private static int hash(Object key) {
+        // identity hash codes are not guaranteed to vary in either their top or bottom bits, so mix them into both
+        int h = System.identityHashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static final class Segment {
+
+        @GuardedBy("this")
+        private Object[] keys = new Object[INITIAL_SEGMENT_CAPACITY];
+        @GuardedBy("this")
+        private long[] values = new long[INITIAL_SEGMENT_CAPACITY];
+        @GuardedBy("this")
+        private int size;
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long get(Object key, int hash) {
+            int index = indexOf(key, hash);
+            return (index < 0 ? NO_VALUE : values[index]);
+        }
+
+        synchronized long put(Object key, int hash, long value, boolean onlyIfAbsent) {
+            int mask = keys.length - 1;
+            int index = hash & mask;
+            for (Object existing; (existing = keys[index]) != null; index = (index + 1) & mask) {
+                if (existing == key) {
+                    long previous = values[index];
+                    if (!onlyIfAbsent) {
+                        values[index] = value;
+                    }
+                    return previous;
+                }
+            }
+            keys[index] = key;
+            values[index] = value;
+            // keep at most two thirds of the slots in use so that probe sequences stay short
+            if (++size * 3 > keys.length * 2) {
+                resize();
+            }
+            return NO_VALUE;
+        }
+
+        synchronized long remove(Object key, int hash) {
+            int index = indexOf(key, hash);
+            if (index < 0) {
+                return NO_VALUE;
+            }
+            long previous = values[index];
+            shiftBack(index);
+            size--;
+            return previous;
+        }
+
+        @GuardedBy("this")
+        private int indexOf(Object key, int hash) {
+            int mask = keys.length - 1;
+            for (int index = hash & mask; keys[index] != null; index = (index + 1) & mask) {
+                if (keys[index] == key) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Empties the given slot, moving back any entries after it in the same run that would otherwise no longer be
+         * reachable from their home slot.
+         */
+        @GuardedBy("this")
+        private void shiftBack(int hole) {
+            int mask = keys.length - 1;
+            int index = hole;
+            while (true) {
+                index = (index + 1) & mask;
+                Object key = keys[index];
+                if (key == null) {
+                    break;
+                }
+                int home = hash(key) & mask;
+                // the entry may only move back if the hole lies between its home slot and where it is now
+                if (((index - home) & mask) >= ((index - hole) & mask)) {
+                    keys[hole] = key;
+                    values[hole] = values[index];
+                    hole = index;
+                }
+            }
+            keys[hole] = null;
+            values[hole] = 0L;
+        }
+
+        @GuardedBy("this")
+        private void resize() {
+            Object[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new Object[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                Object key = oldKeys[i];
+                if (key != null) {
+                    int index = hash(key) & mask;
+                    while (keys[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    keys[index] = key;
+                    values[index] = oldValues[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.fitbit.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The purpose of this class is to record a high dynamic range of latencies into a fixed amount of memory, so that
+ * percentiles can be reported without storing individual samples or allocating while recording. <br/>
+ * Values are counted in log-linear buckets: every power-of-two range is split into the same number of equally sized
+ * sub-buckets, so the relative error of any reported value is bounded by the configured precision regardless of its
+ * magnitude. With the default precision of 7 bits the error is below 1%, and tracking nanosecond values up to one hour
+ * takes less than 5,000 buckets. Values above the highest trackable value are counted in the last bucket. <br/>
+ * Recording is lock-free and safe from any number of threads. Reads are not atomic snapshots while recording is
+ * ongoing.
+ */
+@ThreadSafe
+public class LatencyHistogram {
+
+    public static final int DEFAULT_PRECISION_BITS = 7;
+
+    private final int precisionBits;
+    private final int subBucketCount;
+    private final long highestTrackableValue;
+    private final AtomicLongArray counts;
+    private final StripedLongCounter totalValue = new StripedLongCounter();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Creates a histogram with the default precision that can track values up to the given duration, in nanoseconds.
+     */
+    public LatencyHistogram(long highestTrackableDuration, TimeUnit unit) {
+        this(unit.toNanos(highestTrackableDuration), DEFAULT_PRECISION_BITS);
+    }
+
+    /**
+     * @param highestTrackableValue the largest value that can be recorded without being clamped
+     * @param precisionBits the number of bits of precision kept for every value, between 1 and 16
+     */
+    public LatencyHistogram(long highestTrackableValue, int precisionBits) {
+        Preconditions.checkArgument(precisionBits >= 1 && precisionBits <= 16, "precisionBits must be in [1, 16]");
+        Preconditions.checkArgument(highestTrackableValue >= 2L << precisionBits,
+            "highestTrackableValue is too small for the requested precision");
+        this.precisionBits = precisionBits;
+        this.subBucketCount = 1 << precisionBits;
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new AtomicLongArray(bucketIndex(highestTrackableValue) + 1);
+    }
+
+    /**
+     * Records a single value. Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        long clamped = Math.max(0L, value);
+        counts.incrementAndGet(bucketIndex(Math.min(clamped, highestTrackableValue)));
+        totalValue.add(clamped);
+        long max = maxValue.get();
+        while (clamped > max && !maxValue.compareAndSet(max, clamped)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public long getCount() {
+        long count = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the largest value recorded, or zero if nothing has been recorded.
+     */
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * Returns the mean of all values recorded, or zero if nothing has been recorded.
+     */
+    public double getMean() {
+        long count = getCount();
+        return (count == 0 ? 0.0 : (double) totalValue.sum() / count);
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values fall, to within the precision of this
+     * histogram, or zero if nothing has been recorded.
+     * @param percentile the percentile, between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        Preconditions.checkArgument(percentile >= 0.0 && percentile <= 100.0, "percentile must be in [0, 100]");
+        long[] snapshot = new long[counts.length()];
+        long count = 0L;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+        long cumulative = 0L;
+        for (int i = 0; i < snapshot.length; i++) {
+            cumulative += snapshot[i];
+            if (cumulative >= rank) {
+                return Math.min(highestValueInBucket(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public long getP50() {
+        return getValueAtPercentile(50.0);
+    }
+
+    public long getP99() {
+        return getValueAtPercentile(99.0);
+    }
+
+    public long getP999() {
+        return getValueAtPercentile(99.9);
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently with this call may or may not be preserved.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0L);
+        }
+        totalValue.reset();
+        maxValue.set(0L);
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + getCount() + ", p50=" + getP50() + ", p99=" + getP99() + ", p999=" +
+            getP999() + ", max=" + getMax() + "}";
+    }
+
+    /**
+     * Values below twice the sub-bucket count are counted exactly, larger values keep only their top
+     * <strong>precisionBits</strong> + 1 bits.
+     */
+    private int bucketIndex(long value) {
+        if (value < (subBucketCount << 1)) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - precisionBits;
+        return (shift * subBucketCount) + (int) (value >>> shift);
+    }
+
+    private long highestValueInBucket(int index) {
+        if (index < (subBucketCount << 1)) {
+            return index;
+        }
+        int shift = (index / subBucketCount) - 1;
+        long mantissa = index - ((long) shift * subBucketCount);
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,65 @@
+package com.fitbit.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The purpose of this class is to provide a counter that can be updated from many threads at once without all of them
+ * contending on the same cache line, in the same spirit as Java 8's <code>LongAdder</code>. <br/>
+ * The value is spread over a number of cells, each padded onto its own cache line, and each thread always updates the
+ * cell selected by its thread id. Updates are therefore cheap and mostly uncontended, while reading the value requires
+ * summing all cells, so this should be used for counters that are written far more often than they are read. The sum
+ * is not an atomic snapshot if updates are happening concurrently.
+ */
+@ThreadSafe
+public class StripedLongCounter {
+
+    // number of longs between two cells, enough to keep each cell on its own (pair of) 64-byte cache line(s)
+    private static final int CELL_PADDING = 16;
+
+    // enough cells that each core will rarely share one with another busy thread
+    private static final int NUM_CELLS = Integer.highestOneBit(
+        Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+
+    private final AtomicLongArray cells = new AtomicLongArray(NUM_CELLS * CELL_PADDING);
+
+    public void increment() {
+        add(1L);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(cellIndex(), delta);
+    }
+
+    /**
+     * Returns the current sum of all cells.
+     */
+    public long sum() {
+        long sum = 0L;
+        for (int i = 0; i < NUM_CELLS; i++) {
+            sum += cells.get(i * CELL_PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Resets all cells to zero. Updates made concurrently with this call may or may not be preserved.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_CELLS; i++) {
+            cells.set(i * CELL_PADDING, 0L);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+    private static int cellIndex() {
+        // spread sequentially assigned thread ids across the cells
+        long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (hash >>> 32) & (NUM_CELLS - 1)) * CELL_PADDING;
+    }
+}
@@ -0,0 +1,236 @@
+package com.fitbit.hibernate.connection;
+
+import com.fitbit.hibernate.connection.event.AsyncOverflowPolicy;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
+import com.fitbit.hibernate.connection.event.PostConnectionCloseListener;
+import com.fitbit.hibernate.connection.event.SynchronousListener;
+import com.fitbit.hibernate.connection.impl.ConnectionPerformanceMetricListenerUnitTest.MockConnectionProvider;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AsyncListenerDispatchUnitTest {
+
+    private static final String TEST_JDBC_URL = "jdbc:somedriver://somehost:someport/somedatabase";
+
+    private InstrumentedConnectionProvider connectionProvider;
+
+    @Before
+    public void resetListeners() {
+        RecordingListener.reset();
+        InlineListener.threads.clear();
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        RecordingListener.gate.countDown();
+        if (connectionProvider != null) {
+            connectionProvider.close();
+        }
+    }
+
+    @Test
+    public void testPostEventsDispatchedOnBackgroundThread() throws Exception {
+        connectionProvider = createConnectionProvider(1024, "inline");
+        RecordingListener.expectEvents(2);
+
+        Connection conn = connectionProvider.getConnection();
+        connectionProvider.closeConnection(conn);
+
+        Assert.assertTrue(RecordingListener.latch.await(5, TimeUnit.SECONDS));
+        for (Thread thread : RecordingListener.threads) {
+            Assert.assertNotSame(Thread.currentThread(), thread);
+        }
+        // synchronous listeners must still be invoked by the thread acquiring the connection
+        Assert.assertEquals(1, InlineListener.threads.size());
+        Assert.assertSame(Thread.currentThread(), InlineListener.threads.peek());
+    }
+
+    @Test
+    public void testDropPolicyWhenBufferFull() throws Exception {
+        connectionProvider = createConnectionProvider(2, "drop");
+        RecordingListener.gate = new CountDownLatch(1);
+
+        for (int i = 0; i < 10; i++) {
+            connectionProvider.getConnection();
+        }
+
+        Assert.assertTrue(connectionProvider.getNumDroppedListenerEvents() > 0);
+        Assert.assertEquals(0L, connectionProvider.getNumInlineListenerEvents());
+        for (Thread thread : RecordingListener.threads) {
+            Assert.assertNotSame(Thread.currentThread(), thread);
+        }
+    }
+
+    @Test
+    public void testInlinePolicyWhenBufferFull() throws Exception {
+        connectionProvider = createConnectionProvider(2, "inline");
+        // block the dispatcher thread in the listener, but not the calling thread
+        RecordingListener.gate = new CountDownLatch(1);
+        RecordingListener.gatedThreadName = "ConnectionProviderListenerDispatcher";
+
+        for (int i = 0; i < 10; i++) {
+            connectionProvider.getConnection();
+        }
+
+        Assert.assertEquals(0L, connectionProvider.getNumDroppedListenerEvents());
+        Assert.assertTrue(connectionProvider.getNumInlineListenerEvents() > 0);
+        Assert.assertTrue(RecordingListener.threads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void testEventsPublishedDuringShutdownAreDispatched() throws Exception {
+        connectionProvider = createConnectionProvider(1024, "inline");
+        for (int round = 0; round < 20; round++) {
+            final CountingListener listener = new CountingListener();
+            final AsyncListenerDispatcher dispatcher = new AsyncListenerDispatcher(connectionProvider,
+                new PostConnectionAcquisitionListener[0], new PostConnectionCloseListener[] { listener }, 1024,
+                AsyncOverflowPolicy.INLINE);
+            dispatcher.start();
+            final AtomicLong numPublished = new AtomicLong();
+            final AtomicBoolean stopped = new AtomicBoolean();
+            Thread[] producers = new Thread[4];
+            for (int i = 0; i < producers.length; i++) {
+                producers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (!stopped.get()) {
+                            dispatcher.connectionClosed();
+                            numPublished.incrementAndGet();
+                        }
+                    }
+                });
+                producers[i].start();
+            }
+            // shut down while the producers are publishing, so that some of them race with the final drain
+            Thread.sleep(2L);
+            dispatcher.shutdown(5000L);
+            stopped.set(true);
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            Assert.assertEquals(numPublished.get(), listener.numClosed.get());
+        }
+    }
+
+    private InstrumentedConnectionProvider createConnectionProvider(int bufferSize, String overflowPolicy) {
+        Properties props = new Properties();
+        props.setProperty(Environment.URL, TEST_JDBC_URL);
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            MockConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            RecordingListener.class.getName() + "," + InlineListener.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.ASYNC_LISTENER_DISPATCH, "true");
+        props.setProperty(InstrumentedConnectionProvider.ASYNC_LISTENER_BUFFER_SIZE, String.valueOf(bufferSize));
+        props.setProperty(InstrumentedConnectionProvider.ASYNC_LISTENER_OVERFLOW_POLICY, overflowPolicy);
+        return (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+    }
+
+    static class RecordingListener implements PostConnectionAcquisitionListener, PostConnectionCloseListener {
+
+        static final ConcurrentLinkedQueue<Thread> threads = new ConcurrentLinkedQueue<>();
+        static volatile CountDownLatch latch;
+        static volatile CountDownLatch gate;
+        static volatile String gatedThreadName;
+
+        static void reset() {
+            threads.clear();
+            latch = new CountDownLatch(0);
+            gate = new CountDownLatch(0);
+            gatedThreadName = null;
+        }
+
+        static void expectEvents(int numEvents) {
+            latch = new CountDownLatch(numEvents);
+        }
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
+        }
+
+        @Override
+        public void afterConnectionAcquired(InstrumentedConnectionProvider connectionProvider, Connection connection) {
+            record();
+        }
+
+        @Override
+        public void afterConnectionAcquisitionFailed(InstrumentedConnectionProvider connectionProvider,
+                                                     Throwable exc) {
+            record();
+        }
+
+        @Override
+        public void afterConnectionClosed() {
+            record();
+        }
+
+        @Override
+        public void afterConnectionClosingFailed(Connection connection, Throwable exc) {
+            record();
+        }
+
+        private void record() {
+            threads.add(Thread.currentThread());
+            latch.countDown();
+            String threadName = gatedThreadName;
+            if (threadName == null || Thread.currentThread().getName().startsWith(threadName)) {
+                try {
+                    gate.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    static class CountingListener implements PostConnectionCloseListener {
+
+        final AtomicLong numClosed = new AtomicLong();
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
+        }
+
+        @Override
+        public void afterConnectionClosed() {
+            numClosed.incrementAndGet();
+        }
+
+        @Override
+        public void afterConnectionClosingFailed(Connection connection, Throwable exc) {
+        }
+    }
+
+    static class InlineListener implements PostConnectionAcquisitionListener, SynchronousListener {
+
+        static final ConcurrentLinkedQueue<Thread> threads = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
+        }
+
+        @Override
+        public void afterConnectionAcquired(InstrumentedConnectionProvider connectionProvider, Connection connection) {
+            threads.add(Thread.currentThread());
+        }
+
+        @Override
+        public void afterConnectionAcquisitionFailed(InstrumentedConnectionProvider connectionProvider,
+                                                     Throwable exc) {
+        }
+    }
+}
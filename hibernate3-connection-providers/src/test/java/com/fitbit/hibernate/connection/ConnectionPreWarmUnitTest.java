@@ -0,0 +1,76 @@
+package com.fitbit.hibernate.connection;
+
+import com.fitbit.hibernate.connection.listener.AcquisitionLatencyListener;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.Properties;
+
+public class ConnectionPreWarmUnitTest {
+
+    private InstrumentedConnectionProvider connectionProvider;
+
+    @After
+    public void closeConnectionProvider() {
+        if (connectionProvider != null) {
+            connectionProvider.close();
+        }
+    }
+
+    @Test
+    public void testConnectionsArePreWarmed() throws Exception {
+        Properties props = createProperties("4");
+        props.setProperty(InstrumentedConnectionProvider.PREWARM_VALIDATION_QUERY,
+            "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        PoolingConnectionProvider pool = (PoolingConnectionProvider) connectionProvider.getWrappedConnectionProvider();
+        AcquisitionLatencyListener latencyListener = connectionProvider.getListenerOfType(
+            AcquisitionLatencyListener.class);
+
+        // every connection was held until all of them had been opened, and then returned
+        Assert.assertEquals(4, pool.getNumConnections());
+        Assert.assertEquals(4, pool.getNumIdleConnections());
+        Assert.assertEquals(4L, latencyListener.getWarmUpAcquisitions().getCount());
+        Assert.assertEquals(0L, latencyListener.getSuccessfulAcquisitions().getCount());
+
+        Connection conn = connectionProvider.getConnection();
+        connectionProvider.closeConnection(conn);
+        Assert.assertEquals(4, pool.getNumConnections());
+    }
+
+    @Test
+    public void testFailedValidationIsReported() throws Exception {
+        Properties props = createProperties("2");
+        props.setProperty(InstrumentedConnectionProvider.PREWARM_VALIDATION_QUERY, "SELECT FROM NOWHERE");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        AcquisitionLatencyListener latencyListener = connectionProvider.getListenerOfType(
+            AcquisitionLatencyListener.class);
+
+        Assert.assertEquals(0L, latencyListener.getWarmUpAcquisitions().getCount());
+        // the provider is still usable
+        connectionProvider.closeConnection(connectionProvider.getConnection());
+    }
+
+    private static Properties createProperties(String numPreWarmedConnections) {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:preWarmTestDb");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.POOL_SIZE, "8");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            PoolingConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            AcquisitionLatencyListener.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.PREWARM_CONNECTIONS, numPreWarmedConnections);
+        props.setProperty(InstrumentedConnectionProvider.PREWARM_THREADS, "4");
+        return props;
+    }
+}
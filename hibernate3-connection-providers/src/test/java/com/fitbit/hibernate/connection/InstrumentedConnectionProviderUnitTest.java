@@ -2,6 +2,7 @@ package com.fitbit.hibernate.connection;
 
 import com.fitbit.hibernate.connection.impl.ConnectionMetricReporter;
 import com.fitbit.hibernate.connection.impl.ConnectionPerformanceMetricListener;
+import com.fitbit.hibernate.connection.listener.AcquisitionLatencyListener;
 
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.Configuration;
@@ -24,7 +25,8 @@ public class InstrumentedConnectionProviderUnitTest {
     @Before
     public void setupContext() throws Exception {
         Properties props = new Properties();
-        try (InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream("hibernate.properties")) {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try (InputStream is = classLoader.getResourceAsStream("hibernate.properties")) {
             props.load(is);
         }
         config = new Configuration().addProperties(props);
@@ -62,6 +64,19 @@ public class InstrumentedConnectionProviderUnitTest {
         Assert.assertEquals(1, stats.getNumTopLevelClosed());
     }
 
+    @Test
+    public void testAcquisitionLatencyListener() throws Exception {
+        AcquisitionLatencyListener latencyListener = connectionProvider.getListenerOfType(
+            AcquisitionLatencyListener.class);
+        Assert.assertNotNull(latencyListener);
+        long numAcquired = latencyListener.getSuccessfulAcquisitions().getCount();
+        Connection conn = connectionProvider.getConnection();
+        connectionProvider.closeConnection(conn);
+        Assert.assertEquals(numAcquired + 1, latencyListener.getSuccessfulAcquisitions().getCount());
+        Assert.assertEquals(0L, latencyListener.getFailedAcquisitions().getCount());
+        Assert.assertTrue(latencyListener.getSuccessfulAcquisitions().getMax() > 0);
+    }
+
     @Test
     public void testAcquisitionDepthLogic() throws Exception {
         ConnectionMetricReporter stats = ConnectionMetricReporter.getInstance();
@@ -75,24 +90,24 @@ public class InstrumentedConnectionProviderUnitTest {
         Assert.assertEquals(0, stats.getTotalConnectionUsageMillis());
         // open a second connection before closing
         Connection secondConn = connectionProvider.getConnection();
-        // we count this operation but do not count it as an 'acquisition' in our terms due to the fact that we cannot
-        //      time how long it was held for
-        Assert.assertEquals(1, stats.getNumTopLevelAcquired());
+        // hold times are tracked per connection, so the second connection is timed on its own rather than being
+        //      treated as nested within the first one
+        Assert.assertEquals(2, stats.getNumTopLevelAcquired());
         Assert.assertEquals(2, stats.getTotalNumAcquired());
         Assert.assertEquals(0, stats.getNumTopLevelClosed());
         Assert.assertEquals(0, stats.getTotalConnectionUsageMillis());
         Assert.assertEquals(2, stats.getTotalNumOps());
         connectionProvider.closeConnection(secondConn);
-        Assert.assertEquals(0, stats.getNumTopLevelClosed());
+        Assert.assertEquals(1, stats.getNumTopLevelClosed());
         Assert.assertEquals(1, stats.getTotalNumClosed());
-        // we should not have timed the nested connection being held
-        Assert.assertEquals(0, stats.getTotalConnectionUsageMillis());
+        // how long the second connection was held depends on the machine, so only check that it was timed
+        Assert.assertTrue(stats.getTotalConnectionUsageMillis() >= 0);
         Assert.assertEquals(3, stats.getTotalNumOps());
         connectionProvider.closeConnection(firstConn);
-        Assert.assertEquals(1, stats.getNumTopLevelClosed());
+        Assert.assertEquals(2, stats.getNumTopLevelClosed());
         Assert.assertEquals(2, stats.getTotalNumClosed());
         Assert.assertEquals(4, stats.getTotalNumOps());
-        // we should still get a timing of >10ms <12ms
+        // we should still get a timing of >10ms for the first connection
         Assert.assertTrue(stats.getTotalConnectionUsageMillis() >= 10);
     }
 }
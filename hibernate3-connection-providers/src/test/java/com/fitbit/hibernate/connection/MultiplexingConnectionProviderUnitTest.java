@@ -0,0 +1,65 @@
+package com.fitbit.hibernate.connection;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import org.hibernate.connection.ConnectionProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import javax.annotation.Nonnull;
+
+public class MultiplexingConnectionProviderUnitTest {
+
+    private ConnectionProvider delegateProvider;
+    private MultiplexingConnectionProvider<String> multiplexingProvider;
+
+    @Before
+    public void setupConnectionProvider() {
+        delegateProvider = mock(ConnectionProvider.class);
+        multiplexingProvider = new MultiplexingConnectionProvider<String>() {
+            @Nonnull
+            @Override
+            protected Iterable<String> getAllDelegates() {
+                return ImmutableList.of("delegate");
+            }
+
+            @Nonnull
+            @Override
+            protected ConnectionProvider getConnectionProvider(@Nonnull String delegate) {
+                return delegateProvider;
+            }
+
+            @Override
+            public void configure(Properties props) {
+            }
+
+            @Override
+            public Connection getConnection() throws SQLException {
+                return acquireFrom("delegate");
+            }
+        };
+    }
+
+    @Test
+    public void testConnectionIsReturnedToItsDelegate() throws Exception {
+        Connection connection = mock(Connection.class);
+        when(delegateProvider.getConnection()).thenReturn(connection);
+        Assert.assertSame(connection, multiplexingProvider.getConnection());
+        multiplexingProvider.closeConnection(connection);
+        verify(delegateProvider).closeConnection(connection);
+    }
+
+    @Test(expected = SQLException.class)
+    public void testMissingConnectionFailsAcquisition() throws Exception {
+        // the delegate mock returns no connection
+        multiplexingProvider.getConnection();
+    }
+}
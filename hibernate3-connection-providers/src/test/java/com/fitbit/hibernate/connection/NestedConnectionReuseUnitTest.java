@@ -0,0 +1,153 @@
+package com.fitbit.hibernate.connection;
+
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+import com.fitbit.hibernate.connection.routing.RouteType;
+import com.fitbit.hibernate.connection.routing.RoutingContext;
+import com.fitbit.hibernate.connection.shard.ShardContext;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class NestedConnectionReuseUnitTest {
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private PoolingConnectionProvider pool;
+
+    @Before
+    public void setupConnectionProvider() {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:nestedReuseTestDb");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        // a single connection, so a nested acquisition that is not given the held connection would time out
+        props.setProperty(Environment.POOL_SIZE, "1");
+        props.setProperty(PoolingConnectionProvider.BORROW_TIMEOUT_MILLIS, "100");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            PoolingConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.REUSE_NESTED_CONNECTIONS, "true");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        pool = (PoolingConnectionProvider) connectionProvider.getWrappedConnectionProvider();
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        connectionProvider.close();
+    }
+
+    @Test
+    public void testNestedAcquisitionReusesHeldConnection() throws Exception {
+        Connection outer = connectionProvider.getConnection();
+        Connection nested = connectionProvider.getConnection();
+        Assert.assertSame(outer, nested);
+        Assert.assertEquals(1L, connectionProvider.getNumReusedAcquisitions());
+
+        // the nested close must not return the connection to the pool while the outer acquisition still holds it
+        connectionProvider.closeConnection(nested);
+        Assert.assertEquals(0, pool.getNumIdleConnections());
+        connectionProvider.closeConnection(outer);
+        Assert.assertEquals(1, pool.getNumIdleConnections());
+        Assert.assertEquals(1, pool.getNumConnections());
+    }
+
+    @Test
+    public void testConnectionIsReleasedAfterOutOfOrderClose() throws Exception {
+        Connection outer = connectionProvider.getConnection();
+        Connection nested = connectionProvider.getConnection();
+        connectionProvider.closeConnection(outer);
+        Assert.assertEquals(0, pool.getNumIdleConnections());
+        connectionProvider.closeConnection(nested);
+        Assert.assertEquals(1, pool.getNumIdleConnections());
+
+        // the next acquisition is a new top-level one
+        Connection next = connectionProvider.getConnection();
+        connectionProvider.closeConnection(next);
+        Assert.assertEquals(1L, connectionProvider.getNumReusedAcquisitions());
+        Assert.assertEquals(1, pool.getNumIdleConnections());
+    }
+
+    @Test
+    public void testHeldConnectionIsNotSharedWithOtherThreads() throws Exception {
+        Connection outer = connectionProvider.getConnection();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Boolean acquired = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        connectionProvider.closeConnection(connectionProvider.getConnection());
+                        return true;
+                    } catch (Exception e) {
+                        return false;
+                    }
+                }
+            }).get(5, TimeUnit.SECONDS);
+            // the only connection is held by this thread, so the other thread must time out
+            Assert.assertFalse(acquired);
+        } finally {
+            executor.shutdownNow();
+        }
+        connectionProvider.closeConnection(outer);
+        Assert.assertEquals(0L, connectionProvider.getNumReusedAcquisitions());
+    }
+
+    @Test
+    public void testNestedAcquisitionForAnotherShardIsNotReused() throws Exception {
+        ShardContext.setShardKey(1L);
+        try {
+            Connection outer = connectionProvider.getConnection();
+            ShardContext.setShardKey(2L);
+            try {
+                connectionProvider.getConnection();
+                Assert.fail("Expected the nested acquisition to wait for a connection of its own");
+            } catch (SQLException expected) {
+                // the only connection is held for the other shard
+                Assert.assertEquals(0L, connectionProvider.getNumReusedAcquisitions());
+            }
+
+            // back on the shard of the held connection, it is shared again
+            ShardContext.setShardKey(1L);
+            Connection nested = connectionProvider.getConnection();
+            Assert.assertSame(outer, nested);
+            connectionProvider.closeConnection(nested);
+            connectionProvider.closeConnection(outer);
+            Assert.assertEquals(1, pool.getNumIdleConnections());
+        } finally {
+            ShardContext.clear();
+        }
+    }
+
+    @Test
+    public void testNestedAcquisitionForAnotherRouteIsNotReused() throws Exception {
+        RoutingContext.setRouteType(RouteType.READ_ONLY);
+        try {
+            Connection outer = connectionProvider.getConnection();
+            RoutingContext.setRouteType(RouteType.READ_WRITE);
+            try {
+                connectionProvider.getConnection();
+                Assert.fail("Expected the nested read-write acquisition to wait for a connection of its own");
+            } catch (SQLException expected) {
+                // the only connection is held for the read-only route
+                Assert.assertEquals(0L, connectionProvider.getNumReusedAcquisitions());
+            }
+            RoutingContext.setRouteType(RouteType.READ_ONLY);
+            connectionProvider.closeConnection(outer);
+            Assert.assertEquals(1, pool.getNumIdleConnections());
+        } finally {
+            RoutingContext.clear();
+        }
+    }
+}
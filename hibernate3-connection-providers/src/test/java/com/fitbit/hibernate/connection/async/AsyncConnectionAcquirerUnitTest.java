@@ -0,0 +1,104 @@
+package com.fitbit.hibernate.connection.async;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
+import com.fitbit.hibernate.connection.event.SynchronousListener;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncConnectionAcquirerUnitTest {
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private AsyncConnectionAcquirer acquirer;
+
+    @Before
+    public void setupConnectionProvider() {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:asyncAcquisitionTestDb");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.POOL_SIZE, "1");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            PoolingConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            RecordingAcquisitionListener.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.ASYNC_ACQUISITION_THREADS, "1");
+        props.setProperty(PoolingConnectionProvider.BORROW_TIMEOUT_MILLIS, "5000");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        acquirer = connectionProvider.getAsyncAcquirer();
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        connectionProvider.close();
+    }
+
+    @Test
+    public void testAcquisitionRunsListenersOnAcquirerThread() throws Exception {
+        Connection conn = connectionProvider.acquireAsync().get(5, TimeUnit.SECONDS);
+        try {
+            RecordingAcquisitionListener listener =
+                connectionProvider.getListenerOfType(RecordingAcquisitionListener.class);
+            Assert.assertTrue(listener.threadName.startsWith("connection-acquirer-"));
+            Assert.assertSame(conn, listener.connection);
+        } finally {
+            connectionProvider.closeConnection(conn);
+        }
+    }
+
+    @Test
+    public void testConnectionAcquiredAfterDeadlineIsReturned() throws Exception {
+        Connection heldConn = connectionProvider.getConnection();
+        ListenableFuture<Connection> future = connectionProvider.acquireAsync(100, TimeUnit.MILLISECONDS);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected the acquisition to time out while the pool is exhausted");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof SQLTimeoutException);
+            Assert.assertEquals(1L, acquirer.getNumTimedOut());
+        }
+
+        // the timed out acquisition takes the released connection and hands it back for the next one
+        connectionProvider.closeConnection(heldConn);
+        Connection conn = connectionProvider.acquireAsync().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1L, acquirer.getNumAbandoned());
+        connectionProvider.closeConnection(conn);
+    }
+
+    public static class RecordingAcquisitionListener implements PostConnectionAcquisitionListener,
+        SynchronousListener {
+        volatile String threadName;
+        volatile Connection connection;
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) {
+        }
+
+        @Override
+        public void afterConnectionAcquired(InstrumentedConnectionProvider connectionProvider, Connection connection) {
+            this.threadName = Thread.currentThread().getName();
+            this.connection = connection;
+        }
+
+        @Override
+        public void afterConnectionAcquisitionFailed(InstrumentedConnectionProvider connectionProvider,
+                                                     Throwable exc) {
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.fitbit.hibernate.connection.breaker;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.CircuitBreakerListener;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.hibernate.connection.DriverManagerConnectionProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class ConnectionCircuitBreakerUnitTest {
+
+    @Test
+    public void testBreakerOpensOnceFailureRateIsReached() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ConnectionCircuitBreaker breaker = createBreaker(60000L, listener);
+
+        breaker.onSuccess();
+        breaker.onSuccess();
+        breaker.onFailure();
+        // fewer than the minimum number of acquisitions have been recorded
+        Assert.assertEquals(CircuitState.CLOSED, breaker.getState());
+
+        breaker.onFailure();
+        Assert.assertEquals(CircuitState.OPEN, breaker.getState());
+        Assert.assertEquals("CLOSED->OPEN@50.0", listener.transitions.get(0));
+
+        try {
+            breaker.acquirePermission();
+            Assert.fail("Expected the open breaker to reject the acquisition");
+        } catch (CircuitBreakerOpenException expected) {
+            Assert.assertEquals(CircuitState.OPEN, expected.getState());
+        }
+        Assert.assertEquals(1L, breaker.getNumRejected());
+    }
+
+    @Test
+    public void testSuccessfulProbeClosesBreaker() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ConnectionCircuitBreaker breaker = createBreaker(0L, listener);
+        trip(breaker);
+
+        // the open duration has elapsed, so a single probe is let through
+        breaker.acquirePermission();
+        Assert.assertEquals(CircuitState.HALF_OPEN, breaker.getState());
+        assertRejected(breaker);
+
+        breaker.onSuccess();
+        Assert.assertEquals(CircuitState.CLOSED, breaker.getState());
+        Assert.assertEquals(0.0f, breaker.getFailureRate(), 0.0f);
+        Assert.assertEquals(3, listener.transitions.size());
+        Assert.assertEquals("OPEN->HALF_OPEN@100.0", listener.transitions.get(1));
+        Assert.assertEquals("HALF_OPEN->CLOSED@0.0", listener.transitions.get(2));
+        breaker.acquirePermission();
+    }
+
+    @Test
+    public void testFailedProbeReopensBreaker() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ConnectionCircuitBreaker breaker = createBreaker(0L, listener);
+        trip(breaker);
+
+        breaker.acquirePermission();
+        breaker.onFailure();
+        Assert.assertEquals(CircuitState.OPEN, breaker.getState());
+        Assert.assertEquals("HALF_OPEN->OPEN@100.0", listener.transitions.get(2));
+    }
+
+    @Test
+    public void testReleasedProbeCanBeRetried() throws Exception {
+        ConnectionCircuitBreaker breaker = createBreaker(0L, new RecordingListener());
+        trip(breaker);
+        breaker.acquirePermission();
+        assertRejected(breaker);
+
+        // the probe never reached the delegate, so another caller may probe instead
+        breaker.releasePermission();
+        breaker.acquirePermission();
+        Assert.assertEquals(CircuitState.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testProviderFailsFastWhileBreakerIsOpen() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        // nothing listens on this port, so every acquisition fails
+        props.setProperty(Environment.URL, "jdbc:hsqldb:hsql://localhost:1/unreachable");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            DriverManagerConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CIRCUIT_BREAKER_ENABLED, "true");
+        props.setProperty(InstrumentedConnectionProvider.CIRCUIT_BREAKER_WINDOW_SIZE, "2");
+        props.setProperty(InstrumentedConnectionProvider.CIRCUIT_BREAKER_MINIMUM_CALLS, "2");
+        InstrumentedConnectionProvider connectionProvider =
+            (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    connectionProvider.getConnection();
+                    Assert.fail("Expected the acquisition to fail");
+                } catch (SQLException expected) {
+                    Assert.assertFalse(expected instanceof CircuitBreakerOpenException);
+                }
+            }
+            Assert.assertEquals(CircuitState.OPEN, connectionProvider.getCircuitBreaker().getState());
+            try {
+                connectionProvider.getConnection();
+                Assert.fail("Expected the acquisition to be rejected");
+            } catch (CircuitBreakerOpenException expected) {
+                Assert.assertEquals(1L, connectionProvider.getCircuitBreaker().getNumRejected());
+            }
+        } finally {
+            connectionProvider.close();
+        }
+    }
+
+    @Test
+    public void testFailedCustomizationReturnsConnectionWithoutTrippingBreaker() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:breakerCustomization");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.CONNECTION_PROVIDER, FailingCustomizationProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            CountingConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CIRCUIT_BREAKER_ENABLED, "true");
+        props.setProperty(InstrumentedConnectionProvider.CIRCUIT_BREAKER_WINDOW_SIZE, "2");
+        props.setProperty(InstrumentedConnectionProvider.CIRCUIT_BREAKER_MINIMUM_CALLS, "2");
+        InstrumentedConnectionProvider connectionProvider =
+            (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        CountingConnectionProvider delegate =
+            (CountingConnectionProvider) connectionProvider.getWrappedConnectionProvider();
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    connectionProvider.getConnection();
+                    Assert.fail("Expected the acquisition to fail");
+                } catch (IllegalStateException expected) {
+                    // thrown by customizeConnection
+                }
+            }
+            // the delegate handed out working connections, so they were given back and the breaker stays closed
+            Assert.assertEquals(2, delegate.numAcquired);
+            Assert.assertEquals(2, delegate.numClosed);
+            Assert.assertEquals(CircuitState.CLOSED, connectionProvider.getCircuitBreaker().getState());
+            Assert.assertEquals(0.0f, connectionProvider.getCircuitBreaker().getFailureRate(), 0.0f);
+        } finally {
+            connectionProvider.close();
+        }
+    }
+
+    @Test
+    public void testMissingConnectionCountsAsFailureAndReleasesPermits() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:breakerMissingConnection");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            NullConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CIRCUIT_BREAKER_ENABLED, "true");
+        props.setProperty(InstrumentedConnectionProvider.CIRCUIT_BREAKER_WINDOW_SIZE, "2");
+        props.setProperty(InstrumentedConnectionProvider.CIRCUIT_BREAKER_MINIMUM_CALLS, "2");
+        props.setProperty(InstrumentedConnectionProvider.CONCURRENCY_LIMIT_ENABLED, "true");
+        InstrumentedConnectionProvider connectionProvider =
+            (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    connectionProvider.getConnection();
+                    Assert.fail("Expected the acquisition to fail");
+                } catch (SQLException expected) {
+                    Assert.assertEquals(0, connectionProvider.getConcurrencyLimiter().getNumInFlight());
+                }
+            }
+            Assert.assertEquals(CircuitState.OPEN, connectionProvider.getCircuitBreaker().getState());
+        } finally {
+            connectionProvider.close();
+        }
+    }
+
+    private static ConnectionCircuitBreaker createBreaker(long openDurationMillis, RecordingListener listener) {
+        ConnectionCircuitBreaker breaker = new ConnectionCircuitBreaker(new InstrumentedConnectionProvider(), 50, 4, 4,
+            openDurationMillis, 1);
+        breaker.setListeners(new CircuitBreakerListener[] { listener });
+        return breaker;
+    }
+
+    private static void trip(ConnectionCircuitBreaker breaker) {
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure();
+        }
+        Assert.assertEquals(CircuitState.OPEN, breaker.getState());
+    }
+
+    private static void assertRejected(ConnectionCircuitBreaker breaker) {
+        try {
+            breaker.acquirePermission();
+            Assert.fail("Expected the acquisition to be rejected");
+        } catch (CircuitBreakerOpenException expected) {
+            Assert.assertEquals(CircuitState.HALF_OPEN, expected.getState());
+        }
+    }
+
+    public static class FailingCustomizationProvider extends InstrumentedConnectionProvider {
+        @Override
+        protected Connection customizeConnection(Connection connection) {
+            throw new IllegalStateException("customization failed");
+        }
+    }
+
+    public static class CountingConnectionProvider extends DriverManagerConnectionProvider {
+        int numAcquired;
+        int numClosed;
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            Connection connection = super.getConnection();
+            numAcquired++;
+            return connection;
+        }
+
+        @Override
+        public void closeConnection(Connection connection) throws SQLException {
+            numClosed++;
+            super.closeConnection(connection);
+        }
+    }
+
+    public static class NullConnectionProvider extends DriverManagerConnectionProvider {
+        @Override
+        public Connection getConnection() {
+            return null;
+        }
+    }
+
+    private static class RecordingListener implements CircuitBreakerListener {
+        final List<String> transitions = new ArrayList<>();
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) {
+        }
+
+        @Override
+        public void afterCircuitStateChanged(InstrumentedConnectionProvider connectionProvider,
+                                             CircuitState previousState, CircuitState newState, float failureRate) {
+            transitions.add(previousState + "->" + newState + "@" + failureRate);
+        }
+    }
+}
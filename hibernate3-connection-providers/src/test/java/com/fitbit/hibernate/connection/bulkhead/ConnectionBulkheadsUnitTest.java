@@ -0,0 +1,143 @@
+package com.fitbit.hibernate.connection.bulkhead;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.hibernate.connection.DriverManagerConnectionProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.Properties;
+
+public class ConnectionBulkheadsUnitTest {
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private ConnectionBulkheads bulkheads;
+
+    @Before
+    public void setupConnectionProvider() {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:bulkheadTestDb");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.POOL_SIZE, "4");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            PoolingConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.BULKHEAD_PARTITIONS, "api:2, batch:1");
+        props.setProperty(InstrumentedConnectionProvider.BULKHEAD_DEFAULT_PARTITION, "api");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        bulkheads = connectionProvider.getBulkheads();
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        ThreadLocalPartitionResolver.clearPartition();
+        connectionProvider.close();
+    }
+
+    @Test
+    public void testPartitionsAreParsedInOrder() {
+        Map<String, Integer> partitions = ConnectionBulkheads.parsePartitions("api:40, batch : 10");
+        Assert.assertEquals("[api, batch]", partitions.keySet().toString());
+        Assert.assertEquals(Integer.valueOf(10), partitions.get("batch"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedPartitionIsRejected() {
+        ConnectionBulkheads.parsePartitions("api:40,batch");
+    }
+
+    @Test
+    public void testFullPartitionDoesNotAffectOthers() throws Exception {
+        Bulkhead batch = bulkheads.getBulkhead("batch");
+        Bulkhead api = bulkheads.getBulkhead("api");
+
+        ThreadLocalPartitionResolver.setPartition("batch");
+        Connection batchConn = connectionProvider.getConnection();
+        Assert.assertEquals(1, batch.getNumInUse());
+        try {
+            connectionProvider.getConnection();
+            Assert.fail("Expected the batch partition to be full");
+        } catch (BulkheadFullException expected) {
+            Assert.assertEquals("batch", expected.getPartition());
+        }
+        Assert.assertEquals(1L, batch.getNumRejected());
+
+        // callers without a partition count against the default one
+        ThreadLocalPartitionResolver.clearPartition();
+        Connection apiConn = connectionProvider.getConnection();
+        Assert.assertEquals(1, api.getNumInUse());
+
+        // the permit goes back to the partition that granted it, whatever the context of the closing thread
+        connectionProvider.closeConnection(batchConn);
+        Assert.assertEquals(0, batch.getNumInUse());
+        Assert.assertEquals(1, api.getNumInUse());
+        connectionProvider.closeConnection(apiConn);
+        Assert.assertEquals(0, api.getNumInUse());
+
+        Assert.assertEquals(1L, batch.getWaitTimes().getCount());
+        Assert.assertEquals(1L, api.getWaitTimes().getCount());
+    }
+
+    @Test
+    public void testPermitIsReturnedWhenAcquisitionFails() throws Exception {
+        ThreadLocalPartitionResolver.setPartition("batch");
+        connectionProvider.getWrappedConnectionProvider().close();
+        try {
+            connectionProvider.getConnection();
+            Assert.fail("Expected the closed pool to fail the acquisition");
+        } catch (Exception expected) {
+            Assert.assertFalse(expected instanceof BulkheadFullException);
+        }
+        Assert.assertEquals(0, bulkheads.getBulkhead("batch").getNumInUse());
+    }
+
+    @Test
+    public void testPermitOfLeakedConnectionIsReclaimed() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:bulkheadLeakTestDb");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        // unlike the pool, this delegate does not reference the connections it hands out, so a leaked one is collected
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            DriverManagerConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.BULKHEAD_PARTITIONS, "batch:1");
+        props.setProperty(InstrumentedConnectionProvider.BULKHEAD_DEFAULT_PARTITION, "batch");
+        props.setProperty(InstrumentedConnectionProvider.BULKHEAD_MAX_WAIT_MILLIS, "0");
+        InstrumentedConnectionProvider leakingProvider =
+            (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        try {
+            leakConnection(leakingProvider);
+            Assert.assertEquals(1, leakingProvider.getBulkheads().getBulkhead("batch").getNumInUse());
+
+            Connection conn = null;
+            for (int attempt = 0; conn == null && attempt < 100; attempt++) {
+                System.gc();
+                try {
+                    conn = leakingProvider.getConnection();
+                } catch (BulkheadFullException stillLeaked) {
+                    Thread.sleep(10L);
+                }
+            }
+            Assert.assertNotNull("Expected the leaked connection's permit to be reclaimed", conn);
+            leakingProvider.closeConnection(conn);
+            Assert.assertEquals(0, leakingProvider.getBulkheads().getBulkhead("batch").getNumInUse());
+        } finally {
+            leakingProvider.close();
+        }
+    }
+
+    private static void leakConnection(InstrumentedConnectionProvider provider) throws Exception {
+        Assert.assertNotNull(provider.getConnection());
+    }
+}
@@ -0,0 +1,168 @@
+package com.fitbit.hibernate.connection.failover;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.FailoverListener;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.hibernate.connection.DriverManagerConnectionProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class FailoverConnectionProviderUnitTest {
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private FailoverConnectionProvider failoverProvider;
+    private RecordingFailoverListener listener;
+
+    @Before
+    public void setupConnectionProvider() {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:failoverPrimaryDb");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            FailoverConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            RecordingFailoverListener.class.getName());
+        props.setProperty(FailoverConnectionProvider.DELEGATE_PROVIDER_CLASS,
+            DriverManagerConnectionProvider.class.getName());
+        props.setProperty(FailoverConnectionProvider.PRIMARY_PROPERTY_PREFIX + "connection.provider_class",
+            SwitchableConnectionProvider.class.getName());
+        props.setProperty(FailoverConnectionProvider.STANDBY_PROPERTY_PREFIX + "connection.url",
+            "jdbc:hsqldb:mem:failoverStandbyDb");
+        props.setProperty(FailoverConnectionProvider.FAILURE_THRESHOLD, "2");
+        props.setProperty(FailoverConnectionProvider.RECOVERY_THRESHOLD, "2");
+        // probes are run by the tests themselves
+        props.setProperty(FailoverConnectionProvider.PROBE_INTERVAL_MILLIS, "0");
+        props.setProperty(FailoverConnectionProvider.PROBE_TIMEOUT_SECONDS, "1");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        failoverProvider = (FailoverConnectionProvider) connectionProvider.getWrappedConnectionProvider();
+        listener = connectionProvider.getListenerOfType(RecordingFailoverListener.class);
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        SwitchableConnectionProvider.unavailable = false;
+        SwitchableConnectionProvider.hung.countDown();
+        connectionProvider.close();
+    }
+
+    @Test
+    public void testFailsOverAndBack() throws Exception {
+        assertConnectsTo("jdbc:hsqldb:mem:failoverPrimaryDb");
+
+        SwitchableConnectionProvider.unavailable = true;
+        try {
+            connectionProvider.getConnection();
+            Assert.fail("Expected the first failure to be below the threshold");
+        } catch (SQLException expected) {
+            Assert.assertFalse(failoverProvider.isDegraded());
+        }
+        // the acquisition that reaches the threshold is retried on the standby
+        Connection standbyConn = connectionProvider.getConnection();
+        Assert.assertEquals("jdbc:hsqldb:mem:failoverStandbyDb", standbyConn.getMetaData().getURL());
+        Assert.assertEquals(FailoverTarget.STANDBY, failoverProvider.getActiveTarget());
+        Assert.assertEquals(1L, failoverProvider.getNumFailovers());
+        Assert.assertEquals("failover", listener.events.get(0));
+
+        SwitchableConnectionProvider.unavailable = false;
+        failoverProvider.probe();
+        Assert.assertTrue(failoverProvider.isDegraded());
+        failoverProvider.probe();
+        Assert.assertFalse(failoverProvider.isDegraded());
+        Assert.assertEquals("failback", listener.events.get(1));
+        Assert.assertTrue(listener.degradedNanos > 0L);
+        Assert.assertEquals(listener.degradedNanos, failoverProvider.getDegradedNanos());
+
+        // the connection still goes back to the standby it came from
+        connectionProvider.closeConnection(standbyConn);
+        assertConnectsTo("jdbc:hsqldb:mem:failoverPrimaryDb");
+    }
+
+    @Test
+    public void testFailedProbesFailOver() throws Exception {
+        SwitchableConnectionProvider.unavailable = true;
+        failoverProvider.probe();
+        Assert.assertFalse(failoverProvider.isDegraded());
+        failoverProvider.probe();
+        Assert.assertTrue(failoverProvider.isDegraded());
+        assertConnectsTo("jdbc:hsqldb:mem:failoverStandbyDb");
+    }
+
+    @Test
+    public void testHangingPrimaryProbeFailsOverWithinTimeout() throws Exception {
+        SwitchableConnectionProvider.hung = new CountDownLatch(1);
+        long startNanos = System.nanoTime();
+        failoverProvider.probe();
+        Assert.assertFalse(failoverProvider.isDegraded());
+        // the second probe waits for the first one of the primary again, and the standby is still found healthy
+        failoverProvider.probe();
+        Assert.assertTrue(failoverProvider.isDegraded());
+        Assert.assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(10));
+
+        SwitchableConnectionProvider.hung.countDown();
+        assertConnectsTo("jdbc:hsqldb:mem:failoverStandbyDb");
+    }
+
+    private void assertConnectsTo(String url) throws SQLException {
+        Connection conn = connectionProvider.getConnection();
+        try {
+            Assert.assertEquals(url, conn.getMetaData().getURL());
+        } finally {
+            connectionProvider.closeConnection(conn);
+        }
+    }
+
+    public static class SwitchableConnectionProvider extends DriverManagerConnectionProvider {
+        static volatile boolean unavailable;
+        static volatile CountDownLatch hung = new CountDownLatch(0);
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            try {
+                hung.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while hanging", e);
+            }
+            if (unavailable) {
+                throw new SQLException("Primary is unavailable");
+            }
+            return super.getConnection();
+        }
+    }
+
+    public static class RecordingFailoverListener implements FailoverListener {
+        final List<String> events = new CopyOnWriteArrayList<>();
+        volatile long degradedNanos;
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) {
+        }
+
+        @Override
+        public void afterFailover(FailoverConnectionProvider failoverProvider, Throwable cause) {
+            events.add("failover");
+        }
+
+        @Override
+        public void afterFailback(FailoverConnectionProvider failoverProvider, long degradedNanos) {
+            events.add("failback");
+            this.degradedNanos = degradedNanos;
+        }
+    }
+}
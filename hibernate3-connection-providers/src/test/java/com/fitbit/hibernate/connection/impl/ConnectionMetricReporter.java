@@ -1,17 +1,26 @@
 package com.fitbit.hibernate.connection.impl;
 
+import com.fitbit.util.StripedLongCounter;
+
 import org.hibernate.connection.ConnectionProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * Class that provides a basic way to report metrics collected in the provided
- * {@link ConnectionPerformanceMetricListener} without introducing another abstraction around metric reporting.
+ * {@link ConnectionPerformanceMetricListener} without introducing another abstraction around metric reporting. <br/>
+ * Every metric is kept in a {@link StripedLongCounter} so that request threads recording metrics concurrently do not
+ * contend with each other. Use {@link #snapshot()} or {@link #snapshotDelta()} to read all of the metrics at once.
  *
  * @author dgarson
  */
+@ThreadSafe
 public class ConnectionMetricReporter {
 
     private static final Logger log = LoggerFactory.getLogger(ConnectionMetricReporter.class);
@@ -19,90 +28,122 @@ public class ConnectionMetricReporter {
     private static final ConnectionMetricReporter INSTANCE = new ConnectionMetricReporter();
 
     /** the total elapsed time that all acquired connections (that are also closed) were held before being closed */
-    private long totalConnectionUsageMillis;
+    private final StripedLongCounter totalConnectionUsageMillis = new StripedLongCounter();
     /** the number of successfully acquired connections */
-    private int numTopLevelAcquired;
-    private int totalNumAcquired;
+    private final StripedLongCounter numTopLevelAcquired = new StripedLongCounter();
+    private final StripedLongCounter totalNumAcquired = new StripedLongCounter();
     /** the number of {@link ConnectionProvider#getConnection()} calls that failed */
-    private int numAcquisitionFailures;
+    private final StripedLongCounter numAcquisitionFailures = new StripedLongCounter();
     /** the number of successfully closed connections */
-    private int numTopLevelClosed;
-    private int totalNumClosed;
+    private final StripedLongCounter numTopLevelClosed = new StripedLongCounter();
+    private final StripedLongCounter totalNumClosed = new StripedLongCounter();
     /** the number of {@link ConnectionProvider#closeConnection(Connection)} calls that failed */
-    private int numCloseConnectionFailures;
-    /** the total number of operations recorded, regardless of success/failure */
-    private int totalNumOps;
+    private final StripedLongCounter numCloseConnectionFailures = new StripedLongCounter();
+
+    /** the snapshot most recently returned by {@link #snapshotDelta()} */
+    private final AtomicReference<ConnectionMetricSnapshot> lastSnapshot =
+        new AtomicReference<>(ConnectionMetricSnapshot.EMPTY);
 
     public long getTotalConnectionUsageMillis() {
-        return totalConnectionUsageMillis;
+        return totalConnectionUsageMillis.sum();
     }
 
-    public int getNumTopLevelAcquired() {
-        return numTopLevelAcquired;
+    public long getNumTopLevelAcquired() {
+        return numTopLevelAcquired.sum();
     }
 
-    public int getTotalNumAcquired() {
-        return totalNumAcquired;
+    public long getTotalNumAcquired() {
+        return totalNumAcquired.sum();
     }
 
-    public int getNumAcquisitionFailures() {
-        return numAcquisitionFailures;
+    public long getNumAcquisitionFailures() {
+        return numAcquisitionFailures.sum();
     }
 
-    public int getNumTopLevelClosed() {
-        return numTopLevelClosed;
+    public long getNumTopLevelClosed() {
+        return numTopLevelClosed.sum();
     }
 
-    public int getTotalNumClosed() {
-        return totalNumClosed;
+    public long getTotalNumClosed() {
+        return totalNumClosed.sum();
     }
 
-    public int getNumCloseConnectionFailures() {
-        return numCloseConnectionFailures;
+    public long getNumCloseConnectionFailures() {
+        return numCloseConnectionFailures.sum();
     }
 
-    public int getTotalNumOps() {
-        return totalNumOps;
+    /**
+     * Returns the total number of operations recorded, regardless of success/failure.
+     */
+    public long getTotalNumOps() {
+        return getTotalNumAcquired() + getNumAcquisitionFailures() + getTotalNumClosed() +
+            getNumCloseConnectionFailures();
     }
 
     public void recordAcquisitionFailure(boolean isTopLevel, Throwable failureCause) {
         log.error("Failed to acquire a connection", failureCause);
-        numAcquisitionFailures++;
-        totalNumOps++;
+        numAcquisitionFailures.increment();
     }
 
     public void recordConnectionAcquired(boolean isTopLevel) {
-        log.info("Connection successfully acquired");
+        log.debug("Connection successfully acquired");
+        // totals are always updated before the top-level counts, see snapshot()
+        totalNumAcquired.increment();
         // only top-level connections have timing information and only they should be counted here
         if (isTopLevel) {
-            numTopLevelAcquired++;
+            numTopLevelAcquired.increment();
         }
-        totalNumAcquired++;
-        totalNumOps++;
     }
 
     public void recordConnectionClosed(boolean isTopLevel, long connectionUsageMillis) {
+        totalNumClosed.increment();
         // we will not have a valid timing if we are not talking about a 'top-level' connection
         if (isTopLevel) {
-            totalConnectionUsageMillis += connectionUsageMillis;
-            numTopLevelClosed++;
-            log.info("Successfully closed a connection that was held open for {}ms", connectionUsageMillis);
+            totalConnectionUsageMillis.add(connectionUsageMillis);
+            numTopLevelClosed.increment();
+            log.debug("Successfully closed a connection that was held open for {}ms", connectionUsageMillis);
         } else {
-            log.info("Successfully closed a connection");
+            log.debug("Successfully closed a connection");
         }
-        totalNumClosed++;
-        totalNumOps++;
+    }
+
+    public void recordCloseFailure(Throwable failureCause) {
+        log.error("Failed to close a connection", failureCause);
+        numCloseConnectionFailures.increment();
+    }
+
+    /**
+     * Returns an immutable snapshot of all metrics recorded so far. The counters are read in the reverse order that
+     * they are updated in, so that a snapshot taken while metrics are being recorded never reports more top-level
+     * operations than total operations.
+     */
+    public @Nonnull ConnectionMetricSnapshot snapshot() {
+        long usageMillis = totalConnectionUsageMillis.sum();
+        long topLevelClosed = numTopLevelClosed.sum();
+        long topLevelAcquired = numTopLevelAcquired.sum();
+        return new ConnectionMetricSnapshot(usageMillis, topLevelAcquired, totalNumAcquired.sum(),
+            numAcquisitionFailures.sum(), topLevelClosed, totalNumClosed.sum(), numCloseConnectionFailures.sum());
+    }
+
+    /**
+     * Returns the metrics recorded since the previous call to this method (or since the last {@link #reset()}), and
+     * makes the current values the baseline for the next call.
+     */
+    public @Nonnull ConnectionMetricSnapshot snapshotDelta() {
+        ConnectionMetricSnapshot current = snapshot();
+        ConnectionMetricSnapshot previous = lastSnapshot.getAndSet(current);
+        return current.minus(previous);
     }
 
     public void reset() {
-        numTopLevelAcquired = 0;
-        totalNumAcquired = 0;
-        numTopLevelClosed = 0;
-        totalNumClosed = 0;
-        numAcquisitionFailures = 0;
-        numCloseConnectionFailures = 0;
-        totalConnectionUsageMillis = 0;
-        totalNumOps = 0;
+        numTopLevelAcquired.reset();
+        totalNumAcquired.reset();
+        numTopLevelClosed.reset();
+        totalNumClosed.reset();
+        numAcquisitionFailures.reset();
+        numCloseConnectionFailures.reset();
+        totalConnectionUsageMillis.reset();
+        lastSnapshot.set(ConnectionMetricSnapshot.EMPTY);
     }
 
     public static ConnectionMetricReporter getInstance() {
@@ -0,0 +1,73 @@
+package com.fitbit.hibernate.connection.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionMetricReporterUnitTest {
+
+    private static final int NUM_THREADS = 8;
+    private static final int NUM_OPS_PER_THREAD = 10000;
+
+    @Test
+    public void testConcurrentRecordingIsExact() throws Exception {
+        final ConnectionMetricReporter reporter = new ConnectionMetricReporter();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            for (int i = 0; i < NUM_THREADS; i++) {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                        for (int j = 0; j < NUM_OPS_PER_THREAD; j++) {
+                            reporter.recordConnectionAcquired(/*isTopLevel=*/true);
+                            reporter.recordConnectionClosed(/*isTopLevel=*/true, 1L);
+                        }
+                    }
+                });
+            }
+            start.countDown();
+        } finally {
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        }
+
+        ConnectionMetricSnapshot snapshot = reporter.snapshot();
+        long expected = (long) NUM_THREADS * NUM_OPS_PER_THREAD;
+        Assert.assertEquals(expected, snapshot.getNumTopLevelAcquired());
+        Assert.assertEquals(expected, snapshot.getTotalNumAcquired());
+        Assert.assertEquals(expected, snapshot.getNumTopLevelClosed());
+        Assert.assertEquals(expected, snapshot.getTotalConnectionUsageMillis());
+        Assert.assertEquals(2 * expected, snapshot.getTotalNumOps());
+    }
+
+    @Test
+    public void testSnapshotDelta() {
+        ConnectionMetricReporter reporter = new ConnectionMetricReporter();
+        reporter.recordConnectionAcquired(/*isTopLevel=*/true);
+        reporter.recordConnectionAcquired(/*isTopLevel=*/false);
+
+        ConnectionMetricSnapshot delta = reporter.snapshotDelta();
+        Assert.assertEquals(1, delta.getNumTopLevelAcquired());
+        Assert.assertEquals(2, delta.getTotalNumAcquired());
+
+        reporter.recordConnectionClosed(/*isTopLevel=*/true, 25L);
+        delta = reporter.snapshotDelta();
+        Assert.assertEquals(0, delta.getTotalNumAcquired());
+        Assert.assertEquals(1, delta.getNumTopLevelClosed());
+        Assert.assertEquals(25L, delta.getTotalConnectionUsageMillis());
+        Assert.assertEquals(1, delta.getTotalNumOps());
+
+        // the full snapshot is unaffected by taking deltas
+        Assert.assertEquals(3, reporter.snapshot().getTotalNumOps());
+    }
+}
@@ -0,0 +1,91 @@
+package com.fitbit.hibernate.connection.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Immutable point-in-time copy of the metrics recorded by a {@link ConnectionMetricReporter}.
+ *
+ * @author dgarson
+ * @see ConnectionMetricReporter#snapshot()
+ */
+@Immutable
+public final class ConnectionMetricSnapshot {
+
+    static final ConnectionMetricSnapshot EMPTY = new ConnectionMetricSnapshot(0, 0, 0, 0, 0, 0, 0);
+
+    private final long totalConnectionUsageMillis;
+    private final long numTopLevelAcquired;
+    private final long totalNumAcquired;
+    private final long numAcquisitionFailures;
+    private final long numTopLevelClosed;
+    private final long totalNumClosed;
+    private final long numCloseConnectionFailures;
+
+    ConnectionMetricSnapshot(long totalConnectionUsageMillis, long numTopLevelAcquired, long totalNumAcquired,
+                             long numAcquisitionFailures, long numTopLevelClosed, long totalNumClosed,
+                             long numCloseConnectionFailures) {
+        this.totalConnectionUsageMillis = totalConnectionUsageMillis;
+        this.numTopLevelAcquired = numTopLevelAcquired;
+        this.totalNumAcquired = totalNumAcquired;
+        this.numAcquisitionFailures = numAcquisitionFailures;
+        this.numTopLevelClosed = numTopLevelClosed;
+        this.totalNumClosed = totalNumClosed;
+        this.numCloseConnectionFailures = numCloseConnectionFailures;
+    }
+
+    public long getTotalConnectionUsageMillis() {
+        return totalConnectionUsageMillis;
+    }
+
+    public long getNumTopLevelAcquired() {
+        return numTopLevelAcquired;
+    }
+
+    public long getTotalNumAcquired() {
+        return totalNumAcquired;
+    }
+
+    public long getNumAcquisitionFailures() {
+        return numAcquisitionFailures;
+    }
+
+    public long getNumTopLevelClosed() {
+        return numTopLevelClosed;
+    }
+
+    public long getTotalNumClosed() {
+        return totalNumClosed;
+    }
+
+    public long getNumCloseConnectionFailures() {
+        return numCloseConnectionFailures;
+    }
+
+    public long getTotalNumOps() {
+        return totalNumAcquired + numAcquisitionFailures + totalNumClosed + numCloseConnectionFailures;
+    }
+
+    /**
+     * Returns a snapshot containing the difference between this snapshot and an earlier one.
+     */
+    public @Nonnull ConnectionMetricSnapshot minus(@Nonnull ConnectionMetricSnapshot earlier) {
+        return new ConnectionMetricSnapshot(totalConnectionUsageMillis - earlier.totalConnectionUsageMillis,
+            numTopLevelAcquired - earlier.numTopLevelAcquired, totalNumAcquired - earlier.totalNumAcquired,
+            numAcquisitionFailures - earlier.numAcquisitionFailures, numTopLevelClosed - earlier.numTopLevelClosed,
+            totalNumClosed - earlier.totalNumClosed, numCloseConnectionFailures - earlier.numCloseConnectionFailures);
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionMetricSnapshot{" +
+            "totalConnectionUsageMillis=" + totalConnectionUsageMillis +
+            ", numTopLevelAcquired=" + numTopLevelAcquired +
+            ", totalNumAcquired=" + totalNumAcquired +
+            ", numAcquisitionFailures=" + numAcquisitionFailures +
+            ", numTopLevelClosed=" + numTopLevelClosed +
+            ", totalNumClosed=" + totalNumClosed +
+            ", numCloseConnectionFailures=" + numCloseConnectionFailures +
+            '}';
+    }
+}
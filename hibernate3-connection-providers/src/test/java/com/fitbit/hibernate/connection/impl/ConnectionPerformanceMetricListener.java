@@ -1,9 +1,12 @@
 package com.fitbit.hibernate.connection.impl;
 
+import com.fitbit.hibernate.connection.CheckoutContext;
 import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderAware;
 import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
 import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
 import com.fitbit.hibernate.connection.event.PreConnectionCloseListener;
+import com.fitbit.util.IdentityLongTable;
 import com.fitbit.util.ThreadLocalCounter;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -20,12 +23,24 @@ import javax.annotation.Nonnull;
  * Sample implementation of a ConnectionProviderListener that adds support for timing how long a connection has been
  * checked out for prior to being returned to a connection provider. <br/>
  * This class uses an abstraction for recording metrics since the mechanism through which metrics are recorded often
- * varies between applications and environments.
+ * varies between applications and environments. <br/>
+ * By default the usage of a connection is timed from a table of checkout timestamps keyed by the identity of each
+ * connection, so the timing follows the connection rather than the thread that acquired it, and any number of
+ * connections can be held at once. If {@link #THREAD_LOCAL_TRACKING_ENABLED} is set, then the usage is instead timed
+ * with thread-local state, which assumes that a connection is closed on the thread that acquired it. If
+ * &quot;hibernate.connection.checkout_context.enabled&quot; is set, then the timing is kept in the
+ * {@link CheckoutContext} of each checkout, whichever of the other two modes is selected.
  *
  * @author dgarson
  */
 public class ConnectionPerformanceMetricListener implements PostConnectionAcquisitionListener,
-    PreConnectionCloseListener {
+    PreConnectionCloseListener, ConnectionProviderAware {
+
+    /**
+     * Property that selects timing usage with thread-local state rather than per connection.
+     */
+    public static final String THREAD_LOCAL_TRACKING_ENABLED =
+        "hibernate.connection.performance_metrics.thread_local_tracking";
 
     /**
      * The ticker to use for stopwatches in this class. Start with the system ticker but allow any test code to override
@@ -38,9 +53,21 @@ public class ConnectionPerformanceMetricListener implements PostConnectionAcquis
      */
     private ConnectionMetricReporter connectionMetricReporter = ConnectionMetricReporter.getInstance();
 
+    /**
+     * The {@link Ticker#read()} at which each connection that is currently checked out from the owning provider was
+     * acquired, keyed by the connection itself, so that a connection can be closed on any thread.
+     */
+    private final IdentityLongTable connectionAcquiredNanos = new IdentityLongTable();
+
+    /**
+     * The number of nested acquisitions that were given a connection that was already checked out and have not closed
+     * it yet, which only ever has entries if the provider reuses held connections.
+     */
+    private final IdentityLongTable nestedAcquisitions = new IdentityLongTable();
+
     /**
      * Thread-local stopwatch that is used to measure the time a connection is held for when acquired from the owning
-     * provider prior to being closed/released.
+     * provider prior to being closed/released, if thread-local tracking is selected.
      */
     private final ThreadLocal<Stopwatch> connectionUsageStopwatch = new ThreadLocal<Stopwatch>() {
         @Override
@@ -52,15 +79,39 @@ public class ConnectionPerformanceMetricListener implements PostConnectionAcquis
 
     /**
      * Keeps track of the depth in connection acquisition calls to the specific ConnectionProvider this listener is
-     * attached to. Since we are using thread-locals here, we cannot support nested connection acquisitions, and this
-     * counter ensures that we do not attempt to do so.
+     * attached to, if thread-local tracking is selected. Since we are using thread-locals here, we cannot support
+     * nested connection acquisitions, and this counter ensures that we do not attempt to do so.
      */
     private final ThreadLocalCounter connectionAcquisitionDepth = new ThreadLocalCounter();
 
+    /**
+     * The provider this listener is attached to, which the checkout context of a closed connection is looked up from.
+     */
+    private InstrumentedConnectionProvider connectionProvider;
+
+    /**
+     * Whether usage is timed with the checkout context of each connection rather than the tables or thread-locals
+     * above.
+     */
+    private boolean useCheckoutContext;
+
+    /**
+     * Whether usage is timed with the thread-locals above rather than the tables above.
+     */
+    private boolean useThreadLocals;
+
     @Override
     public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
         // we would otherwise grab the Ticker here but we must set the ticker after ConnectionProvider configuration
         //  so we are unable to use the mock ticker at this point.
+        useCheckoutContext = settings.getBooleanProperty(InstrumentedConnectionProvider.CHECKOUT_CONTEXT_ENABLED,
+            false);
+        useThreadLocals = settings.getBooleanProperty(THREAD_LOCAL_TRACKING_ENABLED, false);
+    }
+
+    @Override
+    public void setConnectionProvider(InstrumentedConnectionProvider connectionProvider) {
+        this.connectionProvider = connectionProvider;
     }
 
     @VisibleForTesting
@@ -73,42 +124,109 @@ public class ConnectionPerformanceMetricListener implements PostConnectionAcquis
 
     @Override
     public void afterConnectionAcquired(InstrumentedConnectionProvider connectionProvider, Connection connection) {
-        // reset and start the usage stopwatch now if this is the only connection that 'will' be checked out from this
-        //      provider (e.g. there is not already one that has been acquired but *not* released)
-        int depth = connectionAcquisitionDepth.incrementAndGet();
-        if (depth == 1) {
-            connectionUsageStopwatch.get().reset().start();
+        if (useCheckoutContext) {
+            CheckoutContext context = connectionProvider.getCheckoutContext(connection);
+            if (context != null && context.getNestingDepth() == 1) {
+                context.setAttachment(this, Stopwatch.createStarted(ticker));
+                connectionMetricReporter.recordConnectionAcquired(/*isTopLevel=*/true);
+            } else {
+                connectionMetricReporter.recordConnectionAcquired(/*isTopLevel=*/false);
+            }
+            return;
+        } else if (useThreadLocals) {
+            // reset and start the usage stopwatch now if this is the only connection that 'will' be checked out from
+            //      this provider (e.g. there is not already one that has been acquired but *not* released)
+            int depth = connectionAcquisitionDepth.incrementAndGet();
+            if (depth == 1) {
+                connectionUsageStopwatch.get().reset().start();
+                connectionMetricReporter.recordConnectionAcquired(/*isTopLevel=*/true);
+            } else {
+                connectionMetricReporter.recordConnectionAcquired(/*isTopLevel=*/false);
+            }
+            return;
+        }
+        // start timing the connection unless it is already checked out, in which case this is a nested acquisition
+        //      that was given the same connection and the outermost one is what we time
+        if (connectionAcquiredNanos.putIfAbsent(connection, ticker.read()) == IdentityLongTable.NO_VALUE) {
             connectionMetricReporter.recordConnectionAcquired(/*isTopLevel=*/true);
         } else {
             // record that we did this but do not consider it an 'acquisition' in the metrics unless we are also timing
             //          it
+            long nested = nestedAcquisitions.get(connection);
+            nestedAcquisitions.put(connection, (nested == IdentityLongTable.NO_VALUE ? 1L : nested + 1L));
             connectionMetricReporter.recordConnectionAcquired(/*isTopLevel=*/false);
         }
     }
 
     @Override
     public void afterConnectionAcquisitionFailed(InstrumentedConnectionProvider connectionProvider, Throwable exc) {
-        // simply record failure, no timing is necessary
-        connectionMetricReporter.recordAcquisitionFailure(connectionAcquisitionDepth.getValue() == 0, exc);
+        if (useThreadLocals && !useCheckoutContext) {
+            // simply record failure, no timing is necessary
+            connectionMetricReporter.recordAcquisitionFailure(connectionAcquisitionDepth.getValue() == 0, exc);
+            return;
+        }
+        // simply record failure, no timing is necessary. An acquisition only fails if it went to the delegate, which a
+        //      nested acquisition that reuses a held connection never does, so it is always a top-level one
+        connectionMetricReporter.recordAcquisitionFailure(/*isTopLevel=*/true, exc);
     }
 
     @Override
     public void beforeClosingConnection(Connection connection) {
-        int depth = connectionAcquisitionDepth.decrementAndGet();
-        // make sure we haven't released a connection more times than we have acquired one
-        if (depth < 0) {
-            throw new IllegalStateException("getConnection and closeConnection calls are not balanced. Is a " +
-                "connection being closed multiple times?");
-        } else if (depth == 0) {
-            // this marks the last time the user code held the connection, so we can halt the usage duration stopwatch
-            //      but wait until after the operation completes to record it since we do not yet know how long it took
-            //      to perform the actual release
-            long usageDurationMillis = connectionUsageStopwatch.get().stop().elapsed(TimeUnit.MILLISECONDS);
+        if (useCheckoutContext) {
+            CheckoutContext context = connectionProvider.getCheckoutContext(connection);
+            Stopwatch stopwatch = (context != null && context.getNestingDepth() == 1 ?
+                (Stopwatch) context.getAttachment(this) : null);
+            if (stopwatch != null) {
+                connectionMetricReporter.recordConnectionClosed(/*isTopLevel=*/true,
+                    stopwatch.stop().elapsed(TimeUnit.MILLISECONDS));
+            } else {
+                connectionMetricReporter.recordConnectionClosed(/*isTopLevel=*/false, -1);
+            }
+            return;
+        } else if (useThreadLocals) {
+            int depth = connectionAcquisitionDepth.decrementAndGet();
+            // make sure we haven't released a connection more times than we have acquired one
+            if (depth < 0) {
+                throw new IllegalStateException("getConnection and closeConnection calls are not balanced. Is a " +
+                    "connection being closed multiple times?");
+            } else if (depth == 0) {
+                // this marks the last time the user code held the connection, so we can halt the usage duration
+                //      stopwatch
+                long usageDurationMillis = connectionUsageStopwatch.get().stop().elapsed(TimeUnit.MILLISECONDS);
+                connectionMetricReporter.recordConnectionClosed(/*isTopLevel=*/true, usageDurationMillis);
+            } else {
+                // record that we did this but do not consider it a normal 'close' in the metrics unless we are also
+                //          timing it
+                connectionMetricReporter.recordConnectionClosed(/*isTopLevel=*/false, -1);
+            }
+            return;
+        }
+        long acquiredNanos = (connection != null && !releaseNestedAcquisition(connection) ?
+            connectionAcquiredNanos.remove(connection) : IdentityLongTable.NO_VALUE);
+        if (acquiredNanos != IdentityLongTable.NO_VALUE) {
+            // this marks the last time the user code held the connection, no matter which thread closes it
+            long usageDurationMillis = TimeUnit.NANOSECONDS.toMillis(ticker.read() - acquiredNanos);
             connectionMetricReporter.recordConnectionClosed(/*isTopLevel=*/true, usageDurationMillis);
         } else {
-            // record that we did this but do not consider it a normal 'close' in the metrics unless we are also timing
-            //          it
+            // either a nested acquisition released the connection, or it is not one we saw being acquired (such as a
+            //      connection that is closed twice), so record that we did this but do not consider it a normal 'close'
+            //      in the metrics since we are not timing it
             connectionMetricReporter.recordConnectionClosed(/*isTopLevel=*/false, -1);
         }
     }
+
+    /**
+     * Releases one nested acquisition of the given connection, if there are any that have not closed it yet.
+     * @return <code>true</code> if a nested acquisition was released, or <code>false</code> if this close belongs to
+     *          the outermost acquisition
+     */
+    private boolean releaseNestedAcquisition(Connection connection) {
+        long nested = nestedAcquisitions.remove(connection);
+        if (nested == IdentityLongTable.NO_VALUE) {
+            return false;
+        } else if (nested > 1L) {
+            nestedAcquisitions.put(connection, nested - 1L);
+        }
+        return true;
+    }
 }
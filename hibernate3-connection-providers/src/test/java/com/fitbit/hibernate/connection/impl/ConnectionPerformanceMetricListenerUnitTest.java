@@ -84,24 +84,24 @@ public class ConnectionPerformanceMetricListenerUnitTest {
     public void testAcquisitionTiming() throws Exception {
         ConnectionMetricReporter metrics = ConnectionMetricReporter.getInstance();
 
-        getConnection(/*delayMillis=*/null, /*shouldFail=*/false);
+        Connection conn = getConnection(/*delayMillis=*/null, /*shouldFail=*/false);
         Assert.assertEquals(1, metrics.getNumTopLevelAcquired());
         Assert.assertEquals(0, metrics.getNumTopLevelClosed());
         Assert.assertEquals(0, metrics.getNumAcquisitionFailures());
         // immediately release with no time elapsed
-        closeConnection(/*shouldFail=*/false);
+        closeConnection(conn, /*shouldFail=*/false);
         Assert.assertEquals(1, metrics.getNumTopLevelClosed());
         Assert.assertEquals(1, metrics.getTotalNumClosed());
         Assert.assertEquals(2, metrics.getTotalNumOps());
 
 
         // grab a connection with a delay during acquisition
-        getConnection(ACQUISITION_DELAY_MILLIS, /*shouldFail=*/false);
+        conn = getConnection(ACQUISITION_DELAY_MILLIS, /*shouldFail=*/false);
         Assert.assertEquals(2, metrics.getNumTopLevelAcquired());
         Assert.assertEquals(1, metrics.getNumTopLevelClosed());
         Assert.assertEquals(0, metrics.getNumAcquisitionFailures());
         Assert.assertEquals(0L, metrics.getTotalConnectionUsageMillis());
-        closeConnection(/*shouldFail=*/false);
+        closeConnection(conn, /*shouldFail=*/false);
         Assert.assertEquals(2, metrics.getNumTopLevelClosed());
     }
 
@@ -109,7 +109,7 @@ public class ConnectionPerformanceMetricListenerUnitTest {
     public void testConnectionUsageTiming() throws Exception {
         ConnectionMetricReporter metrics = ConnectionMetricReporter.getInstance();
 
-        getConnection(/*delayMillis=*/null, /*shouldFail=*/false);
+        Connection conn = getConnection(/*delayMillis=*/null, /*shouldFail=*/false);
         Assert.assertEquals(1, metrics.getNumTopLevelAcquired());
         Assert.assertEquals(0, metrics.getNumTopLevelClosed());
         Assert.assertEquals(0, metrics.getNumAcquisitionFailures());
@@ -118,7 +118,7 @@ public class ConnectionPerformanceMetricListenerUnitTest {
         // set elapsed time to 30 ms
         ticker.setElapsedMillis(30);
 
-        closeConnection(/*shouldFail=*/false);
+        closeConnection(conn, /*shouldFail=*/false);
         Assert.assertEquals(1, metrics.getNumTopLevelAcquired());
         Assert.assertEquals(1, metrics.getNumTopLevelClosed());
         Assert.assertEquals(0, metrics.getNumAcquisitionFailures());
@@ -142,6 +142,108 @@ public class ConnectionPerformanceMetricListenerUnitTest {
         }
     }
 
+    @Test
+    public void testUsageTimingFollowsConnectionAcrossThreads() throws Exception {
+        ConnectionMetricReporter metrics = ConnectionMetricReporter.getInstance();
+
+        // both connections are held at the same time, so both are timed
+        Connection firstConn = getConnection(/*delayMillis=*/null, /*shouldFail=*/false);
+        ticker.setElapsedMillis(10);
+        final Connection secondConn = getConnection(/*delayMillis=*/null, /*shouldFail=*/false);
+        Assert.assertEquals(2, metrics.getNumTopLevelAcquired());
+        ticker.setElapsedMillis(30);
+
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connectionProvider.closeConnection(secondConn);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        closer.start();
+        closer.join();
+        Assert.assertEquals(1, metrics.getNumTopLevelClosed());
+        Assert.assertEquals(20L, metrics.getTotalConnectionUsageMillis());
+
+        closeConnection(firstConn, /*shouldFail=*/false);
+        Assert.assertEquals(2, metrics.getNumTopLevelClosed());
+        Assert.assertEquals(50L, metrics.getTotalConnectionUsageMillis());
+
+        // closing a connection again is counted but not timed, rather than failing
+        closeConnection(firstConn, /*shouldFail=*/false);
+        Assert.assertEquals(2, metrics.getNumTopLevelClosed());
+        Assert.assertEquals(3, metrics.getTotalNumClosed());
+    }
+
+    @Test
+    public void testCheckoutContextFollowsConnectionAcrossThreads() throws Exception {
+        hibernateProps.setProperty(InstrumentedConnectionProvider.CHECKOUT_CONTEXT_ENABLED, "true");
+        // configuring the provider in setup swapped the delegate class into the provider class property
+        hibernateProps.setProperty(Environment.CONNECTION_PROVIDER,
+            TestableInstrumentedConnectionProvider.class.getName());
+        final TestableInstrumentedConnectionProvider contextProvider =
+            (TestableInstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(hibernateProps);
+        ((MockConnectionProvider) contextProvider.getWrappedConnectionProvider()).setTicker(ticker);
+        contextProvider.setup(ticker, connectionMetricReporter);
+        ConnectionMetricReporter metrics = ConnectionMetricReporter.getInstance();
+
+        // both connections are held at the same time, so both are timed
+        Connection firstConn = contextProvider.getConnection();
+        final Connection secondConn = contextProvider.getConnection();
+        Assert.assertEquals(2, metrics.getNumTopLevelAcquired());
+        ticker.setElapsedMillis(30);
+
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    contextProvider.closeConnection(secondConn);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        closer.start();
+        closer.join();
+        contextProvider.closeConnection(firstConn);
+        Assert.assertEquals(2, metrics.getNumTopLevelClosed());
+        Assert.assertEquals(60L, metrics.getTotalConnectionUsageMillis());
+        contextProvider.close();
+    }
+
+    @Test
+    public void testThreadLocalTrackingIsSelectable() throws Exception {
+        hibernateProps.setProperty(ConnectionPerformanceMetricListener.THREAD_LOCAL_TRACKING_ENABLED, "true");
+        // configuring the provider in setup swapped the delegate class into the provider class property
+        hibernateProps.setProperty(Environment.CONNECTION_PROVIDER,
+            TestableInstrumentedConnectionProvider.class.getName());
+        TestableInstrumentedConnectionProvider threadLocalProvider =
+            (TestableInstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(hibernateProps);
+        ((MockConnectionProvider) threadLocalProvider.getWrappedConnectionProvider()).setTicker(ticker);
+        threadLocalProvider.setup(ticker, connectionMetricReporter);
+        ConnectionMetricReporter metrics = ConnectionMetricReporter.getInstance();
+
+        // only the outermost of the connections held by this thread is timed
+        Connection firstConn = threadLocalProvider.getConnection();
+        ticker.setElapsedMillis(10);
+        Connection secondConn = threadLocalProvider.getConnection();
+        Assert.assertEquals(1, metrics.getNumTopLevelAcquired());
+        ticker.setElapsedMillis(30);
+        threadLocalProvider.closeConnection(secondConn);
+        Assert.assertEquals(0, metrics.getNumTopLevelClosed());
+        threadLocalProvider.closeConnection(firstConn);
+        Assert.assertEquals(1, metrics.getNumTopLevelClosed());
+        Assert.assertEquals(30L, metrics.getTotalConnectionUsageMillis());
+
+        // closing more connections than were acquired fails in the listener, so it is not counted
+        threadLocalProvider.closeConnection(firstConn);
+        Assert.assertEquals(2, metrics.getTotalNumClosed());
+        threadLocalProvider.close();
+    }
+
     /**
      * Grabs a connection from the provider, introducing an artificial delay if the <strong>delayMillis</strong> arg
      * is provided and the wrapped connection provider is not the mock created using Mockito.
@@ -163,12 +265,12 @@ public class ConnectionPerformanceMetricListenerUnitTest {
         return connectionProvider.getConnection();
     }
 
-    private void closeConnection(boolean shouldFail) throws SQLException {
+    private void closeConnection(Connection conn, boolean shouldFail) throws SQLException {
         ConnectionProvider wrappedProvider = connectionProvider.getWrappedConnectionProvider();
         if (wrappedProvider instanceof MockConnectionProvider && shouldFail) {
             ((MockConnectionProvider)wrappedProvider).setShouldAlwaysFail(shouldFail);
         }
-        connectionProvider.closeConnection(null);
+        connectionProvider.closeConnection(conn);
     }
 
     private static class MockTicker extends Ticker {
@@ -0,0 +1,191 @@
+package com.fitbit.hibernate.connection.jdbc;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.StatementExecutionListener;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InstrumentedConnectionUnitTest {
+
+    private static final String TEST_JDBC_URL = "jdbc:somedriver://somehost:someport/somedatabase";
+    private static final String SELECT_SQL = "select id from users where id = ?";
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private RecordingStatementListener statementListener;
+
+    @Before
+    public void setupConnectionProvider() {
+        connectionProvider = createConnectionProvider(true);
+        statementListener = connectionProvider.getListenerOfType(RecordingStatementListener.class);
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        connectionProvider.close();
+    }
+
+    private static InstrumentedConnectionProvider createConnectionProvider(boolean instrumentStatements) {
+        Properties props = new Properties();
+        props.setProperty(Environment.URL, TEST_JDBC_URL);
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            StubConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            RecordingStatementListener.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.INSTRUMENT_STATEMENTS, String.valueOf(instrumentStatements));
+        return (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+    }
+
+    @Test
+    public void testStatementEventsArePublished() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        Assert.assertTrue(conn instanceof InstrumentedConnection);
+
+        PreparedStatement statement = conn.prepareStatement(SELECT_SQL);
+        Assert.assertSame(conn, statement.getConnection());
+        ResultSet resultSet = statement.executeQuery();
+        Assert.assertSame(statement, resultSet.getStatement());
+        while (resultSet.next()) {
+            // iterate all rows
+        }
+        resultSet.close();
+        statement.close();
+
+        Assert.assertEquals(3, statementListener.events.size());
+        Assert.assertEquals("prepared " + SELECT_SQL, statementListener.events.get(0));
+        Assert.assertEquals("executed " + SELECT_SQL + " failure=null", statementListener.events.get(1));
+        Assert.assertEquals("closed " + SELECT_SQL + " rows=2", statementListener.events.get(2));
+
+        // the delegate must get back the connection it handed out rather than the wrapper
+        StubConnectionProvider delegate = (StubConnectionProvider) connectionProvider.getWrappedConnectionProvider();
+        connectionProvider.closeConnection(conn);
+        Assert.assertSame(((InstrumentedConnection) conn).getDelegate(), delegate.lastClosedConnection);
+    }
+
+    @Test
+    public void testFailedExecutionAndImplicitResultSetClose() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        Statement statement = conn.createStatement();
+        try {
+            statement.executeUpdate("delete from users");
+            Assert.fail("Expected the stubbed update to fail");
+        } catch (SQLException expected) {
+            // expected
+        }
+        statement.executeQuery("select 1").next();
+        // closing the statement also closes its result set
+        statement.close();
+        connectionProvider.closeConnection(conn);
+
+        Assert.assertEquals(3, statementListener.events.size());
+        Assert.assertEquals("executed delete from users failure=SQLException", statementListener.events.get(0));
+        Assert.assertEquals("executed select 1 failure=null", statementListener.events.get(1));
+        Assert.assertEquals("closed select 1 rows=1", statementListener.events.get(2));
+    }
+
+    @Test
+    public void testConnectionsAreNotWrappedUnlessEnabled() throws Exception {
+        InstrumentedConnectionProvider uninstrumentedProvider = createConnectionProvider(false);
+        try {
+            Connection conn = uninstrumentedProvider.getConnection();
+            Assert.assertFalse(conn instanceof InstrumentedConnection);
+            uninstrumentedProvider.closeConnection(conn);
+        } finally {
+            uninstrumentedProvider.close();
+        }
+    }
+
+    public static class RecordingStatementListener implements StatementExecutionListener {
+
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
+            // no settings
+        }
+
+        @Override
+        public void statementPrepared(Connection connection, String sql, long prepareNanos) {
+            events.add("prepared " + sql);
+        }
+
+        @Override
+        public void statementExecuted(Connection connection, String sql, long executionNanos, Throwable failure) {
+            events.add("executed " + sql + " failure=" + (failure != null ? failure.getClass().getSimpleName() : null));
+        }
+
+        @Override
+        public void resultSetClosed(Connection connection, String sql, int rowCount, long fetchNanos) {
+            events.add("closed " + sql + " rows=" + rowCount);
+        }
+    }
+
+    /**
+     * Delegate provider that hands out stubbed connections returning two rows for prepared queries, one row for plain
+     * queries, and failing updates.
+     */
+    public static class StubConnectionProvider implements ConnectionProvider {
+
+        Connection lastClosedConnection;
+
+        @Override
+        public void configure(Properties props) throws HibernateException {
+            // nothing to configure
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            ResultSet twoRows = mock(ResultSet.class);
+            when(twoRows.next()).thenReturn(true, true, false);
+            PreparedStatement preparedStatement = mock(PreparedStatement.class);
+            when(preparedStatement.executeQuery()).thenReturn(twoRows);
+
+            ResultSet oneRow = mock(ResultSet.class);
+            when(oneRow.next()).thenReturn(true, false);
+            Statement statement = mock(Statement.class);
+            when(statement.executeQuery(anyString())).thenReturn(oneRow);
+            when(statement.executeUpdate(anyString())).thenThrow(new SQLException("Intentional update failure"));
+
+            Connection connection = mock(Connection.class);
+            when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+            when(connection.createStatement()).thenReturn(statement);
+            return connection;
+        }
+
+        @Override
+        public void closeConnection(Connection conn) throws SQLException {
+            lastClosedConnection = conn;
+        }
+
+        @Override
+        public void close() throws HibernateException {
+            // nothing to release
+        }
+
+        @Override
+        public boolean supportsAggressiveRelease() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.fitbit.hibernate.connection.jdbc;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+public class SessionStateCacheUnitTest {
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private SessionStateCache sessionStates;
+
+    @Before
+    public void setupConnectionProvider() {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:sessionStateTestDb");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.POOL_SIZE, "1");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            PoolingConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.SESSION_STATE_CACHE_ENABLED, "true");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        sessionStates = connectionProvider.getSessionStateCache();
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        connectionProvider.close();
+    }
+
+    @Test
+    public void testRedundantSettersAreSkipped() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        Assert.assertTrue(conn instanceof InstrumentedConnection);
+        conn.setAutoCommit(false);
+        Assert.assertEquals(0L, sessionStates.getNumRoundTripsSaved());
+        conn.setAutoCommit(false);
+        Assert.assertFalse(conn.getAutoCommit());
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        Assert.assertEquals(3L, sessionStates.getNumRoundTripsSaved());
+        connectionProvider.closeConnection(conn);
+    }
+
+    @Test
+    public void testAutoCommitSurvivesPoolReset() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        conn.setAutoCommit(true);
+        connectionProvider.closeConnection(conn);
+
+        // the pool resets auto-commit to its default, which is known without asking the driver
+        conn = connectionProvider.getConnection();
+        Connection physicalConn = ((InstrumentedConnection) conn).getDelegate();
+        Assert.assertFalse(physicalConn.getAutoCommit());
+        Assert.assertFalse(conn.getAutoCommit());
+        Assert.assertEquals(1L, sessionStates.getNumRoundTripsSaved());
+        connectionProvider.closeConnection(conn);
+    }
+
+    @Test
+    public void testPoolResetForgetsIsolationAndReadOnly() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        int defaultIsolation = conn.getTransactionIsolation();
+        conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        conn.setReadOnly(true);
+        connectionProvider.closeConnection(conn);
+
+        // the pool restored the defaults of the connection, so setting what the previous borrower set must reach the
+        //      driver again
+        conn = connectionProvider.getConnection();
+        Connection physicalConn = ((InstrumentedConnection) conn).getDelegate();
+        Assert.assertEquals(defaultIsolation, physicalConn.getTransactionIsolation());
+        long numRoundTripsSaved = sessionStates.getNumRoundTripsSaved();
+        conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        Assert.assertEquals(numRoundTripsSaved, sessionStates.getNumRoundTripsSaved());
+        Assert.assertEquals(Connection.TRANSACTION_SERIALIZABLE, physicalConn.getTransactionIsolation());
+        Assert.assertFalse(conn.isReadOnly());
+        Assert.assertEquals(numRoundTripsSaved, sessionStates.getNumRoundTripsSaved());
+        connectionProvider.closeConnection(conn);
+    }
+
+    @Test
+    public void testFailedStatementInvalidatesState() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        conn.setAutoCommit(false);
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("SELECT * FROM missing_table");
+            Assert.fail("Expected the statement to fail");
+        } catch (SQLException expected) {
+            Assert.assertEquals(1L, sessionStates.getNumInvalidations());
+        }
+        conn.setAutoCommit(false);
+        Assert.assertEquals(0L, sessionStates.getNumRoundTripsSaved());
+        connectionProvider.closeConnection(conn);
+    }
+}
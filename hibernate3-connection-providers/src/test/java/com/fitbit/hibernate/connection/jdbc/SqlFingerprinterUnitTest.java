@@ -0,0 +1,45 @@
+package com.fitbit.hibernate.connection.jdbc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SqlFingerprinterUnitTest {
+
+    @Test
+    public void testLiteralsAreReplaced() {
+        Assert.assertEquals("select * from users where name = ? and age > ?",
+            SqlFingerprinter.normalize("SELECT * FROM users WHERE name = 'O''Brien' AND age > 21"));
+        Assert.assertEquals("select * from users where score = ? and ratio < ?",
+            SqlFingerprinter.normalize("select * from users where score = -1.5e3 and ratio < .25"));
+    }
+
+    @Test
+    public void testInListsAreCollapsed() {
+        String expected = "select user0_.id as id1_0_ from users user0_ where user0_.id in (?)";
+        Assert.assertEquals(expected,
+            SqlFingerprinter.normalize("select user0_.id as id1_0_ from users user0_ where user0_.id in (?, ?, ?)"));
+        Assert.assertEquals(expected,
+            SqlFingerprinter.normalize("select user0_.id as id1_0_ from users user0_ where user0_.id in (1,2)"));
+    }
+
+    @Test
+    public void testCommentsAndWhitespaceAreRemoved() {
+        Assert.assertEquals("select a from t where b = ?",
+            SqlFingerprinter.normalize("/* load User */ select a\n\tfrom   t -- trailing comment\n where b = ?"));
+    }
+
+    @Test
+    public void testQuotedIdentifiersArePreserved() {
+        Assert.assertEquals("select \"MixedCase\" from `Table` where x = ?",
+            SqlFingerprinter.normalize("SELECT \"MixedCase\" FROM `Table` WHERE X = 'it\\'s'"));
+    }
+
+    @Test
+    public void testFingerprintsAreMemoized() {
+        SqlFingerprinter fingerprinter = new SqlFingerprinter(10);
+        String sql = "select * from users where id = 42";
+        String fingerprint = fingerprinter.fingerprint(sql);
+        Assert.assertEquals("select * from users where id = ?", fingerprint);
+        Assert.assertSame(fingerprint, fingerprinter.fingerprint(sql));
+    }
+}
@@ -0,0 +1,128 @@
+package com.fitbit.hibernate.connection.limit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveConcurrencyLimiterUnitTest {
+
+    private static final String TEST_JDBC_URL = "jdbc:somedriver://somehost:someport/somedatabase";
+    private static final long ONE_MILLI_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testCallersBeyondLimitAreRejected() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(TEST_JDBC_URL, 2, 1, 10, 0, 0);
+        limiter.acquire();
+        limiter.acquire();
+        Assert.assertEquals(2, limiter.getNumInFlight());
+        try {
+            limiter.acquire();
+            Assert.fail("Expected the third caller to be rejected");
+        } catch (ConcurrencyLimitExceededException expected) {
+            Assert.assertEquals(2, expected.getLimit());
+        }
+        Assert.assertEquals(1L, limiter.getNumRejected());
+
+        limiter.release();
+        limiter.acquire();
+        Assert.assertEquals(2, limiter.getNumInFlight());
+    }
+
+    @Test
+    public void testQueuedCallerIsGrantedReleasedPermit() throws Exception {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(TEST_JDBC_URL, 1, 1, 10, 1, 5000);
+        limiter.acquire();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waiter = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    limiter.acquire();
+                    return true;
+                }
+            });
+            while (limiter.getQueueDepth() == 0) {
+                Thread.sleep(1L);
+            }
+            limiter.release();
+            Assert.assertTrue(waiter.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1L, limiter.getNumQueued());
+        Assert.assertEquals(0L, limiter.getNumRejected());
+        Assert.assertEquals(0, limiter.getQueueDepth());
+    }
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsStable() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(TEST_JDBC_URL, 10, 1, 100, 0, 0);
+        for (int i = 0; i < 200; i++) {
+            limiter.sample(ONE_MILLI_NANOS, limiter.getLimit());
+        }
+        Assert.assertEquals(100, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitDoesNotGrowWhileMostlyUnused() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(TEST_JDBC_URL, 10, 1, 100, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            limiter.sample(ONE_MILLI_NANOS, 1);
+        }
+        Assert.assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitShrinksWhenLatencyRises() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(TEST_JDBC_URL, 100, 1, 100, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            limiter.sample(ONE_MILLI_NANOS, 100);
+        }
+        int previousLimit = limiter.getLimit();
+        for (int i = 0; i < 10; i++) {
+            limiter.sample(10 * ONE_MILLI_NANOS, 100);
+            Assert.assertTrue(limiter.getLimit() < previousLimit);
+            previousLimit = limiter.getLimit();
+        }
+    }
+
+    @Test
+    public void testCheckoutsAreSampledByTheirOwnGrantTime() throws Exception {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(TEST_JDBC_URL, 10, 1, 100, 0, 0);
+        final long outerGrantedNanos = limiter.acquire();
+        Thread.sleep(50L);
+        long innerGrantedNanos = limiter.acquire();
+
+        // the outer checkout ends first, on another thread, and must still be sampled as the longer one
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    limiter.release(outerGrantedNanos);
+                    return null;
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertTrue(limiter.getLongRttNanos() >= 50 * ONE_MILLI_NANOS);
+
+        limiter.release(innerGrantedNanos);
+        Assert.assertEquals(0, limiter.getNumInFlight());
+    }
+
+    @Test
+    public void testFailedAcquisitionShrinksLimit() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(TEST_JDBC_URL, 10, 1, 100, 0, 0);
+        limiter.acquire();
+        limiter.acquisitionFailed();
+        Assert.assertEquals(9, limiter.getLimit());
+        Assert.assertEquals(0, limiter.getNumInFlight());
+    }
+}
@@ -0,0 +1,100 @@
+package com.fitbit.hibernate.connection.listener;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.impl.ConnectionPerformanceMetricListenerUnitTest.MockConnectionProvider;
+
+import com.google.common.base.Ticker;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+public class CallSiteHoldTimeListenerUnitTest {
+
+    private static final String TEST_JDBC_URL = "jdbc:somedriver://somehost:someport/somedatabase";
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private CallSiteHoldTimeListener callSiteListener;
+    private final ManualTicker ticker = new ManualTicker();
+
+    @Before
+    public void setupConnectionProvider() {
+        Properties props = new Properties();
+        props.setProperty(Environment.URL, TEST_JDBC_URL);
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            MockConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            CallSiteHoldTimeListener.class.getName());
+        props.setProperty(CallSiteHoldTimeListener.SAMPLE_RATE, "1");
+        props.setProperty(CallSiteHoldTimeListener.NUM_FRAMES, "1");
+        props.setProperty(CallSiteHoldTimeListener.MAX_CALL_SITES, "2");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        callSiteListener = connectionProvider.getListenerOfType(CallSiteHoldTimeListener.class);
+        callSiteListener.setTicker(ticker);
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        connectionProvider.close();
+    }
+
+    @Test
+    public void testHoldTimeAggregatedPerCallSite() throws Exception {
+        holdConnection(10);
+        holdConnection(30);
+
+        // this test lives in an excluded package, so both checkouts resolve to the same call site in the test runner
+        List<CallSiteHoldTimeListener.CallSiteStatistics> topCallSites = callSiteListener.getTopCallSites(10);
+        Assert.assertEquals(1, topCallSites.size());
+        CallSiteHoldTimeListener.CallSiteStatistics top = topCallSites.get(0);
+        Assert.assertEquals(2L, top.getCount());
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(40), top.getTotalHoldNanos());
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(30), top.getMaxHoldNanos());
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(20), top.getMeanHoldNanos());
+        Assert.assertTrue(callSiteListener.getTopCallSites(0).isEmpty());
+    }
+
+    @Test
+    public void testCallSitesAreInternedUpToMaximum() throws Exception {
+        StackTraceElement[] first = { new StackTraceElement("com.example.Dao", "first", "Dao.java", 1) };
+        StackTraceElement[] second = { new StackTraceElement("com.example.Dao", "second", "Dao.java", 2) };
+        StackTraceElement[] third = { new StackTraceElement("com.example.Dao", "third", "Dao.java", 3) };
+        StackTraceElement[] excluded = { new StackTraceElement("org.hibernate.Session", "connection", null, -1),
+            new StackTraceElement("com.example.Dao", "first", "Dao.java", 1) };
+
+        int firstId = callSiteListener.internCallSite(first);
+        Assert.assertEquals(firstId, callSiteListener.internCallSite(first));
+        Assert.assertEquals(firstId, callSiteListener.internCallSite(excluded));
+        int secondId = callSiteListener.internCallSite(second);
+        Assert.assertNotEquals(firstId, secondId);
+        Assert.assertEquals(0, callSiteListener.internCallSite(third));
+    }
+
+    private void holdConnection(long millis) throws Exception {
+        Connection connection = connectionProvider.getConnection();
+        ticker.advance(millis, TimeUnit.MILLISECONDS);
+        connectionProvider.closeConnection(connection);
+    }
+
+    private static class ManualTicker extends Ticker {
+
+        private long nanos;
+
+        void advance(long duration, TimeUnit unit) {
+            nanos += unit.toNanos(duration);
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.fitbit.hibernate.connection.listener;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.impl.ConnectionPerformanceMetricListenerUnitTest.MockConnectionProvider;
+
+import com.google.common.base.Ticker;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionLeakDetectionListenerUnitTest {
+
+    private static final String TEST_JDBC_URL = "jdbc:somedriver://somehost:someport/somedatabase";
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private ConnectionLeakDetectionListener leakDetector;
+    private final ManualTicker ticker = new ManualTicker();
+
+    @Before
+    public void setupConnectionProvider() {
+        Properties props = new Properties();
+        props.setProperty(Environment.URL, TEST_JDBC_URL);
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            MockConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            ConnectionLeakDetectionListener.class.getName());
+        props.setProperty(ConnectionLeakDetectionListener.LEAK_THRESHOLD_MILLIS, "1000");
+        // scanning is driven explicitly by the tests
+        props.setProperty(ConnectionLeakDetectionListener.SCAN_INTERVAL_MILLIS, "3600000");
+        props.setProperty(ConnectionLeakDetectionListener.CAPTURE_CALL_SITE, "true");
+        props.setProperty(ConnectionLeakDetectionListener.MAX_TRACKED_CONNECTIONS, "2");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        leakDetector = connectionProvider.getListenerOfType(ConnectionLeakDetectionListener.class);
+        leakDetector.setTicker(ticker);
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        connectionProvider.close();
+    }
+
+    @Test
+    public void testLeakReportedOnceAfterThreshold() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        Assert.assertEquals(1, leakDetector.getNumTrackedConnections());
+
+        ticker.advance(999, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(0, leakDetector.scan());
+
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(1, leakDetector.scan());
+        // the same checkout is only reported once
+        Assert.assertEquals(0, leakDetector.scan());
+        Assert.assertEquals(1L, leakDetector.getNumLeaksReported());
+
+        connectionProvider.closeConnection(conn);
+        Assert.assertEquals(0, leakDetector.getNumTrackedConnections());
+        Assert.assertEquals(1L, leakDetector.getNumLateReturns());
+    }
+
+    @Test
+    public void testReturnedConnectionsAreNotReported() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        connectionProvider.closeConnection(conn);
+        ticker.advance(1, TimeUnit.HOURS);
+        Assert.assertEquals(0, leakDetector.scan());
+        Assert.assertEquals(0L, leakDetector.getNumLateReturns());
+    }
+
+    @Test
+    public void testTrackingIsBounded() throws Exception {
+        Connection first = connectionProvider.getConnection();
+        Connection second = connectionProvider.getConnection();
+
+        // the limit has been reached, so this checkout is only counted, without waiting for a scan
+        Connection third = connectionProvider.getConnection();
+        Assert.assertEquals(2, leakDetector.getNumTrackedConnections());
+        Assert.assertEquals(1L, leakDetector.getNumUntrackedCheckouts());
+
+        connectionProvider.closeConnection(first);
+        connectionProvider.closeConnection(second);
+        connectionProvider.closeConnection(third);
+        Assert.assertEquals(0, leakDetector.getNumTrackedConnections());
+        connectionProvider.getConnection();
+        Assert.assertEquals(1, leakDetector.getNumTrackedConnections());
+    }
+
+    @Test
+    public void testNestedCheckoutsAreCountedAgainstTheOuterCheckout() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        // a nested acquisition that is given the same connection
+        leakDetector.afterConnectionAcquired(connectionProvider, conn);
+        Assert.assertEquals(1, leakDetector.getNumTrackedConnections());
+
+        leakDetector.beforeClosingConnection(conn);
+        Assert.assertEquals(1, leakDetector.getNumTrackedConnections());
+        ticker.advance(1, TimeUnit.HOURS);
+        Assert.assertEquals(1, leakDetector.scan());
+
+        connectionProvider.closeConnection(conn);
+        Assert.assertEquals(0, leakDetector.getNumTrackedConnections());
+        Assert.assertEquals(1L, leakDetector.getNumLateReturns());
+    }
+
+    @Test
+    public void testUnreferencedConnectionsAreStillReported() throws Exception {
+        connectionProvider.getConnection();
+        // nothing refers to the connection any more, but it was never returned
+        System.gc();
+        ticker.advance(1, TimeUnit.HOURS);
+        Assert.assertEquals(1, leakDetector.scan());
+        Assert.assertEquals(1, leakDetector.getNumTrackedConnections());
+    }
+
+    private static class ManualTicker extends Ticker {
+
+        private long nanos;
+
+        void advance(long duration, TimeUnit unit) {
+            nanos += unit.toNanos(duration);
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.fitbit.hibernate.connection.listener;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.jdbc.InstrumentedConnectionUnitTest.StubConnectionProvider;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.Properties;
+
+public class RepeatedStatementDetectionListenerUnitTest {
+
+    private static final String TEST_JDBC_URL = "jdbc:somedriver://somehost:someport/somedatabase";
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private RepeatedStatementDetectionListener detector;
+
+    @Before
+    public void setupConnectionProvider() {
+        Properties props = new Properties();
+        props.setProperty(Environment.URL, TEST_JDBC_URL);
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            StubConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            RepeatedStatementDetectionListener.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.INSTRUMENT_STATEMENTS, "true");
+        props.setProperty(RepeatedStatementDetectionListener.REPEAT_THRESHOLD, "3");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        detector = connectionProvider.getListenerOfType(RepeatedStatementDetectionListener.class);
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        connectionProvider.close();
+    }
+
+    @Test
+    public void testRepeatedStatementsAcrossNestedCheckoutsAreFlagged() throws Exception {
+        Connection outer = connectionProvider.getConnection();
+        outer.prepareStatement("select * from users where id = 1").executeQuery();
+        outer.prepareStatement("select * from users where id = 2").executeQuery();
+
+        // statements executed on nested checkouts count towards the top-level checkout
+        Connection inner = connectionProvider.getConnection();
+        inner.prepareStatement("select * from users where id = 3").executeQuery();
+        connectionProvider.closeConnection(inner);
+        Assert.assertEquals(0L, detector.getStatementsPerCheckout().getCount());
+
+        connectionProvider.closeConnection(outer);
+        Assert.assertEquals(1L, detector.getStatementsPerCheckout().getCount());
+        Assert.assertEquals(3L, detector.getStatementsPerCheckout().getMax());
+        Assert.assertEquals(1L, detector.getNumFlaggedCheckouts());
+    }
+
+    @Test
+    public void testDistinctStatementsAreNotFlagged() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        conn.prepareStatement("select * from users where id = ?").executeQuery();
+        conn.prepareStatement("select * from devices where id = ?").executeQuery();
+        conn.prepareStatement("select * from users where id = ?").executeQuery();
+        connectionProvider.closeConnection(conn);
+
+        // each checkout starts over
+        conn = connectionProvider.getConnection();
+        conn.prepareStatement("select * from users where id = ?").executeQuery();
+        connectionProvider.closeConnection(conn);
+
+        Assert.assertEquals(2L, detector.getStatementsPerCheckout().getCount());
+        Assert.assertEquals(0L, detector.getNumFlaggedCheckouts());
+    }
+}
@@ -0,0 +1,227 @@
+package com.fitbit.hibernate.connection.pool;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.listener.ConnectionPoolMetricsListener;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class PoolingConnectionProviderUnitTest {
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private PoolingConnectionProvider pool;
+    private ConnectionPoolMetricsListener metricsListener;
+
+    @Before
+    public void setupConnectionProvider() {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:poolTestDb");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.POOL_SIZE, "2");
+        props.setProperty(PoolingConnectionProvider.BORROW_TIMEOUT_MILLIS, "200");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            PoolingConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            ConnectionPoolMetricsListener.class.getName());
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        pool = (PoolingConnectionProvider) connectionProvider.getWrappedConnectionProvider();
+        metricsListener = connectionProvider.getListenerOfType(ConnectionPoolMetricsListener.class);
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        connectionProvider.close();
+    }
+
+    @Test
+    public void testReturnedConnectionIsReusedBySameThread() throws Exception {
+        Connection first = connectionProvider.getConnection();
+        Assert.assertEquals(1, pool.getNumConnections());
+        connectionProvider.closeConnection(first);
+        Assert.assertEquals(1, pool.getNumIdleConnections());
+
+        Connection second = connectionProvider.getConnection();
+        Assert.assertSame(first, second);
+        connectionProvider.closeConnection(second);
+
+        Assert.assertEquals(1L, metricsListener.getNumBorrows(BorrowSource.NEW));
+        Assert.assertEquals(1L, metricsListener.getNumBorrows(BorrowSource.THREAD_LOCAL));
+        Assert.assertEquals(1L, metricsListener.getConnectionOpenTimes().getCount());
+        Assert.assertEquals(2L, metricsListener.getBorrowTimes().getCount());
+    }
+
+    @Test
+    public void testIdleConnectionIsSharedWithOtherThreads() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        connectionProvider.closeConnection(conn);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Connection borrowed = executor.submit(new Callable<Connection>() {
+                @Override
+                public Connection call() throws SQLException {
+                    Connection borrowed = connectionProvider.getConnection();
+                    connectionProvider.closeConnection(borrowed);
+                    return borrowed;
+                }
+            }).get(5, TimeUnit.SECONDS);
+            Assert.assertSame(conn, borrowed);
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1L, metricsListener.getNumBorrows(BorrowSource.SHARED));
+        Assert.assertEquals(1, pool.getNumConnections());
+    }
+
+    @Test
+    public void testConnectionReturnedTwiceIsOnlyPooledOnce() throws Exception {
+        Connection first = connectionProvider.getConnection();
+        Connection second = connectionProvider.getConnection();
+        connectionProvider.closeConnection(first);
+        // returning the connection again must be ignored rather than remembering it again, which would eventually
+        //      leave no room to remember the connections this thread returns next
+        for (int i = 0; i < 20; i++) {
+            connectionProvider.closeConnection(first);
+        }
+        connectionProvider.closeConnection(second);
+        Assert.assertEquals(2, pool.getNumConnections());
+        Assert.assertEquals(2, pool.getNumIdleConnections());
+
+        Assert.assertSame(second, connectionProvider.getConnection());
+        Assert.assertSame(first, connectionProvider.getConnection());
+        Assert.assertEquals(0, pool.getNumIdleConnections());
+        Assert.assertEquals(2L, metricsListener.getNumBorrows(BorrowSource.THREAD_LOCAL));
+        connectionProvider.closeConnection(first);
+        connectionProvider.closeConnection(second);
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenPoolIsExhausted() throws Exception {
+        Connection first = connectionProvider.getConnection();
+        Connection second = connectionProvider.getConnection();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, pool.getNumConnections());
+        try {
+            connectionProvider.getConnection();
+            Assert.fail("Expected the borrow to time out");
+        } catch (SQLException expected) {
+            // expected
+        }
+        Assert.assertEquals(1L, metricsListener.getFailedBorrowTimes().getCount());
+        Assert.assertTrue(metricsListener.getFailedBorrowTimes().getMax() >= TimeUnit.MILLISECONDS.toNanos(200));
+        connectionProvider.closeConnection(first);
+        connectionProvider.closeConnection(second);
+        Assert.assertEquals(2, pool.getNumIdleConnections());
+    }
+
+    @Test
+    public void testReturnedConnectionIsHandedToWaitingThread() throws Exception {
+        final Connection first = connectionProvider.getConnection();
+        Connection second = connectionProvider.getConnection();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Connection> waiter = executor.submit(new Callable<Connection>() {
+                @Override
+                public Connection call() throws SQLException {
+                    Connection borrowed = connectionProvider.getConnection();
+                    connectionProvider.closeConnection(borrowed);
+                    return borrowed;
+                }
+            });
+            while (pool.getNumWaitingThreads() == 0) {
+                Thread.sleep(1L);
+            }
+            connectionProvider.closeConnection(first);
+            Assert.assertSame(first, waiter.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        connectionProvider.closeConnection(second);
+        Assert.assertEquals(1L, metricsListener.getNumBorrows(BorrowSource.HANDOFF) +
+            metricsListener.getNumBorrows(BorrowSource.SHARED));
+        Assert.assertEquals(2, pool.getNumConnections());
+    }
+
+    @Test
+    public void testBrokenConnectionIsReplaced() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        conn.close();
+        connectionProvider.closeConnection(conn);
+        Assert.assertEquals(0, pool.getNumConnections());
+        Assert.assertEquals(1L, metricsListener.getNumConnectionsClosed());
+
+        Connection replacement = connectionProvider.getConnection();
+        Assert.assertNotSame(conn, replacement);
+        Assert.assertFalse(replacement.isClosed());
+        connectionProvider.closeConnection(replacement);
+        Assert.assertEquals(2L, metricsListener.getNumBorrows(BorrowSource.NEW));
+    }
+
+    @Test
+    public void testCloseClosesIdleAndReturnedConnections() throws Exception {
+        Connection idle = connectionProvider.getConnection();
+        Connection inUse = connectionProvider.getConnection();
+        connectionProvider.closeConnection(idle);
+
+        pool.close();
+        Assert.assertTrue(idle.isClosed());
+        Assert.assertFalse(inUse.isClosed());
+        connectionProvider.closeConnection(inUse);
+        Assert.assertTrue(inUse.isClosed());
+        Assert.assertEquals(0, pool.getNumConnections());
+        try {
+            connectionProvider.getConnection();
+            Assert.fail("Expected the closed pool to refuse to hand out connections");
+        } catch (SQLException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReturnedConnectionIsReset() throws Exception {
+        Connection conn = connectionProvider.getConnection();
+        int defaultIsolation = conn.getTransactionIsolation();
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("CREATE TABLE pool_reset (id INT)");
+            conn.commit();
+            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            statement.executeUpdate("INSERT INTO pool_reset VALUES (1)");
+        }
+        connectionProvider.closeConnection(conn);
+
+        // the uncommitted insert was rolled back rather than left for the next borrower to commit
+        conn = connectionProvider.getConnection();
+        try (Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM pool_reset")) {
+            Assert.assertTrue(resultSet.next());
+            Assert.assertEquals(0, resultSet.getInt(1));
+        }
+        Assert.assertEquals(defaultIsolation, conn.getTransactionIsolation());
+        conn.setReadOnly(true);
+        connectionProvider.closeConnection(conn);
+
+        conn = connectionProvider.getConnection();
+        Assert.assertFalse(conn.isReadOnly());
+        connectionProvider.closeConnection(conn);
+        Assert.assertEquals(1, pool.getNumConnections());
+    }
+}
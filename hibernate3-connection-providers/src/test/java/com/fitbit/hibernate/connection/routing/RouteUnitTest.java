@@ -0,0 +1,54 @@
+package com.fitbit.hibernate.connection.routing;
+
+import org.hibernate.connection.DriverManagerConnectionProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RouteUnitTest {
+
+    @Test
+    public void testSlowAcquisitionRaisesAverageImmediately() {
+        Route route = createRoute(60000L);
+        route.connectionAcquired(TimeUnit.MILLISECONDS.toNanos(1));
+        route.connectionAcquired(TimeUnit.MILLISECONDS.toNanos(200));
+        Assert.assertTrue(route.getLatencyEwmaNanos() > TimeUnit.MILLISECONDS.toNanos(190));
+
+        // faster acquisitions only lower the average gradually
+        route.connectionAcquired(TimeUnit.MILLISECONDS.toNanos(1));
+        Assert.assertTrue(route.getLatencyEwmaNanos() > TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testFailedAcquisitionIsPenalized() {
+        Route route = createRoute(60000L);
+        route.acquisitionFailed();
+        Assert.assertTrue(route.getLatencyEwmaNanos() > TimeUnit.MILLISECONDS.toNanos(900));
+        Assert.assertEquals(1L, route.getNumFailed());
+        Assert.assertEquals(0, route.getNumCheckedOut());
+    }
+
+    @Test
+    public void testAverageDecaysWithoutSamples() throws Exception {
+        Route route = createRoute(10L);
+        route.connectionAcquired(TimeUnit.MILLISECONDS.toNanos(500));
+        Thread.sleep(100L);
+        Assert.assertTrue(route.getLatencyEwmaNanos() < TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testLoadGrowsWithCheckedOutConnections() {
+        Route idle = createRoute(60000L);
+        Route busy = createRoute(60000L);
+        idle.connectionAcquired(TimeUnit.MILLISECONDS.toNanos(5));
+        idle.connectionReleased();
+        busy.connectionAcquired(TimeUnit.MILLISECONDS.toNanos(5));
+        busy.connectionAcquired(TimeUnit.MILLISECONDS.toNanos(5));
+        Assert.assertTrue(busy.getLoad() > idle.getLoad() * 2);
+    }
+
+    private static Route createRoute(long decayMillis) {
+        return new Route("replica", "jdbc:hsqldb:mem:routeTestDb", new DriverManagerConnectionProvider(), decayMillis);
+    }
+}
@@ -0,0 +1,120 @@
+package com.fitbit.hibernate.connection.routing;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.ConnectionRoutingListener;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class RoutingConnectionProviderUnitTest {
+
+    private InstrumentedConnectionProvider connectionProvider;
+
+    @After
+    public void closeConnectionProvider() {
+        RoutingContext.clear();
+        if (connectionProvider != null) {
+            connectionProvider.close();
+        }
+    }
+
+    @Test
+    public void testConnectionsAreRoutedByRouteType() throws Exception {
+        connectionProvider = createConnectionProvider("jdbc:hsqldb:mem:routingReplicaDb");
+        RoutingConnectionProvider router =
+            (RoutingConnectionProvider) connectionProvider.getWrappedConnectionProvider();
+        RecordingRoutingListener listener = connectionProvider.getListenerOfType(RecordingRoutingListener.class);
+        Route primary = router.getRoute("primary");
+        Route replica = router.getRoute("replica");
+        Assert.assertSame(primary, router.getWriteRoute());
+
+        Connection writeConn = connectionProvider.getConnection();
+        Assert.assertEquals("jdbc:hsqldb:mem:routingPrimaryDb", writeConn.getMetaData().getURL());
+
+        RouteType previous = RoutingContext.setRouteType(RouteType.READ_ONLY);
+        Assert.assertNull(previous);
+        Connection readConn = connectionProvider.getConnection();
+        Assert.assertEquals("jdbc:hsqldb:mem:routingReplicaDb", readConn.getMetaData().getURL());
+        Assert.assertEquals(1, primary.getNumCheckedOut());
+        Assert.assertEquals(1, replica.getNumCheckedOut());
+
+        // connections go back to the pool they came from, whatever the route type of the closing thread
+        connectionProvider.closeConnection(writeConn);
+        RoutingContext.clear();
+        connectionProvider.closeConnection(readConn);
+        Assert.assertEquals(0, primary.getNumCheckedOut());
+        Assert.assertEquals(0, replica.getNumCheckedOut());
+        Assert.assertEquals(1, ((PoolingConnectionProvider) primary.getConnectionProvider()).getNumIdleConnections());
+        Assert.assertEquals(1, ((PoolingConnectionProvider) replica.getConnectionProvider()).getNumIdleConnections());
+
+        Assert.assertEquals(2, listener.events.size());
+        Assert.assertEquals("primary:READ_WRITE", listener.events.get(0));
+        Assert.assertEquals("replica:READ_ONLY", listener.events.get(1));
+    }
+
+    @Test
+    public void testFailedReadRouteFallsBackToWriteRoute() throws Exception {
+        // nothing listens on this port, so the replica cannot be reached
+        connectionProvider = createConnectionProvider("jdbc:hsqldb:hsql://localhost:1/unreachable");
+        RoutingConnectionProvider router =
+            (RoutingConnectionProvider) connectionProvider.getWrappedConnectionProvider();
+        RecordingRoutingListener listener = connectionProvider.getListenerOfType(RecordingRoutingListener.class);
+
+        RoutingContext.setRouteType(RouteType.READ_ONLY);
+        Connection readConn = connectionProvider.getConnection();
+        Assert.assertEquals("jdbc:hsqldb:mem:routingPrimaryDb", readConn.getMetaData().getURL());
+        connectionProvider.closeConnection(readConn);
+
+        Assert.assertEquals(1L, router.getRoute("replica").getNumFailed());
+        Assert.assertEquals(1L, router.getRoute("primary").getNumAcquired());
+        Assert.assertEquals("replica:READ_ONLY:failed", listener.events.get(0));
+        Assert.assertEquals("primary:READ_ONLY", listener.events.get(1));
+    }
+
+    private static InstrumentedConnectionProvider createConnectionProvider(String replicaUrl) {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:routingPrimaryDb");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.POOL_SIZE, "2");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            RoutingConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.CONNECTION_PROVIDER_LISTENERS,
+            RecordingRoutingListener.class.getName());
+        props.setProperty(RoutingConnectionProvider.ROUTES, "primary, replica");
+        props.setProperty(RoutingConnectionProvider.DELEGATE_PROVIDER_CLASS, PoolingConnectionProvider.class.getName());
+        props.setProperty(RoutingConnectionProvider.ROUTE_PROPERTY_PREFIX + "replica.connection.url", replicaUrl);
+        return (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+    }
+
+    public static class RecordingRoutingListener implements ConnectionRoutingListener {
+        final List<String> events = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void initialize(ConnectionProviderListenerSettings settings) {
+        }
+
+        @Override
+        public void afterConnectionRouted(RoutingConnectionProvider router, Route route, RouteType routeType) {
+            events.add(route.getName() + ":" + routeType);
+        }
+
+        @Override
+        public void afterConnectionRoutingFailed(RoutingConnectionProvider router, Route route, RouteType routeType,
+                                                 Throwable exc) {
+            events.add(route.getName() + ":" + routeType + ":failed");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.fitbit.hibernate.connection.shard;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.Properties;
+
+public class ShardedConnectionProviderUnitTest {
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private ShardedConnectionProvider shardedProvider;
+
+    @Before
+    public void setupConnectionProvider() {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:shard0Db");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.POOL_SIZE, "2");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            ShardedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.PREWARM_CONNECTIONS, "1");
+        props.setProperty(ShardedConnectionProvider.SHARDS, "shard0, shard1");
+        props.setProperty(ShardedConnectionProvider.DELEGATE_PROVIDER_CLASS, PoolingConnectionProvider.class.getName());
+        props.setProperty(ShardedConnectionProvider.SHARD_PROPERTY_PREFIX + "shard1.connection.url",
+            "jdbc:hsqldb:mem:shard1Db");
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        shardedProvider = (ShardedConnectionProvider) connectionProvider.getWrappedConnectionProvider();
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        ShardContext.clear();
+        connectionProvider.close();
+    }
+
+    @Test
+    public void testEveryShardIsWarmedUp() {
+        for (Shard shard : shardedProvider.getShards()) {
+            Assert.assertEquals(1, ((PoolingConnectionProvider) shard.getConnectionProvider()).getNumIdleConnections());
+        }
+    }
+
+    @Test
+    public void testConnectionsAreRoutedByShardKey() throws Exception {
+        Shard shard0 = shardedProvider.getShard("shard0");
+        Shard shard1 = shardedProvider.getShard("shard1");
+
+        ShardContext.setShardKey(3L);
+        Connection conn1 = connectionProvider.getConnection();
+        Assert.assertEquals("jdbc:hsqldb:mem:shard1Db", conn1.getMetaData().getURL());
+        ShardContext.setShardKey(4);
+        Connection conn0 = connectionProvider.getConnection();
+        Assert.assertEquals("jdbc:hsqldb:mem:shard0Db", conn0.getMetaData().getURL());
+        Assert.assertEquals(1, shard0.getNumCheckedOut());
+        Assert.assertEquals(1, shard1.getNumCheckedOut());
+
+        // connections go back to the shard they came from, whatever the shard key of the closing thread
+        ShardContext.clear();
+        connectionProvider.closeConnection(conn1);
+        connectionProvider.closeConnection(conn0);
+        Assert.assertEquals(0, shard0.getNumCheckedOut());
+        Assert.assertEquals(0, shard1.getNumCheckedOut());
+        Assert.assertEquals(1L, shard1.getNumAcquired());
+        Assert.assertEquals(1L, shard1.getAcquisitionTimes().getCount());
+    }
+
+    @Test
+    public void testConnectionsWithoutShardKeyUseDefaultShard() throws Exception {
+        Assert.assertSame(shardedProvider.getShard("shard0"), shardedProvider.getDefaultShard());
+        Connection conn = connectionProvider.getConnection();
+        Assert.assertEquals("jdbc:hsqldb:mem:shard0Db", conn.getMetaData().getURL());
+        connectionProvider.closeConnection(conn);
+    }
+
+    @Test
+    public void testModuloStrategyHandlesNegativeKeys() {
+        ModuloShardStrategy strategy = new ModuloShardStrategy();
+        Assert.assertEquals(2, strategy.resolveShard(-1L, 3));
+        Assert.assertEquals(1, strategy.resolveShard(7, 3));
+        int index = strategy.resolveShard("user-42", 3);
+        Assert.assertTrue(index >= 0 && index < 3);
+    }
+}
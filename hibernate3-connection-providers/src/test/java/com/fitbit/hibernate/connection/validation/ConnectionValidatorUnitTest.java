@@ -0,0 +1,127 @@
+package com.fitbit.hibernate.connection.validation;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+public class ConnectionValidatorUnitTest {
+
+    private InstrumentedConnectionProvider connectionProvider;
+    private ConnectionValidator validator;
+
+    private void setupConnectionProvider(int windowMillis, String validationQuery) {
+        Properties props = new Properties();
+        props.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        props.setProperty(Environment.URL, "jdbc:hsqldb:mem:validationTestDb");
+        props.setProperty(Environment.USER, "sa");
+        props.setProperty(Environment.PASS, "");
+        props.setProperty(Environment.POOL_SIZE, "1");
+        props.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            PoolingConnectionProvider.class.getName());
+        props.setProperty(InstrumentedConnectionProvider.VALIDATION_ENABLED, "true");
+        props.setProperty(InstrumentedConnectionProvider.VALIDATION_WINDOW_MILLIS, Integer.toString(windowMillis));
+        if (validationQuery != null) {
+            props.setProperty(InstrumentedConnectionProvider.VALIDATION_QUERY, validationQuery);
+        }
+        connectionProvider = (InstrumentedConnectionProvider) ConnectionProviderFactory.newConnectionProvider(props);
+        validator = connectionProvider.getConnectionValidator();
+    }
+
+    @After
+    public void closeConnectionProvider() {
+        if (connectionProvider != null) {
+            connectionProvider.close();
+        }
+    }
+
+    @Test
+    public void testRecentlyValidatedConnectionIsSkipped() throws Exception {
+        setupConnectionProvider(60000, null);
+        Assert.assertNotNull(validator);
+
+        connectionProvider.closeConnection(connectionProvider.getConnection());
+        Assert.assertEquals(1L, validator.getNumValidated());
+        connectionProvider.closeConnection(connectionProvider.getConnection());
+        Assert.assertEquals(1L, validator.getNumValidated());
+        Assert.assertEquals(1L, validator.getNumSkipped());
+    }
+
+    @Test
+    public void testSuccessfulStatementExtendsWindow() throws Exception {
+        setupConnectionProvider(50, null);
+
+        Connection conn = connectionProvider.getConnection();
+        Thread.sleep(100L);
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_TABLES");
+        }
+        connectionProvider.closeConnection(conn);
+        connectionProvider.closeConnection(connectionProvider.getConnection());
+        Assert.assertEquals(1L, validator.getNumValidated());
+        Assert.assertEquals(1L, validator.getNumSkipped());
+
+        // once the window has passed without any statements, the connection is validated again
+        Thread.sleep(100L);
+        connectionProvider.closeConnection(connectionProvider.getConnection());
+        Assert.assertEquals(2L, validator.getNumValidated());
+    }
+
+    @Test
+    public void testBrokenConnectionsAreReplacedThenGivenUp() throws Exception {
+        setupConnectionProvider(60000, "SELECT * FROM missing_table");
+
+        try {
+            connectionProvider.getConnection();
+            Assert.fail("Expected every validation to fail");
+        } catch (SQLException expected) {
+            Assert.assertEquals(3L, validator.getNumValidated());
+            Assert.assertEquals(3L, validator.getNumFailed());
+        }
+    }
+
+    @Test
+    public void testMissingReplacementConnectionFailsValidation() throws Exception {
+        Connection connection = mock(Connection.class);
+        when(connection.createStatement()).thenThrow(new SQLException("Connection is broken"));
+        // the delegate mock hands out no connection to replace the broken one with
+        ConnectionProvider delegate = mock(ConnectionProvider.class);
+
+        ConnectionValidator queryValidator = new ConnectionValidator("jdbc:hsqldb:mem:validationTestDb", 0L, 7,
+            "SELECT 1");
+        try {
+            queryValidator.validate(connection, delegate);
+            Assert.fail("Expected the validation to fail without a replacement connection");
+        } catch (SQLException expected) {
+            Assert.assertEquals(1L, queryValidator.getNumFailed());
+        }
+        verify(delegate).closeConnection(connection);
+    }
+
+    @Test
+    public void testValidationQueryIsBoundedByTimeout() throws Exception {
+        Connection connection = mock(Connection.class);
+        Statement statement = mock(Statement.class);
+        when(connection.createStatement()).thenReturn(statement);
+
+        ConnectionValidator queryValidator = new ConnectionValidator("jdbc:hsqldb:mem:validationTestDb", 0L, 7,
+            "SELECT 1");
+        Assert.assertSame(connection, queryValidator.validate(connection, mock(ConnectionProvider.class)));
+        verify(statement).setQueryTimeout(7);
+    }
+}
@@ -0,0 +1,86 @@
+package com.fitbit.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IdentityLongTableUnitTest {
+
+    @Test
+    public void testKeysComparedByIdentity() {
+        IdentityLongTable table = new IdentityLongTable();
+        String key = new String("key");
+        String equalKey = new String("key");
+        Assert.assertEquals(IdentityLongTable.NO_VALUE, table.put(key, 1L));
+        Assert.assertEquals(IdentityLongTable.NO_VALUE, table.get(equalKey));
+        Assert.assertEquals(IdentityLongTable.NO_VALUE, table.putIfAbsent(equalKey, 2L));
+        Assert.assertEquals(2, table.size());
+
+        Assert.assertEquals(1L, table.putIfAbsent(key, 3L));
+        Assert.assertEquals(1L, table.put(key, 4L));
+        Assert.assertEquals(4L, table.get(key));
+        Assert.assertEquals(4L, table.remove(key));
+        Assert.assertEquals(IdentityLongTable.NO_VALUE, table.remove(key));
+        Assert.assertEquals(2L, table.get(equalKey));
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testRemovalKeepsRemainingKeysReachable() {
+        IdentityLongTable table = new IdentityLongTable();
+        List<Object> keys = new ArrayList<>();
+        // enough keys to resize every segment several times and leave long probe sequences behind
+        for (int i = 0; i < 10000; i++) {
+            Object key = new Object();
+            keys.add(key);
+            table.put(key, i);
+        }
+        Assert.assertEquals(10000, table.size());
+
+        for (int i = 0; i < keys.size(); i += 2) {
+            Assert.assertEquals(i, table.remove(keys.get(i)));
+        }
+        Assert.assertEquals(5000, table.size());
+        for (int i = 0; i < keys.size(); i++) {
+            long expected = (i % 2 == 0 ? IdentityLongTable.NO_VALUE : i);
+            Assert.assertEquals(expected, table.get(keys.get(i)));
+        }
+    }
+
+    @Test
+    public void testConcurrentUpdatesOfDistinctKeys() throws Exception {
+        final IdentityLongTable table = new IdentityLongTable();
+        final AtomicInteger numLostValues = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        Object key = new Object();
+                        table.put(key, i);
+                        if (table.remove(key) != i) {
+                            numLostValues.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, numLostValues.get());
+        Assert.assertEquals(0, table.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoValueCannotBeStored() {
+        new IdentityLongTable().put(new Object(), IdentityLongTable.NO_VALUE);
+    }
+}
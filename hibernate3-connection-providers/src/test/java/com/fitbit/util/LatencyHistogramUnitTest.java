@@ -0,0 +1,60 @@
+package com.fitbit.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramUnitTest {
+
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.SECONDS);
+        Assert.assertEquals(0L, histogram.getCount());
+        Assert.assertEquals(0L, histogram.getP99());
+        Assert.assertEquals(0L, histogram.getMax());
+    }
+
+    @Test
+    public void testPercentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.MINUTES);
+        // record 1..10000 microseconds, expressed in nanoseconds
+        for (long micros = 1; micros <= 10000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        Assert.assertEquals(10000L, histogram.getCount());
+        Assert.assertEquals(TimeUnit.MICROSECONDS.toNanos(10000), histogram.getMax());
+        assertWithinPrecision(TimeUnit.MICROSECONDS.toNanos(5000), histogram.getP50());
+        assertWithinPrecision(TimeUnit.MICROSECONDS.toNanos(9900), histogram.getP99());
+        assertWithinPrecision(TimeUnit.MICROSECONDS.toNanos(9990), histogram.getP999());
+        Assert.assertEquals(TimeUnit.MICROSECONDS.toNanos(10000), histogram.getValueAtPercentile(100.0));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.SECONDS);
+        histogram.record(3);
+        histogram.record(5);
+        Assert.assertEquals(3L, histogram.getValueAtPercentile(50.0));
+        Assert.assertEquals(5L, histogram.getMax());
+        Assert.assertEquals(4.0, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void testValuesAboveRangeAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.SECONDS);
+        histogram.record(TimeUnit.MINUTES.toNanos(5));
+        Assert.assertEquals(1L, histogram.getCount());
+        // the exact maximum is still tracked even though the bucket is clamped
+        Assert.assertEquals(TimeUnit.MINUTES.toNanos(5), histogram.getMax());
+
+        histogram.reset();
+        Assert.assertEquals(0L, histogram.getCount());
+        Assert.assertEquals(0L, histogram.getMax());
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        double tolerance = expected / (double) (1 << LatencyHistogram.DEFAULT_PRECISION_BITS);
+        Assert.assertEquals(expected, actual, tolerance);
+    }
+}
@@ -0,0 +1,312 @@
+package com.fitbit.hibernate.connection;
+
+import com.fitbit.hibernate.connection.event.AsyncOverflowPolicy;
+import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
+import com.fitbit.hibernate.connection.event.PostConnectionCloseListener;
+import com.fitbit.util.StripedLongCounter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Dispatches post-acquisition and post-close listener events on a single background thread so that slow listeners do
+ * not add to the latency of {@link InstrumentedConnectionProvider#getConnection()} and
+ * {@link InstrumentedConnectionProvider#closeConnection(Connection)}. <br/>
+ * Events are written into a bounded, multi-producer ring of preallocated event records, so publishing an event does not
+ * allocate. Each slot carries a sequence number that tells producers when the slot is free to be claimed and tells the
+ * consumer when it has been fully written, so no locks are needed on either side. What happens when the ring is full
+ * is determined by the configured {@link AsyncOverflowPolicy}.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+final class AsyncListenerDispatcher implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncListenerDispatcher.class);
+
+    private static final int CONNECTION_ACQUIRED = 1;
+    private static final int CONNECTION_ACQUISITION_FAILED = 2;
+    private static final int CONNECTION_CLOSED = 3;
+    private static final int CONNECTION_CLOSING_FAILED = 4;
+
+    /** number of times the consumer re-checks an empty ring before parking */
+    private static final int IDLE_SPINS = 100;
+    /** upper bound for how long the consumer parks when idle, in case a wake-up is missed */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /** how long a producer parks between attempts when the ring is full and the policy is to block */
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private final InstrumentedConnectionProvider connectionProvider;
+    private final PostConnectionAcquisitionListener[] postAcquisitionListeners;
+    private final PostConnectionCloseListener[] postCloseListeners;
+    private final AsyncOverflowPolicy overflowPolicy;
+
+    private final Event[] ring;
+    private final int mask;
+
+    // next sequence to be claimed by a producer
+    private final AtomicLong producerSequence = new AtomicLong();
+    // next sequence to be consumed, only ever accessed by the consumer thread
+    private long consumerSequence;
+
+    private final AtomicLong numDroppedEvents = new AtomicLong();
+    private final AtomicLong numInlineEvents = new AtomicLong();
+
+    // producers that are in the middle of publishing, which shutdown waits for before its final drain. Each thread
+    //      counts itself in its own cell, so this stays cheap for producers and a producer in flight is never missed
+    private final StripedLongCounter publishersInFlight = new StripedLongCounter();
+
+    private final Thread consumerThread;
+    private volatile boolean consumerParked;
+    private volatile boolean running;
+
+    AsyncListenerDispatcher(@Nonnull InstrumentedConnectionProvider connectionProvider,
+                            @Nonnull PostConnectionAcquisitionListener[] postAcquisitionListeners,
+                            @Nonnull PostConnectionCloseListener[] postCloseListeners,
+                            int bufferSize, @Nonnull AsyncOverflowPolicy overflowPolicy) {
+        this.connectionProvider = connectionProvider;
+        this.postAcquisitionListeners = postAcquisitionListeners;
+        this.postCloseListeners = postCloseListeners;
+        this.overflowPolicy = overflowPolicy;
+
+        // round the capacity up to a power of two so that slots can be located with a mask
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        ring = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Event(i);
+        }
+        mask = capacity - 1;
+
+        consumerThread = new Thread(this, "ConnectionProviderListenerDispatcher[" +
+            connectionProvider.getJdbcUrl() + "]");
+        consumerThread.setDaemon(true);
+    }
+
+    /**
+     * Starts the background thread that invokes the listeners.
+     */
+    void start() {
+        running = true;
+        consumerThread.start();
+    }
+
+    /**
+     * Stops accepting events, waits up to <strong>timeoutMillis</strong> for any buffered events to be dispatched, and
+     * then stops the background thread. Events published after this method is called are dispatched inline, and
+     * events from producers that saw the dispatcher still running are dispatched on the calling thread once those
+     * producers are done.
+     */
+    void shutdown(long timeoutMillis) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        running = false;
+        LockSupport.unpark(consumerThread);
+        try {
+            consumerThread.join(timeoutMillis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (consumerThread.isAlive()) {
+            log.warn("Timed out waiting for listener events to be dispatched for {}", connectionProvider.getJdbcUrl());
+        } else {
+            // a producer that saw the dispatcher running may still be writing an event after the consumer thread
+            //      exited, so wait for it to finish before dispatching anything left in the ring
+            while (publishersInFlight.sum() > 0 && System.nanoTime() - deadlineNanos < 0) {
+                LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+            }
+            while (consumeNext()) {
+                // keep draining
+            }
+            if (publishersInFlight.sum() > 0) {
+                log.warn("Timed out waiting for listener events to be published for {}, some may not be dispatched",
+                    connectionProvider.getJdbcUrl());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of events that were discarded because the buffer was full.
+     */
+    long getNumDroppedEvents() {
+        return numDroppedEvents.get();
+    }
+
+    /**
+     * Returns the number of events that were dispatched on the calling thread because the buffer was full or the
+     * dispatcher had been shut down.
+     */
+    long getNumInlineEvents() {
+        return numInlineEvents.get();
+    }
+
+    void connectionAcquired(Connection connection) {
+        if (postAcquisitionListeners.length > 0 && !publish(CONNECTION_ACQUIRED, connection, null)) {
+            connectionProvider.invokeConnectionAcquired(postAcquisitionListeners, connection);
+        }
+    }
+
+    void connectionAcquisitionFailed(Throwable exception) {
+        if (postAcquisitionListeners.length > 0 && !publish(CONNECTION_ACQUISITION_FAILED, null, exception)) {
+            connectionProvider.invokeAcquisitionFailed(postAcquisitionListeners, exception);
+        }
+    }
+
+    void connectionClosed() {
+        if (postCloseListeners.length > 0 && !publish(CONNECTION_CLOSED, null, null)) {
+            connectionProvider.invokeConnectionClosed(postCloseListeners);
+        }
+    }
+
+    void connectionClosingFailed(Connection connection, Throwable exception) {
+        if (postCloseListeners.length > 0 && !publish(CONNECTION_CLOSING_FAILED, connection, exception)) {
+            connectionProvider.invokeCloseFailed(postCloseListeners, connection, exception);
+        }
+    }
+
+    /**
+     * Writes an event into the ring, applying the overflow policy if it is full.
+     * @return <code>true</code> if the event was published or dropped, <code>false</code> if the caller must dispatch
+     *          it inline instead
+     */
+    private boolean publish(int type, Connection connection, Throwable exception) {
+        // count this producer before checking whether the dispatcher is running, so that shutdown either sees it in
+        //      flight or finds its event in the ring
+        publishersInFlight.increment();
+        try {
+            while (running) {
+                if (tryPublish(type, connection, exception)) {
+                    return true;
+                }
+                switch (overflowPolicy) {
+                    case DROP:
+                        if (numDroppedEvents.getAndIncrement() == 0) {
+                            log.warn("Listener event buffer for {} is full, events will be dropped",
+                                connectionProvider.getJdbcUrl());
+                        }
+                        return true;
+                    case BLOCK:
+                        LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+                        break;
+                    default:
+                        numInlineEvents.incrementAndGet();
+                        return false;
+                }
+            }
+        } finally {
+            publishersInFlight.add(-1L);
+        }
+        numInlineEvents.incrementAndGet();
+        return false;
+    }
+
+    private boolean tryPublish(int type, Connection connection, Throwable exception) {
+        long sequence = producerSequence.get();
+        while (true) {
+            Event event = ring[(int) sequence & mask];
+            long available = event.sequence - sequence;
+            if (available == 0) {
+                // the slot is free for this sequence, so try to claim it
+                if (producerSequence.compareAndSet(sequence, sequence + 1)) {
+                    event.type = type;
+                    event.connection = connection;
+                    event.exception = exception;
+                    // publish the written record to the consumer
+                    event.sequence = sequence + 1;
+                    if (consumerParked) {
+                        LockSupport.unpark(consumerThread);
+                    }
+                    return true;
+                }
+                sequence = producerSequence.get();
+            } else if (available < 0) {
+                // the consumer has not yet released this slot from the previous lap, so the ring is full
+                return false;
+            } else {
+                // another producer claimed this sequence first
+                sequence = producerSequence.get();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        int idleCount = 0;
+        while (true) {
+            if (consumeNext()) {
+                idleCount = 0;
+            } else if (!running) {
+                // nothing left to dispatch and no more events will be accepted
+                return;
+            } else if (++idleCount < IDLE_SPINS) {
+                Thread.yield();
+            } else {
+                consumerParked = true;
+                // re-check after advertising that we are parked so that a concurrent publish is not missed
+                if (!hasNext()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                consumerParked = false;
+            }
+        }
+    }
+
+    private boolean hasNext() {
+        return ring[(int) consumerSequence & mask].sequence == consumerSequence + 1;
+    }
+
+    private boolean consumeNext() {
+        Event event = ring[(int) consumerSequence & mask];
+        if (event.sequence != consumerSequence + 1) {
+            return false;
+        }
+        int type = event.type;
+        Connection connection = event.connection;
+        Throwable exception = event.exception;
+        // clear the references so the ring does not keep connections or exceptions reachable, then release the slot
+        //      to producers for the next lap
+        event.connection = null;
+        event.exception = null;
+        event.sequence = consumerSequence + ring.length;
+        consumerSequence++;
+
+        switch (type) {
+            case CONNECTION_ACQUIRED:
+                connectionProvider.invokeConnectionAcquired(postAcquisitionListeners, connection);
+                break;
+            case CONNECTION_ACQUISITION_FAILED:
+                connectionProvider.invokeAcquisitionFailed(postAcquisitionListeners, exception);
+                break;
+            case CONNECTION_CLOSED:
+                connectionProvider.invokeConnectionClosed(postCloseListeners);
+                break;
+            case CONNECTION_CLOSING_FAILED:
+                connectionProvider.invokeCloseFailed(postCloseListeners, connection, exception);
+                break;
+            default:
+                log.error("Unknown listener event type {} for {}", type, connectionProvider.getJdbcUrl());
+        }
+        return true;
+    }
+
+    /**
+     * Preallocated event record occupying one slot of the ring.
+     */
+    private static final class Event {
+        // sequence == claimable producer sequence when free, or that sequence + 1 once written
+        volatile long sequence;
+        int type;
+        Connection connection;
+        Throwable exception;
+
+        Event(long initialSequence) {
+            this.sequence = initialSequence;
+        }
+    }
+}
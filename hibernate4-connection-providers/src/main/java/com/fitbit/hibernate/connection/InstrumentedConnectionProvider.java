@@ -1,19 +1,53 @@
 package com.fitbit.hibernate.connection;
 
+import com.fitbit.hibernate.connection.async.AsyncConnectionAcquirer;
+import com.fitbit.hibernate.connection.breaker.CircuitBreakerOpenException;
+import com.fitbit.hibernate.connection.breaker.ConnectionCircuitBreaker;
+import com.fitbit.hibernate.connection.bulkhead.Bulkhead;
+import com.fitbit.hibernate.connection.bulkhead.BulkheadFullException;
+import com.fitbit.hibernate.connection.bulkhead.ConnectionBulkheads;
+import com.fitbit.hibernate.connection.bulkhead.PartitionResolver;
+import com.fitbit.hibernate.connection.bulkhead.ThreadLocalPartitionResolver;
+import com.fitbit.hibernate.connection.event.AsyncOverflowPolicy;
+import com.fitbit.hibernate.connection.event.CircuitBreakerListener;
+import com.fitbit.hibernate.connection.event.ConnectionPoolListener;
 import com.fitbit.hibernate.connection.event.ConnectionProviderAware;
 import com.fitbit.hibernate.connection.event.ConnectionProviderListener;
 import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.ConnectionRoutingListener;
+import com.fitbit.hibernate.connection.event.ConnectionWarmUpListener;
+import com.fitbit.hibernate.connection.event.FailoverListener;
 import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
 import com.fitbit.hibernate.connection.event.PostConnectionCloseListener;
 import com.fitbit.hibernate.connection.event.PreConnectionAcquisitionListener;
 import com.fitbit.hibernate.connection.event.PreConnectionCloseListener;
+import com.fitbit.hibernate.connection.event.StatementExecutionListener;
+import com.fitbit.hibernate.connection.event.StoppableListener;
+import com.fitbit.hibernate.connection.event.SynchronousListener;
+import com.fitbit.hibernate.connection.jdbc.InstrumentedConnection;
+import com.fitbit.hibernate.connection.jdbc.SessionStateCache;
+import com.fitbit.hibernate.connection.jdbc.StatementEventDispatcher;
+import com.fitbit.hibernate.connection.limit.AdaptiveConcurrencyLimiter;
+import com.fitbit.hibernate.connection.limit.ConcurrencyLimitExceededException;
+import com.fitbit.hibernate.connection.failover.FailoverConnectionProvider;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+import com.fitbit.hibernate.connection.routing.RouteType;
+import com.fitbit.hibernate.connection.routing.RoutingConnectionProvider;
+import com.fitbit.hibernate.connection.routing.RoutingContext;
+import com.fitbit.hibernate.connection.shard.Shard;
+import com.fitbit.hibernate.connection.shard.ShardContext;
+import com.fitbit.hibernate.connection.shard.ShardedConnectionProvider;
+import com.fitbit.hibernate.connection.validation.ConnectionValidator;
+import com.fitbit.util.StripedLongCounter;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.commons.lang3.StringUtils;
 import org.hibernate.HibernateException;
 import org.hibernate.cfg.Environment;
 import org.hibernate.engine.jdbc.connections.internal.ConnectionProviderInitiator;
 import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.internal.util.config.ConfigurationHelper;
 import org.hibernate.service.spi.Configurable;
 import org.hibernate.service.spi.ServiceRegistryAwareService;
 import org.hibernate.service.spi.ServiceRegistryImplementor;
@@ -26,9 +60,14 @@ import java.lang.reflect.InvocationTargetException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -37,7 +76,19 @@ import javax.annotation.Nullable;
  * ConnectionProvider implementation that can be used to wrap another provider such that listeners and any associated
  * instrumentation can be applied on the ConnectionProvider level. <br/>
  * Be sure to include the delegating provider class name along with the listener class names when configuring this
- * connection provider.
+ * connection provider. <br/>
+ * If the &quot;hibernate.connection.reuse_nested_connections&quot; Hibernate property is enabled, a thread that
+ * acquires a connection while it still holds one, such as when opening a nested Session, is handed the connection it
+ * already holds, unless its {@link com.fitbit.hibernate.connection.shard.ShardContext} shard key or
+ * {@link com.fitbit.hibernate.connection.routing.RoutingContext} route type has changed since, in which case it
+ * acquires a connection of its own. The held connection is only returned to the delegate once every acquisition on
+ * that thread that was handed it has closed it, so in this mode connections must be closed on the thread that acquired
+ * them. Listeners are still notified of every acquisition and close, including the nested ones. <br/>
+ * Nested acquisitions that share a connection also share its transaction: a nested Session that commits or rolls back
+ * commits or rolls back the outer Session's work along with its own, and neither is isolated from the other's
+ * uncommitted changes. Only enable nested connection reuse where nested Sessions do work that belongs to the outer
+ * transaction anyway, not where they rely on a transaction of their own, such as audit records that must survive a
+ * rollback of the outer work.
  *
  * @author dgarson
  */
@@ -46,6 +97,77 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
 
     public static final String DELEGATE_CONNECTION_PROVIDER_CLASS = "hibernate.connection.delegate_provider_class";
     public static final String CONNECTION_PROVIDER_LISTENERS = "hibernate.connection.provider_listener_classes";
+    public static final String ASYNC_LISTENER_DISPATCH = "hibernate.connection.provider_listener_async";
+    public static final String ASYNC_LISTENER_BUFFER_SIZE = "hibernate.connection.provider_listener_async_buffer_size";
+    public static final String ASYNC_LISTENER_OVERFLOW_POLICY =
+        "hibernate.connection.provider_listener_async_overflow_policy";
+    public static final String INSTRUMENT_STATEMENTS = "hibernate.connection.instrument_statements";
+    public static final String REUSE_NESTED_CONNECTIONS = "hibernate.connection.reuse_nested_connections";
+    public static final String CHECKOUT_CONTEXT_ENABLED = "hibernate.connection.checkout_context.enabled";
+    public static final String PREWARM_CONNECTIONS = "hibernate.connection.prewarm.connections";
+    public static final String PREWARM_THREADS = "hibernate.connection.prewarm.threads";
+    public static final String PREWARM_TIMEOUT_MILLIS = "hibernate.connection.prewarm.timeout_millis";
+    public static final String PREWARM_VALIDATION_QUERY = "hibernate.connection.prewarm.validation_query";
+    public static final String CONCURRENCY_LIMIT_ENABLED = "hibernate.connection.concurrency_limit.enabled";
+    public static final String CONCURRENCY_LIMIT_INITIAL = "hibernate.connection.concurrency_limit.initial";
+    public static final String CONCURRENCY_LIMIT_MIN = "hibernate.connection.concurrency_limit.min";
+    public static final String CONCURRENCY_LIMIT_MAX = "hibernate.connection.concurrency_limit.max";
+    public static final String CONCURRENCY_LIMIT_QUEUE_SIZE = "hibernate.connection.concurrency_limit.queue_size";
+    public static final String CONCURRENCY_LIMIT_QUEUE_TIMEOUT_MILLIS =
+        "hibernate.connection.concurrency_limit.queue_timeout_millis";
+    public static final String CIRCUIT_BREAKER_ENABLED = "hibernate.connection.circuit_breaker.enabled";
+    public static final String CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD =
+        "hibernate.connection.circuit_breaker.failure_rate_threshold";
+    public static final String CIRCUIT_BREAKER_WINDOW_SIZE = "hibernate.connection.circuit_breaker.window_size";
+    public static final String CIRCUIT_BREAKER_MINIMUM_CALLS = "hibernate.connection.circuit_breaker.minimum_calls";
+    public static final String CIRCUIT_BREAKER_OPEN_DURATION_MILLIS =
+        "hibernate.connection.circuit_breaker.open_duration_millis";
+    public static final String CIRCUIT_BREAKER_HALF_OPEN_PROBES =
+        "hibernate.connection.circuit_breaker.half_open_probes";
+    public static final String BULKHEAD_PARTITIONS = "hibernate.connection.bulkhead.partitions";
+    public static final String BULKHEAD_DEFAULT_PARTITION = "hibernate.connection.bulkhead.default_partition";
+    public static final String BULKHEAD_MAX_WAIT_MILLIS = "hibernate.connection.bulkhead.max_wait_millis";
+    public static final String BULKHEAD_PARTITION_RESOLVER = "hibernate.connection.bulkhead.partition_resolver_class";
+    public static final String VALIDATION_ENABLED = "hibernate.connection.validation.enabled";
+    public static final String VALIDATION_WINDOW_MILLIS = "hibernate.connection.validation.window_millis";
+    public static final String VALIDATION_TIMEOUT_SECONDS = "hibernate.connection.validation.timeout_seconds";
+    public static final String VALIDATION_QUERY = "hibernate.connection.validation.query";
+    public static final String SESSION_STATE_CACHE_ENABLED = "hibernate.connection.session_state_cache.enabled";
+    public static final String ASYNC_ACQUISITION_THREADS = "hibernate.connection.async_acquisition.threads";
+    public static final String ASYNC_ACQUISITION_QUEUE_SIZE = "hibernate.connection.async_acquisition.queue_size";
+    public static final String ASYNC_ACQUISITION_TIMEOUT_MILLIS =
+        "hibernate.connection.async_acquisition.timeout_millis";
+
+    private static final int DEFAULT_ASYNC_LISTENER_BUFFER_SIZE = 1024;
+    private static final long ASYNC_LISTENER_SHUTDOWN_TIMEOUT_MILLIS = 5000L;
+    private static final int DEFAULT_PREWARM_THREADS = 4;
+    private static final int DEFAULT_PREWARM_TIMEOUT_MILLIS = 30000;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_INITIAL = 20;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_MIN = 1;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_MAX = 200;
+    private static final int DEFAULT_CONCURRENCY_LIMIT_QUEUE_TIMEOUT_MILLIS = 100;
+    private static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = 50;
+    private static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 20;
+    private static final int DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS = 10;
+    private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MILLIS = 5000;
+    private static final int DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES = 1;
+    private static final int DEFAULT_VALIDATION_WINDOW_MILLIS = 5000;
+    private static final int DEFAULT_VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final int DEFAULT_ASYNC_ACQUISITION_QUEUE_SIZE = 1024;
+    private static final int DEFAULT_ASYNC_ACQUISITION_TIMEOUT_MILLIS = 30000;
+
+    private static final PreConnectionAcquisitionListener[] NO_PRE_ACQUISITION_LISTENERS =
+        new PreConnectionAcquisitionListener[0];
+    private static final PostConnectionAcquisitionListener[] NO_POST_ACQUISITION_LISTENERS =
+        new PostConnectionAcquisitionListener[0];
+    private static final PreConnectionCloseListener[] NO_PRE_CLOSE_LISTENERS = new PreConnectionCloseListener[0];
+    private static final PostConnectionCloseListener[] NO_POST_CLOSE_LISTENERS = new PostConnectionCloseListener[0];
+    private static final StatementExecutionListener[] NO_STATEMENT_LISTENERS = new StatementExecutionListener[0];
+    private static final ConnectionPoolListener[] NO_POOL_LISTENERS = new ConnectionPoolListener[0];
+    private static final ConnectionWarmUpListener[] NO_WARM_UP_LISTENERS = new ConnectionWarmUpListener[0];
+    private static final CircuitBreakerListener[] NO_CIRCUIT_BREAKER_LISTENERS = new CircuitBreakerListener[0];
+    private static final ConnectionRoutingListener[] NO_ROUTING_LISTENERS = new ConnectionRoutingListener[0];
+    private static final FailoverListener[] NO_FAILOVER_LISTENERS = new FailoverListener[0];
 
     protected final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -57,13 +179,63 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
     // cached JDBC connection URL
     private String jdbcUrl;
 
-    // list of zero or more ConnectionProviderListener that are registered with this connection provider wrapper
-    private final List<PreConnectionAcquisitionListener> preAcquisitionListeners = new ArrayList<>();
-    private final List<PostConnectionAcquisitionListener> postAcquisitionListeners = new ArrayList<>();
-    private final List<PreConnectionCloseListener> preCloseListeners = new ArrayList<>();
-    private final List<PostConnectionCloseListener> postCloseListeners = new ArrayList<>();
+    // zero or more ConnectionProviderListener that are registered with this connection provider wrapper, in the order
+    //      in which they were declared
     private final Map<Class<? extends ConnectionProviderListener>, ConnectionProviderListener> listenerMap =
-        new HashMap<>();
+        new LinkedHashMap<>();
+
+    // per-event dispatch tables that are compiled from the registered listeners once they have all been configured.
+    //      these arrays are never mutated once they are published, so getConnection() and closeConnection() can
+    //      iterate them without allocating or checking listener types
+    private PreConnectionAcquisitionListener[] preAcquisitionListeners = NO_PRE_ACQUISITION_LISTENERS;
+    private PostConnectionAcquisitionListener[] postAcquisitionListeners = NO_POST_ACQUISITION_LISTENERS;
+    private PreConnectionCloseListener[] preCloseListeners = NO_PRE_CLOSE_LISTENERS;
+    private PostConnectionCloseListener[] postCloseListeners = NO_POST_CLOSE_LISTENERS;
+
+    // dispatches post-event callbacks on a background thread for listeners that do not need to be invoked inline, or
+    //      null if asynchronous listener dispatch is not enabled
+    private AsyncListenerDispatcher asyncDispatcher;
+
+    // wraps acquired connections so that statement events are published to any StatementExecutionListeners, or null
+    //      if statement instrumentation is not enabled
+    private StatementEventDispatcher statementDispatcher;
+
+    // the connection currently held by each thread, which is handed out again to nested acquisitions on that thread
+    //      instead of acquiring another one from the delegate, or null if nested connection reuse is not enabled
+    private ThreadLocal<HeldConnection> heldConnections;
+
+    private final StripedLongCounter numReusedAcquisitions = new StripedLongCounter();
+
+    // the context of each connection that is checked out, keyed by the connection that was handed out, or null if
+    //      neither checkout contexts nor anything that relies on them internally is enabled
+    private CheckoutRegistry checkoutContexts;
+    // whether listeners may look up checkout contexts
+    private boolean exposeCheckoutContexts;
+
+    // gates acquisitions from the delegate once too many connections are checked out, or null if concurrency limiting
+    //      is not enabled
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    // rejects acquisitions without asking the delegate while it keeps failing, or null if the circuit breaker is not
+    //      enabled
+    private ConnectionCircuitBreaker circuitBreaker;
+
+    // limits how many connections each partition of callers may have checked out, or null if no bulkhead partitions
+    //      are configured
+    private ConnectionBulkheads bulkheads;
+
+    // validates acquired connections that have not completed a statement recently, or null if validation is not
+    //      enabled
+    private ConnectionValidator connectionValidator;
+
+    // remembers the session state of each physical connection so redundant setters are skipped, or null if the cache
+    //      is not enabled
+    private SessionStateCache sessionStates;
+
+    // runs acquisitions requested through acquireAsync on its own threads, or null if asynchronous acquisition is not
+    //      enabled
+    private AsyncConnectionAcquirer asyncAcquirer;
+    private long asyncAcquisitionTimeoutMillis;
 
     @Override
     public void injectServices(ServiceRegistryImplementor serviceRegistry) {
@@ -92,33 +264,37 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
         // cache JDBC url
         jdbcUrl = (String) configurationValues.get(Environment.URL);
 
-        // create the real connection provider instance
-        //      restore the real connection provider class name from the delegating property name
-        String delegateConnectionProviderClass = (String) configurationValues.get(DELEGATE_CONNECTION_PROVIDER_CLASS);
-
-        // make sure to swap in the delegate for the provider property
-        Map<Object, Object> delegateConfigValues = new HashMap<>(configurationValues);
-        if (StringUtils.isNotBlank(delegateConnectionProviderClass)) {
-            delegateConfigValues.put(Environment.CONNECTION_PROVIDER, delegateConnectionProviderClass);
-        } else {
-            // allow Hibernate to use its own mechanism for determining the proper built-in provider to use
-            log.warn("No explicit '{}' was declared so the default for the JDBC URL will be used.",
-                DELEGATE_CONNECTION_PROVIDER_CLASS);
-            delegateConfigValues.remove(Environment.CONNECTION_PROVIDER);
-        }
+        // must be decided before any connection is handed out, since it changes how connections are released
+        heldConnections = (ConfigurationHelper.getBoolean(REUSE_NESTED_CONNECTIONS, configurationValues) ?
+            new HeldConnectionThreadLocal() : null);
+        exposeCheckoutContexts = ConfigurationHelper.getBoolean(CHECKOUT_CONTEXT_ENABLED, configurationValues);
 
-        delegateConfigValues.put(Environment.CONNECTION_PROVIDER, delegateConnectionProviderClass);
-        delegateConnectionProvider =
-            ConnectionProviderInitiator.INSTANCE.initiateService(delegateConfigValues, serviceRegistry);
+        // create the real connection provider instance
+        delegateConnectionProvider = createDelegateConnectionProvider(configurationValues);
         log.trace("Created delegate connection provider of type {} connected to {}",
             delegateConnectionProvider.getClass(), jdbcUrl);
 
+        concurrencyLimiter = createConcurrencyLimiter(configurationValues);
+        circuitBreaker = createCircuitBreaker(configurationValues);
+        bulkheads = createBulkheads(configurationValues);
+        connectionValidator = createConnectionValidator(configurationValues);
+        sessionStates = createSessionStateCache(configurationValues);
+        asyncAcquirer = createAsyncAcquirer(configurationValues);
+
+        // the concurrency limiter and bulkheads need to know which permits each checkout holds, whichever thread
+        //      closes it, and to get them back if its connection is leaked
+        checkoutContexts = (exposeCheckoutContexts || concurrencyLimiter != null || bulkheads != null ?
+            new CheckoutRegistry() : null);
+
         // do actual initialization in subclass impl.
         initialize(configurationValues);
 
         // configure our connection provider lists
         configureListeners(configurationValues);
 
+        // open connections ahead of the first requests, now that listeners can be notified about it
+        preWarmConnections(configurationValues);
+
         // post-configuration callback
         configured(configurationValues);
         log.info("Finished initializing InstrumentedConnectionProvider for URL: {}", jdbcUrl);
@@ -205,7 +381,7 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
     /**
      * Callback that is invoked after acquiring a connection through the {@link #getConnection()} method but prior to
      * invoking any of the registered post-acquisition callbacks. This allows the connection provider to
-     * @param connection the exact connection instance that was acquired from the underlying provider
+     * @param connection the exact connection instance that will be returned to the caller
      */
     protected void connectionAcquired(@Nonnull Connection connection) {
         // optional override
@@ -241,10 +417,26 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
 
     /**
      * &quot;Customizes&quot; a connection, performing any operations, such as book-keeping, prior to invoking any
-     * listeners after a connection is acquired.
+     * listeners after a connection is acquired. The returned connection is the one that is passed to listeners and
+     * returned to the caller, which by default is an {@link InstrumentedConnection} wrapper if statement
+     * instrumentation is enabled and otherwise the connection itself. Subclasses that wrap connections should wrap the
+     * result of this implementation and override {@link #unwrapConnection(Connection)} accordingly.
+     * @param connection the connection acquired from the delegate connection provider
+     * @return the connection to hand out
      */
-    protected void customizeConnection(@Nonnull Connection connection) {
-        // optional override
+    protected @Nonnull Connection customizeConnection(@Nonnull Connection connection) {
+        StatementEventDispatcher dispatcher = statementDispatcher;
+        return (dispatcher != null ? dispatcher.wrap(connection, sessionStates) : connection);
+    }
+
+    /**
+     * Reverses {@link #customizeConnection(Connection)}, returning the connection that was acquired from the delegate
+     * connection provider so that it can be handed back to it.
+     * @param connection the connection passed to {@link #closeConnection(Connection)}
+     */
+    protected @Nonnull Connection unwrapConnection(@Nonnull Connection connection) {
+        return (connection instanceof InstrumentedConnection ? ((InstrumentedConnection) connection).getDelegate() :
+            connection);
     }
 
     /**
@@ -260,7 +452,7 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
      * Looks up an existing, registered connection provider listener of the given type. If no listener is registered of
      * that type then this method will return <code>null</code>.
      */
-    protected <T extends ConnectionProviderListener> T getListenerOfType(@Nonnull Class<T> listenerType) {
+    public <T extends ConnectionProviderListener> T getListenerOfType(@Nonnull Class<T> listenerType) {
         return (T) listenerMap.get(listenerType);
     }
 
@@ -286,6 +478,12 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
         try {
             beforeStop();
         } finally {
+            if (asyncAcquirer != null) {
+                asyncAcquirer.shutdown();
+            }
+            // flush any listener events that are still buffered before the delegate goes away
+            stopAsyncDispatch();
+            stopListeners();
             if (delegateConnectionProvider instanceof Stoppable) {
                 ((Stoppable)delegateConnectionProvider).stop();
             }
@@ -299,21 +497,79 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
 
     @Override
     public final Connection getConnection() throws SQLException {
+        return acquireConnection(/*holdOnThread=*/true);
+    }
+
+    /**
+     * Acquires a connection from the delegate connection provider, invoking listeners and applying the configured
+     * gates along the way.
+     * @param holdOnThread whether the connection may be shared with nested acquisitions on the calling thread, which
+     *          is not the case when it is acquired on behalf of another thread
+     */
+    private Connection acquireConnection(boolean holdOnThread) throws SQLException {
         // allow connection provider to prepare any state needed for listeners that might be subscribed to it, or
         //      any other book-keeping, etc.
         beforeAcquiringConnection();
 
         // invoke pre-acquisition callbacks
-        invokeListeners(/* isBefore=*/ true, /*isAcquisition=*/true, /*exc=*/null, /*connection=*/null);
+        firePreAcquisition();
+
+        // hand out the connection this thread already holds, if nested connection reuse is enabled
+        Connection heldConn = (holdOnThread ? reuseHeldConnection() : null);
+        if (heldConn != null) {
+            if (checkoutContexts != null) {
+                CheckoutContext context = checkoutContexts.get(heldConn);
+                if (context != null) {
+                    context.nestedAcquisition();
+                }
+            }
+            fireConnectionAcquired(heldConn);
+            connectionAcquired(heldConn);
+            return heldConn;
+        }
+
+        // give back the permits of checkouts whose connections were leaked, which may be what this acquisition is
+        //      waiting for
+        reclaimCollectedCheckouts();
 
         Connection acquiredConn;
+        boolean breakerPermitted = false;
+        Bulkhead bulkhead = null;
+        long permitGrantedNanos = 0L;
+        boolean delegateInvoked = false;
         try {
+            // fail fast without waiting on the delegate while it is known to be failing
+            if (circuitBreaker != null) {
+                circuitBreaker.acquirePermission();
+                breakerPermitted = true;
+            }
+
+            // keep this caller's partition from taking connections reserved for the others
+            if (bulkheads != null) {
+                bulkhead = bulkheads.acquire();
+            }
+
+            // fail fast rather than piling onto the delegate if too many connections are already checked out
+            if (concurrencyLimiter != null) {
+                permitGrantedNanos = concurrencyLimiter.acquire();
+            }
+
             // acquire a connection using the delegate connection provider
+            delegateInvoked = true;
             acquiredConn = delegateConnectionProvider.getConnection();
+            if (acquiredConn == null) {
+                // fail like any other acquisition from the delegate, so that every permit is given back right away
+                throw new SQLException("Delegate connection provider returned no connection to " + jdbcUrl);
+            }
 
-            // invoke internal callbacks before registered listeners are called
-            afterAcquireBeforeCallbacks(acquiredConn);
+            // validate the connection unless it completed a statement recently, which hands back any connection it
+            //      gives up on itself
+            if (connectionValidator != null) {
+                acquiredConn = connectionValidator.validate(acquiredConn, delegateConnectionProvider);
+            }
         } catch (SQLException se) {
+            releaseAcquisitionPermits(breakerPermitted, bulkhead, delegateInvoked);
+
             // we are catching these to make sure we can properly invoke the failure listeners that are attached to this
             //      operation. if we immediately propagated the exception up to the caller, then we would never invoke
             //      these listeners
@@ -327,21 +583,52 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
             }
 
             // invoke failure listeners
-            invokeListeners(/*isBefore=*/false, /*isAcquisition=*/true, /*exception=*/exceptionToUse,
-                /*connection=*/null);
+            fireAcquisitionFailed(exceptionToUse);
 
             // rethrow the exception
             throw exceptionToUse;
         } catch (RuntimeException e) {
+            releaseAcquisitionPermits(breakerPermitted, bulkhead, delegateInvoked);
+
+            // invoke failure listeners
+            fireAcquisitionFailed(e);
+            // rethrow the exception
+            throw e;
+        }
+
+        if (circuitBreaker != null) {
+            circuitBreaker.onSuccess();
+        }
+
+        // invoke internal callbacks before registered listeners are called. the delegate did its part by now, so a
+        //      failure here hands its connection back rather than leaking it, and is not held against the delegate
+        Connection delegateConn = acquiredConn;
+        try {
+            acquiredConn = afterAcquireBeforeCallbacks(delegateConn);
+        } catch (RuntimeException e) {
+            returnUnusedConnection(delegateConn);
+            if (bulkheads != null) {
+                bulkheads.release(bulkhead);
+            }
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.acquisitionFailed();
+            }
+
             // invoke failure listeners
-            invokeListeners(/*isBefore=*/false, /*isAcquisition=*/true, /*exception=*/e,
-                /*connection=*/null);
+            fireAcquisitionFailed(e);
             // rethrow the exception
             throw e;
         }
 
+        if (holdOnThread) {
+            holdConnection(acquiredConn);
+        }
+        if (checkoutContexts != null) {
+            checkoutContexts.put(acquiredConn, new CheckoutContext(System.nanoTime(), permitGrantedNanos, bulkhead));
+        }
+
         // invoke the listeners post-acquisition
-        invokeListeners(/*isBefore=*/false, /*isAcquisition=*/true, /*exception=*/null, /*connection=*/acquiredConn);
+        fireConnectionAcquired(acquiredConn);
 
         // invoke callback for subclass after listeners
         connectionAcquired(acquiredConn);
@@ -349,17 +636,74 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
         return acquiredConn;
     }
 
+    /**
+     * Acquires a connection without blocking the calling thread, giving up after
+     * &quot;hibernate.connection.async_acquisition.timeout_millis&quot;.
+     * @see #acquireAsync(long, TimeUnit)
+     */
+    @Nonnull
+    public final ListenableFuture<Connection> acquireAsync() {
+        return acquireAsync(asyncAcquisitionTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Acquires a connection without blocking the calling thread. The acquisition runs on one of the threads of the
+     * {@link AsyncConnectionAcquirer} and goes through exactly the same listeners and gates as
+     * {@link #getConnection()}, except that the connection is never shared with nested acquisitions. The connection
+     * must be closed through {@link #closeConnection(Connection)} like any other. <br/>
+     * Listeners that keep per-thread state between the acquisition and the close of a connection see the acquisition
+     * on the acquirer's thread and the close on whichever thread closes it.
+     * @param timeout how long the caller is willing to wait for the connection, after which the future fails with a
+     *          {@link java.sql.SQLTimeoutException} and a connection acquired later is handed back
+     * @param unit the unit of <strong>timeout</strong>
+     * @return a future that completes with the connection, or fails with the exception the acquisition failed with
+     * @throws IllegalStateException if asynchronous acquisition is not enabled
+     */
+    @Nonnull
+    public final ListenableFuture<Connection> acquireAsync(long timeout, @Nonnull TimeUnit unit) {
+        if (asyncAcquirer == null) {
+            throw new IllegalStateException("'" + ASYNC_ACQUISITION_THREADS + "' must be positive to acquire " +
+                "connections to " + jdbcUrl + " asynchronously");
+        }
+        return asyncAcquirer.acquire(this, new Callable<Connection>() {
+            @Override
+            public Connection call() throws SQLException {
+                return acquireConnection(/*holdOnThread=*/false);
+            }
+        }, unit.toNanos(timeout));
+    }
+
     @Override
     public final void closeConnection(Connection existingConn) throws SQLException {
         // invoke pre-* callbacks
-        invokeListeners(/* isBefore=*/ true, /*isAcquisition=*/false, /*exc=*/null,
-            /*connection=*/existingConn);
+        firePreClose(existingConn);
+
+        // a connection that is still held by an outer acquisition on this thread is not returned to the delegate yet
+        if (releaseHeldConnection(existingConn)) {
+            if (checkoutContexts != null) {
+                CheckoutContext context = checkoutContexts.get(existingConn);
+                if (context != null) {
+                    context.nestedRelease();
+                }
+            }
+            fireConnectionClosed();
+            afterClosingConnection(existingConn);
+            return;
+        }
 
+        CheckoutContext context = null;
         try {
             beforeClosingConnection(existingConn);
 
+            // forget the checkout before the delegate can hand the same connection to another thread
+            context = removeCheckoutContext(existingConn);
+
             // simply close the connection and return null
-            delegateConnectionProvider.closeConnection(existingConn);
+            Connection delegateConn = (existingConn != null ? unwrapConnection(existingConn) : null);
+            if (sessionStates != null && delegateConn != null) {
+                sessionStateReturned(delegateConn);
+            }
+            delegateConnectionProvider.closeConnection(delegateConn);
         } catch (SQLException | RuntimeException e) {
             // allow subclass to handle prior to invoking event listener callbacks
             afterCloseConnectionFailed(existingConn, e);
@@ -368,90 +712,289 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
             //      operation. if we immediately propagated the exception up to the caller, then we would never invoke
             //      these listeners
             // make sure to pass in the 'existingConnection' value
-            invokeListeners(/* isBefore=*/ false, /*isAcquisition=*/false, /*exc=*/e, /*connection=*/existingConn);
+            fireCloseFailed(existingConn, e);
 
             // rethrow the exception
             throw e;
+        } finally {
+            // the connection is no longer checked out from the delegate, whether or not closing it succeeded. without a
+            //      context it was never checked out from this provider, or already closed, and holds no permits
+            if (context == null) {
+                context = removeCheckoutContext(existingConn);
+            }
+            if (context != null) {
+                if (concurrencyLimiter != null) {
+                    concurrencyLimiter.release(context.getPermitGrantedNanos());
+                }
+                if (bulkheads != null) {
+                    bulkheads.release(context.getBulkhead());
+                }
+            }
         }
 
         // if we get this far, then we succeeded at applying the operation and must invoke post-operation callbacks
         //          on interceptors
-        invokeListeners(/* isBefore=*/ false, /*isAcquisition=*/false, /*exc=*/null, /*connection=*/existingConn);
+        fireConnectionClosed();
 
         // invoke callback in subclass
         afterClosingConnection(existingConn);
     }
 
+    /**
+     * Forgets the checkout of a connection that is being returned to the delegate.
+     * @return the context of the checkout, or <code>null</code> if there is none
+     */
+    @Nullable
+    private CheckoutContext removeCheckoutContext(@Nullable Connection connection) {
+        return (checkoutContexts != null && connection != null ? checkoutContexts.remove(connection) : null);
+    }
+
+    /**
+     * Gives back the permits held by the checkouts of connections that were garbage collected without ever being
+     * closed.
+     */
+    private void reclaimCollectedCheckouts() {
+        if (checkoutContexts == null) {
+            return;
+        }
+        for (CheckoutContext context; (context = checkoutContexts.pollCollected()) != null; ) {
+            log.warn("Reclaiming the permits of a connection to {} that was garbage collected without being closed",
+                jdbcUrl);
+            // how long the connection was leaked for says nothing about how long checkouts take
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.release();
+            }
+            if (bulkheads != null) {
+                bulkheads.release(context.getBulkhead());
+            }
+        }
+    }
+
+    /**
+     * Gives back whatever permits a failed acquisition was granted, recording the failure with the circuit breaker if
+     * the delegate was asked for a connection.
+     * @param breakerPermitted whether the circuit breaker let the acquisition through
+     * @param bulkhead the bulkhead that granted the acquisition a permit, if any
+     * @param delegateInvoked whether the delegate was asked for a connection, which also means that the concurrency
+     *          limiter, if any, granted a permit
+     */
+    private void releaseAcquisitionPermits(boolean breakerPermitted, @Nullable Bulkhead bulkhead,
+                                           boolean delegateInvoked) {
+        if (bulkheads != null) {
+            bulkheads.release(bulkhead);
+        }
+        if (delegateInvoked && concurrencyLimiter != null) {
+            concurrencyLimiter.acquisitionFailed();
+        }
+        if (breakerPermitted) {
+            if (delegateInvoked) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.releasePermission();
+            }
+        }
+    }
+
+    /**
+     * Hands a connection that was acquired from the delegate back to it without it ever having been handed out, logging
+     * rather than propagating a failure to do so since the acquisition is already failing.
+     * @param delegateConn the connection as it was returned by the delegate connection provider
+     */
+    private void returnUnusedConnection(@Nullable Connection delegateConn) {
+        if (delegateConn == null) {
+            return;
+        }
+        try {
+            delegateConnectionProvider.closeConnection(delegateConn);
+        } catch (SQLException | RuntimeException e) {
+            log.warn("Unable to hand an unused connection back to the delegate for {}", jdbcUrl, e);
+        }
+    }
+
+    /**
+     * Returns the connection already held by the calling thread, adding a reference to it, or <code>null</code> if
+     * nested connection reuse is disabled or the thread does not hold a connection.
+     */
+    private Connection reuseHeldConnection() {
+        if (heldConnections == null) {
+            return null;
+        }
+        HeldConnection held = heldConnections.get();
+        // an acquisition for another shard or route than the held connection's must get a connection to that shard or
+        //      route, so that a read-write acquisition is never handed a replica connection, for instance
+        if (held.connection == null || !Objects.equals(held.shardKey, ShardContext.getShardKey()) ||
+            held.routeType != RoutingContext.getRouteType()) {
+            return null;
+        }
+        held.refCount++;
+        numReusedAcquisitions.increment();
+        return held.connection;
+    }
+
+    /**
+     * Records a connection that was just acquired from the delegate as held by the calling thread, if nested connection
+     * reuse is enabled and the thread does not already hold one that could not be reused.
+     */
+    private void holdConnection(Connection connection) {
+        if (heldConnections != null && connection != null) {
+            HeldConnection held = heldConnections.get();
+            if (held.connection == null) {
+                held.connection = connection;
+                held.shardKey = ShardContext.getShardKey();
+                held.routeType = RoutingContext.getRouteType();
+                held.refCount = 1;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference to the connection held by the calling thread.
+     * @return <code>true</code> if references remain, in which case the connection must not be returned to the
+     *          delegate yet, or <code>false</code> if it is not held or this was the last reference
+     */
+    private boolean releaseHeldConnection(Connection connection) {
+        if (heldConnections == null || connection == null) {
+            return false;
+        }
+        HeldConnection held = heldConnections.get();
+        if (held.connection != connection) {
+            return false;
+        }
+        if (--held.refCount > 0) {
+            return true;
+        }
+        held.connection = null;
+        held.shardKey = null;
+        held.routeType = null;
+        return false;
+    }
+
     /**
      * Apply customization logic, if applicable. We must always do this before invoking our listener callbacks since the
      * such actions may be a prerequisite for a listener callback.
      * @param acquiredConn the acquired connection
+     * @return the connection to hand out
      * @see #customizeConnection(Connection)
      */
-    private void afterAcquireBeforeCallbacks(Connection acquiredConn) {
-        if (acquiredConn != null) {
-            customizeConnection(acquiredConn);
+    private Connection afterAcquireBeforeCallbacks(Connection acquiredConn) {
+        return (acquiredConn != null ? customizeConnection(acquiredConn) : null);
+    }
+
+    /**
+     * Invokes all subscribed {@link PreConnectionAcquisitionListener}s prior to acquiring a connection.
+     */
+    private void firePreAcquisition() {
+        for (PreConnectionAcquisitionListener listener : preAcquisitionListeners) {
+            try {
+                listener.beforeConnectionAcquisition(this);
+            } catch (Throwable t) {
+                logListenerFailure("beforeConnectionAcquisition", listener, t);
+            }
+        }
+    }
+
+    /**
+     * Notifies all subscribed {@link PostConnectionAcquisitionListener}s after successfully acquiring a connection.
+     * @param connection the acquired connection
+     */
+    private void fireConnectionAcquired(Connection connection) {
+        invokeConnectionAcquired(postAcquisitionListeners, connection);
+        if (asyncDispatcher != null) {
+            asyncDispatcher.connectionAcquired(connection);
+        }
+    }
+
+    /**
+     * Notifies all subscribed {@link PostConnectionAcquisitionListener}s after failing to acquire a connection.
+     * @param exception the exception that was thrown (or will be rethrown) by {@link #getConnection()}
+     */
+    private void fireAcquisitionFailed(Throwable exception) {
+        invokeAcquisitionFailed(postAcquisitionListeners, exception);
+        if (asyncDispatcher != null) {
+            asyncDispatcher.connectionAcquisitionFailed(exception);
         }
     }
 
     /**
-     * Invokes all subscribed interceptor callbacks for the specified operation.
-     * @param isBefore true if invoking a pre vs. post listener handler method
-     * @param isAcquisition true if acquiring a connection, false if releasing a connection
-     * @param exception any exception that was caught while performing the operation requested
-     * @param connection any connection that was being closed (on exception) or an opened connection (after successful
-     *                  acquire), or <code>null</code> after a successful release and failed acquire
+     * Invokes all subscribed {@link PreConnectionCloseListener}s prior to closing a connection.
+     * @param connection the connection being closed
      */
-    private void invokeListeners(boolean isBefore, boolean isAcquisition, Throwable exception, Connection connection) {
-        for (ConnectionProviderListener listener :
-                /* only loop over the listeners that are registered for this particular event type (pre/post open/close) */
-            getListenersForEventType(isBefore, isAcquisition)) {
-            // allow the listener itself to determine whether it is enabled and will have this callback invocation skipped or not
-            String methodName = "<unknown>";
+    private void firePreClose(Connection connection) {
+        for (PreConnectionCloseListener listener : preCloseListeners) {
             try {
-                if (isAcquisition) {
-                    if (isBefore) {
-                        methodName = "beforeConnectionAcquisition";
-                        ((PreConnectionAcquisitionListener) listener).beforeConnectionAcquisition(this);
-                    } else {
-                        PostConnectionAcquisitionListener postListener = (PostConnectionAcquisitionListener) listener;
-                        if (exception != null) {
-                            methodName = "afterConnectionAcquisitionFailed";
-                            postListener.afterConnectionAcquisitionFailed(this, exception);
-                        } else {
-                            methodName = "afterConnectionAcquired";
-                            postListener.afterConnectionAcquired(this, connection);
-                        }
-                    }
-                } else {
-                    if (isBefore) {
-                        methodName = "beforeClosingConnection";
-                        ((PreConnectionCloseListener) listener).beforeClosingConnection(connection);
-                    } else {
-                        PostConnectionCloseListener postListener = (PostConnectionCloseListener) listener;
-                        if (exception != null) {
-                            methodName = "afterConnectionClosingFailed";
-                            postListener.afterConnectionClosingFailed(connection, exception);
-                        } else {
-                            methodName = "afterConnectionClosed";
-                            postListener.afterConnectionClosed();
-                        }
-                    }
-                }
+                listener.beforeClosingConnection(connection);
             } catch (Throwable t) {
-                if (log.isErrorEnabled()) {
-                    log.error("Unable to invoke {} for listener of type '{}' connected to {}", methodName,
-                        listener.getClass(), jdbcUrl, t);
-                }
+                logListenerFailure("beforeClosingConnection", listener, t);
             }
         }
     }
 
-    private List<? extends ConnectionProviderListener> getListenersForEventType(boolean isBefore, boolean isAcquisition) {
-        if (isAcquisition) {
-            return (isBefore ? preAcquisitionListeners : postAcquisitionListeners);
-        } else {
-            return (isBefore ? preCloseListeners : postCloseListeners);
+    /**
+     * Notifies all subscribed {@link PostConnectionCloseListener}s after successfully closing a connection.
+     */
+    private void fireConnectionClosed() {
+        invokeConnectionClosed(postCloseListeners);
+        if (asyncDispatcher != null) {
+            asyncDispatcher.connectionClosed();
+        }
+    }
+
+    /**
+     * Notifies all subscribed {@link PostConnectionCloseListener}s after failing to close a connection.
+     * @param connection the connection that could not be closed
+     * @param exception the exception that was thrown
+     */
+    private void fireCloseFailed(Connection connection, Throwable exception) {
+        invokeCloseFailed(postCloseListeners, connection, exception);
+        if (asyncDispatcher != null) {
+            asyncDispatcher.connectionClosingFailed(connection, exception);
+        }
+    }
+
+    void invokeConnectionAcquired(PostConnectionAcquisitionListener[] listeners, Connection connection) {
+        for (PostConnectionAcquisitionListener listener : listeners) {
+            try {
+                listener.afterConnectionAcquired(this, connection);
+            } catch (Throwable t) {
+                logListenerFailure("afterConnectionAcquired", listener, t);
+            }
+        }
+    }
+
+    void invokeAcquisitionFailed(PostConnectionAcquisitionListener[] listeners, Throwable exception) {
+        for (PostConnectionAcquisitionListener listener : listeners) {
+            try {
+                listener.afterConnectionAcquisitionFailed(this, exception);
+            } catch (Throwable t) {
+                logListenerFailure("afterConnectionAcquisitionFailed", listener, t);
+            }
+        }
+    }
+
+    void invokeConnectionClosed(PostConnectionCloseListener[] listeners) {
+        for (PostConnectionCloseListener listener : listeners) {
+            try {
+                listener.afterConnectionClosed();
+            } catch (Throwable t) {
+                logListenerFailure("afterConnectionClosed", listener, t);
+            }
+        }
+    }
+
+    void invokeCloseFailed(PostConnectionCloseListener[] listeners, Connection connection, Throwable exception) {
+        for (PostConnectionCloseListener listener : listeners) {
+            try {
+                listener.afterConnectionClosingFailed(connection, exception);
+            } catch (Throwable t) {
+                logListenerFailure("afterConnectionClosingFailed", listener, t);
+            }
+        }
+    }
+
+    private void logListenerFailure(String methodName, ConnectionProviderListener listener, Throwable t) {
+        if (log.isErrorEnabled()) {
+            log.error("Unable to invoke {} for listener of type '{}' connected to {}", methodName,
+                listener.getClass(), jdbcUrl, t);
         }
     }
 
@@ -461,9 +1004,6 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
      * @param configurationValues the hibernate properties
      */
     private void configureListeners(Map<Object, Object> configurationValues) {
-        // cleanup any possible listeners that were registered already, which will only be the case in tests
-        removeAllListeners();
-
         // grab listener classes from the data source configuration
         // look for listener definitions, defaults to a zero-token array of class names
         String strListenerClasses = (String) configurationValues.get(CONNECTION_PROVIDER_LISTENERS);
@@ -480,7 +1020,7 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
                         listenerClassName).asSubclass(
                         ConnectionProviderListener.class);
                     ConnectionProviderListener listener = createListener(configurationValues, listenerClazz);
-                    // once we've created and initialized the listener, add it the appropriate listener lists
+                    // once we've created and initialized the listener, register it with this provider
                     addToListenerLists(listener);
                     numListeners++;
                 } catch (Exception e) {
@@ -489,9 +1029,244 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
                 }
             }
         }
+        // now that all listeners are known, build the dispatch tables used by the connection operations
+        compileDispatchTables(createListenerSettings(configurationValues));
         log.trace("Attached {} listeners to connection provider for {}", numListeners, jdbcUrl);
     }
 
+    /**
+     * Creates the delegate connection provider whose class is named in the
+     * &quot;hibernate.connection.delegate_provider_class&quot; Hibernate property, or the one Hibernate picks for the
+     * JDBC url if there is none, and configures it with the same Hibernate properties as this provider. <br/>
+     * The {@link ConnectionProviderInitiator} only instantiates the provider, so this also injects the service registry
+     * into it and configures it as the registry would have done had it created the provider itself. Without that, a
+     * delegate such as Hibernate's own DriverManagerConnectionProviderImpl is never configured.
+     */
+    private ConnectionProvider createDelegateConnectionProvider(Map<Object, Object> configurationValues) {
+        // restore the real connection provider class name from the delegating property name
+        String delegateConnectionProviderClass = (String) configurationValues.get(DELEGATE_CONNECTION_PROVIDER_CLASS);
+
+        // make sure to swap in the delegate for the provider property
+        Map<Object, Object> delegateConfigValues = new HashMap<>(configurationValues);
+        if (StringUtils.isNotBlank(delegateConnectionProviderClass)) {
+            delegateConfigValues.put(Environment.CONNECTION_PROVIDER, delegateConnectionProviderClass);
+        } else {
+            // allow Hibernate to use its own mechanism for determining the proper built-in provider to use
+            log.warn("No explicit '{}' was declared so the default for the JDBC URL will be used.",
+                DELEGATE_CONNECTION_PROVIDER_CLASS);
+            delegateConfigValues.remove(Environment.CONNECTION_PROVIDER);
+        }
+
+        ConnectionProvider connectionProvider =
+            ConnectionProviderInitiator.INSTANCE.initiateService(delegateConfigValues, serviceRegistry);
+        if (connectionProvider instanceof ServiceRegistryAwareService) {
+            ((ServiceRegistryAwareService) connectionProvider).injectServices(serviceRegistry);
+        }
+        if (connectionProvider instanceof Configurable) {
+            ((Configurable) connectionProvider).configure(delegateConfigValues);
+        }
+        return connectionProvider;
+    }
+
+    /**
+     * Creates the {@link AdaptiveConcurrencyLimiter} that gates acquisitions from the delegate if
+     * &quot;hibernate.connection.concurrency_limit.enabled&quot; is set. <br/>
+     * Callers beyond the limit are rejected with a {@link ConcurrencyLimitExceededException}, which is passed through
+     * {@link #handleAcquisitionFailure(SQLException)} and the failure listeners like any other acquisition failure.
+     * @return the limiter, or <code>null</code> if concurrency limiting is not enabled
+     */
+    private AdaptiveConcurrencyLimiter createConcurrencyLimiter(Map<Object, Object> configurationValues) {
+        ConnectionProviderListenerSettings settings = createListenerSettings(configurationValues);
+        if (!settings.getBooleanProperty(CONCURRENCY_LIMIT_ENABLED, false)) {
+            return null;
+        }
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(jdbcUrl,
+            settings.getIntProperty(CONCURRENCY_LIMIT_INITIAL, DEFAULT_CONCURRENCY_LIMIT_INITIAL),
+            settings.getIntProperty(CONCURRENCY_LIMIT_MIN, DEFAULT_CONCURRENCY_LIMIT_MIN),
+            settings.getIntProperty(CONCURRENCY_LIMIT_MAX, DEFAULT_CONCURRENCY_LIMIT_MAX),
+            settings.getIntProperty(CONCURRENCY_LIMIT_QUEUE_SIZE, 0),
+            settings.getIntProperty(CONCURRENCY_LIMIT_QUEUE_TIMEOUT_MILLIS,
+                DEFAULT_CONCURRENCY_LIMIT_QUEUE_TIMEOUT_MILLIS));
+        log.info("Limiting concurrent connections to {} adaptively, starting at {}", jdbcUrl, limiter.getLimit());
+        return limiter;
+    }
+
+    /**
+     * Creates the {@link ConnectionCircuitBreaker} that stops acquisitions from reaching the delegate while it keeps
+     * failing, if &quot;hibernate.connection.circuit_breaker.enabled&quot; is set. <br/>
+     * Rejected callers get a {@link CircuitBreakerOpenException}, which is passed through
+     * {@link #handleAcquisitionFailure(SQLException)} and the failure listeners like any other acquisition failure, but
+     * is not itself recorded as a failure of the delegate.
+     * @return the circuit breaker, or <code>null</code> if it is not enabled
+     */
+    private ConnectionCircuitBreaker createCircuitBreaker(Map<Object, Object> configurationValues) {
+        ConnectionProviderListenerSettings settings = createListenerSettings(configurationValues);
+        if (!settings.getBooleanProperty(CIRCUIT_BREAKER_ENABLED, false)) {
+            return null;
+        }
+        ConnectionCircuitBreaker breaker = new ConnectionCircuitBreaker(this,
+            settings.getIntProperty(CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD,
+                DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD),
+            settings.getIntProperty(CIRCUIT_BREAKER_WINDOW_SIZE, DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE),
+            settings.getIntProperty(CIRCUIT_BREAKER_MINIMUM_CALLS, DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS),
+            settings.getIntProperty(CIRCUIT_BREAKER_OPEN_DURATION_MILLIS,
+                DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MILLIS),
+            settings.getIntProperty(CIRCUIT_BREAKER_HALF_OPEN_PROBES, DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES));
+        log.info("Enabled circuit breaker for connections to {}", jdbcUrl);
+        return breaker;
+    }
+
+    /**
+     * Creates the {@link ConnectionBulkheads} that limit how many connections each partition of callers may have
+     * checked out, if &quot;hibernate.connection.bulkhead.partitions&quot; lists any partitions, such as
+     * <code>api:40,batch:10</code>. The partition of each acquisition is resolved by the {@link PartitionResolver}
+     * named in &quot;hibernate.connection.bulkhead.partition_resolver_class&quot;, which defaults to
+     * {@link ThreadLocalPartitionResolver}. <br/>
+     * Callers whose partition has no permit left are rejected with a {@link BulkheadFullException}, which is passed
+     * through {@link #handleAcquisitionFailure(SQLException)} and the failure listeners like any other acquisition
+     * failure.
+     * @return the bulkheads, or <code>null</code> if no partitions are configured
+     * @throws HibernateException if the partitions or the resolver are misconfigured
+     */
+    private ConnectionBulkheads createBulkheads(Map<Object, Object> configurationValues) {
+        ConnectionProviderListenerSettings settings = createListenerSettings(configurationValues);
+        String partitionSpec = settings.getProperty(BULKHEAD_PARTITIONS);
+        if (StringUtils.isBlank(partitionSpec)) {
+            return null;
+        }
+        String resolverClassName = StringUtils.trim(settings.getProperty(BULKHEAD_PARTITION_RESOLVER,
+            ThreadLocalPartitionResolver.class.getName()));
+        try {
+            PartitionResolver resolver = Class.forName(resolverClassName).asSubclass(PartitionResolver.class)
+                .newInstance();
+            resolver.initialize(settings);
+            ConnectionBulkheads connectionBulkheads = new ConnectionBulkheads(jdbcUrl,
+                ConnectionBulkheads.parsePartitions(partitionSpec),
+                StringUtils.trimToNull(settings.getProperty(BULKHEAD_DEFAULT_PARTITION)),
+                settings.getIntProperty(BULKHEAD_MAX_WAIT_MILLIS, 0), resolver);
+            log.info("Partitioned connections to {} into bulkheads {}", jdbcUrl, connectionBulkheads.getBulkheads());
+            return connectionBulkheads;
+        } catch (ReflectiveOperationException | ClassCastException | IllegalArgumentException e) {
+            throw new HibernateException("Unable to configure connection bulkheads for " + jdbcUrl, e);
+        }
+    }
+
+    /**
+     * Creates the {@link ConnectionValidator} that validates acquired connections which have not completed a statement
+     * within &quot;hibernate.connection.validation.window_millis&quot;, if
+     * &quot;hibernate.connection.validation.enabled&quot; is set. Since the validator observes statements through
+     * statement instrumentation, enabling it also wraps every acquired connection.
+     * @return the validator, or <code>null</code> if validation is not enabled
+     */
+    private ConnectionValidator createConnectionValidator(Map<Object, Object> configurationValues) {
+        ConnectionProviderListenerSettings settings = createListenerSettings(configurationValues);
+        if (!settings.getBooleanProperty(VALIDATION_ENABLED, false)) {
+            return null;
+        }
+        ConnectionValidator validator = new ConnectionValidator(jdbcUrl,
+            settings.getIntProperty(VALIDATION_WINDOW_MILLIS, DEFAULT_VALIDATION_WINDOW_MILLIS),
+            settings.getIntProperty(VALIDATION_TIMEOUT_SECONDS, DEFAULT_VALIDATION_TIMEOUT_SECONDS),
+            StringUtils.trimToNull(settings.getProperty(VALIDATION_QUERY)));
+        log.info("Validating connections to {} that have not completed a statement in the last {}ms", jdbcUrl,
+            validator.getWindowMillis());
+        return validator;
+    }
+
+    /**
+     * Creates the {@link SessionStateCache} that lets acquired connections skip setting their auto-commit mode,
+     * transaction isolation level, read-only flag or schema to the value they already have, if
+     * &quot;hibernate.connection.session_state_cache.enabled&quot; is set. Like validation, the cache lives in the
+     * connection wrappers, so enabling it also wraps every acquired connection.
+     * @return the cache, or <code>null</code> if it is not enabled
+     */
+    private SessionStateCache createSessionStateCache(Map<Object, Object> configurationValues) {
+        if (!createListenerSettings(configurationValues).getBooleanProperty(SESSION_STATE_CACHE_ENABLED, false)) {
+            return null;
+        }
+        log.info("Caching the session state of connections to {}", jdbcUrl);
+        return new SessionStateCache();
+    }
+
+    /**
+     * Updates the cached session state of a connection that is about to be handed back to the delegate, which may
+     * change it without going through a wrapper. A {@link PoolingConnectionProvider} resets the auto-commit mode to a
+     * value known here, so only that is kept for the next checkout, while the isolation level, read-only flag and
+     * catalog it restores to the defaults of each connection are forgotten, as is all state for any other delegate.
+     */
+    private void sessionStateReturned(Connection connection) {
+        if (delegateConnectionProvider instanceof PoolingConnectionProvider) {
+            sessionStates.pooledConnectionReset(connection,
+                ((PoolingConnectionProvider) delegateConnectionProvider).isDefaultAutoCommit());
+        } else {
+            sessionStates.invalidate(connection);
+        }
+    }
+
+    /**
+     * Creates the {@link AsyncConnectionAcquirer} that runs acquisitions requested through {@link #acquireAsync()}, if
+     * &quot;hibernate.connection.async_acquisition.threads&quot; is positive.
+     * @return the acquirer, or <code>null</code> if asynchronous acquisition is not enabled
+     */
+    private AsyncConnectionAcquirer createAsyncAcquirer(Map<Object, Object> configurationValues) {
+        ConnectionProviderListenerSettings settings = createListenerSettings(configurationValues);
+        int numThreads = settings.getIntProperty(ASYNC_ACQUISITION_THREADS, 0);
+        if (numThreads <= 0) {
+            return null;
+        }
+        int queueSize = settings.getIntProperty(ASYNC_ACQUISITION_QUEUE_SIZE, DEFAULT_ASYNC_ACQUISITION_QUEUE_SIZE);
+        asyncAcquisitionTimeoutMillis = settings.getIntProperty(ASYNC_ACQUISITION_TIMEOUT_MILLIS,
+            DEFAULT_ASYNC_ACQUISITION_TIMEOUT_MILLIS);
+        log.info("Acquiring connections to {} asynchronously on {} threads with up to {} waiting", jdbcUrl,
+            numThreads, queueSize);
+        return new AsyncConnectionAcquirer(jdbcUrl, numThreads, queueSize);
+    }
+
+    /**
+     * Acquires the configured number of connections from the delegate concurrently and returns them, so that a pooling
+     * delegate does not pay for opening connections on the first requests. Does nothing unless
+     * &quot;hibernate.connection.prewarm.connections&quot; is positive. If the delegate is a
+     * {@link ShardedConnectionProvider}, that many connections are warmed up for every shard.
+     * @see ConnectionPreWarmer
+     */
+    private void preWarmConnections(Map<Object, Object> configurationValues) {
+        ConnectionProviderListenerSettings settings = createListenerSettings(configurationValues);
+        int numConnections = settings.getIntProperty(PREWARM_CONNECTIONS, 0);
+        if (numConnections <= 0) {
+            return;
+        }
+        int numThreads = settings.getIntProperty(PREWARM_THREADS, DEFAULT_PREWARM_THREADS);
+        int timeoutMillis = settings.getIntProperty(PREWARM_TIMEOUT_MILLIS, DEFAULT_PREWARM_TIMEOUT_MILLIS);
+        String validationQuery = StringUtils.trimToNull(settings.getProperty(PREWARM_VALIDATION_QUERY));
+        ConnectionWarmUpListener[] warmUpListeners = listenersImplementing(ConnectionWarmUpListener.class,
+            NO_WARM_UP_LISTENERS, /*synchronous=*/null);
+        if (delegateConnectionProvider instanceof ShardedConnectionProvider) {
+            // acquiring from the sharded provider itself would only ever reach the default shard
+            for (Shard shard : ((ShardedConnectionProvider) delegateConnectionProvider).getShards()) {
+                preWarmConnections(shard.getConnectionProvider(), shard.getJdbcUrl(), warmUpListeners, validationQuery,
+                    numConnections, numThreads, timeoutMillis);
+            }
+        } else {
+            preWarmConnections(delegateConnectionProvider, jdbcUrl, warmUpListeners, validationQuery, numConnections,
+                numThreads, timeoutMillis);
+        }
+    }
+
+    private void preWarmConnections(ConnectionProvider connectionProvider, String url,
+                                    ConnectionWarmUpListener[] warmUpListeners, String validationQuery,
+                                    int numConnections, int numThreads, int timeoutMillis) {
+        ConnectionPreWarmer preWarmer = new ConnectionPreWarmer(this, connectionProvider, warmUpListeners,
+            validationQuery);
+        long startNanos = System.nanoTime();
+        int numWarmedUp = preWarmer.warmUp(numConnections, numThreads, timeoutMillis);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (numWarmedUp < numConnections) {
+            log.warn("Warmed up only {} of {} connections to {} in {}ms", numWarmedUp, numConnections, url,
+                elapsedMillis);
+        } else {
+            log.info("Warmed up {} connections to {} in {}ms", numWarmedUp, url, elapsedMillis);
+        }
+    }
+
     /**
      * Creates an instance of the {@link ConnectionProviderListener} implementation defined in the
      * <strong>listenerClazz</strong> and both constructs an instance, passes in database settings for this connection
@@ -575,11 +1350,10 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
     }
 
     /**
-     * Adds a given {@link ConnectionProviderListener} to its specific interface-implementing event listener types.
-     * This allows us to optimize invocations to listeners based on the event so we are not forced to iterate over all
-     * listeners that may not subscribe to that callback.
+     * Registers a given {@link ConnectionProviderListener} with this connection provider. The listener will not receive
+     * any events until {@link #compileDispatchTables()} has been invoked.
      *
-     * @param listener the listener to add to appropriate listener type lists
+     * @param listener the listener to register
      */
     private void addToListenerLists(ConnectionProviderListener listener) {
         Class<? extends ConnectionProviderListener> listenerClass = listener.getClass();
@@ -590,20 +1364,175 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
 
         // add to the connection provider's map of singleton listeners
         listenerMap.put(listenerClass, listener);
+    }
+
+    /**
+     * Builds one dispatch array per event type from the registered listeners, one entry for each listener interface
+     * that a listener implements. This allows us to optimize invocations to listeners based on the event so we are not
+     * forced to iterate over, or type-check, listeners that do not subscribe to that callback. <br/>
+     * If asynchronous dispatch is enabled, then post-event listeners that do not need to run inline are handed to an
+     * {@link AsyncListenerDispatcher} instead.
+     * @param settings the settings used to determine whether asynchronous dispatch is enabled
+     * @see SynchronousListener
+     */
+    private void compileDispatchTables(ConnectionProviderListenerSettings settings) {
+        preAcquisitionListeners = listenersImplementing(PreConnectionAcquisitionListener.class,
+            NO_PRE_ACQUISITION_LISTENERS, /*synchronous=*/null);
+        preCloseListeners = listenersImplementing(PreConnectionCloseListener.class, NO_PRE_CLOSE_LISTENERS,
+            /*synchronous=*/null);
+        compileStatementDispatcher(settings);
+        compilePoolListeners();
+        compileRoutingListeners();
+        compileFailoverListeners();
+        if (circuitBreaker != null) {
+            circuitBreaker.setListeners(listenersImplementing(CircuitBreakerListener.class,
+                NO_CIRCUIT_BREAKER_LISTENERS, /*synchronous=*/null));
+        }
+
+        if (!settings.getBooleanProperty(ASYNC_LISTENER_DISPATCH, false)) {
+            postAcquisitionListeners = listenersImplementing(PostConnectionAcquisitionListener.class,
+                NO_POST_ACQUISITION_LISTENERS, /*synchronous=*/null);
+            postCloseListeners = listenersImplementing(PostConnectionCloseListener.class, NO_POST_CLOSE_LISTENERS,
+                /*synchronous=*/null);
+            return;
+        }
+
+        postAcquisitionListeners = listenersImplementing(PostConnectionAcquisitionListener.class,
+            NO_POST_ACQUISITION_LISTENERS, /*synchronous=*/true);
+        postCloseListeners = listenersImplementing(PostConnectionCloseListener.class, NO_POST_CLOSE_LISTENERS,
+            /*synchronous=*/true);
+        PostConnectionAcquisitionListener[] asyncPostAcquisitionListeners = listenersImplementing(
+            PostConnectionAcquisitionListener.class, NO_POST_ACQUISITION_LISTENERS, /*synchronous=*/false);
+        PostConnectionCloseListener[] asyncPostCloseListeners = listenersImplementing(PostConnectionCloseListener.class,
+            NO_POST_CLOSE_LISTENERS, /*synchronous=*/false);
+        if (asyncPostAcquisitionListeners.length == 0 && asyncPostCloseListeners.length == 0) {
+            log.info("Asynchronous listener dispatch is enabled but all listeners for {} must be invoked inline",
+                jdbcUrl);
+            return;
+        }
+
+        String policyName = settings.getProperty(ASYNC_LISTENER_OVERFLOW_POLICY, AsyncOverflowPolicy.INLINE.name());
+        AsyncOverflowPolicy overflowPolicy;
+        try {
+            overflowPolicy = AsyncOverflowPolicy.valueOf(StringUtils.upperCase(StringUtils.trim(policyName)));
+        } catch (IllegalArgumentException iae) {
+            log.warn("Unknown '{}' value '{}' for {}, defaulting to {}", ASYNC_LISTENER_OVERFLOW_POLICY, policyName,
+                jdbcUrl, AsyncOverflowPolicy.INLINE);
+            overflowPolicy = AsyncOverflowPolicy.INLINE;
+        }
+        int bufferSize = settings.getIntProperty(ASYNC_LISTENER_BUFFER_SIZE, DEFAULT_ASYNC_LISTENER_BUFFER_SIZE);
+        asyncDispatcher = new AsyncListenerDispatcher(this, asyncPostAcquisitionListeners, asyncPostCloseListeners,
+            bufferSize, overflowPolicy);
+        asyncDispatcher.start();
+        log.info("Dispatching post-event callbacks for {} listeners asynchronously for {}",
+            Math.max(asyncPostAcquisitionListeners.length, asyncPostCloseListeners.length), jdbcUrl);
+    }
+
+    /**
+     * Creates the {@link StatementEventDispatcher} used to wrap acquired connections if statement instrumentation is
+     * enabled and at least one {@link StatementExecutionListener} is registered, since wrapping connections is pure
+     * overhead otherwise. Connections are always wrapped for the {@link ConnectionValidator} and the
+     * {@link SessionStateCache}, if there are any.
+     */
+    private void compileStatementDispatcher(ConnectionProviderListenerSettings settings) {
+        StatementExecutionListener[] statementListeners = listenersImplementing(StatementExecutionListener.class,
+            NO_STATEMENT_LISTENERS, /*synchronous=*/null);
+        boolean instrumentStatements = settings.getBooleanProperty(INSTRUMENT_STATEMENTS, false);
+        if (instrumentStatements && statementListeners.length > 0) {
+            log.info("Instrumenting statements for {} listeners for {}", statementListeners.length, jdbcUrl);
+        } else if (instrumentStatements) {
+            log.warn("'{}' is enabled but no StatementExecutionListener is attached for {}", INSTRUMENT_STATEMENTS,
+                jdbcUrl);
+        } else if (statementListeners.length > 0) {
+            log.warn("{} StatementExecutionListeners are attached for {} but will not be notified unless '{}' is " +
+                "enabled", statementListeners.length, jdbcUrl, INSTRUMENT_STATEMENTS);
+        }
+        StatementExecutionListener[] dispatchedListeners = (instrumentStatements ? statementListeners :
+            NO_STATEMENT_LISTENERS);
+        if (connectionValidator != null) {
+            dispatchedListeners = Arrays.copyOf(dispatchedListeners, dispatchedListeners.length + 1);
+            dispatchedListeners[dispatchedListeners.length - 1] = connectionValidator;
+        }
+        if (dispatchedListeners.length > 0 || sessionStates != null) {
+            statementDispatcher = new StatementEventDispatcher(dispatchedListeners, jdbcUrl);
+        }
+    }
 
-        // attach to each phase-specific listener lists, one for each listener interface it implements
-        if (listener instanceof PreConnectionAcquisitionListener) {
-            preAcquisitionListeners.add((PreConnectionAcquisitionListener)listener);
+    /**
+     * Hands any {@link ConnectionPoolListener}s to the delegate connection provider if it is a
+     * {@link PoolingConnectionProvider}, which notifies them directly from inside the pool, or to the pools behind it
+     * if it is a {@link MultiplexingConnectionProvider}, such as a {@link RoutingConnectionProvider}.
+     */
+    private void compilePoolListeners() {
+        ConnectionPoolListener[] poolListeners = listenersImplementing(ConnectionPoolListener.class, NO_POOL_LISTENERS,
+            /*synchronous=*/null);
+        if (delegateConnectionProvider instanceof PoolingConnectionProvider) {
+            ((PoolingConnectionProvider) delegateConnectionProvider).setPoolListeners(poolListeners);
+        } else if (delegateConnectionProvider instanceof MultiplexingConnectionProvider) {
+            ((MultiplexingConnectionProvider<?>) delegateConnectionProvider).setPoolListeners(poolListeners);
+        } else if (poolListeners.length > 0) {
+            log.warn("{} ConnectionPoolListeners are attached for {} but will not be notified because the delegate " +
+                "connection provider is not a {}", poolListeners.length, jdbcUrl,
+                PoolingConnectionProvider.class.getSimpleName());
         }
-        if (listener instanceof PostConnectionAcquisitionListener) {
-            postAcquisitionListeners.add((PostConnectionAcquisitionListener)listener);
+    }
+
+    /**
+     * Hands any {@link ConnectionRoutingListener}s to the delegate connection provider if it is a
+     * {@link RoutingConnectionProvider}, which notifies them of the route of every acquisition.
+     */
+    private void compileRoutingListeners() {
+        ConnectionRoutingListener[] routingListeners = listenersImplementing(ConnectionRoutingListener.class,
+            NO_ROUTING_LISTENERS, /*synchronous=*/null);
+        if (delegateConnectionProvider instanceof RoutingConnectionProvider) {
+            ((RoutingConnectionProvider) delegateConnectionProvider).setRoutingListeners(routingListeners);
+        } else if (routingListeners.length > 0) {
+            log.warn("{} ConnectionRoutingListeners are attached for {} but will not be notified because the " +
+                "delegate connection provider is not a {}", routingListeners.length, jdbcUrl,
+                RoutingConnectionProvider.class.getSimpleName());
         }
-        if (listener instanceof PreConnectionCloseListener) {
-            preCloseListeners.add((PreConnectionCloseListener)listener);
+    }
+
+    /**
+     * Hands any {@link FailoverListener}s to the delegate connection provider if it is a
+     * {@link FailoverConnectionProvider}, which notifies them whenever it switches delegates.
+     */
+    private void compileFailoverListeners() {
+        FailoverListener[] failoverListeners = listenersImplementing(FailoverListener.class, NO_FAILOVER_LISTENERS,
+            /*synchronous=*/null);
+        if (delegateConnectionProvider instanceof FailoverConnectionProvider) {
+            ((FailoverConnectionProvider) delegateConnectionProvider).setFailoverListeners(failoverListeners);
+        } else if (failoverListeners.length > 0) {
+            log.warn("{} FailoverListeners are attached for {} but will not be notified because the delegate " +
+                "connection provider is not a {}", failoverListeners.length, jdbcUrl,
+                FailoverConnectionProvider.class.getSimpleName());
         }
-        if (listener instanceof PostConnectionCloseListener) {
-            postCloseListeners.add((PostConnectionCloseListener)listener);
+    }
+
+    /**
+     * Returns <code>true</code> if the given listener must be invoked on the thread performing the connection
+     * operation, even if asynchronous dispatch is enabled.
+     */
+    private static boolean isSynchronous(ConnectionProviderListener listener) {
+        return listener instanceof SynchronousListener || listener instanceof PreConnectionAcquisitionListener ||
+            listener instanceof PreConnectionCloseListener;
+    }
+
+    /**
+     * Returns all registered listeners implementing the given listener interface, in registration order, using the
+     * provided <strong>emptyArray</strong> both as the array type and as the result if no listeners match.
+     * @param synchronous if non-null, only listeners whose {@link #isSynchronous(ConnectionProviderListener)} value
+     *          matches are returned
+     */
+    private <T> T[] listenersImplementing(Class<T> listenerType, T[] emptyArray, @Nullable Boolean synchronous) {
+        List<T> matching = new ArrayList<>();
+        for (ConnectionProviderListener listener : listenerMap.values()) {
+            if (listenerType.isInstance(listener) &&
+                (synchronous == null || synchronous == isSynchronous(listener))) {
+                matching.add(listenerType.cast(listener));
+            }
         }
+        return matching.toArray(emptyArray);
     }
 
     /**
@@ -611,9 +1540,170 @@ public class InstrumentedConnectionProvider implements ConnectionProvider, Confi
      * @see #addToListenerLists(ConnectionProviderListener)
      */
     protected void removeAllListeners() {
-        preAcquisitionListeners.clear();
-        postAcquisitionListeners.clear();
-        preCloseListeners.clear();
-        postCloseListeners.clear();
+        stopAsyncDispatch();
+        stopListeners();
+        listenerMap.clear();
+        preAcquisitionListeners = NO_PRE_ACQUISITION_LISTENERS;
+        postAcquisitionListeners = NO_POST_ACQUISITION_LISTENERS;
+        preCloseListeners = NO_PRE_CLOSE_LISTENERS;
+        postCloseListeners = NO_POST_CLOSE_LISTENERS;
+        // the validator and the session state cache still need connections to be wrapped once all listeners are gone
+        if (connectionValidator != null) {
+            statementDispatcher = new StatementEventDispatcher(new StatementExecutionListener[] { connectionValidator },
+                jdbcUrl);
+        } else {
+            statementDispatcher = (sessionStates != null ? new StatementEventDispatcher(NO_STATEMENT_LISTENERS,
+                jdbcUrl) : null);
+        }
+        if (delegateConnectionProvider instanceof PoolingConnectionProvider) {
+            ((PoolingConnectionProvider) delegateConnectionProvider).setPoolListeners(NO_POOL_LISTENERS);
+        } else if (delegateConnectionProvider instanceof MultiplexingConnectionProvider) {
+            ((MultiplexingConnectionProvider<?>) delegateConnectionProvider).setPoolListeners(NO_POOL_LISTENERS);
+        }
+        if (delegateConnectionProvider instanceof RoutingConnectionProvider) {
+            ((RoutingConnectionProvider) delegateConnectionProvider).setRoutingListeners(NO_ROUTING_LISTENERS);
+        } else if (delegateConnectionProvider instanceof FailoverConnectionProvider) {
+            ((FailoverConnectionProvider) delegateConnectionProvider).setFailoverListeners(NO_FAILOVER_LISTENERS);
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.setListeners(NO_CIRCUIT_BREAKER_LISTENERS);
+        }
+    }
+
+    /**
+     * Stops the asynchronous listener dispatcher, if any, after dispatching any events that are still buffered.
+     */
+    private void stopAsyncDispatch() {
+        if (asyncDispatcher != null) {
+            asyncDispatcher.shutdown(ASYNC_LISTENER_SHUTDOWN_TIMEOUT_MILLIS);
+            asyncDispatcher = null;
+        }
+    }
+
+    /**
+     * Releases the resources held by any registered {@link StoppableListener}s.
+     */
+    private void stopListeners() {
+        for (ConnectionProviderListener listener : listenerMap.values()) {
+            if (listener instanceof StoppableListener) {
+                try {
+                    ((StoppableListener) listener).stop();
+                } catch (Throwable t) {
+                    logListenerFailure("stop", listener, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of post-event listener callbacks that were discarded because asynchronous dispatch was
+     * enabled with the {@link AsyncOverflowPolicy#DROP} policy and the event buffer was full.
+     */
+    public long getNumDroppedListenerEvents() {
+        AsyncListenerDispatcher dispatcher = asyncDispatcher;
+        return (dispatcher != null ? dispatcher.getNumDroppedEvents() : 0L);
+    }
+
+    /**
+     * Returns the number of post-event listener callbacks that were meant to be dispatched asynchronously but were
+     * invoked on the calling thread instead because the event buffer was full.
+     */
+    public long getNumInlineListenerEvents() {
+        AsyncListenerDispatcher dispatcher = asyncDispatcher;
+        return (dispatcher != null ? dispatcher.getNumInlineEvents() : 0L);
+    }
+
+    /**
+     * Returns the limiter that gates acquisitions from the delegate, which exposes the current limit, queue depth and
+     * rejection counts, or <code>null</code> if concurrency limiting is not enabled.
+     */
+    @Nullable
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Returns the circuit breaker that guards acquisitions from the delegate, which exposes its current state, failure
+     * rate and rejection count, or <code>null</code> if the circuit breaker is not enabled.
+     */
+    @Nullable
+    public ConnectionCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Returns the bulkheads that limit how many connections each partition of callers may have checked out, which
+     * expose per-partition usage, wait times and rejection counts, or <code>null</code> if no partitions are
+     * configured.
+     */
+    @Nullable
+    public ConnectionBulkheads getBulkheads() {
+        return bulkheads;
+    }
+
+    /**
+     * Returns the validator of acquired connections, which counts the validations that were performed, skipped and
+     * failed, or <code>null</code> if validation is not enabled.
+     */
+    @Nullable
+    public ConnectionValidator getConnectionValidator() {
+        return connectionValidator;
+    }
+
+    /**
+     * Returns the cache of connection session state, which counts the round trips to the database it saved, or
+     * <code>null</code> if it is not enabled.
+     */
+    @Nullable
+    public SessionStateCache getSessionStateCache() {
+        return sessionStates;
+    }
+
+    /**
+     * Returns the acquirer that runs acquisitions requested through {@link #acquireAsync()}, which counts the ones
+     * that were rejected, timed out or abandoned, or <code>null</code> if asynchronous acquisition is not enabled.
+     */
+    @Nullable
+    public AsyncConnectionAcquirer getAsyncAcquirer() {
+        return asyncAcquirer;
+    }
+
+    /**
+     * Returns the context of the checkout that handed out the given connection, which listeners can keep per-checkout
+     * state in instead of thread-locals.
+     * @param connection a connection handed out by this provider that has not been closed yet
+     * @return the context, or <code>null</code> if checkout contexts are not enabled or the connection is not checked
+     *          out from this provider
+     */
+    @Nullable
+    public CheckoutContext getCheckoutContext(@Nullable Connection connection) {
+        return (exposeCheckoutContexts && connection != null ? checkoutContexts.get(connection) : null);
+    }
+
+    /**
+     * Returns the number of nested acquisitions that were given the connection already held by their thread instead of
+     * a connection from the delegate, which is always zero unless nested connection reuse is enabled.
+     */
+    public long getNumReusedAcquisitions() {
+        return numReusedAcquisitions.sum();
+    }
+
+    /**
+     * The connection held by a single thread and the number of acquisitions on that thread that have not closed it
+     * yet. Instances are reused across checkouts so holding a connection does not allocate.
+     */
+    private static final class HeldConnection {
+        Connection connection;
+        // the shard key and route type the connection was acquired for
+        Object shardKey;
+        RouteType routeType;
+        int refCount;
+    }
+
+    private static final class HeldConnectionThreadLocal extends ThreadLocal<HeldConnection> {
+        @Override
+        protected HeldConnection initialValue() {
+            return new HeldConnection();
+        }
     }
 }
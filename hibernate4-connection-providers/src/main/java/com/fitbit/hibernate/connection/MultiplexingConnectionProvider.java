@@ -0,0 +1,210 @@
+package com.fitbit.hibernate.connection;
+
+import com.fitbit.hibernate.connection.event.ConnectionPoolListener;
+import com.fitbit.hibernate.connection.pool.PoolingConnectionProvider;
+
+import com.google.common.collect.MapMaker;
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.cfg.Environment;
+import org.hibernate.engine.jdbc.connections.internal.ConnectionProviderInitiator;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.ServiceRegistryAwareService;
+import org.hibernate.service.spi.ServiceRegistryImplementor;
+import org.hibernate.service.spi.Stoppable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Base class of the connection providers that acquire every connection from one of several delegate connection
+ * providers, such as the shards of a {@link com.fitbit.hibernate.connection.shard.ShardedConnectionProvider}. Each
+ * delegate is identified by an object of type <code>D</code> and configured from the same Hibernate properties as the
+ * multiplexing provider, overridden by the properties with a prefix of its own. <br/>
+ * This class remembers the delegate that every connection was acquired from, so that each connection is returned to
+ * that delegate whichever thread returns it, hands any {@link ConnectionPoolListener}s on to the delegates that are
+ * {@link PoolingConnectionProvider}s, and stops all delegates along with the multiplexing provider.
+ *
+ * @param <D> the type identifying a delegate
+ * @author dgarson
+ */
+public abstract class MultiplexingConnectionProvider<D> implements ConnectionProvider, Configurable, Stoppable,
+    ServiceRegistryAwareService {
+
+    private static final Logger log = LoggerFactory.getLogger(MultiplexingConnectionProvider.class);
+
+    private ServiceRegistryImplementor serviceRegistry;
+
+    // the delegate that each checked out connection was acquired from
+    private final ConcurrentMap<Connection, D> checkedOut = new MapMaker().weakKeys().makeMap();
+
+    @Override
+    public void injectServices(ServiceRegistryImplementor serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    /**
+     * Returns all delegates of this provider.
+     */
+    @Nonnull
+    protected abstract Iterable<D> getAllDelegates();
+
+    /**
+     * Returns the connection provider of the given delegate.
+     */
+    @Nonnull
+    protected abstract ConnectionProvider getConnectionProvider(@Nonnull D delegate);
+
+    /**
+     * Returns the configuration values that a delegate is configured with: the given Hibernate configuration values,
+     * overridden by any values whose key has the given prefix, with that prefix replaced by &quot;hibernate.&quot;. The
+     * connection provider class is taken from the given property rather than the shared one, which most likely names
+     * the multiplexing provider itself and must not be instantiated again.
+     * @param prefix the prefix of the properties specific to the delegate, such as
+     *          &quot;hibernate.connection.sharding.shard1.&quot;
+     * @param delegateProviderClassProperty the property naming the connection provider class of every delegate
+     */
+    @Nonnull
+    protected static Map<Object, Object> getDelegateValues(Map<?, ?> configurationValues, String prefix,
+                                                           String delegateProviderClassProperty) {
+        Map<Object, Object> delegateValues = new HashMap<>(configurationValues);
+        delegateValues.remove(Environment.CONNECTION_PROVIDER);
+        String delegateProviderClass = StringUtils.trimToNull(ConfigurationHelper.getString(
+            delegateProviderClassProperty, configurationValues));
+        if (delegateProviderClass != null) {
+            delegateValues.put(Environment.CONNECTION_PROVIDER, delegateProviderClass);
+        }
+        for (Map.Entry<?, ?> entry : configurationValues.entrySet()) {
+            if (entry.getKey() instanceof String && ((String) entry.getKey()).startsWith(prefix)) {
+                delegateValues.put("hibernate." + ((String) entry.getKey()).substring(prefix.length()),
+                    entry.getValue());
+            }
+        }
+        return delegateValues;
+    }
+
+    /**
+     * Creates and configures the connection provider of a delegate from the configuration values returned by
+     * {@link #getDelegateValues}.
+     * @param description what the delegate is, for logging
+     */
+    @Nonnull
+    protected ConnectionProvider createDelegateConnectionProvider(Map<Object, Object> delegateValues,
+                                                                  String description) {
+        ConnectionProvider connectionProvider = ConnectionProviderInitiator.INSTANCE.initiateService(delegateValues,
+            serviceRegistry);
+        // the initiator only instantiates the provider, so apply the lifecycle that the service registry would have
+        //      applied had it created the provider itself
+        if (connectionProvider instanceof ServiceRegistryAwareService) {
+            ((ServiceRegistryAwareService) connectionProvider).injectServices(serviceRegistry);
+        }
+        if (connectionProvider instanceof Configurable) {
+            ((Configurable) connectionProvider).configure(delegateValues);
+        }
+        log.trace("Created connection provider of type {} for {}", connectionProvider.getClass(), description);
+        return connectionProvider;
+    }
+
+    /**
+     * Hands the given listeners to every delegate whose connection provider is a {@link PoolingConnectionProvider}.
+     * @param listeners the listeners to notify, which must not be modified after being passed in
+     */
+    public void setPoolListeners(@Nonnull ConnectionPoolListener[] listeners) {
+        for (D delegate : getAllDelegates()) {
+            if (getConnectionProvider(delegate) instanceof PoolingConnectionProvider) {
+                ((PoolingConnectionProvider) getConnectionProvider(delegate)).setPoolListeners(listeners);
+            }
+        }
+    }
+
+    /**
+     * Acquires a connection from the given delegate and remembers where it came from, so that
+     * {@link #closeConnection} can return it there.
+     * @throws SQLException if the delegate failed to acquire a connection or returned none
+     */
+    @Nonnull
+    protected Connection acquireFrom(@Nonnull D delegate) throws SQLException {
+        Connection connection = getConnectionProvider(delegate).getConnection();
+        if (connection == null) {
+            throw new SQLException("Connection provider of " + delegate + " returned no connection");
+        }
+        checkedOut.put(connection, delegate);
+        return connection;
+    }
+
+    /**
+     * Invoked once a connection has been handed back to the given delegate, whether or not that succeeded. Does
+     * nothing by default.
+     */
+    protected void connectionReturned(@Nonnull D delegate) {
+    }
+
+    @Override
+    public void closeConnection(Connection conn) throws SQLException {
+        if (conn == null) {
+            return;
+        }
+        D delegate = checkedOut.remove(conn);
+        if (delegate == null) {
+            throw new SQLException("Connection was not acquired from any delegate of this connection provider");
+        }
+        try {
+            getConnectionProvider(delegate).closeConnection(conn);
+        } finally {
+            connectionReturned(delegate);
+        }
+    }
+
+    /**
+     * Stops the connection providers of all delegates that can be stopped, even if some fail to stop.
+     */
+    @Override
+    public void stop() {
+        for (D delegate : getAllDelegates()) {
+            if (getConnectionProvider(delegate) instanceof Stoppable) {
+                try {
+                    ((Stoppable) getConnectionProvider(delegate)).stop();
+                } catch (RuntimeException e) {
+                    log.error("Unable to stop the connection provider of {}", delegate, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> only if the connection providers of all delegates support aggressive release.
+     */
+    @Override
+    public boolean supportsAggressiveRelease() {
+        for (D delegate : getAllDelegates()) {
+            if (!getConnectionProvider(delegate).supportsAggressiveRelease()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public boolean isUnwrappableAs(Class unwrapType) {
+        return unwrapType.isInstance(this);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> unwrapType) {
+        if (!isUnwrappableAs(unwrapType)) {
+            throw new UnknownUnwrapTypeException(unwrapType);
+        }
+        return (T) this;
+    }
+}
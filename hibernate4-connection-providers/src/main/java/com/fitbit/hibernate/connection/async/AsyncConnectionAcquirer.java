@@ -0,0 +1,226 @@
+package com.fitbit.hibernate.connection.async;
+
+import com.fitbit.hibernate.connection.bulkhead.ThreadLocalPartitionResolver;
+import com.fitbit.hibernate.connection.routing.RouteType;
+import com.fitbit.hibernate.connection.routing.RoutingContext;
+import com.fitbit.hibernate.connection.shard.ShardContext;
+import com.fitbit.util.StripedLongCounter;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Runs connection acquisitions on a dedicated, bounded pool of threads on behalf of callers that must not block, such
+ * as event loop threads, and hands the result back through a {@link ListenableFuture}. Each acquisition goes through
+ * the same pipeline as a blocking one, so listeners, circuit breaker, bulkheads and concurrency limiter all see it,
+ * and the routing, shard and bulkhead partition context of the calling thread is carried over to the thread that runs
+ * it. <br/>
+ * Every acquisition has a deadline. Once it passes, the future fails with a {@link SQLTimeoutException}; a request
+ * still waiting in the queue is then dropped without ever reaching the connection provider, and a connection that is
+ * acquired after the future timed out or was cancelled is handed straight back. Requests beyond the queue capacity
+ * fail immediately with a {@link SQLTransientConnectionException} instead of piling up.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+public class AsyncConnectionAcquirer {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncConnectionAcquirer.class);
+
+    private final String jdbcUrl;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timer;
+
+    private final StripedLongCounter numRejected = new StripedLongCounter();
+    private final StripedLongCounter numTimedOut = new StripedLongCounter();
+    private final StripedLongCounter numAbandoned = new StripedLongCounter();
+
+    /**
+     * @param jdbcUrl the JDBC url of the connection provider, used for logging and thread names
+     * @param numThreads the number of threads that run acquisitions
+     * @param queueSize the number of acquisitions that may wait for a thread before further ones are rejected
+     */
+    public AsyncConnectionAcquirer(String jdbcUrl, int numThreads, int queueSize) {
+        Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
+        Preconditions.checkArgument(queueSize > 0, "queueSize must be positive");
+        this.jdbcUrl = jdbcUrl;
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactoryBuilder()
+            .setNameFormat("connection-acquirer-%d")
+            .setDaemon(true)
+            .build());
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("connection-acquirer-timer-%d")
+            .setDaemon(true)
+            .build());
+    }
+
+    /**
+     * Submits an acquisition to be run on one of the acquisition threads.
+     * @param provider the connection provider that a connection acquired too late is handed back to
+     * @param acquisition the blocking acquisition to run
+     * @param timeoutNanos how long the caller is willing to wait for the connection
+     * @return a future that completes with the acquired connection, which the caller must close through the provider
+     */
+    @Nonnull
+    public ListenableFuture<Connection> acquire(@Nonnull ConnectionProvider provider,
+                                                @Nonnull Callable<Connection> acquisition, long timeoutNanos) {
+        final SettableFuture<Connection> future = SettableFuture.create();
+        final long deadlineNanos = System.nanoTime() + timeoutNanos;
+        try {
+            executor.execute(new AcquisitionTask(provider, acquisition, future, deadlineNanos));
+        } catch (RejectedExecutionException ree) {
+            numRejected.increment();
+            future.setException(new SQLTransientConnectionException("Too many asynchronous acquisitions are waiting " +
+                "for a connection to " + jdbcUrl, ree));
+            return future;
+        }
+        try {
+            final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // counted first, so whoever sees the acquisition fail also sees it counted
+                    numTimedOut.increment();
+                    if (!future.setException(new SQLTimeoutException("Timed out waiting for a connection to " +
+                        jdbcUrl))) {
+                        numTimedOut.add(-1L);
+                    }
+                }
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    timeout.cancel(false);
+                }
+            }, MoreExecutors.directExecutor());
+        } catch (RejectedExecutionException ree) {
+            // the acquirer was shut down concurrently, which already failed the acquisition or is about to
+            log.debug("Unable to schedule acquisition timeout for {}", jdbcUrl, ree);
+        }
+        return future;
+    }
+
+    /**
+     * Stops the acquisition threads, failing any acquisitions that have not started yet. Acquisitions that are already
+     * running are allowed to finish.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        for (Runnable pending : executor.shutdownNow()) {
+            ((AcquisitionTask) pending).future.setException(new SQLException("Connection provider for " + jdbcUrl +
+                " was closed"));
+        }
+    }
+
+    /**
+     * Returns the number of acquisitions that were rejected because the queue was full.
+     */
+    public long getNumRejected() {
+        return numRejected.sum();
+    }
+
+    /**
+     * Returns the number of acquisitions that did not complete before their deadline.
+     */
+    public long getNumTimedOut() {
+        return numTimedOut.sum();
+    }
+
+    /**
+     * Returns the number of connections that were acquired after their future had already timed out or been
+     * cancelled, and were handed straight back.
+     */
+    public long getNumAbandoned() {
+        return numAbandoned.sum();
+    }
+
+    /**
+     * Returns the number of acquisitions that are waiting for an acquisition thread.
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * A single acquisition along with the context of the thread that submitted it.
+     */
+    private class AcquisitionTask implements Runnable {
+        private final ConnectionProvider provider;
+        private final Callable<Connection> acquisition;
+        private final SettableFuture<Connection> future;
+        private final long deadlineNanos;
+        private final RouteType routeType;
+        private final Object shardKey;
+        private final String partition;
+
+        AcquisitionTask(ConnectionProvider provider, Callable<Connection> acquisition,
+                        SettableFuture<Connection> future, long deadlineNanos) {
+            this.provider = provider;
+            this.acquisition = acquisition;
+            this.future = future;
+            this.deadlineNanos = deadlineNanos;
+            routeType = RoutingContext.getRouteType();
+            shardKey = ShardContext.getShardKey();
+            partition = ThreadLocalPartitionResolver.getPartition();
+        }
+
+        @Override
+        public void run() {
+            // the caller has given up on this acquisition while it was queued, so do not take a connection for it
+            if (future.isDone()) {
+                return;
+            }
+            if (System.nanoTime() - deadlineNanos >= 0L) {
+                numTimedOut.increment();
+                if (!future.setException(new SQLTimeoutException("Timed out waiting for a connection to " + jdbcUrl))) {
+                    numTimedOut.add(-1L);
+                }
+                return;
+            }
+            Connection connection;
+            RoutingContext.setRouteType(routeType);
+            ShardContext.setShardKey(shardKey);
+            ThreadLocalPartitionResolver.setPartition(partition);
+            try {
+                connection = acquisition.call();
+            } catch (Throwable t) {
+                future.setException(t);
+                return;
+            } finally {
+                RoutingContext.clear();
+                ShardContext.clear();
+                ThreadLocalPartitionResolver.clearPartition();
+            }
+            if (!future.set(connection)) {
+                numAbandoned.increment();
+                try {
+                    provider.closeConnection(connection);
+                } catch (SQLException | RuntimeException e) {
+                    log.warn("Unable to return connection to {} that was acquired too late", jdbcUrl, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.fitbit.hibernate.connection.breaker;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Thrown when a connection is requested while the {@link ConnectionCircuitBreaker} of the connection provider is open,
+ * or is half-open and all of its probe acquisitions are already in progress. The delegate connection provider is not
+ * asked for a connection, so the caller fails immediately instead of waiting for the driver to time out against a
+ * database that is known to be unreachable. Retrying after the open duration may succeed.
+ *
+ * @author dgarson
+ */
+public class CircuitBreakerOpenException extends SQLTransientConnectionException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CircuitState state;
+
+    public CircuitBreakerOpenException(String jdbcUrl, CircuitState state) {
+        super("Circuit breaker for " + jdbcUrl + " is " + state + ", failing fast without acquiring a connection");
+        this.state = state;
+    }
+
+    /**
+     * Returns the state of the circuit breaker when the connection was rejected.
+     */
+    public CircuitState getState() {
+        return state;
+    }
+}
@@ -0,0 +1,23 @@
+package com.fitbit.hibernate.connection.breaker;
+
+/**
+ * The states of a {@link ConnectionCircuitBreaker}.
+ *
+ * @author dgarson
+ */
+public enum CircuitState {
+    /**
+     * Connections are acquired from the delegate as usual, and the outcome of every acquisition is recorded.
+     */
+    CLOSED,
+    /**
+     * Too many recent acquisitions failed, so connections are rejected without asking the delegate until the open
+     * duration has elapsed.
+     */
+    OPEN,
+    /**
+     * The open duration has elapsed, so a limited number of probe acquisitions are let through to find out whether the
+     * database has recovered, while all others are still rejected.
+     */
+    HALF_OPEN
+}
@@ -0,0 +1,116 @@
+package com.fitbit.hibernate.connection.bulkhead;
+
+import com.fitbit.util.LatencyHistogram;
+import com.fitbit.util.StripedLongCounter;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A single named partition of {@link ConnectionBulkheads}, which allows a fixed number of connections to be checked
+ * out for its callers at the same time and records how long they waited for one. <br/>
+ * Permits are held in a non-fair {@link Semaphore}, so granting and releasing a permit is a single compare-and-set
+ * unless callers are waiting, and waiting callers may be overtaken by new ones.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+public class Bulkhead {
+
+    // the largest wait that is recorded without being clamped
+    private static final long MAX_TRACKABLE_WAIT_MILLIS = 60000L;
+
+    private final String name;
+    private final int maxPermits;
+    private final Semaphore permits;
+
+    private final LatencyHistogram waitTimes = new LatencyHistogram(MAX_TRACKABLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    private final StripedLongCounter numRejected = new StripedLongCounter();
+
+    Bulkhead(@Nonnull String name, int maxPermits) {
+        this.name = name;
+        this.maxPermits = maxPermits;
+        this.permits = new Semaphore(maxPermits, false);
+    }
+
+    /**
+     * Grants a permit, waiting up to the given time for one to be released if none is available.
+     * @return <code>true</code> if a permit was granted
+     */
+    boolean acquire(long maxWaitNanos) {
+        if (permits.tryAcquire()) {
+            waitTimes.record(0L);
+            return true;
+        }
+        if (maxWaitNanos > 0) {
+            long startNanos = System.nanoTime();
+            try {
+                if (permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+                    waitTimes.record(System.nanoTime() - startNanos);
+                    return true;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        numRejected.increment();
+        return false;
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    /**
+     * Returns the name of this partition.
+     */
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of connections this partition may have checked out at the same time.
+     */
+    public int getMaxPermits() {
+        return maxPermits;
+    }
+
+    /**
+     * Returns the number of connections currently checked out for this partition.
+     */
+    public int getNumInUse() {
+        return maxPermits - permits.availablePermits();
+    }
+
+    /**
+     * Returns an estimate of the number of callers currently waiting for a permit.
+     */
+    public int getNumWaiting() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Returns the time, in nanoseconds, that each granted permit was waited for, which is zero for permits that were
+     * available immediately.
+     */
+    @Nonnull
+    public LatencyHistogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    /**
+     * Returns the number of callers that were rejected because no permit became available in time.
+     */
+    public long getNumRejected() {
+        return numRejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Bulkhead[" + name + ", inUse=" + getNumInUse() + "/" + maxPermits + "]";
+    }
+}
@@ -0,0 +1,39 @@
+package com.fitbit.hibernate.connection.bulkhead;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Thrown when a connection is requested for a bulkhead partition that already has as many connections checked out as
+ * it is allowed, and none was released within the maximum wait. The delegate connection provider is not asked for a
+ * connection, so the connections reserved for other partitions remain available to them. Retrying later may succeed.
+ *
+ * @author dgarson
+ */
+public class BulkheadFullException extends SQLTransientConnectionException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String partition;
+    private final int maxPermits;
+
+    public BulkheadFullException(String jdbcUrl, String partition, int maxPermits) {
+        super("All " + maxPermits + " connections to " + jdbcUrl + " for bulkhead partition '" + partition +
+            "' are in use");
+        this.partition = partition;
+        this.maxPermits = maxPermits;
+    }
+
+    /**
+     * Returns the name of the partition whose connections were all in use.
+     */
+    public String getPartition() {
+        return partition;
+    }
+
+    /**
+     * Returns the number of connections the partition may have checked out at the same time.
+     */
+    public int getMaxPermits() {
+        return maxPermits;
+    }
+}
@@ -0,0 +1,55 @@
+package com.fitbit.hibernate.connection.bulkhead;
+
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+
+import javax.annotation.Nullable;
+
+/**
+ * The default {@link PartitionResolver}, which resolves the partition that was last set for the calling thread using
+ * {@link #setPartition(String)}. Callers are expected to clear the partition again once they are done, typically in a
+ * finally block, since pooled threads otherwise carry it over into unrelated work.
+ *
+ * @author dgarson
+ */
+public class ThreadLocalPartitionResolver implements PartitionResolver {
+
+    private static final ThreadLocal<String> currentPartition = new ThreadLocal<>();
+
+    /**
+     * Sets the partition that connections acquired by the calling thread belong to.
+     * @param partition the partition name, or <code>null</code> to clear it
+     */
+    public static void setPartition(@Nullable String partition) {
+        if (partition != null) {
+            currentPartition.set(partition);
+        } else {
+            currentPartition.remove();
+        }
+    }
+
+    /**
+     * Returns the partition that was set for the calling thread, if any.
+     */
+    @Nullable
+    public static String getPartition() {
+        return currentPartition.get();
+    }
+
+    /**
+     * Clears the partition of the calling thread.
+     */
+    public static void clearPartition() {
+        currentPartition.remove();
+    }
+
+    @Override
+    public void initialize(ConnectionProviderListenerSettings settings) {
+        // nothing to configure
+    }
+
+    @Nullable
+    @Override
+    public String resolvePartition() {
+        return currentPartition.get();
+    }
+}
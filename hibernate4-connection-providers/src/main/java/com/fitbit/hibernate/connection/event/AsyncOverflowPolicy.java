@@ -0,0 +1,26 @@
+package com.fitbit.hibernate.connection.event;
+
+/**
+ * Determines what happens to a post-acquisition or post-close listener event when asynchronous listener dispatch is
+ * enabled and the bounded event buffer is full because the background dispatcher cannot keep up.
+ *
+ * @author dgarson
+ */
+public enum AsyncOverflowPolicy {
+
+    /**
+     * The event is discarded and counted as dropped. Connection operations are never delayed by listeners.
+     */
+    DROP,
+
+    /**
+     * The thread acquiring or closing the connection waits until space becomes available in the buffer.
+     */
+    BLOCK,
+
+    /**
+     * The event is dispatched inline on the thread acquiring or closing the connection, as it would be if asynchronous
+     * dispatch were disabled.
+     */
+    INLINE
+}
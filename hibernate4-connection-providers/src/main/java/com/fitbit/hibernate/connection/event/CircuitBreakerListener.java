@@ -0,0 +1,28 @@
+package com.fitbit.hibernate.connection.event;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.breaker.CircuitState;
+import com.fitbit.hibernate.connection.breaker.ConnectionCircuitBreaker;
+
+/**
+ * Listener type that is notified whenever the {@link ConnectionCircuitBreaker} of an
+ * {@link InstrumentedConnectionProvider} changes state. A listener that is attached to a provider without a circuit
+ * breaker never receives any events. <br/>
+ * These callbacks are always invoked inline, on the thread whose acquisition caused the transition, so they should
+ * return quickly.
+ *
+ * @author dgarson
+ */
+public interface CircuitBreakerListener extends ConnectionProviderListener {
+
+    /**
+     * Callback invoked after the circuit breaker has moved from one state to another.
+     *
+     * @param connectionProvider the connection provider whose circuit breaker changed state
+     * @param previousState the state the circuit breaker was in
+     * @param newState the state the circuit breaker is now in
+     * @param failureRate the percentage of acquisitions in the sliding window that failed at the time of the transition
+     */
+    void afterCircuitStateChanged(InstrumentedConnectionProvider connectionProvider, CircuitState previousState,
+                                  CircuitState newState, float failureRate);
+}
@@ -4,6 +4,7 @@ import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
 
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 
 import java.util.Map;
 import java.util.Properties;
@@ -110,4 +111,19 @@ public class ConnectionProviderListenerSettings {
         Boolean parsedVal = BooleanUtils.toBooleanObject(value);
         return (parsedVal != null ? parsedVal : defaultValue);
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets a Hibernate property for a given name and converts it to an integer value, returning the
+     * <strong>defaultValue</strong> if the property is not defined or is not a valid integer.
+     *
+     * @param propertyName the property name
+     * @param defaultValue the default value to return
+     */
+    public int getIntProperty(@Nonnull String propertyName, int defaultValue) {
+        Object val = configurationValues.get(propertyName);
+        if (val instanceof Number) {
+            return ((Number)val).intValue();
+        }
+        return NumberUtils.toInt(val != null ? StringUtils.trim(val.toString()) : null, defaultValue);
+    }
+}
@@ -0,0 +1,38 @@
+package com.fitbit.hibernate.connection.event;
+
+import com.fitbit.hibernate.connection.routing.Route;
+import com.fitbit.hibernate.connection.routing.RouteType;
+import com.fitbit.hibernate.connection.routing.RoutingConnectionProvider;
+
+/**
+ * Listener type that receives the route of every acquisition from a {@link RoutingConnectionProvider} that is used as
+ * the delegate of an {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider}. <br/>
+ * Routing events are always invoked inline, on the acquiring thread, before the connection provider's own
+ * post-acquisition events for the same acquisition, and a listener that is attached to a provider whose delegate does
+ * not route never receives any.
+ *
+ * @author dgarson
+ */
+public interface ConnectionRoutingListener extends ConnectionProviderListener {
+
+    /**
+     * Callback invoked after a connection has been acquired from a route.
+     *
+     * @param router the routing connection provider
+     * @param route the route the connection was acquired from
+     * @param routeType the route type the connection was requested for
+     */
+    void afterConnectionRouted(RoutingConnectionProvider router, Route route, RouteType routeType);
+
+    /**
+     * Callback invoked when a connection could not be acquired from a route. If the route was a read route and
+     * falling back to the write route is enabled, this is followed by another event for the write route.
+     *
+     * @param router the routing connection provider
+     * @param route the route the connection was to be acquired from
+     * @param routeType the route type the connection was requested for
+     * @param exc the exception thrown by the route's connection provider
+     */
+    void afterConnectionRoutingFailed(RoutingConnectionProvider router, Route route, RouteType routeType,
+                                      Throwable exc);
+}
@@ -0,0 +1,34 @@
+package com.fitbit.hibernate.connection.event;
+
+import com.fitbit.hibernate.connection.failover.FailoverConnectionProvider;
+
+import javax.annotation.Nullable;
+
+/**
+ * Listener type that is notified whenever a {@link FailoverConnectionProvider} that is used as the delegate of an
+ * {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider} switches between its primary and standby
+ * delegates. A listener that is attached to a provider whose delegate does not fail over never receives any events.
+ * <br/>
+ * These callbacks are invoked inline, either on the thread whose acquisition caused the switch or on the health
+ * prober's thread, so they should return quickly.
+ *
+ * @author dgarson
+ */
+public interface FailoverListener extends ConnectionProviderListener {
+
+    /**
+     * Callback invoked after connections started being acquired from the standby delegate.
+     *
+     * @param failoverProvider the failover connection provider
+     * @param cause the failure that made the primary delegate be considered unhealthy, if any
+     */
+    void afterFailover(FailoverConnectionProvider failoverProvider, @Nullable Throwable cause);
+
+    /**
+     * Callback invoked after connections started being acquired from the primary delegate again.
+     *
+     * @param failoverProvider the failover connection provider
+     * @param degradedNanos how long connections were acquired from the standby delegate
+     */
+    void afterFailback(FailoverConnectionProvider failoverProvider, long degradedNanos);
+}
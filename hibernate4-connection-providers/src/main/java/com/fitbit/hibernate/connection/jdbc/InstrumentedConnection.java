@@ -0,0 +1,464 @@
+package com.fitbit.hibernate.connection.jdbc;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * {@link Connection} wrapper handed out by an {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider}
+ * when statement instrumentation is enabled. Statements and prepared statements created through this connection are
+ * wrapped so that their preparation, execution and result set iteration are timed and published to the registered
+ * {@link com.fitbit.hibernate.connection.event.StatementExecutionListener}s. Callable statements are passed through
+ * without instrumentation. <br/>
+ * Wrappers are plain delegating classes, so the only cost on top of the driver is the wrapper allocation itself and a
+ * {@link System#nanoTime()} call on either side of each timed operation. <br/>
+ * If a {@link SessionStateCache} is given, setters of the auto-commit mode, transaction isolation level, read-only flag
+ * and schema that would not change anything are skipped, and their getters are answered from the cache once known.
+ *
+ * @author dgarson
+ */
+public class InstrumentedConnection implements Connection {
+
+    private final Connection delegate;
+    final StatementEventDispatcher dispatcher;
+    private final SessionStateCache sessionStates;
+    private final SessionStateCache.State sessionState;
+
+    InstrumentedConnection(Connection delegate, StatementEventDispatcher dispatcher,
+                           @Nullable SessionStateCache sessionStates) {
+        this.delegate = delegate;
+        this.dispatcher = dispatcher;
+        this.sessionStates = sessionStates;
+        this.sessionState = (sessionStates != null ? sessionStates.stateOf(delegate) : null);
+    }
+
+    /**
+     * Returns the connection that was acquired from the delegate connection provider.
+     */
+    public @Nonnull Connection getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return new InstrumentedStatement<>(this, delegate.createStatement(), null);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return new InstrumentedStatement<>(this, delegate.createStatement(resultSetType, resultSetConcurrency), null);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+        throws SQLException {
+        return new InstrumentedStatement<>(this, delegate.createStatement(resultSetType, resultSetConcurrency,
+            resultSetHoldability), null);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        long startNanos = System.nanoTime();
+        return prepared(delegate.prepareStatement(sql), sql, startNanos);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+        throws SQLException {
+        long startNanos = System.nanoTime();
+        return prepared(delegate.prepareStatement(sql, resultSetType, resultSetConcurrency), sql, startNanos);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+                                              int resultSetHoldability) throws SQLException {
+        long startNanos = System.nanoTime();
+        return prepared(delegate.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sql,
+            startNanos);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        long startNanos = System.nanoTime();
+        return prepared(delegate.prepareStatement(sql, autoGeneratedKeys), sql, startNanos);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        long startNanos = System.nanoTime();
+        return prepared(delegate.prepareStatement(sql, columnIndexes), sql, startNanos);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        long startNanos = System.nanoTime();
+        return prepared(delegate.prepareStatement(sql, columnNames), sql, startNanos);
+    }
+
+    /**
+     * Forgets the cached session state after a statement failed, since the failure may have left the session in a
+     * state the cache does not know about.
+     */
+    void statementFailed() {
+        if (sessionState != null) {
+            sessionStates.invalidate(sessionState);
+        }
+    }
+
+    private SQLException sessionStateFailed(SQLException se) {
+        sessionStates.invalidate(sessionState);
+        return se;
+    }
+
+    private PreparedStatement prepared(PreparedStatement statement, String sql, long startNanos) {
+        dispatcher.fireStatementPrepared(this, sql, System.nanoTime() - startNanos);
+        return new InstrumentedPreparedStatement(this, statement, sql);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return (iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface));
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return delegate.prepareCall(sql);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return delegate.nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        if (sessionState == null) {
+            delegate.setAutoCommit(autoCommit);
+            return;
+        }
+        if (sessionState.autoCommit != null && sessionState.autoCommit == autoCommit) {
+            sessionStates.roundTripSaved();
+            return;
+        }
+        try {
+            delegate.setAutoCommit(autoCommit);
+        } catch (SQLException se) {
+            throw sessionStateFailed(se);
+        }
+        sessionState.autoCommit = autoCommit;
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        if (sessionState == null) {
+            return delegate.getAutoCommit();
+        }
+        if (sessionState.autoCommit != null) {
+            sessionStates.roundTripSaved();
+            return sessionState.autoCommit;
+        }
+        try {
+            sessionState.autoCommit = delegate.getAutoCommit();
+        } catch (SQLException se) {
+            throw sessionStateFailed(se);
+        }
+        return sessionState.autoCommit;
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        delegate.commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        delegate.rollback();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        delegate.close();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return delegate.getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        if (sessionState == null) {
+            delegate.setReadOnly(readOnly);
+            return;
+        }
+        if (sessionState.readOnly != null && sessionState.readOnly == readOnly) {
+            sessionStates.roundTripSaved();
+            return;
+        }
+        try {
+            delegate.setReadOnly(readOnly);
+        } catch (SQLException se) {
+            throw sessionStateFailed(se);
+        }
+        sessionState.readOnly = readOnly;
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        if (sessionState == null) {
+            return delegate.isReadOnly();
+        }
+        if (sessionState.readOnly != null) {
+            sessionStates.roundTripSaved();
+            return sessionState.readOnly;
+        }
+        try {
+            sessionState.readOnly = delegate.isReadOnly();
+        } catch (SQLException se) {
+            throw sessionStateFailed(se);
+        }
+        return sessionState.readOnly;
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        delegate.setCatalog(catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return delegate.getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        if (sessionState == null) {
+            delegate.setTransactionIsolation(level);
+            return;
+        }
+        if (sessionState.isolation == level) {
+            sessionStates.roundTripSaved();
+            return;
+        }
+        try {
+            delegate.setTransactionIsolation(level);
+        } catch (SQLException se) {
+            throw sessionStateFailed(se);
+        }
+        sessionState.isolation = level;
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        if (sessionState == null) {
+            return delegate.getTransactionIsolation();
+        }
+        if (sessionState.isolation != SessionStateCache.State.UNKNOWN_ISOLATION) {
+            sessionStates.roundTripSaved();
+            return sessionState.isolation;
+        }
+        try {
+            sessionState.isolation = delegate.getTransactionIsolation();
+        } catch (SQLException se) {
+            throw sessionStateFailed(se);
+        }
+        return sessionState.isolation;
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        delegate.clearWarnings();
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return delegate.prepareCall(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public Map<String,Class<?>> getTypeMap() throws SQLException {
+        return delegate.getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        delegate.setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        delegate.setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return delegate.getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return delegate.setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return delegate.setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        delegate.rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        delegate.releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency,
+                                         int resultSetHoldability) throws SQLException {
+        return delegate.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return delegate.createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return delegate.createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return delegate.createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return delegate.createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return delegate.isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        delegate.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        delegate.setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return delegate.getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return delegate.getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return delegate.createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return delegate.createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        if (sessionState == null) {
+            delegate.setSchema(schema);
+            return;
+        }
+        if (sessionState.schemaKnown && Objects.equals(sessionState.schema, schema)) {
+            sessionStates.roundTripSaved();
+            return;
+        }
+        try {
+            delegate.setSchema(schema);
+        } catch (SQLException se) {
+            throw sessionStateFailed(se);
+        }
+        sessionState.schema = schema;
+        sessionState.schemaKnown = true;
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        if (sessionState == null) {
+            return delegate.getSchema();
+        }
+        if (sessionState.schemaKnown) {
+            sessionStates.roundTripSaved();
+            return sessionState.schema;
+        }
+        try {
+            sessionState.schema = delegate.getSchema();
+        } catch (SQLException se) {
+            throw sessionStateFailed(se);
+        }
+        sessionState.schemaKnown = true;
+        return sessionState.schema;
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        delegate.abort(executor);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        delegate.setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return delegate.getNetworkTimeout();
+    }
+}
@@ -0,0 +1,399 @@
+package com.fitbit.hibernate.connection.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * {@link Statement} wrapper that times statement executions and wraps the result sets they produce. The SQL reported
+ * for a plain statement is the SQL passed to each execute method.
+ *
+ * @param <S> the type of the wrapped statement
+ * @author dgarson
+ * @see InstrumentedConnection
+ */
+public class InstrumentedStatement<S extends Statement> implements Statement {
+
+    final InstrumentedConnection connection;
+    final S delegate;
+    // the SQL of a prepared statement, or null for a plain statement
+    final String sql;
+
+    // the SQL that was most recently executed, which produces the current result set
+    private String lastSql;
+    // the wrapper for the result set most recently produced by this statement
+    private InstrumentedResultSet currentResultSet;
+
+    InstrumentedStatement(InstrumentedConnection connection, S delegate, @Nullable String sql) {
+        this.connection = connection;
+        this.delegate = delegate;
+        this.sql = sql;
+        this.lastSql = sql;
+    }
+
+    /**
+     * Returns the statement created by the underlying connection.
+     */
+    public @Nonnull S getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Publishes the execution of the given SQL that started at <strong>startNanos</strong>.
+     */
+    final void executed(String executedSql, long startNanos, Throwable failure) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        lastSql = executedSql;
+        if (failure != null) {
+            connection.statementFailed();
+        }
+        connection.dispatcher.fireStatementExecuted(connection, executedSql, elapsedNanos, failure);
+    }
+
+    /**
+     * Wraps a result set produced by this statement, reporting the previous one as closed since a statement only has
+     * one open result set at a time.
+     */
+    final ResultSet wrapResultSet(ResultSet resultSet, String executedSql) {
+        closeCurrentResultSet();
+        if (resultSet == null) {
+            return null;
+        }
+        currentResultSet = new InstrumentedResultSet(this, resultSet, executedSql);
+        return currentResultSet;
+    }
+
+    private void closeCurrentResultSet() {
+        if (currentResultSet != null) {
+            currentResultSet.resultSetClosed();
+            currentResultSet = null;
+        }
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        long startNanos = System.nanoTime();
+        ResultSet resultSet;
+        try {
+            resultSet = delegate.executeQuery(sql);
+        } catch (SQLException | RuntimeException e) {
+            executed(sql, startNanos, e);
+            throw e;
+        }
+        executed(sql, startNanos, null);
+        return wrapResultSet(resultSet, sql);
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        long startNanos = System.nanoTime();
+        int result;
+        try {
+            result = delegate.executeUpdate(sql);
+        } catch (SQLException | RuntimeException e) {
+            executed(sql, startNanos, e);
+            throw e;
+        }
+        executed(sql, startNanos, null);
+        return result;
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        long startNanos = System.nanoTime();
+        int result;
+        try {
+            result = delegate.executeUpdate(sql, autoGeneratedKeys);
+        } catch (SQLException | RuntimeException e) {
+            executed(sql, startNanos, e);
+            throw e;
+        }
+        executed(sql, startNanos, null);
+        return result;
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        long startNanos = System.nanoTime();
+        int result;
+        try {
+            result = delegate.executeUpdate(sql, columnIndexes);
+        } catch (SQLException | RuntimeException e) {
+            executed(sql, startNanos, e);
+            throw e;
+        }
+        executed(sql, startNanos, null);
+        return result;
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        long startNanos = System.nanoTime();
+        int result;
+        try {
+            result = delegate.executeUpdate(sql, columnNames);
+        } catch (SQLException | RuntimeException e) {
+            executed(sql, startNanos, e);
+            throw e;
+        }
+        executed(sql, startNanos, null);
+        return result;
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        long startNanos = System.nanoTime();
+        boolean result;
+        try {
+            result = delegate.execute(sql);
+        } catch (SQLException | RuntimeException e) {
+            executed(sql, startNanos, e);
+            throw e;
+        }
+        executed(sql, startNanos, null);
+        return result;
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        long startNanos = System.nanoTime();
+        boolean result;
+        try {
+            result = delegate.execute(sql, autoGeneratedKeys);
+        } catch (SQLException | RuntimeException e) {
+            executed(sql, startNanos, e);
+            throw e;
+        }
+        executed(sql, startNanos, null);
+        return result;
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        long startNanos = System.nanoTime();
+        boolean result;
+        try {
+            result = delegate.execute(sql, columnIndexes);
+        } catch (SQLException | RuntimeException e) {
+            executed(sql, startNanos, e);
+            throw e;
+        }
+        executed(sql, startNanos, null);
+        return result;
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        long startNanos = System.nanoTime();
+        boolean result;
+        try {
+            result = delegate.execute(sql, columnNames);
+        } catch (SQLException | RuntimeException e) {
+            executed(sql, startNanos, e);
+            throw e;
+        }
+        executed(sql, startNanos, null);
+        return result;
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        long startNanos = System.nanoTime();
+        int[] result;
+        try {
+            result = delegate.executeBatch();
+        } catch (SQLException | RuntimeException e) {
+            executed(sql, startNanos, e);
+            throw e;
+        }
+        executed(sql, startNanos, null);
+        return result;
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        ResultSet resultSet = delegate.getResultSet();
+        if (currentResultSet != null && currentResultSet.delegate == resultSet) {
+            return currentResultSet;
+        }
+        return wrapResultSet(resultSet, lastSql);
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        closeCurrentResultSet();
+        return delegate.getMoreResults();
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        if (current == Statement.CLOSE_CURRENT_RESULT || current == Statement.CLOSE_ALL_RESULTS) {
+            closeCurrentResultSet();
+        }
+        return delegate.getMoreResults(current);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            delegate.close();
+        } finally {
+            closeCurrentResultSet();
+        }
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return (iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface));
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return delegate.getMaxFieldSize();
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        delegate.setMaxFieldSize(max);
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return delegate.getMaxRows();
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        delegate.setMaxRows(max);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        delegate.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return delegate.getQueryTimeout();
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        delegate.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        delegate.cancel();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        delegate.clearWarnings();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        delegate.setCursorName(name);
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return delegate.getUpdateCount();
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        delegate.setFetchDirection(direction);
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return delegate.getFetchDirection();
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        delegate.setFetchSize(rows);
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return delegate.getFetchSize();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return delegate.getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return delegate.getResultSetType();
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        delegate.addBatch(sql);
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        delegate.clearBatch();
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return delegate.getGeneratedKeys();
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return delegate.getResultSetHoldability();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        delegate.setPoolable(poolable);
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return delegate.isPoolable();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        delegate.closeOnCompletion();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return delegate.isCloseOnCompletion();
+    }
+}
@@ -0,0 +1,123 @@
+package com.fitbit.hibernate.connection.jdbc;
+
+import com.fitbit.util.StripedLongCounter;
+
+import com.google.common.collect.MapMaker;
+
+import java.sql.Connection;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Remembers the session state of each physical connection, meaning its auto-commit mode, transaction isolation level,
+ * read-only flag and schema, so that an {@link InstrumentedConnection} can skip setters that would not change anything
+ * and answer getters without asking the driver. With many drivers each of those calls is a round trip to the server,
+ * and both Hibernate and the code using it set the same values on every checkout. <br/>
+ * The state of a connection is only known once it has been set or read through a wrapper, and is forgotten whenever a
+ * call that could have changed it fails, whenever a statement fails, and whenever the connection is handed back to a
+ * delegate that may reset it behind the wrapper's back. Session state that is changed by executing SQL directly, such
+ * as <code>SET SCHEMA</code>, is not seen by the cache, so it must not be enabled for code that does so. <br/>
+ * A connection is only used by one thread at a time, so the state of each connection is not synchronized, and relies
+ * on the connection being handed between threads safely by the connection provider.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+public final class SessionStateCache {
+
+    // session state of each physical connection, which is forgotten once the connection is no longer referenced
+    private final ConcurrentMap<Connection, State> states = new MapMaker().weakKeys().makeMap();
+
+    private final StripedLongCounter numRoundTripsSaved = new StripedLongCounter();
+    private final StripedLongCounter numInvalidations = new StripedLongCounter();
+
+    /**
+     * Returns the state of the given physical connection, creating an unknown state for it if there is none yet.
+     */
+    @Nonnull
+    State stateOf(@Nonnull Connection connection) {
+        State state = states.get(connection);
+        if (state == null) {
+            State created = new State();
+            state = states.putIfAbsent(connection, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Forgets everything that is known about the session state of the given physical connection, which should be done
+     * before handing it back to a delegate that may change it without going through a wrapper.
+     */
+    public void invalidate(@Nonnull Connection connection) {
+        State state = states.get(connection);
+        if (state != null) {
+            invalidate(state);
+        }
+    }
+
+    /**
+     * Records that the given physical connection is about to be handed back to a pool that resets its auto-commit mode
+     * to <strong>autoCommit</strong> and puts the rest of its session state back to defaults of its own, which are
+     * therefore forgotten until they are set or read again.
+     */
+    public void pooledConnectionReset(@Nonnull Connection connection, boolean autoCommit) {
+        State state = states.get(connection);
+        if (state != null) {
+            invalidate(state);
+            state.autoCommit = autoCommit;
+        }
+    }
+
+    void invalidate(State state) {
+        state.clear();
+        numInvalidations.increment();
+    }
+
+    void roundTripSaved() {
+        numRoundTripsSaved.increment();
+    }
+
+    /**
+     * Returns the number of setter and getter calls that were answered from the cache instead of the driver.
+     */
+    public long getNumRoundTripsSaved() {
+        return numRoundTripsSaved.sum();
+    }
+
+    /**
+     * Returns the number of times the cached state of a connection was forgotten because of a failure or because the
+     * connection was handed back to its delegate.
+     */
+    public long getNumInvalidations() {
+        return numInvalidations.sum();
+    }
+
+    /**
+     * The known session state of a single physical connection, where <code>null</code> or
+     * {@link #UNKNOWN_ISOLATION} means that a value is not known.
+     */
+    @NotThreadSafe
+    static final class State {
+        static final int UNKNOWN_ISOLATION = -1;
+
+        Boolean autoCommit;
+        int isolation = UNKNOWN_ISOLATION;
+        Boolean readOnly;
+        boolean schemaKnown;
+        String schema;
+
+        void clear() {
+            autoCommit = null;
+            isolation = UNKNOWN_ISOLATION;
+            readOnly = null;
+            schemaKnown = false;
+            schema = null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.fitbit.hibernate.connection.jdbc;
+
+import com.fitbit.hibernate.connection.event.StatementExecutionListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Wraps connections for statement instrumentation and publishes the events produced by the wrappers to the
+ * {@link StatementExecutionListener}s registered with a connection provider. Like the other listener callbacks, a
+ * failing listener is logged and never propagates to the code using the connection.
+ *
+ * @author dgarson
+ */
+public final class StatementEventDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(StatementEventDispatcher.class);
+
+    private final StatementExecutionListener[] listeners;
+    private final String jdbcUrl;
+
+    /**
+     * @param listeners the listeners to notify, which must not be modified after being passed in
+     * @param jdbcUrl the JDBC url of the connection provider, used for logging
+     */
+    public StatementEventDispatcher(@Nonnull StatementExecutionListener[] listeners, String jdbcUrl) {
+        this.listeners = listeners;
+        this.jdbcUrl = jdbcUrl;
+    }
+
+    /**
+     * Wraps a connection acquired from the delegate connection provider so that its statements are instrumented.
+     */
+    public @Nonnull InstrumentedConnection wrap(@Nonnull Connection connection) {
+        return wrap(connection, null);
+    }
+
+    /**
+     * Wraps a connection acquired from the delegate connection provider so that its statements are instrumented and,
+     * if a cache is given, redundant changes to its session state are skipped.
+     */
+    public @Nonnull InstrumentedConnection wrap(@Nonnull Connection connection,
+                                                @Nullable SessionStateCache sessionStates) {
+        return new InstrumentedConnection(connection, this, sessionStates);
+    }
+
+    void fireStatementPrepared(Connection connection, String sql, long prepareNanos) {
+        for (StatementExecutionListener listener : listeners) {
+            try {
+                listener.statementPrepared(connection, sql, prepareNanos);
+            } catch (Throwable t) {
+                logListenerFailure("statementPrepared", listener, t);
+            }
+        }
+    }
+
+    void fireStatementExecuted(Connection connection, String sql, long executionNanos, Throwable failure) {
+        for (StatementExecutionListener listener : listeners) {
+            try {
+                listener.statementExecuted(connection, sql, executionNanos, failure);
+            } catch (Throwable t) {
+                logListenerFailure("statementExecuted", listener, t);
+            }
+        }
+    }
+
+    void fireResultSetClosed(Connection connection, String sql, int rowCount, long fetchNanos) {
+        for (StatementExecutionListener listener : listeners) {
+            try {
+                listener.resultSetClosed(connection, sql, rowCount, fetchNanos);
+            } catch (Throwable t) {
+                logListenerFailure("resultSetClosed", listener, t);
+            }
+        }
+    }
+
+    private void logListenerFailure(String methodName, StatementExecutionListener listener, Throwable t) {
+        if (log.isErrorEnabled()) {
+            log.error("Unable to invoke {} for listener of type '{}' connected to {}", methodName,
+                listener.getClass(), jdbcUrl, t);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.fitbit.hibernate.connection.limit;
+
+import com.fitbit.util.StripedLongCounter;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Limits how many connections a connection provider hands out at the same time, and learns that limit from how long
+ * connections take to acquire and are held, in the spirit of TCP congestion control. <br/>
+ * Every checkout, from the moment its permit is granted until the connection is closed, produces a round-trip time
+ * sample. The limit follows the gradient between a long-term average of those samples and the latest one: while
+ * checkouts take about as long as they usually do, the limit grows by roughly its square root, and when they start to
+ * take longer, because the database is slowing down, the limit shrinks proportionally, by at most half per update. A
+ * failed acquisition shrinks the limit by a tenth. The limit is only raised while at least half of it is in use, so it
+ * does not grow without bound while demand is low. <br/>
+ * Callers beyond the limit either wait in a bounded queue for a permit to be released, or are rejected at once with a
+ * {@link ConcurrencyLimitExceededException}. Granting and releasing permits is lock-free unless callers are queued, and
+ * the limit is updated by whichever thread finds the update lock free, so samples may be skipped under contention but
+ * no thread ever waits for an update. <br/>
+ * Each granted permit comes with the time it was granted, which the caller keeps with its checkout and hands back on
+ * release, so samples stay correct no matter in which order checkouts end or which thread ends them.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+public class AdaptiveConcurrencyLimiter {
+
+    // the long-term average round-trip time covers roughly this many samples
+    private static final int LONG_WINDOW_SAMPLES = 600;
+    // how much slower than the long-term average a checkout may be before the limit starts to shrink
+    private static final double RTT_TOLERANCE = 1.5;
+    // the weight of each newly computed limit, to dampen oscillation
+    private static final double SMOOTHING = 0.2;
+    // the factor applied to the limit when an acquisition fails
+    private static final double FAILURE_BACKOFF = 0.9;
+
+    private final String jdbcUrl;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueueSize;
+    private final long queueTimeoutNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final StripedLongCounter numRejected = new StripedLongCounter();
+    private final StripedLongCounter numQueued = new StripedLongCounter();
+
+    // the current limit, which is read on every acquisition
+    private volatile int limit;
+
+    // guards the estimates below, and is also used to wait for permits
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitReleased = lock.newCondition();
+    private double estimatedLimit;
+    private double longRttNanos;
+
+    /**
+     * @param jdbcUrl the JDBC url of the connection provider, used for error messages
+     * @param initialLimit the limit to start out with
+     * @param minLimit the lowest the limit may shrink to
+     * @param maxLimit the highest the limit may grow to
+     * @param maxQueueSize the maximum number of callers that may wait for a permit, or zero to reject callers as soon
+     *          as the limit is reached
+     * @param queueTimeoutMillis how long a queued caller waits for a permit before being rejected
+     */
+    public AdaptiveConcurrencyLimiter(String jdbcUrl, int initialLimit, int minLimit, int maxLimit, int maxQueueSize,
+                                      long queueTimeoutMillis) {
+        Preconditions.checkArgument(minLimit > 0, "minLimit must be positive");
+        Preconditions.checkArgument(maxLimit >= minLimit, "maxLimit must not be less than minLimit");
+        Preconditions.checkArgument(maxQueueSize >= 0, "maxQueueSize must not be negative");
+        this.jdbcUrl = jdbcUrl;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueueSize = maxQueueSize;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, queueTimeoutMillis));
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+    }
+
+    /**
+     * Grants a permit to check out a connection, waiting in the queue if the limit has been reached and the queue is
+     * not full. Every granted permit must be given back through {@link #release(long)}, {@link #release()} or
+     * {@link #acquisitionFailed()}.
+     * @return the {@link System#nanoTime()} at which the permit was granted, to be passed to {@link #release(long)}
+     * @throws ConcurrencyLimitExceededException if no permit could be granted
+     */
+    public long acquire() throws ConcurrencyLimitExceededException {
+        if (tryAcquirePermit() || (maxQueueSize > 0 && awaitPermit())) {
+            return System.nanoTime();
+        }
+        numRejected.increment();
+        throw new ConcurrencyLimitExceededException(jdbcUrl, limit);
+    }
+
+    /**
+     * Gives back the permit of a checkout whose connection has been closed, recording its round-trip time.
+     * @param grantedNanos the value returned by the {@link #acquire()} that granted the permit
+     */
+    public void release(long grantedNanos) {
+        int numInFlight = inFlight.getAndDecrement();
+        sample(System.nanoTime() - grantedNanos, numInFlight);
+        signalWaiter();
+    }
+
+    /**
+     * Gives back the permit of a checkout without recording a round-trip time, such as one whose connection was leaked
+     * and only reclaimed once it was garbage collected.
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+        signalWaiter();
+    }
+
+    /**
+     * Gives back the permit of a checkout whose connection could not be acquired, and shrinks the limit.
+     */
+    public void acquisitionFailed() {
+        inFlight.decrementAndGet();
+        if (lock.tryLock()) {
+            try {
+                updateLimit(estimatedLimit * FAILURE_BACKOFF);
+            } finally {
+                lock.unlock();
+            }
+        }
+        signalWaiter();
+    }
+
+    /**
+     * Returns the current concurrency limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the number of permits that are currently granted.
+     */
+    public int getNumInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the number of callers currently waiting for a permit.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of callers that had to wait for a permit, whether or not they were granted one.
+     */
+    public long getNumQueued() {
+        return numQueued.sum();
+    }
+
+    /**
+     * Returns the number of callers that were rejected.
+     */
+    public long getNumRejected() {
+        return numRejected.sum();
+    }
+
+    /**
+     * Updates the estimates from a round-trip time sample, unless another thread is already updating them.
+     * @param numInFlight the number of permits granted when the sampled checkout ended, including its own
+     */
+    @VisibleForTesting
+    void sample(long rttNanos, int numInFlight) {
+        if (rttNanos <= 0 || !lock.tryLock()) {
+            return;
+        }
+        try {
+            if (longRttNanos == 0.0) {
+                longRttNanos = rttNanos;
+            } else {
+                longRttNanos += (rttNanos - longRttNanos) / LONG_WINDOW_SAMPLES;
+            }
+            // let the long-term average catch up quickly once checkouts are fast again after a slow period
+            if (longRttNanos / rttNanos > 2.0) {
+                longRttNanos *= 0.95;
+            }
+            // when most of the limit is unused the samples say nothing about whether it could be higher
+            if (numInFlight < estimatedLimit / 2) {
+                return;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRttNanos / rttNanos));
+            double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            updateLimit(estimatedLimit * (1.0 - SMOOTHING) + newLimit * SMOOTHING);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the long-term average round-trip time, or zero if no sample has been recorded yet.
+     */
+    @VisibleForTesting
+    double getLongRttNanos() {
+        lock.lock();
+        try {
+            return longRttNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateLimit(double newLimit) {
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    private boolean tryAcquirePermit() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Waits in the queue for a permit, unless the queue is full.
+     * @return <code>true</code> if a permit was granted
+     */
+    private boolean awaitPermit() {
+        if (queued.incrementAndGet() > maxQueueSize) {
+            queued.decrementAndGet();
+            return false;
+        }
+        numQueued.increment();
+        long remainingNanos = queueTimeoutNanos;
+        lock.lock();
+        try {
+            while (true) {
+                if (tryAcquirePermit()) {
+                    return true;
+                } else if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = permitReleased.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+            queued.decrementAndGet();
+        }
+    }
+
+    private void signalWaiter() {
+        if (queued.get() > 0) {
+            lock.lock();
+            try {
+                permitReleased.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.fitbit.hibernate.connection.limit;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Thrown when a connection is requested while the connection provider is already handing out as many connections as
+ * its {@link AdaptiveConcurrencyLimiter} currently allows, and no connection was released within the queue timeout.
+ * This happens before the delegate connection provider is asked for a connection, so the caller fails fast rather than
+ * adding to the load of a database that is already slow. Retrying later may succeed.
+ *
+ * @author dgarson
+ */
+public class ConcurrencyLimitExceededException extends SQLTransientConnectionException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int limit;
+
+    public ConcurrencyLimitExceededException(String jdbcUrl, int limit) {
+        super("Concurrency limit of " + limit + " connections to " + jdbcUrl + " exceeded");
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the concurrency limit that was in effect when the connection was rejected.
+     */
+    public int getLimit() {
+        return limit;
+    }
+}
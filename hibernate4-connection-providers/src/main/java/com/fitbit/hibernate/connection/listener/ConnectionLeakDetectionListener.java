@@ -0,0 +1,282 @@
+package com.fitbit.hibernate.connection.listener;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
+import com.fitbit.hibernate.connection.event.PreConnectionCloseListener;
+import com.fitbit.hibernate.connection.event.StoppableListener;
+import com.fitbit.util.StripedLongCounter;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * ConnectionProviderListener that detects connections that are acquired through the connection provider but are never
+ * (or very late) returned to it. <br/>
+ * Every checked out connection is tracked by identity along with its checkout time and owning thread, and optionally
+ * the call site that acquired it. A background thread periodically scans the checked out connections and logs a
+ * warning, once per checkout, for each one held longer than the configured threshold. Nested acquisitions that are
+ * given a connection that is already checked out are counted against the outer checkout, which is only finished once
+ * every one of them has closed the connection. <br/>
+ * Connections are held strongly until they are closed, since a connection that is dropped without being closed is
+ * exactly what this listener has to report, and would otherwise be garbage collected before the scanner got to it. The
+ * cost of tracking is bounded so that this listener can stay enabled in production: once the configured maximum
+ * number of connections are being tracked, further checkouts are only counted until tracked connections are closed.
+ * Capturing call sites requires filling in a stack trace on every checkout and is therefore disabled by default. <br/>
+ * Supported Hibernate properties:
+ * <ul>
+ *     <li>hibernate.connection.leak_detection.threshold_millis - how long a connection may be held before it is
+ *     reported, defaults to 60 seconds</li>
+ *     <li>hibernate.connection.leak_detection.scan_interval_millis - how often to scan for leaks, defaults to 10
+ *     seconds</li>
+ *     <li>hibernate.connection.leak_detection.capture_call_site - whether to record where each connection was
+ *     acquired, defaults to false</li>
+ *     <li>hibernate.connection.leak_detection.max_tracked_connections - the maximum number of checked out connections
+ *     to track, defaults to 10,000</li>
+ * </ul>
+ *
+ * @author dgarson
+ */
+public class ConnectionLeakDetectionListener implements PostConnectionAcquisitionListener,
+    PreConnectionCloseListener, StoppableListener {
+
+    public static final String LEAK_THRESHOLD_MILLIS = "hibernate.connection.leak_detection.threshold_millis";
+    public static final String SCAN_INTERVAL_MILLIS = "hibernate.connection.leak_detection.scan_interval_millis";
+    public static final String CAPTURE_CALL_SITE = "hibernate.connection.leak_detection.capture_call_site";
+    public static final String MAX_TRACKED_CONNECTIONS =
+        "hibernate.connection.leak_detection.max_tracked_connections";
+
+    private static final int DEFAULT_LEAK_THRESHOLD_MILLIS = 60000;
+    private static final int DEFAULT_SCAN_INTERVAL_MILLIS = 10000;
+    private static final int DEFAULT_MAX_TRACKED_CONNECTIONS = 10000;
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionLeakDetectionListener.class);
+
+    private Ticker ticker = Ticker.systemTicker();
+
+    private String jdbcUrl;
+    private long leakThresholdNanos;
+    private boolean captureCallSite;
+    private int maxTrackedConnections;
+
+    /**
+     * Checked out connections, compared by identity and strongly referenced until they are closed.
+     */
+    private final ConcurrentMap<ConnectionKey, Checkout> checkouts = new ConcurrentHashMap<>();
+
+    /** the number of entries in the map above, reserved before an entry is added so the maximum is never exceeded */
+    private final AtomicInteger numTracked = new AtomicInteger();
+
+    private final StripedLongCounter numUntrackedCheckouts = new StripedLongCounter();
+    private final AtomicLong numLeaksReported = new AtomicLong();
+    private final AtomicLong numLateReturns = new AtomicLong();
+
+    private ScheduledExecutorService scanner;
+
+    @Override
+    public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
+        jdbcUrl = settings.getJdbcUrl();
+        leakThresholdNanos = TimeUnit.MILLISECONDS.toNanos(settings.getIntProperty(LEAK_THRESHOLD_MILLIS,
+            DEFAULT_LEAK_THRESHOLD_MILLIS));
+        captureCallSite = settings.getBooleanProperty(CAPTURE_CALL_SITE, false);
+        maxTrackedConnections = settings.getIntProperty(MAX_TRACKED_CONNECTIONS, DEFAULT_MAX_TRACKED_CONNECTIONS);
+        int scanIntervalMillis = settings.getIntProperty(SCAN_INTERVAL_MILLIS, DEFAULT_SCAN_INTERVAL_MILLIS);
+        Preconditions.checkArgument(scanIntervalMillis > 0, "%s must be positive", SCAN_INTERVAL_MILLIS);
+
+        scanner = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("ConnectionLeakDetector[" + jdbcUrl + "]")
+            .setDaemon(true)
+            .build());
+        scanner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scan();
+                } catch (Throwable t) {
+                    log.error("Unexpected failure while scanning for leaked connections to {}", jdbcUrl, t);
+                }
+            }
+        }, scanIntervalMillis, scanIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @VisibleForTesting
+    void setTicker(@Nonnull Ticker ticker) {
+        this.ticker = Preconditions.checkNotNull(ticker);
+    }
+
+    @Override
+    public void stop() {
+        if (scanner != null) {
+            scanner.shutdownNow();
+        }
+    }
+
+    @Override
+    public void afterConnectionAcquired(InstrumentedConnectionProvider connectionProvider, Connection connection) {
+        ConnectionKey key = new ConnectionKey(connection);
+        Checkout existing = checkouts.get(key);
+        if (existing != null) {
+            // a nested acquisition that was given a connection that is already checked out
+            existing.depth.incrementAndGet();
+            return;
+        }
+        if (numTracked.incrementAndGet() > maxTrackedConnections) {
+            numTracked.decrementAndGet();
+            numUntrackedCheckouts.increment();
+            return;
+        }
+        Thread owner = Thread.currentThread();
+        Throwable callSite = (captureCallSite ? new Throwable("Connection acquired here") : null);
+        if (checkouts.put(key, new Checkout(ticker.read(), owner.getName(), owner.getId(), callSite)) != null) {
+            // the connection was tracked concurrently, which can only happen if it is being misused across threads
+            numTracked.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void afterConnectionAcquisitionFailed(InstrumentedConnectionProvider connectionProvider, Throwable exc) {
+        // nothing was checked out
+    }
+
+    @Override
+    public void beforeClosingConnection(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        ConnectionKey key = new ConnectionKey(connection);
+        Checkout checkout = checkouts.get(key);
+        // nothing to do if the connection was not tracked, or if a nested acquisition is closing it
+        if (checkout == null || checkout.depth.decrementAndGet() > 0 || !checkouts.remove(key, checkout)) {
+            return;
+        }
+        numTracked.decrementAndGet();
+        if (checkout.reported) {
+            numLateReturns.incrementAndGet();
+            log.info("Connection to {} previously reported as leaked was returned by thread '{}' after {}ms", jdbcUrl,
+                Thread.currentThread().getName(),
+                TimeUnit.NANOSECONDS.toMillis(ticker.read() - checkout.checkoutNanos));
+        }
+    }
+
+    /**
+     * Reports every tracked connection that has been held for longer than the threshold and has not been reported yet.
+     * @return the number of connections that were newly reported
+     */
+    @VisibleForTesting
+    int scan() {
+        long now = ticker.read();
+        int numReported = 0;
+        for (Checkout checkout : checkouts.values()) {
+            long heldNanos = now - checkout.checkoutNanos;
+            if (!checkout.reported && heldNanos >= leakThresholdNanos) {
+                checkout.reported = true;
+                numReported++;
+                report(checkout, heldNanos);
+            }
+        }
+        int numTrackedNow = numTracked.get();
+        if (numTrackedNow >= maxTrackedConnections) {
+            log.warn("Tracking {} checked out connections to {}, new checkouts will not be tracked", numTrackedNow,
+                jdbcUrl);
+        }
+        numLeaksReported.addAndGet(numReported);
+        return numReported;
+    }
+
+    private void report(Checkout checkout, long heldNanos) {
+        long heldMillis = TimeUnit.NANOSECONDS.toMillis(heldNanos);
+        if (checkout.callSite != null) {
+            log.warn("Possible connection leak: connection to {} acquired by thread '{}' (id={}) has been held " +
+                "for {}ms", jdbcUrl, checkout.ownerThreadName, checkout.ownerThreadId, heldMillis, checkout.callSite);
+        } else {
+            log.warn("Possible connection leak: connection to {} acquired by thread '{}' (id={}) has been held " +
+                "for {}ms", jdbcUrl, checkout.ownerThreadName, checkout.ownerThreadId, heldMillis);
+        }
+    }
+
+    /**
+     * Returns the number of connections that are currently checked out and being tracked.
+     */
+    public int getNumTrackedConnections() {
+        return numTracked.get();
+    }
+
+    /**
+     * Returns the number of checkouts that were not tracked because the maximum number of tracked connections had been
+     * reached.
+     */
+    public long getNumUntrackedCheckouts() {
+        return numUntrackedCheckouts.sum();
+    }
+
+    /**
+     * Returns the number of connections that have been reported as possibly leaked.
+     */
+    public long getNumLeaksReported() {
+        return numLeaksReported.get();
+    }
+
+    /**
+     * Returns the number of connections that were reported as possibly leaked but were eventually returned.
+     */
+    public long getNumLateReturns() {
+        return numLateReturns.get();
+    }
+
+    /**
+     * Book-keeping for a single checked out connection.
+     */
+    private static final class Checkout {
+        final long checkoutNanos;
+        final String ownerThreadName;
+        final long ownerThreadId;
+        final Throwable callSite;
+        // the number of acquisitions that were given the connection and have not closed it yet
+        final AtomicInteger depth = new AtomicInteger(1);
+        // only written by the scanner thread, but read when the connection is returned
+        volatile boolean reported;
+
+        Checkout(long checkoutNanos, String ownerThreadName, long ownerThreadId, Throwable callSite) {
+            this.checkoutNanos = checkoutNanos;
+            this.ownerThreadName = ownerThreadName;
+            this.ownerThreadId = ownerThreadId;
+            this.callSite = callSite;
+        }
+    }
+
+    /**
+     * Compares connections by identity, since a connection's own equals(..) is up to its driver.
+     */
+    private static final class ConnectionKey {
+        private final Connection connection;
+
+        ConnectionKey(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof ConnectionKey && ((ConnectionKey) obj).connection == connection);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(connection);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.fitbit.hibernate.connection.listener;
+
+import com.fitbit.hibernate.connection.InstrumentedConnectionProvider;
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.PostConnectionAcquisitionListener;
+import com.fitbit.hibernate.connection.event.PreConnectionCloseListener;
+import com.fitbit.hibernate.connection.event.StatementExecutionListener;
+import com.fitbit.hibernate.connection.event.SynchronousListener;
+import com.fitbit.hibernate.connection.jdbc.SqlFingerprinter;
+import com.fitbit.util.LatencyHistogram;
+
+import org.apache.commons.lang3.mutable.MutableInt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Listener that counts the statements executed within each top-level connection checkout on a thread, including any
+ * nested checkouts, in order to find code paths that make avoidable database round trips such as N+1 query patterns.
+ * <br/>
+ * For every checkout the total number of statements, the number of distinct statements (by
+ * {@link SqlFingerprinter fingerprint}) and the number of executions of the most repeated statement are tracked. A
+ * checkout that executes the same statement at least the configured number of times, or that executes at least the
+ * configured total number of statements, is flagged: the call site executing the statement that crossed the threshold
+ * is captured, and a warning is logged when the checkout completes. <br/>
+ * State is kept per thread and reused across checkouts, so statements executed on a connection that was acquired on
+ * another thread are not attributed to any checkout. Requires statement instrumentation to be enabled on the
+ * connection provider. <br/>
+ * Supported Hibernate properties:
+ * <ul>
+ *     <li>hibernate.connection.repeated_statements.repeat_threshold - number of executions of the same statement that
+ *     flags a checkout, defaults to 10</li>
+ *     <li>hibernate.connection.repeated_statements.statement_threshold - total number of statements that flags a
+ *     checkout, defaults to 100</li>
+ * </ul>
+ *
+ * @author dgarson
+ */
+public class RepeatedStatementDetectionListener implements PostConnectionAcquisitionListener,
+    PreConnectionCloseListener, StatementExecutionListener, SynchronousListener {
+
+    public static final String REPEAT_THRESHOLD = "hibernate.connection.repeated_statements.repeat_threshold";
+    public static final String STATEMENT_THRESHOLD = "hibernate.connection.repeated_statements.statement_threshold";
+
+    private static final int DEFAULT_REPEAT_THRESHOLD = 10;
+    private static final int DEFAULT_STATEMENT_THRESHOLD = 100;
+    private static final long MAX_TRACKABLE_STATEMENTS = 1000000L;
+
+    private static final Logger log = LoggerFactory.getLogger(RepeatedStatementDetectionListener.class);
+
+    private final SqlFingerprinter fingerprinter = SqlFingerprinter.getInstance();
+
+    private String jdbcUrl;
+    private int repeatThreshold;
+    private int statementThreshold;
+
+    private final LatencyHistogram statementsPerCheckout = new LatencyHistogram(MAX_TRACKABLE_STATEMENTS,
+        LatencyHistogram.DEFAULT_PRECISION_BITS);
+    private final AtomicLong numFlaggedCheckouts = new AtomicLong();
+
+    private final ThreadLocal<CheckoutStatements> checkoutStatements = new ThreadLocal<CheckoutStatements>() {
+        @Override
+        protected CheckoutStatements initialValue() {
+            return new CheckoutStatements();
+        }
+    };
+
+    @Override
+    public void initialize(ConnectionProviderListenerSettings settings) throws Exception {
+        jdbcUrl = settings.getJdbcUrl();
+        repeatThreshold = settings.getIntProperty(REPEAT_THRESHOLD, DEFAULT_REPEAT_THRESHOLD);
+        statementThreshold = settings.getIntProperty(STATEMENT_THRESHOLD, DEFAULT_STATEMENT_THRESHOLD);
+    }
+
+    @Override
+    public void afterConnectionAcquired(InstrumentedConnectionProvider connectionProvider, Connection connection) {
+        checkoutStatements.get().depth++;
+    }
+
+    @Override
+    public void afterConnectionAcquisitionFailed(InstrumentedConnectionProvider connectionProvider, Throwable exc) {
+        // nothing was checked out
+    }
+
+    @Override
+    public void beforeClosingConnection(Connection connection) {
+        CheckoutStatements checkout = checkoutStatements.get();
+        if (checkout.depth == 0) {
+            // not acquired on this thread
+            return;
+        }
+        if (--checkout.depth == 0) {
+            checkoutCompleted(checkout);
+        }
+    }
+
+    @Override
+    public void statementPrepared(Connection connection, String sql, long prepareNanos) {
+        // only executions are counted
+    }
+
+    @Override
+    public void statementExecuted(Connection connection, String sql, long executionNanos, Throwable failure) {
+        CheckoutStatements checkout = checkoutStatements.get();
+        if (checkout.depth == 0) {
+            return;
+        }
+        checkout.statementCount++;
+        if (sql != null) {
+            String fingerprint = fingerprinter.fingerprint(sql);
+            MutableInt executions = checkout.executionsPerFingerprint.get(fingerprint);
+            if (executions == null) {
+                executions = new MutableInt();
+                checkout.executionsPerFingerprint.put(fingerprint, executions);
+            }
+            executions.increment();
+            if (executions.intValue() > checkout.mostRepeatedExecutions) {
+                checkout.mostRepeatedExecutions = executions.intValue();
+                checkout.mostRepeatedFingerprint = fingerprint;
+            }
+        }
+        if (checkout.callSite == null && (checkout.mostRepeatedExecutions >= repeatThreshold ||
+            checkout.statementCount >= statementThreshold)) {
+            checkout.callSite = new Throwable("Statement threshold crossed here");
+        }
+    }
+
+    @Override
+    public void resultSetClosed(Connection connection, String sql, int rowCount, long fetchNanos) {
+        // only executions are counted
+    }
+
+    private void checkoutCompleted(CheckoutStatements checkout) {
+        statementsPerCheckout.record(checkout.statementCount);
+        if (checkout.callSite != null) {
+            numFlaggedCheckouts.incrementAndGet();
+            log.warn("Executed {} statements ({} distinct) in a single checkout of a connection to {}, the most " +
+                "repeated of which was executed {} times: {}", checkout.statementCount,
+                checkout.executionsPerFingerprint.size(), jdbcUrl, checkout.mostRepeatedExecutions,
+                checkout.mostRepeatedFingerprint, checkout.callSite);
+        }
+        checkout.reset();
+    }
+
+    /**
+     * Returns the distribution of the number of statements executed per top-level checkout.
+     */
+    public @Nonnull LatencyHistogram getStatementsPerCheckout() {
+        return statementsPerCheckout;
+    }
+
+    /**
+     * Returns the number of checkouts that crossed either threshold.
+     */
+    public long getNumFlaggedCheckouts() {
+        return numFlaggedCheckouts.get();
+    }
+
+    /**
+     * Statements executed within the current checkout of a single thread, which is reused for every checkout.
+     */
+    private static final class CheckoutStatements {
+        int depth;
+        int statementCount;
+        final Map<String, MutableInt> executionsPerFingerprint = new HashMap<>();
+        String mostRepeatedFingerprint;
+        int mostRepeatedExecutions;
+        Throwable callSite;
+
+        void reset() {
+            statementCount = 0;
+            executionsPerFingerprint.clear();
+            mostRepeatedFingerprint = null;
+            mostRepeatedExecutions = 0;
+            callSite = null;
+        }
+    }
+}
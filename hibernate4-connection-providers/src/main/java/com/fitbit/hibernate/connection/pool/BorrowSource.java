@@ -0,0 +1,31 @@
+package com.fitbit.hibernate.connection.pool;
+
+/**
+ * Identifies where a connection borrowed from the {@link PoolingConnectionProvider} came from, ordered from the
+ * cheapest to the most expensive way of obtaining one.
+ *
+ * @author dgarson
+ */
+public enum BorrowSource {
+
+    /**
+     * An idle connection that was last returned by the borrowing thread and was still cached for it.
+     */
+    THREAD_LOCAL,
+
+    /**
+     * An idle connection that was claimed from the pool shared by all threads.
+     */
+    SHARED,
+
+    /**
+     * A connection that was handed directly to the borrowing thread by another thread returning it, after the
+     * borrowing thread had to wait because all connections were in use.
+     */
+    HANDOFF,
+
+    /**
+     * A new physical connection that was opened because the pool was not yet at its maximum size.
+     */
+    NEW
+}
@@ -0,0 +1,176 @@
+package com.fitbit.hibernate.connection.pool;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Lock-free collection of the {@link PooledConnection}s owned by a pool. <br/>
+ * A thread borrowing a connection first tries the connections it returned most recently, which are cached per thread
+ * and are very likely to still be idle, then claims any idle connection from the list shared by all threads. Either
+ * way a connection is claimed by compare-and-set on its state, without taking a lock. If neither finds an idle
+ * connection, the thread registers as a waiter and polls a handoff queue, to which returning threads hand their
+ * connection directly as long as anybody is waiting. <br/>
+ * The shared list is copy-on-write, since connections are added and removed rarely compared to how often the list is
+ * scanned.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+final class ConnectionBag {
+
+    // the number of returned connections remembered per thread, which only needs to cover the connections that a
+    //      single thread holds at the same time
+    private static final int MAX_THREAD_LOCAL_CONNECTIONS = 16;
+
+    private final CopyOnWriteArrayList<PooledConnection> sharedList = new CopyOnWriteArrayList<>();
+
+    private final ThreadLocal<List<PooledConnection>> threadList = new ThreadLocal<List<PooledConnection>>() {
+        @Override
+        protected List<PooledConnection> initialValue() {
+            return new ArrayList<>(MAX_THREAD_LOCAL_CONNECTIONS);
+        }
+    };
+
+    private final SynchronousQueue<PooledConnection> handoffQueue = new SynchronousQueue<>(/*fair=*/true);
+
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * Claims the idle connection most recently returned by the calling thread, if there is one.
+     */
+    @Nullable
+    PooledConnection borrowFromThread() {
+        List<PooledConnection> local = threadList.get();
+        for (int i = local.size() - 1; i >= 0; i--) {
+            PooledConnection entry = local.remove(i);
+            if (entry.compareAndSetState(PooledConnection.STATE_IDLE, PooledConnection.STATE_IN_USE)) {
+                entry.borrowSource = BorrowSource.THREAD_LOCAL;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Claims any idle connection from the shared list, if there is one.
+     */
+    @Nullable
+    PooledConnection borrowShared() {
+        for (PooledConnection entry : sharedList) {
+            if (entry.compareAndSetState(PooledConnection.STATE_IDLE, PooledConnection.STATE_IN_USE)) {
+                entry.borrowSource = BorrowSource.SHARED;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits up to the given time for a connection to become available, either by being handed off by a returning
+     * thread or by being returned while the calling thread was not polling.
+     * @return the claimed connection, or <code>null</code> if none became available in time
+     */
+    @Nullable
+    PooledConnection awaitConnection(long timeoutNanos) throws InterruptedException {
+        waiters.incrementAndGet();
+        try {
+            long deadlineNanos = System.nanoTime() + timeoutNanos;
+            long remainingNanos = timeoutNanos;
+            do {
+                // a connection may have been returned between the caller's last scan and registering as a waiter
+                PooledConnection entry = borrowShared();
+                if (entry != null) {
+                    return entry;
+                }
+                entry = handoffQueue.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                if (entry != null &&
+                    entry.compareAndSetState(PooledConnection.STATE_IDLE, PooledConnection.STATE_IN_USE)) {
+                    entry.borrowSource = BorrowSource.HANDOFF;
+                    return entry;
+                }
+                remainingNanos = deadlineNanos - System.nanoTime();
+            } while (remainingNanos > 0);
+            return null;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the bag. If any thread is waiting, the connection is handed to it directly;
+     * otherwise it is remembered as the calling thread's most recently returned connection.
+     * @return <code>false</code> if the connection was not in use, such as when it is returned twice, in which case
+     *          it is left alone
+     */
+    boolean requite(@Nonnull PooledConnection entry) {
+        if (!entry.compareAndSetState(PooledConnection.STATE_IN_USE, PooledConnection.STATE_IDLE)) {
+            return false;
+        }
+        for (int i = 0; waiters.get() > 0; i++) {
+            // stop as soon as the connection has been handed off or a waiter has claimed it from the shared list
+            if (entry.getState() != PooledConnection.STATE_IDLE || handoffQueue.offer(entry)) {
+                return true;
+            } else if ((i & 0xff) == 0xff) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+            } else {
+                Thread.yield();
+            }
+        }
+        List<PooledConnection> local = threadList.get();
+        if (local.size() < MAX_THREAD_LOCAL_CONNECTIONS) {
+            local.add(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a newly created connection, which is in use by the thread that created it.
+     */
+    void add(@Nonnull PooledConnection entry) {
+        sharedList.add(entry);
+    }
+
+    /**
+     * Removes a connection that has already been marked as removed. Any thread-local references to it are dropped the
+     * next time their thread fails to claim it.
+     */
+    void remove(@Nonnull PooledConnection entry) {
+        sharedList.remove(entry);
+    }
+
+    /**
+     * Finds the entry for a physical connection by identity. This is a linear scan, which is cheap for the pool sizes
+     * this bag is meant for and does not allocate.
+     */
+    @Nullable
+    PooledConnection find(@Nonnull Connection connection) {
+        for (PooledConnection entry : sharedList) {
+            if (entry.connection == connection) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns every connection in this bag, in any state.
+     */
+    @Nonnull
+    List<PooledConnection> entries() {
+        return new ArrayList<>(sharedList);
+    }
+
+    int getNumWaiters() {
+        return waiters.get();
+    }
+}
@@ -0,0 +1,153 @@
+package com.fitbit.hibernate.connection.routing;
+
+import com.fitbit.util.StripedLongCounter;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A single named delegate connection provider of a {@link RoutingConnectionProvider}, together with counts of the
+ * connections that were acquired from it, so it can be verified that read traffic is actually served by the read
+ * routes. <br/>
+ * Every route also keeps a peak-sensitive, exponentially weighted moving average of how long acquiring a connection
+ * from it takes: a sample above the average replaces it immediately, while lower samples are blended in with a weight
+ * that depends on how much time has passed since the previous one, and the average decays towards zero while no
+ * samples arrive, so a route that was slow is tried again after a while. A failed acquisition is recorded as a
+ * one-second acquisition, so a route that fails fast does not attract traffic. The average and the number of checked
+ * out connections make up the {@link #getLoad() load} that read routes are balanced by. Both are updated and read
+ * without locks.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+public class Route {
+
+    // the latency that a failed acquisition is recorded as
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final String jdbcUrl;
+    private final ConnectionProvider connectionProvider;
+
+    private final StripedLongCounter numAcquired = new StripedLongCounter();
+    private final StripedLongCounter numFailed = new StripedLongCounter();
+    private final AtomicInteger numCheckedOut = new AtomicInteger();
+
+    // the time constant of the latency average, and the average itself as the bits of a double along with the time it
+    //      was last updated. the two are not updated atomically together, which only skews the weight of a sample
+    //      that races with another one
+    private final double decayNanos;
+    private final AtomicLong latencyEwmaBits = new AtomicLong(Double.doubleToLongBits(0.0));
+    private volatile long lastSampleNanos = System.nanoTime();
+
+    /**
+     * @param decayMillis the time constant of the latency average, roughly how long it takes to forget a slow period
+     */
+    Route(@Nonnull String name, String jdbcUrl, @Nonnull ConnectionProvider connectionProvider, long decayMillis) {
+        this.name = name;
+        this.jdbcUrl = jdbcUrl;
+        this.connectionProvider = connectionProvider;
+        this.decayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, decayMillis));
+    }
+
+    void connectionAcquired(long latencyNanos) {
+        numAcquired.increment();
+        numCheckedOut.incrementAndGet();
+        recordLatency(latencyNanos);
+    }
+
+    void acquisitionFailed() {
+        numFailed.increment();
+        recordLatency(FAILURE_PENALTY_NANOS);
+    }
+
+    private void recordLatency(long latencyNanos) {
+        long nowNanos = System.nanoTime();
+        double weight = Math.exp(-Math.max(0L, nowNanos - lastSampleNanos) / decayNanos);
+        long currentBits;
+        double updated;
+        do {
+            currentBits = latencyEwmaBits.get();
+            double current = Double.longBitsToDouble(currentBits);
+            updated = (latencyNanos > current ? latencyNanos : current * weight + latencyNanos * (1.0 - weight));
+        } while (!latencyEwmaBits.compareAndSet(currentBits, Double.doubleToLongBits(updated)));
+        lastSampleNanos = nowNanos;
+    }
+
+    void connectionReleased() {
+        numCheckedOut.decrementAndGet();
+    }
+
+    /**
+     * Returns the name of this route.
+     */
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the JDBC url this route connects to.
+     */
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    /**
+     * Returns the delegate connection provider of this route.
+     */
+    @Nonnull
+    public ConnectionProvider getConnectionProvider() {
+        return connectionProvider;
+    }
+
+    /**
+     * Returns the number of connections that were acquired from this route.
+     */
+    public long getNumAcquired() {
+        return numAcquired.sum();
+    }
+
+    /**
+     * Returns the number of acquisitions from this route that failed.
+     */
+    public long getNumFailed() {
+        return numFailed.sum();
+    }
+
+    /**
+     * Returns the number of connections from this route that are currently checked out.
+     */
+    public int getNumCheckedOut() {
+        return numCheckedOut.get();
+    }
+
+    /**
+     * Returns the moving average of the time it takes to acquire a connection from this route, in nanoseconds, decayed
+     * by the time that has passed since it was last updated.
+     */
+    public double getLatencyEwmaNanos() {
+        double ewma = Double.longBitsToDouble(latencyEwmaBits.get());
+        long elapsedNanos = System.nanoTime() - lastSampleNanos;
+        return (elapsedNanos > 0 ? ewma * Math.exp(-elapsedNanos / decayNanos) : ewma);
+    }
+
+    /**
+     * Returns how loaded this route currently is, as its decayed latency average scaled by the number of connections
+     * that are checked out from it, including the one about to be acquired. Routes with a lower load are preferred.
+     */
+    public double getLoad() {
+        return (getLatencyEwmaNanos() + 1.0) * (numCheckedOut.get() + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "Route[" + name + ", " + jdbcUrl + "]";
+    }
+}
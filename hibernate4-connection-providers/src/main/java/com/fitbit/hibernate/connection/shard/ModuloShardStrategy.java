@@ -0,0 +1,20 @@
+package com.fitbit.hibernate.connection.shard;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The default {@link ShardStrategy}, which maps integral shard keys to the shard at their value modulo the number of
+ * shards, and any other shard key by its hash code.
+ *
+ * @author dgarson
+ */
+public class ModuloShardStrategy implements ShardStrategy {
+
+    @Override
+    public int resolveShard(@Nonnull Object shardKey, int numShards) {
+        long value = (shardKey instanceof Long || shardKey instanceof Integer || shardKey instanceof Short ||
+            shardKey instanceof Byte ? ((Number) shardKey).longValue() : shardKey.hashCode());
+        // the remainder is negative for negative values
+        return (int) (((value % numShards) + numShards) % numShards);
+    }
+}
@@ -0,0 +1,121 @@
+package com.fitbit.hibernate.connection.shard;
+
+import com.fitbit.util.LatencyHistogram;
+import com.fitbit.util.StripedLongCounter;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A single named delegate connection provider of a {@link ShardedConnectionProvider}, together with the metrics of
+ * the acquisitions from it, so that a hot or slow shard can be told apart from the others behind the same instrumented
+ * connection provider.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+public class Shard {
+
+    private static final long MAX_TRACKABLE_ACQUISITION_MILLIS = 60000L;
+
+    private final String name;
+    private final int index;
+    private final String jdbcUrl;
+    private final ConnectionProvider connectionProvider;
+
+    private final StripedLongCounter numAcquired = new StripedLongCounter();
+    private final StripedLongCounter numFailed = new StripedLongCounter();
+    private final AtomicInteger numCheckedOut = new AtomicInteger();
+    private final LatencyHistogram acquisitionTimes = new LatencyHistogram(MAX_TRACKABLE_ACQUISITION_MILLIS,
+        TimeUnit.MILLISECONDS);
+
+    Shard(@Nonnull String name, int index, String jdbcUrl, @Nonnull ConnectionProvider connectionProvider) {
+        this.name = name;
+        this.index = index;
+        this.jdbcUrl = jdbcUrl;
+        this.connectionProvider = connectionProvider;
+    }
+
+    void connectionAcquired(long acquisitionNanos) {
+        numAcquired.increment();
+        numCheckedOut.incrementAndGet();
+        acquisitionTimes.record(acquisitionNanos);
+    }
+
+    void acquisitionFailed() {
+        numFailed.increment();
+    }
+
+    void connectionReleased() {
+        numCheckedOut.decrementAndGet();
+    }
+
+    /**
+     * Returns the name of this shard.
+     */
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the index of this shard, in the order the shards were declared.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the JDBC url this shard connects to.
+     */
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    /**
+     * Returns the delegate connection provider of this shard.
+     */
+    @Nonnull
+    public ConnectionProvider getConnectionProvider() {
+        return connectionProvider;
+    }
+
+    /**
+     * Returns the number of connections that were acquired from this shard.
+     */
+    public long getNumAcquired() {
+        return numAcquired.sum();
+    }
+
+    /**
+     * Returns the number of acquisitions from this shard that failed.
+     */
+    public long getNumFailed() {
+        return numFailed.sum();
+    }
+
+    /**
+     * Returns the number of connections from this shard that are currently checked out.
+     */
+    public int getNumCheckedOut() {
+        return numCheckedOut.get();
+    }
+
+    /**
+     * Returns the histogram of how long successful acquisitions from this shard took, in nanoseconds.
+     */
+    @Nonnull
+    public LatencyHistogram getAcquisitionTimes() {
+        return acquisitionTimes;
+    }
+
+    @Override
+    public String toString() {
+        return "Shard[" + name + ", " + jdbcUrl + "]";
+    }
+}
@@ -0,0 +1,22 @@
+package com.fitbit.hibernate.connection.shard;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Maps the shard key of an acquisition to one of the shards of a {@link ShardedConnectionProvider}. Implementations
+ * are created through their zero-argument constructor and must be thread-safe, since
+ * {@link #resolveShard(Object, int)} is invoked on every acquisition.
+ *
+ * @author dgarson
+ */
+public interface ShardStrategy {
+
+    /**
+     * Returns the index of the shard that the given shard key belongs to, in the order the shards were declared.
+     *
+     * @param shardKey the shard key of the calling thread
+     * @param numShards the number of shards
+     * @return an index between zero and <strong>numShards</strong>, exclusive
+     */
+    int resolveShard(@Nonnull Object shardKey, int numShards);
+}
@@ -0,0 +1,210 @@
+package com.fitbit.hibernate.connection.validation;
+
+import com.fitbit.hibernate.connection.event.ConnectionProviderListenerSettings;
+import com.fitbit.hibernate.connection.event.StatementExecutionListener;
+import com.fitbit.hibernate.connection.jdbc.InstrumentedConnection;
+import com.fitbit.util.StripedLongCounter;
+
+import com.google.common.collect.MapMaker;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Validates connections as they are acquired from the delegate of an
+ * {@link com.fitbit.hibernate.connection.InstrumentedConnectionProvider}, but only those that have not proven to be
+ * working recently, so that most acquisitions skip the round trip to the database that a validation costs. <br/>
+ * The time at which each physical connection last completed a statement or a validation successfully is tracked, and
+ * a connection is only validated if that was longer ago than the validation window, or never. Successful statements
+ * are observed through statement instrumentation, which the connection provider enables for this purpose. A connection
+ * that fails validation is closed, handed back to the delegate, which a pool is expected to discard since it is
+ * closed, and replaced with another one from the delegate, up to a fixed number of times before the acquisition fails.
+ * <br/>
+ * The numbers of validations that were performed, skipped and failed are counted, so the window can be tuned.
+ *
+ * @author dgarson
+ */
+@ThreadSafe
+public class ConnectionValidator implements StatementExecutionListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionValidator.class);
+
+    // the number of connections that are validated before giving up on an acquisition
+    private static final int MAX_VALIDATION_ATTEMPTS = 3;
+
+    private final String jdbcUrl;
+    private final long windowNanos;
+    private final int timeoutSeconds;
+    private final String validationQuery;
+
+    // the time each physical connection last completed a statement or a validation successfully
+    private final ConcurrentMap<Connection, AtomicLong> lastSuccessNanos = new MapMaker().weakKeys().makeMap();
+
+    private final StripedLongCounter numValidated = new StripedLongCounter();
+    private final StripedLongCounter numSkipped = new StripedLongCounter();
+    private final StripedLongCounter numFailed = new StripedLongCounter();
+
+    /**
+     * @param jdbcUrl the JDBC url of the connection provider, used for logging
+     * @param windowMillis how recently a connection must have completed a statement for its validation to be skipped
+     * @param timeoutSeconds the timeout passed to {@link Connection#isValid(int)}, or applied to the validation query
+     * @param validationQuery a query to execute instead of calling {@link Connection#isValid(int)}, if any
+     */
+    public ConnectionValidator(String jdbcUrl, long windowMillis, int timeoutSeconds,
+                               @Nullable String validationQuery) {
+        this.jdbcUrl = jdbcUrl;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, windowMillis));
+        this.timeoutSeconds = Math.max(0, timeoutSeconds);
+        this.validationQuery = validationQuery;
+    }
+
+    @Override
+    public void initialize(ConnectionProviderListenerSettings settings) {
+        // configured through its constructor by the connection provider
+    }
+
+    /**
+     * Validates a connection that was just acquired from the delegate, unless it completed a statement recently.
+     * @param connection the connection acquired from the delegate
+     * @param delegate the delegate connection provider, which broken connections are returned to and replaced from
+     * @return the given connection, or a replacement for it if it was broken
+     * @throws SQLException if no working connection could be acquired, in which case every connection that was
+     *          acquired from the delegate has already been handed back to it
+     */
+    @Nonnull
+    public Connection validate(@Nonnull Connection connection, @Nonnull ConnectionProvider delegate)
+        throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            AtomicLong lastSuccess = lastSuccessNanos.get(connection);
+            if (lastSuccess != null && System.nanoTime() - lastSuccess.get() < windowNanos) {
+                numSkipped.increment();
+                return connection;
+            }
+            numValidated.increment();
+            SQLException failure = checkValid(connection);
+            if (failure == null) {
+                recordSuccess(connection);
+                return connection;
+            }
+            numFailed.increment();
+            log.warn("Discarding connection to {} that failed validation", jdbcUrl, failure);
+            discard(connection, delegate);
+            if (attempt >= MAX_VALIDATION_ATTEMPTS) {
+                throw new SQLException("Unable to acquire a valid connection to " + jdbcUrl + " after " + attempt +
+                    " attempts", failure);
+            }
+            connection = delegate.getConnection();
+            if (connection == null) {
+                throw new SQLException("Delegate connection provider returned no connection to " + jdbcUrl, failure);
+            }
+        }
+    }
+
+    @Nullable
+    private SQLException checkValid(Connection connection) {
+        try {
+            if (validationQuery != null) {
+                try (Statement statement = connection.createStatement()) {
+                    // a connection whose server stopped responding must not hang the acquisition
+                    statement.setQueryTimeout(timeoutSeconds);
+                    statement.execute(validationQuery);
+                }
+            } else if (!connection.isValid(timeoutSeconds)) {
+                return new SQLException("Connection to " + jdbcUrl + " is no longer valid");
+            }
+            return null;
+        } catch (SQLException se) {
+            return se;
+        } catch (RuntimeException e) {
+            // a driver that cannot even check the connection is treated like one that found it broken
+            return new SQLException("Unable to validate connection to " + jdbcUrl, e);
+        }
+    }
+
+    private void discard(Connection connection, ConnectionProvider delegate) {
+        try {
+            connection.close();
+        } catch (SQLException | RuntimeException e) {
+            log.debug("Unable to close broken connection to {}", jdbcUrl, e);
+        }
+        try {
+            delegate.closeConnection(connection);
+        } catch (SQLException | RuntimeException e) {
+            log.warn("Unable to return broken connection to {}", jdbcUrl, e);
+        }
+    }
+
+    private void recordSuccess(Connection connection) {
+        long nowNanos = System.nanoTime();
+        AtomicLong lastSuccess = lastSuccessNanos.get(connection);
+        if (lastSuccess == null) {
+            lastSuccess = new AtomicLong(nowNanos);
+            AtomicLong existing = lastSuccessNanos.putIfAbsent(connection, lastSuccess);
+            if (existing == null) {
+                return;
+            }
+            lastSuccess = existing;
+        }
+        lastSuccess.lazySet(nowNanos);
+    }
+
+    @Override
+    public void statementPrepared(Connection connection, String sql, long prepareNanos) {
+        // preparing a statement does not necessarily reach the database
+    }
+
+    @Override
+    public void statementExecuted(Connection connection, @Nullable String sql, long executionNanos,
+                                  @Nullable Throwable failure) {
+        if (failure == null) {
+            recordSuccess(connection instanceof InstrumentedConnection ?
+                ((InstrumentedConnection) connection).getDelegate() : connection);
+        }
+    }
+
+    @Override
+    public void resultSetClosed(Connection connection, @Nullable String sql, int rowCount, long fetchNanos) {
+        // the execution that produced the result set was already recorded
+    }
+
+    /**
+     * Returns the number of acquired connections that were validated.
+     */
+    public long getNumValidated() {
+        return numValidated.sum();
+    }
+
+    /**
+     * Returns the number of acquired connections whose validation was skipped because they completed a statement
+     * recently.
+     */
+    public long getNumSkipped() {
+        return numSkipped.sum();
+    }
+
+    /**
+     * Returns the number of validations that failed.
+     */
+    public long getNumFailed() {
+        return numFailed.sum();
+    }
+
+    /**
+     * Returns how recently a connection must have completed a statement for its validation to be skipped, in
+     * milliseconds.
+     */
+    public long getWindowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(windowNanos);
+    }
+}
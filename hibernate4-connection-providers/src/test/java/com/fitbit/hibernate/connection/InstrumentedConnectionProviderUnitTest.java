@@ -0,0 +1,53 @@
+package com.fitbit.hibernate.connection;
+
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Environment;
+import org.hibernate.engine.jdbc.connections.internal.DriverManagerConnectionProviderImpl;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.Map;
+
+public class InstrumentedConnectionProviderUnitTest {
+
+    private StandardServiceRegistry serviceRegistry;
+    private InstrumentedConnectionProvider connectionProvider;
+
+    @Before
+    public void setupConnectionProvider() {
+        Map<String, String> settings = new HashMap<>();
+        settings.put(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+        settings.put(Environment.URL, "jdbc:hsqldb:mem:instrumentedProviderDb");
+        settings.put(Environment.USER, "sa");
+        settings.put(Environment.PASS, "");
+        settings.put(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        settings.put(InstrumentedConnectionProvider.DELEGATE_CONNECTION_PROVIDER_CLASS,
+            DriverManagerConnectionProviderImpl.class.getName());
+        serviceRegistry = new StandardServiceRegistryBuilder().applySettings(settings).build();
+        connectionProvider = (InstrumentedConnectionProvider) serviceRegistry.getService(ConnectionProvider.class);
+    }
+
+    @After
+    public void destroyServiceRegistry() {
+        StandardServiceRegistryBuilder.destroy(serviceRegistry);
+    }
+
+    @Test
+    public void testDelegateIsConfigured() throws Exception {
+        Assert.assertTrue(connectionProvider.getWrappedConnectionProvider() instanceof
+            DriverManagerConnectionProviderImpl);
+        // an explicitly named delegate is only instantiated by Hibernate, so this fails unless it was also configured
+        Connection conn = connectionProvider.getConnection();
+        try {
+            Assert.assertEquals("jdbc:hsqldb:mem:instrumentedProviderDb", conn.getMetaData().getURL());
+        } finally {
+            connectionProvider.closeConnection(conn);
+        }
+    }
+}